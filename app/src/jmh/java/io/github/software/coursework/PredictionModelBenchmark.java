@@ -24,7 +24,7 @@ public class PredictionModelBenchmark {
     @Setup(Level.Trial)
     public void setup() throws IOException {
         predictModel = new PredictModel(new TestStorage());
-        predictModel.loadTransactionsAndTrain();
+        predictModel.loadTransactionsAndTrain().join();
 
         Calendar calendar = Calendar.getInstance();
         calendar.setTimeZone(TimeZones.GMT);
@@ -7,17 +7,20 @@ import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import io.github.software.coursework.algo.Model;
 import io.github.software.coursework.algo.PredictModel;
 import io.github.software.coursework.data.AsyncStorage;
-import io.github.software.coursework.data.json.EncryptedLogger;
+import io.github.software.coursework.data.json.EncryptedLogReader;
 import io.github.software.coursework.data.json.Encryption;
 import io.github.software.coursework.data.json.JsonStorage;
 import io.github.software.coursework.gui.*;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.Tab;
 import javafx.scene.layout.AnchorPane;
@@ -155,57 +158,69 @@ public class App extends Application {
             });
         });
         encryptionSetting.setOnRequestOpenLog(event1 -> Thread.ofVirtual().start(() -> {
-            SequencedCollection<String> lines;
+            EncryptedLogReader reader = null;
             String errors = null;
-            SequencedCollection<String> finalLines = new ArrayList<>();
             try {
                 byte[] key = Encryption.readKeyFile(event.getPassword(), Files.readString(Path.of(event.getAccount().key())));
-                lines = EncryptedLogger.decodeLog(event1.getFile(), Objects.requireNonNull(key));
-                JsonFactory jsonFactory = new JsonFactory();
-                for (String line : lines) {
-                    StringWriter stringWriter = new StringWriter();
-                    try (JsonParser parser = jsonFactory.createParser(line); JsonGenerator generator = jsonFactory.createGenerator(stringWriter).setPrettyPrinter(new DefaultPrettyPrinter())) {
-                        while (parser.nextToken() != null) {
-                            generator.copyCurrentEvent(parser);
-                        }
-                    }
-                    finalLines.add(stringWriter.toString());
-                }
+                reader = EncryptedLogReader.open(event1.getFile(), Objects.requireNonNull(key));
             } catch (IOException e) {
                 logger.log(Level.INFO, "Error during reading log", e);
                 StringWriter sw = new StringWriter();
                 e.printStackTrace(new PrintWriter(sw));
                 errors = sw.toString();
             }
+            EncryptedLogReader finalReader = reader;
             String finalErrors = errors;
             Platform.runLater(() -> {
                 Tab tab = new Tab("Log: " + event1.getFile().getName());
-                ScrollPane scrollPane = new ScrollPane();
-                tab.setContent(scrollPane);
-                scrollPane.setFitToHeight(true);
-                scrollPane.setFitToWidth(true);
-                VBox vBox = new VBox();
-                vBox.setStyle("-fx-padding: 1em;");
-                scrollPane.setContent(vBox);
-                scrollPane.setVbarPolicy(ScrollPane.ScrollBarPolicy.ALWAYS);
-                if (finalErrors == null) {
-                    for (String line : finalLines) {
-                        TextFlow textFlow = new TextFlow();
-                        vBox.getChildren().add(textFlow);
-                        textFlow.setStyle("-fx-font-size: 12px; -fx-font-family: monospace; -fx-border-style: dashed; -fx-border-width: 0 0 1px 0; -fx-border-color: #000000;");
-                        textFlow.getChildren().add(new Text(line));
-                    }
-                    vBox.getChildren().add(new Label("End of log"));
+                if (finalReader != null) {
+                    // Only the entries scrolled into view are decrypted
+                    ListView<Integer> listView = new ListView<>(new ObservableListBase<>() {
+                        @Override
+                        public Integer get(int index) {
+                            return index;
+                        }
+
+                        @Override
+                        public int size() {
+                            return finalReader.size();
+                        }
+                    });
+                    listView.setStyle("-fx-font-size: 12px; -fx-font-family: monospace;");
+                    listView.setPlaceholder(new Label("End of log"));
+                    listView.setCellFactory(view -> new ListCell<>() {
+                        @Override
+                        protected void updateItem(Integer index, boolean empty) {
+                            super.updateItem(index, empty);
+                            setText(empty || index == null ? null : formatLogEntry(finalReader, index));
+                        }
+                    });
+                    tab.setContent(listView);
+                    tab.setOnClosed(event2 -> {
+                        try {
+                            finalReader.close();
+                        } catch (IOException e) {
+                            logger.log(Level.INFO, "Error during closing log", e);
+                        }
+                    });
+                    mainPageController.openExternalTab(tab);
+                    listView.scrollTo(Math.max(finalReader.size() - 1, 0));
                 } else {
+                    ScrollPane scrollPane = new ScrollPane();
+                    tab.setContent(scrollPane);
+                    scrollPane.setFitToHeight(true);
+                    scrollPane.setFitToWidth(true);
+                    VBox vBox = new VBox();
+                    vBox.setStyle("-fx-padding: 1em;");
+                    scrollPane.setContent(vBox);
                     TextFlow textFlow = new TextFlow();
                     vBox.getChildren().add(textFlow);
                     textFlow.setStyle("-fx-font-size: 12px; -fx-font-family: monospace;-fx-text-fill: #ff0000;");
                     Text text = new Text(finalErrors);
                     text.setFill(Paint.valueOf("#ff0000"));
                     textFlow.getChildren().add(text);
+                    mainPageController.openExternalTab(tab);
                 }
-                mainPageController.openExternalTab(tab);
-                Platform.runLater(() -> scrollPane.setVvalue(1.0));
             });
         }));
         loader = new FXMLLoader(MainPageController.class.getResource("EncryptionSetting.fxml"));
@@ -231,6 +246,23 @@ public class App extends Application {
         return new Scene(mainView, 800, 600);
     }
 
+    private String formatLogEntry(EncryptedLogReader reader, int index) {
+        try {
+            String line = reader.read(index, 1).getFirst().json();
+            JsonFactory jsonFactory = new JsonFactory();
+            StringWriter stringWriter = new StringWriter();
+            try (JsonParser parser = jsonFactory.createParser(line); JsonGenerator generator = jsonFactory.createGenerator(stringWriter).setPrettyPrinter(new DefaultPrettyPrinter())) {
+                while (parser.nextToken() != null) {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+            return stringWriter.toString();
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Error during reading log", e);
+            return "Error during reading log: " + e.getMessage();
+        }
+    }
+
     private void saveModel() {
         if (model != null) {
             storage.model(modelDirectory -> {
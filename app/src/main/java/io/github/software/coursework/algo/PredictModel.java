@@ -9,6 +9,7 @@ import io.github.software.coursework.algo.probmodel.GaussMixtureModel;
 import io.github.software.coursework.data.*;
 import io.github.software.coursework.data.schema.Entity;
 import io.github.software.coursework.data.schema.Transaction;
+import io.github.software.coursework.data.schema.TransactionSummary;
 import io.github.software.coursework.util.Bitmask;
 import io.github.software.coursework.util.XorShift128;
 import org.apache.commons.lang3.tuple.ImmutablePair;
@@ -21,14 +22,17 @@ import java.time.ZoneOffset;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class PredictModel implements Model {
 
     public static final int MONT_COUNT = 1024;
     private static final int montLower = (int) (0.05 * MONT_COUNT);
     private static final int montUpper = (int) (0.95 * MONT_COUNT);
+    private static final Logger logger = Logger.getLogger(PredictModel.class.getName());
 
     public EntityPrediction entityPrediction1;
     public EntityPrediction entityPrediction2;
@@ -130,80 +134,91 @@ public final class PredictModel implements Model {
     ///  not done yet
     @Override
     public void loadParameters(AsyncStorage.ModelDirectory reader) throws IOException {
-        loadTransactionsAndTrain();
+        // Called on the model thread, which must not wait for the transaction table
+        loadTransactionsAndTrain().whenComplete((ignored, ex) -> {
+            if (ex != null) {
+                logger.log(Level.SEVERE, "Error during training the model.", ex);
+            }
+        });
     }
 
-    public void loadTransactionsAndTrain() {
-        gMModelBudgetParameters.clear();
-        gMModelSaveParameters.clear();
-
-        CompletableFuture<Void> loaded = new CompletableFuture<>();
-
-        storage.transaction(table -> {
-            try {
-                List<Pair<String, Pair<Double, Triple<Integer, Integer, Integer>>>> arrLists = new ArrayList<>();
-                List<String> mapper = new ArrayList<>();
-                SequencedCollection<ReferenceItemPair<Transaction>> transactions = table.list(Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE);
-                for (var transaction : transactions) {
-                    long time = transaction.item().time();
-                    double amount = transaction.item().amount() / 100.0;
-                    String category = transaction.item().category();
-                    if (category == null) {
-                        category = "Diet";
-                    }
-
-                    Day d = Day.of(time);
+    /**
+     * Train the model on all transactions. The transactions are loaded on the transaction table
+     * and the model is trained on the model table, neither thread waiting for the other.
+     * @return The future completed once the model is trained.
+     */
+    public CompletableFuture<Void> loadTransactionsAndTrain() {
+        return loadTrainingStream().thenCompose(summaries -> storage.<Void>submitModel(AsyncStorage.Priority.BACKGROUND, ignored -> {
+            train(summaries);
+            return null;
+        }).whenComplete((ignored, ex) -> {
+            // The training is rejected if the model table is too busy
+            if (ex != null) {
+                summaries.close();
+            }
+        }));
+    }
 
-                    if (!mapper.contains(category)) {
-                        mapper.add(category);
-                    }
+    /**
+     * Only the snapshot is taken on the table, the transactions are streamed while the table can be modified.
+     * @return The stream of the summaries of all transactions, which is closed by {@link #train}.
+     */
+    private CompletableFuture<Stream<TransactionSummary>> loadTrainingStream() {
+        return storage.queryTransaction(AsyncStorage.Priority.BACKGROUND,
+                table -> table.streamSummaries(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
 
-                    Pair<Double, Triple<Integer, Integer, Integer>> t = Pair.of(amount, Triple.of(d.m, d.d, d.w));
-                    arrLists.add(Pair.of(category, t));
+    private void train(Stream<TransactionSummary> summaries) {
+        // The categories are those of the transactions, in the order they are first seen, "Diet" if there is none
+        LinkedHashMap<String, List<Pair<Double, Triple<Integer, Integer, Integer>>>> byCategory = new LinkedHashMap<>();
+        try (summaries) {
+            summaries.forEach(transaction -> {
+                String category = transaction.category() == null ? "Diet" : transaction.category();
+                List<Pair<Double, Triple<Integer, Integer, Integer>>> list = byCategory.computeIfAbsent(category, k -> new ArrayList<>());
+                double amount = transaction.amount() / 100.0;
+                if (amount == 0.0) {
+                    return;
                 }
+                Day d = Day.of(transaction.time());
+                list.add(Pair.of(amount, Triple.of(d.m, d.d, d.w)));
+            });
+        }
 
-                GMModelCalculation calculation = new GMModelCalculation();
+        gMModelBudgetParameters.clear();
+        gMModelSaveParameters.clear();
 
-                for (String category : mapper) {
-                    List<Pair<Double, Triple<Integer, Integer, Integer>>> transListsSave = new ArrayList<>();
-                    List<Pair<Double, Triple<Integer, Integer, Integer>>> transListsBudget = new ArrayList<>();
+        GMModelCalculation calculation = new GMModelCalculation();
+        for (String category : byCategory.keySet()) {
+            List<Pair<Double, Triple<Integer, Integer, Integer>>> transListsSave = new ArrayList<>();
+            List<Pair<Double, Triple<Integer, Integer, Integer>>> transListsBudget = new ArrayList<>();
 
-                    for (Pair<String, Pair<Double, Triple<Integer, Integer, Integer>>> t : arrLists) {
-                        if ((!t.getLeft().equalsIgnoreCase(category)) || t.getRight().getLeft() == 0.0) {
-                            continue;
-                        }
-                        if (t.getRight().getLeft() > 0)
-                            transListsSave.add(t.getRight());
-                        else
-                            transListsBudget.add(Pair.of(-t.getRight().getLeft(), t.getRight().getRight()));
-                    }
-
-                    this.gMModelSaveParameters.put(
-                            category,
-                            calculation.GMModelCalculator(transListsSave)
-                                    .stream()
-                                    .map(x -> x.stream().mapToDouble(Double::doubleValue).toArray())
-                                    .toArray(double[][]::new)
-                    );
-                    this.gMModelBudgetParameters.put(
-                            category,
-                            calculation.GMModelCalculator(transListsBudget)
-                                    .stream()
-                                    .map(x -> x.stream().mapToDouble(Double::doubleValue).toArray())
-                                    .toArray(double[][]::new)
-                    );
+            // A category is also trained on the categories differing from it only in case
+            for (Map.Entry<String, List<Pair<Double, Triple<Integer, Integer, Integer>>>> entry : byCategory.entrySet()) {
+                if (!entry.getKey().equalsIgnoreCase(category)) {
+                    continue;
+                }
+                for (Pair<Double, Triple<Integer, Integer, Integer>> t : entry.getValue()) {
+                    if (t.getLeft() > 0)
+                        transListsSave.add(t);
+                    else
+                        transListsBudget.add(Pair.of(-t.getLeft(), t.getRight()));
                 }
-                loaded.complete(null);
-
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
-        });
 
-        try {
-            loaded.get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
+            this.gMModelSaveParameters.put(
+                    category,
+                    calculation.GMModelCalculator(transListsSave)
+                            .stream()
+                            .map(x -> x.stream().mapToDouble(Double::doubleValue).toArray())
+                            .toArray(double[][]::new)
+            );
+            this.gMModelBudgetParameters.put(
+                    category,
+                    calculation.GMModelCalculator(transListsBudget)
+                            .stream()
+                            .map(x -> x.stream().mapToDouble(Double::doubleValue).toArray())
+                            .toArray(double[][]::new)
+            );
         }
     }
 
@@ -214,12 +229,12 @@ public final class PredictModel implements Model {
 
     @Override
     public CompletableFuture<Void> trainOnUpdate(Update<Entity> entityUpdate, Update<Transaction> transactionUpdate) {
-        CompletableFuture<Void> future = new CompletableFuture<>();
-        storage.model(entity -> {
+        return storage.submitModel(AsyncStorage.Priority.BACKGROUND, ignored -> {
+            boolean retrain = false;
             if (!transactionUpdate.oldItems().isEmpty() && !transactionUpdate.newItems().isEmpty()) {
                 changedFlag++;
                 if (changedFlag == 2) {
-                    loadTransactionsAndTrain();
+                    retrain = true;
                     changedFlag = 0;
                 }
             }
@@ -230,9 +245,14 @@ public final class PredictModel implements Model {
 
                 entityPrediction2.setCategory(name, cate2);
             }
-            future.complete(null);
+            return retrain;
+        }).thenCompose(retrain -> {
+            if (!retrain) {
+                return CompletableFuture.completedFuture(null);
+            }
+            // The model thread is not held while the transactions are loaded
+            return loadTransactionsAndTrain();
         });
-        return future;
     }
 
     public ImmutablePair<ImmutableDoubleArray, Pair<ImmutableDoubleArray, ImmutableDoubleArray>>
@@ -359,63 +379,59 @@ public final class PredictModel implements Model {
         return future;
     }
 
+    /**
+     * @param entityNames The names of the parties of the transactions, in the same order.
+     */
     public ImmutablePair<ImmutableIntArray, Bitmask.View2D>
-                    predictCategoriesAndTagsAsync(ImmutableList<Transaction> transactions, ImmutableList<String> categories, ImmutableList<String> tags) {
-        CompletableFuture<ImmutablePair<ImmutableIntArray, Bitmask.View2D>> future = new CompletableFuture<>();
-
-        storage.entity(entity -> {
-            try {
-                Map<String, Integer> map1 = new HashMap<>(), map2 = new HashMap<>();
+                    predictCategoriesAndTagsAsync(ImmutableList<Transaction> transactions, ImmutableList<String> entityNames, ImmutableList<String> categories, ImmutableList<String> tags) {
+        Map<String, Integer> map1 = new HashMap<>(), map2 = new HashMap<>();
 
-                for (int i = 0; i < categories.size(); i++) {
-                    map1.put(categories.get(i).toUpperCase(), i);
-                }
-                for (int i = 0; i < tags.size(); i++) {
-                    map2.put(tags.get(i).toUpperCase(), i);
-                }
+        for (int i = 0; i < categories.size(); i++) {
+            map1.put(categories.get(i).toUpperCase(), i);
+        }
+        for (int i = 0; i < tags.size(); i++) {
+            map2.put(tags.get(i).toUpperCase(), i);
+        }
 
-                Random random = new Random();
-                int[] category = new int[transactions.size()];
-                for (int i = 0; i < transactions.size(); i++) {
-                    String answer = entityPrediction2.predict(transactions.get(i).title() + entity.get(transactions.get(i).entity()).name()).getLeft();
-                    answer = answer.toUpperCase();
+        Random random = new Random();
+        int[] category = new int[transactions.size()];
+        for (int i = 0; i < transactions.size(); i++) {
+            String answer = entityPrediction2.predict(transactions.get(i).title() + entityNames.get(i)).getLeft();
+            answer = answer.toUpperCase();
 
-                    if (map1.containsKey(answer)) {
-                        category[i] = map1.get(answer);
-                    } else {
-                        category[i] = random.nextInt(categories.size());
-                    }
-                }
-                Bitmask.View2DMutable mask = Bitmask.view2DMutable(new long[Bitmask.size2d(tags.size(), transactions.size())], transactions.size());
-                for (int i = 0; i < transactions.size(); i++) {
-                    Day tmpDay = Day.of(transactions.get(i).time());
-//                    System.out.println("new transaction date: " + tmpDay.m + " " + tmpDay.d + " " + tmpDay.w);
-                    for (int j = 0; j < tags.size(); j++) {
-                        mask.set(j, i, tagPrediction.checkTag(tags.get(j), tmpDay.m, tmpDay.d));
-                    }
-                }
-                future.complete(ImmutablePair.of(
-                        ImmutableIntArray.copyOf(category),
-                        mask.view()
-                ));
-            } catch (IOException ex) {
-                future.completeExceptionally(ex);
+            if (map1.containsKey(answer)) {
+                category[i] = map1.get(answer);
+            } else {
+                category[i] = random.nextInt(categories.size());
             }
-        });
-
-        try {
-            return future.get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
         }
+        Bitmask.View2DMutable mask = Bitmask.view2DMutable(new long[Bitmask.size2d(tags.size(), transactions.size())], transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            Day tmpDay = Day.of(transactions.get(i).time());
+//            System.out.println("new transaction date: " + tmpDay.m + " " + tmpDay.d + " " + tmpDay.w);
+            for (int j = 0; j < tags.size(); j++) {
+                mask.set(j, i, tagPrediction.checkTag(tags.get(j), tmpDay.m, tmpDay.d));
+            }
+        }
+        return ImmutablePair.of(
+                ImmutableIntArray.copyOf(category),
+                mask.view()
+        );
     }
 
     @Override
     public CompletableFuture<ImmutablePair<ImmutableIntArray, Bitmask.View2D>>
                     predictCategoriesAndTags(ImmutableList<Transaction> transactions, ImmutableList<String> categories, ImmutableList<String> tags) {
-        CompletableFuture<ImmutablePair<ImmutableIntArray, Bitmask.View2D>> future = new CompletableFuture<>();
-        storage.model(ignored -> future.complete(predictCategoriesAndTagsAsync(transactions, categories, tags)));
-        return future;
+        // The names are looked up on the entity table first, so the model thread never waits for it
+        return storage.queryEntity(entity -> {
+            ImmutableList.Builder<String> entityNames = ImmutableList.builderWithExpectedSize(transactions.size());
+            for (Transaction transaction : transactions) {
+                entityNames.add(entity.get(transaction.entity()).name());
+            }
+            return entityNames.build();
+        }).thenCompose(entityNames -> storage.submitModel(
+                ignored -> predictCategoriesAndTagsAsync(transactions, entityNames, categories, tags)
+        ));
     }
 
     public ImmutableIntArray predictEntityTypesAsync(ImmutableList<Entity> entities) {
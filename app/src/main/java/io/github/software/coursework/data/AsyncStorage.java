@@ -3,20 +3,60 @@ package io.github.software.coursework.data;
 import io.github.software.coursework.data.schema.Entity;
 import io.github.software.coursework.data.schema.Goal;
 import io.github.software.coursework.data.schema.Transaction;
+import io.github.software.coursework.data.schema.TransactionAggregate;
+import io.github.software.coursework.data.schema.TransactionSummary;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.SequencedCollection;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * An asynchronous storage interface.
  * For simplicity, one thread per table;
+ *
+ * <p>The tables are accessed either with callbacks, or with tasks whose results complete futures, see {@link Task}.
+ * Work across tables is composed from the futures, e.g. {@code queryTransaction(...).thenCompose(page -> queryEntity(...))},
+ * instead of submitting to a table from the callback of another, and reads of different tables submitted together run in parallel.</p>
  */
 public interface AsyncStorage {
+    /**
+     * The urgency of a read. When a table is free, the most urgent read waiting for it runs next, and the reads of the
+     * same priority run in the order they are submitted. A running task is never interrupted, so a more urgent read
+     * overtakes the less urgent ones at the next task boundary. In particular, a read may run before a less urgent
+     * modification submitted before it, so work that depends on such a modification must be composed from its future.
+     * The modifications of a table always run in the order they are submitted, and a modification waiting behind less
+     * urgent ones makes them run as urgently as itself.
+     */
+    enum Priority {
+        /**
+         * Work the user is waiting for, such as loading a page. The methods without a priority use this one.
+         */
+        INTERACTIVE,
+
+        /**
+         * Work the user is not waiting for, such as training models.
+         */
+        BACKGROUND,
+
+        /**
+         * Long work on many items, such as importing, which should not delay anything else.
+         */
+        BULK,
+    }
+
     /**
      * The sensitivity of a modification.
      */
@@ -81,6 +121,19 @@ public interface AsyncStorage {
          * @throws IOException If an I/O error occurs.
          */
         V get(K key) throws IOException;
+
+        /**
+         * Put many values into the table at once. Same as calling {@link #put} for each entry,
+         * but implementations may do it much faster.
+         * @param values The values to put. If a value is null, the key will be removed.
+         * @param sensitivity The sensitivity of the modification.
+         * @throws IOException If an I/O error occurs.
+         */
+        default void putAll(Map<K, V> values, Sensitivity sensitivity) throws IOException {
+            for (Map.Entry<K, V> entry : values.entrySet()) {
+                put(entry.getKey(), sensitivity, entry.getValue());
+            }
+        }
     }
 
     /**
@@ -95,6 +148,37 @@ public interface AsyncStorage {
          * @throws IOException If an I/O error occurs.
          */
         SequencedCollection<ReferenceItemPair<Entity>> list(int offset, int limit) throws IOException;
+
+        /**
+         * Stream all entities in the same order as {@link #list(int, int)}. Unlike a list, the entities are loaded
+         * as the stream reaches them, so it is suitable for passes over the whole table.
+         * The stream sees the table as it is when the stream is created, and may be used on any thread, also after
+         * the table is modified. It must be closed once done with, and failures are thrown as {@link UncheckedIOException}.
+         * The default implementation lists all entities.
+         * @return The stream of entities.
+         * @throws IOException If an I/O error occurs.
+         */
+        default Stream<ReferenceItemPair<Entity>> stream() throws IOException {
+            return list(0, Integer.MAX_VALUE).stream();
+        }
+
+        /**
+         * Find the entities whose name contains the query, ignoring case.
+         * The default implementation filters all entities.
+         * @param query The text to look for.
+         * @return The matching entities, in no particular order.
+         * @throws IOException If an I/O error occurs.
+         */
+        default SequencedCollection<ReferenceItemPair<Entity>> search(String query) throws IOException {
+            String normalized = TransactionTable.normalizeQuery(query);
+            try (Stream<ReferenceItemPair<Entity>> entities = stream()) {
+                return entities
+                        .filter(pair -> TransactionTable.normalizeQuery(pair.item().name()).contains(normalized))
+                        .collect(Collectors.toCollection(ArrayList::new));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
     }
 
     /**
@@ -112,6 +196,246 @@ public interface AsyncStorage {
          */
         SequencedCollection<ReferenceItemPair<Transaction>> list(long start, long end, int offset, int limit) throws IOException;
 
+        /**
+         * Stream the transactions in a given range, in the same order as {@link #list(long, long, int, int)}.
+         * Unlike a list, the transactions are loaded as the stream reaches them, so it is suitable for passes over
+         * long periods. The stream sees the table as it is when the stream is created, and may be used on any thread,
+         * also after the table is modified. It must be closed once done with, and failures are thrown as
+         * {@link UncheckedIOException}. The default implementation lists all transactions in the range.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @return The stream of transactions.
+         * @throws IOException If an I/O error occurs.
+         */
+        default Stream<ReferenceItemPair<Transaction>> stream(long start, long end) throws IOException {
+            return list(start, end, 0, Integer.MAX_VALUE).stream();
+        }
+
+        /**
+         * Same as {@link #stream(long, long)}, but only the summaries are streamed, see {@link #listSummaries}.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @return The stream of transaction summaries.
+         * @throws IOException If an I/O error occurs.
+         */
+        default Stream<TransactionSummary> streamSummaries(long start, long end) throws IOException {
+            return stream(start, end).map(pair -> TransactionSummary.of(pair.reference(), pair.item()));
+        }
+
+        /**
+         * Same as {@link #list(long, long, int, int)}, but only the fields needed for ordering and aggregation are returned,
+         * so the full transactions do not have to be loaded.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @param offset The offset. Notice the descending order.
+         * @param limit The limit.
+         * @return The list of transaction summaries.
+         * @throws IOException If an I/O error occurs.
+         */
+        default SequencedCollection<TransactionSummary> listSummaries(long start, long end, int offset, int limit) throws IOException {
+            return list(start, end, offset, limit).stream()
+                    .map(pair -> TransactionSummary.of(pair.reference(), pair.item()))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+
+        /**
+         * Aggregate the transactions in a given range, grouped by time.
+         * The range is cut into buckets of the given length from its start, the i-th bucket being
+         * (start + i * groupBy, min(start + (i + 1) * groupBy, end)], so the buckets are in *ASCENDING* order.
+         * The default implementation aggregates the summaries of all transactions in the range.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @param groupBy The length of the buckets in milliseconds, or {@link Long#MAX_VALUE} for a single bucket.
+         * @return The aggregate of each bucket.
+         * @throws IOException If an I/O error occurs.
+         */
+        default List<TransactionAggregate> aggregate(long start, long end, long groupBy) throws IOException {
+            ArrayList<ArrayList<TransactionSummary>> buckets = new ArrayList<>();
+            for (int i = 0; i < bucketCount(start, end, groupBy); i++) {
+                buckets.add(new ArrayList<>());
+            }
+            try (Stream<TransactionSummary> summaries = streamSummaries(start, end)) {
+                summaries.forEach(summary -> buckets
+                        .get(buckets.size() == 1 ? 0 : (int) Long.divideUnsigned(summary.time() - start - 1, groupBy))
+                        .add(summary));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            ArrayList<TransactionAggregate> result = new ArrayList<>(buckets.size());
+            for (ArrayList<TransactionSummary> bucket : buckets) {
+                result.add(TransactionAggregate.of(bucket));
+            }
+            return result;
+        }
+
+        /**
+         * @return The number of buckets {@link #aggregate(long, long, long)} cuts the range into.
+         */
+        static int bucketCount(long start, long end, long groupBy) {
+            if (groupBy <= 0) {
+                throw new IllegalArgumentException("The length of buckets must be positive: " + groupBy);
+            }
+            if (end <= start) {
+                return 0;
+            } else if (groupBy == Long.MAX_VALUE) {
+                return 1;
+            }
+            // The difference may overflow a signed long, e.g. for the whole time
+            return Math.toIntExact(Long.divideUnsigned(end - start - 1, groupBy) + 1);
+        }
+
+        /**
+         * Same as {@link #listSummaries(long, long, int, int)}, but only the transactions of the given category are returned.
+         * The default implementation filters all transactions in the range.
+         * @param category The category.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @param offset The offset among the transactions of the category. Notice the descending order.
+         * @param limit The limit.
+         * @return The list of transaction summaries.
+         * @throws IOException If an I/O error occurs.
+         */
+        default SequencedCollection<TransactionSummary> listByCategory(String category, long start, long end, int offset, int limit) throws IOException {
+            try (Stream<TransactionSummary> summaries = streamByCategory(category, start, end)) {
+                return summaries.skip(offset).limit(limit).collect(Collectors.toCollection(ArrayList::new));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Same as {@link #streamSummaries(long, long)}, but only the transactions of the given category are streamed.
+         * The default implementation filters all transactions in the range.
+         * @param category The category.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @return The stream of transaction summaries.
+         * @throws IOException If an I/O error occurs.
+         */
+        default Stream<TransactionSummary> streamByCategory(String category, long start, long end) throws IOException {
+            return streamSummaries(start, end).filter(summary -> summary.category().equals(category));
+        }
+
+        /**
+         * Same as {@link #listSummaries(long, long, int, int)}, but only the transactions with the given party are returned.
+         * The default implementation filters all transactions in the range.
+         * @param entity The party involved in the transactions.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @param offset The offset among the transactions of the party. Notice the descending order.
+         * @param limit The limit.
+         * @return The list of transaction summaries.
+         * @throws IOException If an I/O error occurs.
+         */
+        default SequencedCollection<TransactionSummary> listByEntity(Reference<Entity> entity, long start, long end, int offset, int limit) throws IOException {
+            try (Stream<ReferenceItemPair<Transaction>> transactions = stream(start, end)) {
+                return transactions
+                        .filter(pair -> entity.equals(pair.item().entity()))
+                        .skip(offset).limit(limit)
+                        .map(pair -> TransactionSummary.of(pair.reference(), pair.item()))
+                        .collect(Collectors.toCollection(ArrayList::new));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Same as {@link #listSummaries(long, long, int, int)}, but only the transactions with the given tag are returned.
+         * The default implementation filters all transactions in the range.
+         * @param tag The tag.
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @param offset The offset among the transactions with the tag. Notice the descending order.
+         * @param limit The limit.
+         * @return The list of transaction summaries.
+         * @throws IOException If an I/O error occurs.
+         */
+        default SequencedCollection<TransactionSummary> listByTag(String tag, long start, long end, int offset, int limit) throws IOException {
+            try (Stream<ReferenceItemPair<Transaction>> transactions = stream(start, end)) {
+                return transactions
+                        .filter(pair -> pair.item().tags().contains(tag))
+                        .skip(offset).limit(limit)
+                        .map(pair -> TransactionSummary.of(pair.reference(), pair.item()))
+                        .collect(Collectors.toCollection(ArrayList::new));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Find the transactions whose title or description contains the query, ignoring case, or whose party is one of the given entities.
+         * The results are ranked, title matches first, then party matches, then description matches, the newest first within a rank.
+         * The default implementation filters all transactions.
+         * @param query The text to look for.
+         * @param entities The entities whose transactions also match, usually the result of {@link EntityTable#search(String)}.
+         * @param offset The offset among the ranked results.
+         * @param limit The limit.
+         * @return The total number of matching transactions, and the requested page of them.
+         * @throws IOException If an I/O error occurs.
+         */
+        default ImmutablePair<Integer, SequencedCollection<ReferenceItemPair<Transaction>>> search(String query, Set<Reference<Entity>> entities, int offset, int limit) throws IOException {
+            String normalized = normalizeQuery(query);
+            ArrayList<ImmutablePair<Integer, ReferenceItemPair<Transaction>>> matches = new ArrayList<>();
+            try (Stream<ReferenceItemPair<Transaction>> transactions = stream(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                transactions.forEach(pair -> {
+                    int score = searchScore(normalized, pair.item(), pair.item().entity() != null && entities.contains(pair.item().entity()));
+                    if (score > 0) {
+                        matches.add(ImmutablePair.of(score, pair));
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return rankSearchResults(matches, offset, limit);
+        }
+
+        /**
+         * The normalization applied to both the query and the text before matching.
+         */
+        static String normalizeQuery(String text) {
+            return text.toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * @param normalizedQuery The query after {@link #normalizeQuery(String)}.
+         * @return The rank of the transaction in the results of {@link #search}, or 0 if it does not match.
+         */
+        static int searchScore(String normalizedQuery, Transaction transaction, boolean entityMatches) {
+            if (normalizedQuery.isEmpty() || normalizeQuery(transaction.title()).contains(normalizedQuery)) {
+                return 3;
+            } else if (entityMatches) {
+                return 2;
+            } else if (normalizeQuery(transaction.description()).contains(normalizedQuery)) {
+                return 1;
+            }
+            return 0;
+        }
+
+        /**
+         * Sort the scored matches as described in {@link #search} and cut the requested page.
+         */
+        static ImmutablePair<Integer, SequencedCollection<ReferenceItemPair<Transaction>>> rankSearchResults(
+                ArrayList<ImmutablePair<Integer, ReferenceItemPair<Transaction>>> matches, int offset, int limit) {
+            matches.sort(Comparator.comparing((ImmutablePair<Integer, ReferenceItemPair<Transaction>> match) -> match.getLeft()).reversed()
+                    .thenComparing(match -> match.getRight().item().time(), Comparator.reverseOrder())
+                    .thenComparingLong(match -> match.getRight().reference().id()));
+            return ImmutablePair.of(matches.size(), matches.stream()
+                    .skip(offset).limit(limit)
+                    .map(ImmutablePair::getRight)
+                    .collect(Collectors.toCollection(ArrayList::new)));
+        }
+
+        /**
+         * Count the transactions in a given range, which is useful for pagination. The range is (start, end].
+         * @param start The start of the range.
+         * @param end The end of the range.
+         * @return The number of transactions in the range.
+         * @throws IOException If an I/O error occurs.
+         */
+        default int count(long start, long end) throws IOException {
+            return list(start, end, 0, Integer.MAX_VALUE).size();
+        }
+
         /**
          * Get the set of all categories and the set of categories in use/
          */
@@ -188,18 +512,211 @@ public interface AsyncStorage {
      */
     void entity(Consumer<EntityTable> callback);
 
+    /**
+     * Same as {@link #entity(Consumer)}, with the given priority.
+     * The default implementation ignores the priority.
+     * @param priority The priority of the callback.
+     * @param callback The callback to be executed.
+     */
+    default void entity(Priority priority, Consumer<EntityTable> callback) {
+        entity(callback);
+    }
+
+    /**
+     * The callback may run concurrently with other reads of the entity table, but after the modifications submitted
+     * before it, and it must not modify the table. Use it for loading pages and long scans, so they do not hold up each other.
+     * The default implementation submits the callback to the entity thread.
+     * @param callback The callback to be executed.
+     */
+    default void readEntity(Consumer<EntityTable> callback) {
+        entity(callback);
+    }
+
+    /**
+     * Same as {@link #readEntity(Consumer)}, with the given priority.
+     * The default implementation ignores the priority.
+     * @param priority The priority of the callback.
+     * @param callback The callback to be executed.
+     */
+    default void readEntity(Priority priority, Consumer<EntityTable> callback) {
+        readEntity(callback);
+    }
+
     /**
      * The callback is submitted to the transaction thread, and you can safely access the transaction table.
      * @param callback The callback to be executed.
      */
     void transaction(Consumer<TransactionTable> callback);
 
+    /**
+     * Same as {@link #transaction(Consumer)}, with the given priority.
+     * The default implementation ignores the priority.
+     * @param priority The priority of the callback.
+     * @param callback The callback to be executed.
+     */
+    default void transaction(Priority priority, Consumer<TransactionTable> callback) {
+        transaction(callback);
+    }
+
+    /**
+     * The callback may run concurrently with other reads of the transaction table, but after the modifications submitted
+     * before it, and it must not modify the table. Use it for loading pages and long scans, so they do not hold up each other.
+     * The default implementation submits the callback to the transaction thread.
+     * @param callback The callback to be executed.
+     */
+    default void readTransaction(Consumer<TransactionTable> callback) {
+        transaction(callback);
+    }
+
+    /**
+     * Same as {@link #readTransaction(Consumer)}, with the given priority.
+     * The default implementation ignores the priority.
+     * @param priority The priority of the callback.
+     * @param callback The callback to be executed.
+     */
+    default void readTransaction(Priority priority, Consumer<TransactionTable> callback) {
+        readTransaction(callback);
+    }
+
     /**
      * The callback is submitted to the model thread, and you can safely access the model directory.
      * @param callback The callback to be executed.
      */
     void model(Consumer<ModelDirectory> callback);
 
+    /**
+     * Same as {@link #model(Consumer)}, with the given priority.
+     * The default implementation ignores the priority.
+     * @param priority The priority of the callback.
+     * @param callback The callback to be executed.
+     */
+    default void model(Priority priority, Consumer<ModelDirectory> callback) {
+        model(callback);
+    }
+
+    /**
+     * A task on a table or the model directory, whose result or failure completes the future returned on submission.
+     * The future is completed on the thread of the table, so the stages depending on it must not block, in particular
+     * not on other tables. Submit the work on another table from them instead, or use the async variants of the stages.
+     * @param <T> The type of the table.
+     * @param <R> The type of the result.
+     */
+    @FunctionalInterface
+    interface Task<T, R> {
+        R run(T table) throws IOException;
+    }
+
+    private static <T, R> CompletableFuture<R> submit(Consumer<Consumer<T>> submitter, Task<? super T, ? extends R> task) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            submitter.accept(table -> {
+                try {
+                    future.complete(task.run(table));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Same as {@link #entity(Consumer)}, but the result of the task completes the returned future.
+     * @param task The task to be executed.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> submitEntity(Task<? super EntityTable, ? extends R> task) {
+        return submitEntity(Priority.INTERACTIVE, task);
+    }
+
+    /**
+     * Same as {@link #submitEntity(Task)}, with the given priority.
+     * @param priority The priority of the task.
+     * @param task The task to be executed.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> submitEntity(Priority priority, Task<? super EntityTable, ? extends R> task) {
+        return AsyncStorage.<EntityTable, R>submit(callback -> entity(priority, callback), task);
+    }
+
+    /**
+     * Same as {@link #readEntity(Consumer)}, but the result of the task completes the returned future.
+     * @param task The task to be executed, which must not modify the table.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> queryEntity(Task<? super EntityTable, ? extends R> task) {
+        return queryEntity(Priority.INTERACTIVE, task);
+    }
+
+    /**
+     * Same as {@link #queryEntity(Task)}, with the given priority.
+     * @param priority The priority of the task.
+     * @param task The task to be executed, which must not modify the table.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> queryEntity(Priority priority, Task<? super EntityTable, ? extends R> task) {
+        return AsyncStorage.<EntityTable, R>submit(callback -> readEntity(priority, callback), task);
+    }
+
+    /**
+     * Same as {@link #transaction(Consumer)}, but the result of the task completes the returned future.
+     * @param task The task to be executed.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> submitTransaction(Task<? super TransactionTable, ? extends R> task) {
+        return submitTransaction(Priority.INTERACTIVE, task);
+    }
+
+    /**
+     * Same as {@link #submitTransaction(Task)}, with the given priority.
+     * @param priority The priority of the task.
+     * @param task The task to be executed.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> submitTransaction(Priority priority, Task<? super TransactionTable, ? extends R> task) {
+        return AsyncStorage.<TransactionTable, R>submit(callback -> transaction(priority, callback), task);
+    }
+
+    /**
+     * Same as {@link #readTransaction(Consumer)}, but the result of the task completes the returned future.
+     * @param task The task to be executed, which must not modify the table.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> queryTransaction(Task<? super TransactionTable, ? extends R> task) {
+        return queryTransaction(Priority.INTERACTIVE, task);
+    }
+
+    /**
+     * Same as {@link #queryTransaction(Task)}, with the given priority.
+     * @param priority The priority of the task.
+     * @param task The task to be executed, which must not modify the table.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> queryTransaction(Priority priority, Task<? super TransactionTable, ? extends R> task) {
+        return AsyncStorage.<TransactionTable, R>submit(callback -> readTransaction(priority, callback), task);
+    }
+
+    /**
+     * Same as {@link #model(Consumer)}, but the result of the task completes the returned future.
+     * @param task The task to be executed.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> submitModel(Task<? super ModelDirectory, ? extends R> task) {
+        return submitModel(Priority.INTERACTIVE, task);
+    }
+
+    /**
+     * Same as {@link #submitModel(Task)}, with the given priority.
+     * @param priority The priority of the task.
+     * @param task The task to be executed.
+     * @return The result of the task, which fails if the task throws, the storage is closed or too busy to accept the task.
+     */
+    default <R> CompletableFuture<R> submitModel(Priority priority, Task<? super ModelDirectory, ? extends R> task) {
+        return AsyncStorage.<ModelDirectory, R>submit(callback -> model(priority, callback), task);
+    }
+
     /**
      * Close the storage. (i.e. flush all changes to disk and shutdown the threads)
      * @return a CompletableFuture that will be completed when the storage is closed.
@@ -17,6 +17,15 @@ public interface Directory extends AutoCloseable, DirectoryAccessor {
      */
     void flush() throws IOException;
 
+    /**
+     * Make the modifications since the last commit durable, if the directory supports it.
+     * Different from {@link #flush()}, this is expected to be cheap enough to be called after every operation.
+     * The default implementation does nothing.
+     * @throws IOException if an I/O error occurs
+     */
+    default void commit() throws IOException {
+    }
+
     /**
      * Open a subdirectory with the given name.
      * @param namespace the name of the subdirectory
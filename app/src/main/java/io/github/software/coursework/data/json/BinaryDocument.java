@@ -0,0 +1,40 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.github.software.coursework.data.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@VisibleForTesting
+public final class BinaryDocument implements Document {
+    private final ByteArrayOutputStream bytes;
+
+    public BinaryDocument() {
+        this.bytes = new ByteArrayOutputStream();
+        try (Writer writer = writer()) {
+            writer.writeEnd();
+        } catch (IOException e) {
+            throw new Error(e); // Unreachable
+        }
+    }
+
+    @Override
+    public Reader reader() {
+        try {
+            return BinaryReader.createReader(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Writer writer() {
+        bytes.reset();
+        return BinaryWriter.createWriter(bytes);
+    }
+
+    public byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+}
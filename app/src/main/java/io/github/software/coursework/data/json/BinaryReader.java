@@ -0,0 +1,281 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Reference;
+import io.github.software.coursework.data.SyntaxException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import static io.github.software.coursework.data.json.BinaryWriter.*;
+
+/**
+ * Reads documents written by {@link BinaryWriter}. Same as {@link JsonReader}, the fields must be read
+ * in the order they were written.
+ */
+@VisibleForTesting
+@ParametersAreNonnullByDefault
+public final class BinaryReader implements Document.Reader {
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+        private final int limit;
+        private final ArrayList<String> keys = new ArrayList<>();
+
+        private Input(byte[] bytes, int offset, int limit) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        private int peek() throws SyntaxException {
+            if (position >= limit) {
+                throw new SyntaxException("Unexpected end of document");
+            }
+            return bytes[position] & 0xff;
+        }
+
+        private int read() throws SyntaxException {
+            int value = peek();
+            position++;
+            return value;
+        }
+
+        private long readVarint() throws SyntaxException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SyntaxException("Malformed varint");
+        }
+
+        private long readFixed64() throws SyntaxException {
+            if (position + 8 > limit) {
+                throw new SyntaxException("Unexpected end of document");
+            }
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[position++] & 0xff);
+            }
+            return value;
+        }
+
+        private String readString() throws SyntaxException {
+            long length = readVarint();
+            if (length < 0 || length > limit - position) {
+                throw new SyntaxException("Malformed string length " + length);
+            }
+            String value = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return value;
+        }
+    }
+
+    private final Logger logger = Logger.getLogger("BinaryReader");
+
+    private final Input input;
+    private int index;
+    private @Nullable BinaryReader childReader;
+    private boolean exhausted;
+    private boolean suppressWarning = false;
+
+    private BinaryReader(Input input) {
+        this.input = input;
+    }
+
+    /**
+     * Check if the bytes look like a document written by {@link BinaryWriter}.
+     * @param bytes the bytes to check
+     * @return true if the bytes start with the binary document magic
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length >= MAGIC.length && Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    public static BinaryReader createReader(byte[] bytes) throws IOException {
+        if (!isBinary(bytes)) {
+            throw new SyntaxException("Not a binary document");
+        }
+        return new BinaryReader(new Input(bytes, MAGIC.length, bytes.length));
+    }
+
+    private void checkState() {
+        if (exhausted) {
+            throw new IllegalStateException("You have reach the end of the document.");
+        }
+        if (childReader != null && !childReader.exhausted) {
+            throw new IllegalStateException("You should exhaust previous field before continuing.");
+        }
+    }
+
+    private static String typeName(int type) {
+        return switch (type) {
+            case TYPE_END -> "END_OF_COMPOUND";
+            case TYPE_INTEGER -> "INTEGER";
+            case TYPE_FLOAT -> "FLOAT";
+            case TYPE_STRING -> "STRING";
+            case TYPE_REFERENCE -> "REFERENCE";
+            case TYPE_NULL -> "NULL";
+            case TYPE_COMPOUND -> "COMPOUND";
+            default -> "UNKNOWN(" + type + ")";
+        };
+    }
+
+    /**
+     * Consume the tag and the key of the next field and check them.
+     * Exactly one of key and intKey is used, intKey is used when key is null.
+     * @return the type of the field
+     */
+    private int checkField(@Nullable String key, int intKey, int... types) throws IOException {
+        checkState();
+        int tag = input.peek();
+        int type = tag & TYPE_MASK;
+        if (type == TYPE_END) {
+            throw new SyntaxException("Expected field " + (key == null ? Integer.toString(intKey) : key) + ", found end of compound");
+        }
+        int saved = input.position;
+        input.position++;
+        boolean matches = switch (tag & KEY_MASK) {
+            case KEY_POSITIONAL -> key == null ? intKey == index : isIndex(key, index);
+            case KEY_NEW -> {
+                String name = input.readString();
+                input.keys.add(name);
+                yield key == null ? isIndex(name, intKey) : key.equals(name);
+            }
+            case KEY_INTERNED -> {
+                long id = input.readVarint();
+                if (id < 0 || id >= input.keys.size()) {
+                    throw new SyntaxException("Unknown key id " + id);
+                }
+                String name = input.keys.get((int) id);
+                yield key == null ? isIndex(name, intKey) : key.equals(name);
+            }
+            default -> throw new SyntaxException("Malformed tag " + tag);
+        };
+        if (!matches) {
+            if ((tag & KEY_MASK) == KEY_NEW) {
+                input.keys.removeLast();
+            }
+            input.position = saved;
+            throw new SyntaxException("Expected field " + (key == null ? Integer.toString(intKey) : key) + ", found another field");
+        }
+        for (int t : types) {
+            if (t == type) {
+                index++;
+                return type;
+            }
+        }
+        throw new SyntaxException("Expected " + Arrays.stream(types).mapToObj(BinaryReader::typeName).toList() + ", found " + typeName(type));
+    }
+
+    private long readIntegerValue() throws IOException {
+        long value = input.readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private double readFloatValue(int type) throws IOException {
+        return type == TYPE_INTEGER ? readIntegerValue() : Double.longBitsToDouble(input.readFixed64());
+    }
+
+    @SuppressWarnings({"rawtypes"})
+    private @Nullable Reference<?> readReferenceValue(int type) throws IOException {
+        return type == TYPE_NULL ? null : new Reference(input.readFixed64());
+    }
+
+    private BinaryReader newChild() {
+        childReader = new BinaryReader(input);
+        return childReader;
+    }
+
+    @Override
+    public long readInteger(String key) throws IOException {
+        checkField(key, 0, TYPE_INTEGER);
+        return readIntegerValue();
+    }
+
+    @Override
+    public double readFloat(String key) throws IOException {
+        return readFloatValue(checkField(key, 0, TYPE_FLOAT, TYPE_INTEGER));
+    }
+
+    @Override
+    public String readString(String key) throws IOException {
+        checkField(key, 0, TYPE_STRING);
+        return input.readString();
+    }
+
+    @Override
+    public @Nullable Reference<?> readReference(String key) throws IOException {
+        return readReferenceValue(checkField(key, 0, TYPE_REFERENCE, TYPE_NULL));
+    }
+
+    @Override
+    public Document.Reader readCompound(String key) throws IOException {
+        checkField(key, 0, TYPE_COMPOUND);
+        return newChild();
+    }
+
+    @Override
+    public long readInteger(int key) throws IOException {
+        checkField(null, key, TYPE_INTEGER);
+        return readIntegerValue();
+    }
+
+    @Override
+    public double readFloat(int key) throws IOException {
+        return readFloatValue(checkField(null, key, TYPE_FLOAT, TYPE_INTEGER));
+    }
+
+    @Override
+    public String readString(int key) throws IOException {
+        checkField(null, key, TYPE_STRING);
+        return input.readString();
+    }
+
+    @Override
+    public @Nullable Reference<?> readReference(int key) throws IOException {
+        return readReferenceValue(checkField(null, key, TYPE_REFERENCE, TYPE_NULL));
+    }
+
+    @Override
+    public Document.Reader readCompound(int key) throws IOException {
+        checkField(null, key, TYPE_COMPOUND);
+        return newChild();
+    }
+
+    @Override
+    public boolean isEnd() throws IOException {
+        checkState();
+        return (input.peek() & TYPE_MASK) == TYPE_END;
+    }
+
+    @Override
+    public void readEnd() throws IOException {
+        if (!isEnd()) {
+            throw new SyntaxException("Expected end of compound, found " + typeName(input.peek() & TYPE_MASK));
+        }
+        input.position++;
+        exhausted = true;
+    }
+
+    void suppressWarning() {
+        this.suppressWarning = true;
+    }
+
+    @Override
+    public void close() {
+        if (!exhausted && !suppressWarning) {
+            logger.info("Close the reader before reaching the end of the document.");
+        }
+    }
+}
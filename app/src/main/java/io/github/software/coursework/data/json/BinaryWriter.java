@@ -0,0 +1,265 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Reference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+/**
+ * A compact binary counterpart of {@link JsonWriter}.
+ * Tokens are written straight into a growable buffer as they come, so no intermediate tree is built.
+ * Integers are zigzag varints, strings are length-prefixed UTF-8, and every field name is stored
+ * once per document and referred to by its index afterward. Fields whose name is their position
+ * in the compound (i.e. array elements) do not store a name at all.
+ */
+@VisibleForTesting
+@ParametersAreNonnullByDefault
+public final class BinaryWriter implements Document.Writer {
+    static final byte[] MAGIC = {(byte) 0xb7, 'B', 'D', 1};
+
+    static final int TYPE_END = 0;
+    static final int TYPE_INTEGER = 1;
+    static final int TYPE_FLOAT = 2;
+    static final int TYPE_STRING = 3;
+    static final int TYPE_REFERENCE = 4;
+    static final int TYPE_NULL = 5;
+    static final int TYPE_COMPOUND = 6;
+    static final int TYPE_MASK = 0x07;
+
+    static final int KEY_POSITIONAL = 0x00;
+    static final int KEY_NEW = 0x08;
+    static final int KEY_INTERNED = 0x10;
+    static final int KEY_MASK = 0x18;
+
+    private static final class Output {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+        private final HashMap<String, Integer> keys = new HashMap<>();
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        private void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        private void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        private void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeFixed64(long value) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                bytes[size++] = (byte) (value >>> i);
+            }
+        }
+
+        private void writeString(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(encoded.length);
+            write(encoded);
+        }
+    }
+
+    private final Logger logger = Logger.getLogger("BinaryWriter");
+    private final @Nullable OutputStream outputStream;
+    private final Output output;
+    private int index = 0;
+    private @Nullable BinaryWriter childWriter;
+    private boolean ended = false;
+
+    private BinaryWriter(@Nullable OutputStream outputStream, Output output) {
+        this.outputStream = outputStream;
+        this.output = output;
+    }
+
+    /**
+     * Create a root writer. Nothing reaches the stream until {@link #writeEnd()} is called on it.
+     * @param outputStream the stream to write the document to
+     * @return the root writer
+     */
+    public static BinaryWriter createWriter(OutputStream outputStream) {
+        BinaryWriter writer = new BinaryWriter(outputStream, new Output());
+        writer.output.write(MAGIC);
+        return writer;
+    }
+
+    /**
+     * Same as {@code key.equals(Integer.toString(index))}, but without allocating in the common
+     * case where the key is a field name.
+     */
+    static boolean isIndex(String key, int index) {
+        int length = key.length();
+        if (length == 0 || length > 10 || (length > 1 && key.charAt(0) == '0')) {
+            return false;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value == index;
+    }
+
+    private void checkWritable() {
+        if (ended) {
+            throw new IllegalStateException("You have reach the end of the document.");
+        }
+        if (childWriter != null && !childWriter.ended) {
+            throw new IllegalStateException("You should end previous compound before continuing.");
+        }
+    }
+
+    private void writeTag(int type, String key) {
+        checkWritable();
+        if (isIndex(key, index)) {
+            output.write(type | KEY_POSITIONAL);
+        } else {
+            writeInternedKey(type, key);
+        }
+        index++;
+    }
+
+    private void writeTag(int type, int key) {
+        checkWritable();
+        if (key == index) {
+            output.write(type | KEY_POSITIONAL);
+        } else {
+            writeInternedKey(type, Integer.toString(key));
+        }
+        index++;
+    }
+
+    private void writeInternedKey(int type, String key) {
+        Integer id = output.keys.get(key);
+        if (id == null) {
+            output.keys.put(key, output.keys.size());
+            output.write(type | KEY_NEW);
+            output.writeString(key);
+        } else {
+            output.write(type | KEY_INTERNED);
+            output.writeVarint(id);
+        }
+    }
+
+    private void writeIntegerValue(long value) {
+        output.writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeReferenceValue(@Nullable Reference<?> value) {
+        if (value != null) {
+            output.writeFixed64(value.id());
+        }
+    }
+
+    private BinaryWriter newChild() {
+        childWriter = new BinaryWriter(null, output);
+        return childWriter;
+    }
+
+    @Override
+    public void writeInteger(String key, long value) {
+        writeTag(TYPE_INTEGER, key);
+        writeIntegerValue(value);
+    }
+
+    @Override
+    public void writeFloat(String key, double value) {
+        writeTag(TYPE_FLOAT, key);
+        output.writeFixed64(Double.doubleToRawLongBits(value));
+    }
+
+    @Override
+    public void writeString(String key, String value) {
+        writeTag(TYPE_STRING, key);
+        output.writeString(value);
+    }
+
+    @Override
+    public void writeReference(String key, @Nullable Reference<?> value) {
+        writeTag(value == null ? TYPE_NULL : TYPE_REFERENCE, key);
+        writeReferenceValue(value);
+    }
+
+    @Override
+    public Document.Writer writeCompound(String key) {
+        writeTag(TYPE_COMPOUND, key);
+        return newChild();
+    }
+
+    @Override
+    public void writeInteger(int key, long value) {
+        writeTag(TYPE_INTEGER, key);
+        writeIntegerValue(value);
+    }
+
+    @Override
+    public void writeFloat(int key, double value) {
+        writeTag(TYPE_FLOAT, key);
+        output.writeFixed64(Double.doubleToRawLongBits(value));
+    }
+
+    @Override
+    public void writeString(int key, String value) {
+        writeTag(TYPE_STRING, key);
+        output.writeString(value);
+    }
+
+    @Override
+    public void writeReference(int key, @Nullable Reference<?> value) {
+        writeTag(value == null ? TYPE_NULL : TYPE_REFERENCE, key);
+        writeReferenceValue(value);
+    }
+
+    @Override
+    public Document.Writer writeCompound(int key) {
+        writeTag(TYPE_COMPOUND, key);
+        return newChild();
+    }
+
+    @Override
+    public void writeEnd() throws IOException {
+        checkWritable();
+        output.write(TYPE_END);
+        ended = true;
+        if (outputStream != null) { // Root writer
+            outputStream.write(output.bytes, 0, output.size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!ended) {
+            logger.info("Close the writer without writing an end of document symbol.");
+        }
+        if (outputStream != null) {
+            outputStream.close();
+        }
+    }
+}
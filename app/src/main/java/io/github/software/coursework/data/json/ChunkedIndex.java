@@ -5,21 +5,41 @@ import io.github.software.coursework.data.*;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A chunked, sorted set implementation that manages elements in memory and persists them
  * to a directory. This structure supports efficient addition, removal, and range-based
  * queries while dynamically managing chunk sizes based on thresholds.
  *
- * <p>This class is intended for internal use in the file-saving module and is not thread-safe.</p>
+ * <p>This class is intended for internal use in the file-saving module. Any number of threads may query it at
+ * the same time, but a modification must not run together with any other access, except for queries on snapshots.</p>
  *
  * <p>Key features:
  * <ul>
  *   <li>Elements are stored in chunks, each of which is serialized/deserialized as needed.</li>
  *   <li>Chunks are automatically split or merged based on configurable thresholds.</li>
  *   <li>Range queries are optimized using binary search over chunk descriptions.</li>
+ *   <li>Prefix counts over the pages of chunk descriptions are maintained, so that seeking to an offset and counting
+ *   the elements in a range only look into one page at each end.</li>
+ *   <li>Chunk descriptions only store the part of the bounding elements the comparator looks at, given by a
+ *   {@link KeyCodec}, so the index documents grow with the number of chunks rather than the size of the elements.</li>
+ *   <li>Chunk descriptions are stored in pages of a fixed number of descriptions under a small root document.
+ *   Only the modified pages are written, and pages are loaded as lookups reach them.</li>
+ *   <li>Chunk descriptions may carry an aggregate of their elements, given by an {@link Aggregator}, so that
+ *   aggregating a range only loads the chunks at its two ends.</li>
+ *   <li>Ranges can be streamed in either direction, one chunk at a time, so that passes over the whole index
+ *   run in memory bounded by the chunk size.</li>
+ *   <li>A {@link Snapshot} pins the index as it is, and can be queried from any thread while the index is modified.
+ *   Chunks are never modified in place, and the chunks superseded while a snapshot is open are kept until
+ *   no open snapshot may read them.</li>
  * </ul>
  *
  * @param <T> The type of elements stored in the index. Must implement {@code Item}.
@@ -27,10 +47,37 @@ import java.util.Comparator;
 public final class ChunkedIndex<T extends Item> implements AutoCloseable {
     private int splitThreshold = 512;
     private int mergeThreshold = 186;
-    private final ArrayList<ChunkDescription<T>> chunkDescriptions;
+    private ChunkDescriptionList<T> chunkDescriptions;
     private final Directory directory;
     private final Comparator<T> comparator;
     private final Deserialize<T> deserializationConstructor;
+    private final KeyCodec<T> keyCodec;
+    private final @Nullable Aggregator<T, ?> aggregator;
+    private long version = 0;
+    private final View current = new View();
+    /**
+     * Guards the snapshots and the superseded chunks, which are shared by the writer and the readers of snapshots.
+     */
+    private final Object versions = new Object();
+    /**
+     * The number of open snapshots of each version.
+     */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    /**
+     * The superseded chunks an open snapshot may still read, keyed by the version of the modification superseding them.
+     */
+    private final HashMap<Reference<Chunk<T>>, TreeMap<Long, Chunk<T>>> superseded = new HashMap<>();
+    /**
+     * Whether the current chunk descriptions are pinned by a snapshot, so that they are copied before being modified.
+     */
+    private boolean descriptionsShared = false;
+    /**
+     * The descriptions with an aggregate that queries computed for the chunks described without one, keyed by the chunk.
+     * Queries run concurrently, so they leave the descriptions alone, which take these at the start of the next
+     * modification, before any chunk is rewritten. Queries on snapshots may run during a modification, so they neither
+     * record nor use these.
+     */
+    private final ConcurrentHashMap<Reference<Chunk<T>>, ChunkDescription<T>> computedAggregates = new ConcurrentHashMap<>();
     private enum Sentinel {
         POSITIVE_INFINITY,
         NEGATIVE_INFINITY
@@ -59,11 +106,136 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
      * @throws IOException If the directory cannot be accessed or initialized.
      */
     public ChunkedIndex(Directory directory, Comparator<T> comparator, Deserialize<T> deserializationConstructor) throws IOException {
+        this(directory, comparator, deserializationConstructor, new KeyCodec<>() {
+            @Override
+            public void serialize(T item, Document.Writer writer) throws IOException {
+                item.serialize(writer);
+            }
+
+            @Override
+            public T deserialize(Document.Reader reader) throws IOException {
+                return deserializationConstructor.deserialize(reader);
+            }
+        });
+    }
+
+    /**
+     * Creates a new chunked index backed by the specified directory, whose chunk descriptions only store keys.
+     *
+     * @param directory The directory used to store chunk data and metadata.
+     * @param comparator A comparator to maintain the order of elements.
+     * @param deserializationConstructor A function to deserialize elements from storage.
+     * @param keyCodec The codec of the keys the comparator looks at.
+     * @throws IOException If the directory cannot be accessed or initialized.
+     */
+    public ChunkedIndex(Directory directory, Comparator<T> comparator, Deserialize<T> deserializationConstructor, KeyCodec<T> keyCodec) throws IOException {
+        this(directory, comparator, deserializationConstructor, keyCodec, null);
+    }
+
+    /**
+     * Creates a new chunked index backed by the specified directory, whose chunk descriptions only store keys
+     * and carry an aggregate of their elements.
+     *
+     * @param directory The directory used to store chunk data and metadata.
+     * @param comparator A comparator to maintain the order of elements.
+     * @param deserializationConstructor A function to deserialize elements from storage.
+     * @param keyCodec The codec of the keys the comparator looks at.
+     * @param aggregator The aggregator of the elements, or null if chunks are not aggregated.
+     * @throws IOException If the directory cannot be accessed or initialized.
+     */
+    public ChunkedIndex(Directory directory, Comparator<T> comparator, Deserialize<T> deserializationConstructor, KeyCodec<T> keyCodec, @Nullable Aggregator<T, ?> aggregator) throws IOException {
         this.directory = directory;
         this.comparator = comparator;
         this.deserializationConstructor = deserializationConstructor;
-        ChunkIndexWrapper<T> wrapper = directory.get("index", reader -> ChunkIndexWrapper.deserialize(reader, deserializationConstructor));
-        chunkDescriptions = wrapper == null ? new ArrayList<>() : wrapper.chunkDescriptions;
+        this.keyCodec = keyCodec;
+        this.aggregator = aggregator;
+        ChunkIndexWrapper<T> wrapper = directory.get("index", reader -> ChunkIndexWrapper.deserialize(reader, deserializationConstructor, keyCodec, aggregator));
+        chunkDescriptions = new ChunkDescriptionList<>(this::loadPage, keyCodec, 64, wrapper == null ? List.of() : wrapper.pages);
+        if (wrapper != null && wrapper.legacyDescriptions != null) {
+            chunkDescriptions.setAll(wrapper.legacyDescriptions);
+        }
+    }
+
+    private @Nullable Page<T> loadPage(Reference<Page<T>> reference) throws IOException {
+        return directory.get(reference, reader -> Page.deserialize(reader, keyCodec, aggregator));
+    }
+
+    /**
+     * Writes and reads the part of an element the comparator of an index looks at.
+     * The element read back is only used as a bound, so it must compare the same as the original element,
+     * but needs not to be equal to it.
+     *
+     * @param <T> The type of elements stored in the index.
+     */
+    public interface KeyCodec<T> {
+        /**
+         * Writes the key of the element and the end of the document.
+         */
+        void serialize(T item, Document.Writer writer) throws IOException;
+
+        /**
+         * Reads a key and returns an element with the same key.
+         */
+        T deserialize(Document.Reader reader) throws IOException;
+
+        /**
+         * @param key The key of an element.
+         * @param probe Creates an element with the given key.
+         * @return A codec for keys that are a single integer.
+         */
+        static <T> KeyCodec<T> ofLong(ToLongFunction<T> key, LongFunction<T> probe) {
+            return new KeyCodec<>() {
+                @Override
+                public void serialize(T item, Document.Writer writer) throws IOException {
+                    writer.writeInteger("key", key.applyAsLong(item));
+                    writer.writeEnd();
+                }
+
+                @Override
+                public T deserialize(Document.Reader reader) throws IOException {
+                    T item = probe.apply(reader.readInteger("key"));
+                    reader.readEnd();
+                    return item;
+                }
+            };
+        }
+    }
+
+    /**
+     * Summarizes elements into values that can be combined, such as counts and sums.
+     * The combination must be associative, and the empty value must be its identity.
+     *
+     * @param <T> The type of elements stored in the index.
+     * @param <A> The type of the aggregates.
+     */
+    public interface Aggregator<T, A extends Item> {
+        /**
+         * @return The aggregate of no elements.
+         */
+        A empty();
+
+        /**
+         * @return The aggregate of a single element.
+         */
+        A of(T item);
+
+        /**
+         * @return The aggregate of the elements of both aggregates, those of the left one coming first.
+         */
+        A combine(A left, A right);
+
+        /**
+         * @return The aggregate of the elements in order, override if it can be computed faster than combining them one by one.
+         */
+        default A ofAll(List<? extends T> items) {
+            A result = empty();
+            for (T item : items) {
+                result = combine(result, of(item));
+            }
+            return result;
+        }
+
+        A deserialize(Document.Reader reader) throws IOException;
     }
 
     @VisibleForTesting
@@ -76,18 +248,24 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
         this.mergeThreshold = mergeThreshold;
     }
 
-    private int lookForChunk(Object item) {
-        int left = 0;
-        int right = chunkDescriptions.size() - 1;
-        while (left < right) {
-            int mid = (left + right) / 2;
-            if (compare(chunkDescriptions.get(mid).max, item) < 0) {
-                left = mid + 1;
-            } else {
-                right = mid;
-            }
-        }
-        return left;
+    /**
+     * Sets the largest number of chunk descriptions in a page, applied to the pages modified afterward.
+     */
+    @VisibleForTesting
+    public void setPageSize(int pageSize) {
+        chunkDescriptions.pageSize = pageSize;
+    }
+
+    private int lookForChunk(Object item) throws IOException {
+        return current.lookForChunk(item);
+    }
+
+    /**
+     * @param items The elements of the chunk, must not be empty.
+     */
+    private ChunkDescription<T> describe(List<T> items, Reference<Chunk<T>> reference) {
+        Item aggregate = aggregator == null ? null : aggregator.ofAll(items);
+        return new ChunkDescription<>(items.size(), items.getFirst(), items.getLast(), aggregate, reference);
     }
 
     /**
@@ -98,12 +276,12 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
      * @throws IOException If the underlying directory cannot be accessed or modified.
      */
     public void addSample(T item) throws IOException {
+        modify();
         if (chunkDescriptions.isEmpty()) {
             Reference<Chunk<T>> reference = new Reference<>();
-            Chunk<T> chunk = new Chunk<>(new ArrayList<>());
-            chunk.items.add(item);
-            directory.put(reference, chunk);
-            chunkDescriptions.add(new ChunkDescription<>(1, item, item, reference));
+            Chunk<T> chunk = new Chunk<>(new ArrayList<>(List.of(item)));
+            putChunk(reference, chunk);
+            chunkDescriptions.add(describe(chunk.items, reference));
         } else {
             int chunkIndex = lookForChunk(item);
             ChunkDescription<T> chunkDescription = chunkDescriptions.get(chunkIndex);
@@ -111,20 +289,92 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
             if (chunk == null) {
                 throw new IOException("Chunk not found");
             }
-            chunk.add(item, comparator);
+            chunk = chunk.with(item, comparator);
             if (chunk.items.size() > splitThreshold) {
                 ArrayList<T> splitItems = new ArrayList<>(chunk.items.subList(chunk.items.size() / 2, chunk.items.size()));
                 chunk = new Chunk<>(new ArrayList<>(chunk.items.subList(0, chunk.items.size() / 2)));
-                ChunkDescription<T> splitDescription = new ChunkDescription<>(splitItems.size(), splitItems.getFirst(), splitItems.getLast(), new Reference<>());
-                directory.put(splitDescription.reference, new Chunk<>(splitItems));
+                ChunkDescription<T> splitDescription = describe(splitItems, new Reference<>());
+                putChunk(splitDescription.reference, new Chunk<>(splitItems));
                 chunkDescriptions.add(chunkIndex + 1, splitDescription);
             }
-            directory.put(chunkDescription.reference(), chunk);
-            chunkDescriptions.set(chunkIndex, new ChunkDescription<>(chunk.items.size(), chunk.items.getFirst(), chunk.items.getLast(), chunkDescription.reference));
+            putChunk(chunkDescription.reference(), chunk);
+            chunkDescriptions.set(chunkIndex, describe(chunk.items, chunkDescription.reference));
+        }
+        putIndex();
+    }
+
+    /**
+     * Adds many elements to the index at once. The elements are sorted once and merged into the existing
+     * chunks in a single pass, only the chunks receiving new elements are loaded, and every chunk that grows
+     * beyond the split threshold is cut into evenly packed chunks.
+     *
+     * @param items The elements to add.
+     * @throws IOException If the underlying directory cannot be accessed or modified.
+     */
+    public void addSamples(Collection<? extends T> items) throws IOException {
+        if (items.isEmpty()) {
+            return;
+        }
+        modify();
+        ArrayList<T> sorted = new ArrayList<>(items);
+        sorted.sort(comparator);
+        ArrayList<ChunkDescription<T>> result = new ArrayList<>(chunkDescriptions.size() + sorted.size() / splitThreshold + 1);
+        if (chunkDescriptions.isEmpty()) {
+            packChunks(sorted, new Reference<>(), result);
+            chunkDescriptions.setAll(result);
+            putIndex();
+            return;
+        }
+        int next = 0;
+        for (int i = 0; i < chunkDescriptions.size(); i++) {
+            ChunkDescription<T> chunkDescription = chunkDescriptions.get(i);
+            int end = next;
+            if (i == chunkDescriptions.size() - 1) {
+                end = sorted.size();
+            } else {
+                while (end < sorted.size() && compare(sorted.get(end), chunkDescription.max) <= 0) {
+                    end++;
+                }
+            }
+            if (end == next) {
+                result.add(chunkDescription);
+                continue;
+            }
+            Chunk<T> chunk = directory.get(chunkDescription.reference(), reader -> Chunk.deserialize(reader, deserializationConstructor));
+            if (chunk == null) {
+                throw new IOException("Chunk not found");
+            }
+            ArrayList<T> merged = new ArrayList<>(chunk.items.size() + end - next);
+            int j = 0;
+            while (j < chunk.items.size() || next < end) {
+                if (next == end || (j < chunk.items.size() && comparator.compare(chunk.items.get(j), sorted.get(next)) <= 0)) {
+                    merged.add(chunk.items.get(j++));
+                } else {
+                    merged.add(sorted.get(next++));
+                }
+            }
+            packChunks(merged, chunkDescription.reference, result);
+        }
+        chunkDescriptions.setAll(result);
+        putIndex();
+    }
+
+    /**
+     * Cuts sorted elements into chunks no larger than the split threshold, as few as possible and of even sizes.
+     * The first chunk is stored under the given reference, the rest under new references.
+     */
+    private void packChunks(List<T> items, Reference<Chunk<T>> reference, ArrayList<ChunkDescription<T>> output) throws IOException {
+        int chunks = (items.size() + splitThreshold - 1) / splitThreshold;
+        for (int k = 0; k < chunks; k++) {
+            List<T> part = items.subList((int) ((long) items.size() * k / chunks), (int) ((long) items.size() * (k + 1) / chunks));
+            Reference<Chunk<T>> partReference = k == 0 ? reference : new Reference<>();
+            putChunk(partReference, new Chunk<>(new ArrayList<>(part)));
+            output.add(describe(part, partReference));
         }
     }
 
     public void removeSample(T item) throws IOException {
+        modify();
         if (chunkDescriptions.isEmpty()) {
             return;
         }
@@ -134,9 +384,12 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
         if (chunk == null) {
             throw new IOException("Chunk not found");
         }
-        chunk.remove(item);
-        directory.put(chunkDescription.reference, chunk);
-        if (chunk.items.size() <= mergeThreshold && chunkDescriptions.size() > 1) {
+        chunk = chunk.without(item);
+        putChunk(chunkDescription.reference, chunk);
+        if (chunk.items.isEmpty() && chunkDescriptions.size() == 1) {
+            putChunk(chunkDescription.reference, null);
+            chunkDescriptions.remove(chunkIndex);
+        } else if (chunk.items.size() <= mergeThreshold && chunkDescriptions.size() > 1) {
             ChunkDescription<T> nextChunkDescription = chunkIndex == chunkDescriptions.size() - 1 ? null : chunkDescriptions.get(chunkIndex + 1);
             ChunkDescription<T> prevChunkDescription = chunkIndex == 0 ? null : chunkDescriptions.get(chunkIndex - 1);
             if (chunkIndex == 0 || (nextChunkDescription != null && prevChunkDescription.count > nextChunkDescription.count)) {
@@ -145,24 +398,39 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
                 if (nextChunk == null) {
                     throw new IOException("Chunk not found");
                 }
-                chunk.items.addAll(nextChunk.items);
-                directory.put(chunkDescription.reference, chunk);
-                directory.put(nextChunkDescription.reference, null);
+                chunk = chunk.followedBy(nextChunk);
+                putChunk(chunkDescription.reference, chunk);
+                putChunk(nextChunkDescription.reference, null);
                 chunkDescriptions.remove(chunkIndex + 1);
-                chunkDescriptions.set(chunkIndex, new ChunkDescription<>(chunk.items.size(), chunk.items.getFirst(), chunk.items.getLast(), chunkDescription.reference));
+                chunkDescriptions.set(chunkIndex, describe(chunk.items, chunkDescription.reference));
             } else {
                 assert prevChunkDescription != null;
                 Chunk<T> prevChunk = directory.get(prevChunkDescription.reference(), reader -> Chunk.deserialize(reader, deserializationConstructor));
                 if (prevChunk == null) {
                     throw new IOException("Chunk not found");
                 }
-                prevChunk.items.addAll(chunk.items);
-                directory.put(prevChunkDescription.reference, prevChunk);
-                directory.put(chunkDescription.reference, null);
+                prevChunk = prevChunk.followedBy(chunk);
+                putChunk(prevChunkDescription.reference, prevChunk);
+                putChunk(chunkDescription.reference, null);
                 chunkDescriptions.remove(chunkIndex);
-                chunkDescriptions.set(chunkIndex - 1, new ChunkDescription<>(prevChunk.items.size(), prevChunk.items.getFirst(), prevChunk.items.getLast(), prevChunkDescription.reference));
+                chunkDescriptions.set(chunkIndex - 1, describe(prevChunk.items, prevChunkDescription.reference));
             }
+        } else {
+            chunkDescriptions.set(chunkIndex, describe(chunk.items, chunkDescription.reference));
         }
+        putIndex();
+    }
+
+    /**
+     * Counts the elements within the specified range, without loading the elements in between.
+     *
+     * @param min1 The minimum value in the range (inclusive). If {@code null}, the range is unbounded below.
+     * @param max1 The maximum value in the range (exclusive). If {@code null}, the range is unbounded above.
+     * @return The number of elements within the specified range.
+     * @throws IOException If the underlying directory cannot be accessed.
+     */
+    public int count(@Nullable T min1, @Nullable T max1) throws IOException {
+        return current.count(min1, max1);
     }
 
     /**
@@ -176,66 +444,499 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
      * @throws IOException If the underlying directory cannot be accessed.
      */
     public ArrayList<T> querySamples(@Nullable T min1, @Nullable T max1, int skip, int limit) throws IOException {
-        Object min = min1 == null ? Sentinel.NEGATIVE_INFINITY : min1;
-        Object max = max1 == null ? Sentinel.POSITIVE_INFINITY : max1;
-        ArrayList<T> result = new ArrayList<>();
-        if (chunkDescriptions.isEmpty()) {
-            return result;
+        return current.querySamples(min1, max1, skip, limit);
+    }
+
+    /**
+     * Streams the elements within the specified range. Chunks are loaded as the stream reaches them, so only one chunk
+     * is held at a time, and the chunks after the stream is closed or short-circuited are never loaded.
+     * The index must not be modified until the stream is done with, otherwise the stream fails with a
+     * {@link ConcurrentModificationException}. Stream a {@link #snapshot()} to keep reading while the index is modified.
+     *
+     * @param min1 The minimum value in the range (inclusive). If {@code null}, the range is unbounded below.
+     * @param max1 The maximum value in the range (exclusive). If {@code null}, the range is unbounded above.
+     * @param reversed Whether to stream from the maximum to the minimum instead.
+     * @return A sequential stream of the elements within the specified range, in which failures to load a chunk
+     * are thrown as {@link UncheckedIOException}.
+     */
+    public Stream<T> stream(@Nullable T min1, @Nullable T max1, boolean reversed) {
+        return current.stream(min1, max1, reversed);
+    }
+
+    /**
+     * Aggregates the elements within the specified range. The aggregates in the descriptions of the chunks within
+     * the range are combined, and only the chunks crossing its bounds are loaded. Chunks described before the index
+     * was aggregated are loaded once and aggregated, and the aggregate is stored on the next flush.
+     *
+     * @param min1 The minimum value in the range (inclusive). If {@code null}, the range is unbounded below.
+     * @param max1 The maximum value in the range (exclusive). If {@code null}, the range is unbounded above.
+     * @param aggregator The aggregator this index was created with.
+     * @return The aggregate of the elements within the specified range.
+     * @throws IOException If the underlying directory cannot be accessed.
+     */
+    public <A extends Item> A aggregate(@Nullable T min1, @Nullable T max1, Aggregator<T, A> aggregator) throws IOException {
+        return current.aggregate(min1, max1, aggregator);
+    }
+
+    /**
+     * Pins the index as it is now. The snapshot can be queried from any thread, also while the index is modified,
+     * and must be closed once done with, so that the chunks superseded meanwhile can be reclaimed.
+     * Taking a snapshot is a query, see the class documentation.
+     *
+     * @return The snapshot of the index.
+     */
+    public Snapshot snapshot() {
+        synchronized (versions) {
+            snapshots.merge(version, 1, Integer::sum);
+            descriptionsShared = true;
+            return new Snapshot(version, chunkDescriptions);
         }
-        int left = lookForChunk(min);
-        ChunkDescription<T> leftChunkDescription = chunkDescriptions.get(left);
-        Chunk<T> leftChunk = directory.get(leftChunkDescription.reference(), reader -> Chunk.deserialize(reader, deserializationConstructor));
-        if (leftChunk == null) {
-            throw new IOException("Chunk not found in query");
+    }
+
+    /**
+     * Called before every modification. The chunk descriptions pinned by a snapshot are copied before the first
+     * modification after it, instead of on every snapshot.
+     */
+    private void modify() throws IOException {
+        storeComputedAggregates();
+        synchronized (versions) {
+            version++;
+            unshareDescriptions();
         }
-        for (T element : leftChunk.items) {
-            if (compare(element, max) >= 0) {
-                return result;
+    }
+
+    private void unshareDescriptions() {
+        synchronized (versions) {
+            if (descriptionsShared) {
+                chunkDescriptions = chunkDescriptions.copy();
+                descriptionsShared = false;
             }
-            if (compare(element, min) < 0) {
-                continue;
+        }
+    }
+
+    /**
+     * Put the aggregates computed by queries into the descriptions of their chunks, so they are saved with the index.
+     * The elements are the same, so the streams and snapshots are not affected. Only called by modifications
+     * and flushes, before they change any chunk.
+     */
+    private void storeComputedAggregates() throws IOException {
+        if (computedAggregates.isEmpty()) {
+            return;
+        }
+        unshareDescriptions();
+        for (ChunkDescription<T> described : computedAggregates.values()) {
+            int chunkIndex = lookForChunk(described.min);
+            // The chunk may have been replaced since
+            if (chunkIndex < chunkDescriptions.size() && chunkDescriptions.get(chunkIndex).reference.equals(described.reference)) {
+                chunkDescriptions.set(chunkIndex, described);
             }
-            if (skip > 0) {
-                skip--;
-            } else {
-                result.add(element);
-                if (result.size() >= limit) {
-                    return result;
+        }
+        computedAggregates.clear();
+    }
+
+    /**
+     * Puts a chunk in place of the current one under the reference. If an open snapshot may read the current one,
+     * it is kept before it is replaced, so that a snapshot finding the new one in the directory finds it too.
+     */
+    private void putChunk(Reference<Chunk<T>> reference, @Nullable Chunk<T> chunk) throws IOException {
+        boolean keep;
+        synchronized (versions) {
+            TreeMap<Long, Chunk<T>> versionsOfChunk = superseded.get(reference);
+            // The latest snapshot reads the version superseded after it if there is one, which is kept already
+            keep = !snapshots.isEmpty() && (versionsOfChunk == null || versionsOfChunk.lastKey() <= snapshots.lastKey());
+        }
+        if (keep) {
+            Chunk<T> previous = directory.get(reference, reader -> Chunk.deserialize(reader, deserializationConstructor));
+            if (previous != null) {
+                synchronized (versions) {
+                    superseded.computeIfAbsent(reference, key -> new TreeMap<>()).put(version, previous);
                 }
             }
         }
-        for (int i = left + 1; i < chunkDescriptions.size(); i++) {
-            ChunkDescription<T> chunkDescription = chunkDescriptions.get(i);
-            if (compare(chunkDescription.min, max) >= 0) {
-                return result;
+        directory.put(reference, chunk);
+    }
+
+    /**
+     * Drops the superseded chunks no open snapshot reads. A snapshot reads the earliest version superseded after it,
+     * so a version is needed if a snapshot is taken between it and the version superseded before it.
+     */
+    private void reclaim() {
+        assert Thread.holdsLock(versions);
+        if (snapshots.isEmpty()) {
+            superseded.clear();
+            return;
+        }
+        Iterator<TreeMap<Long, Chunk<T>>> iterator = superseded.values().iterator();
+        while (iterator.hasNext()) {
+            TreeMap<Long, Chunk<T>> versionsOfChunk = iterator.next();
+            ArrayList<Long> unused = new ArrayList<>();
+            long previous = Long.MIN_VALUE;
+            for (long supersededAt : versionsOfChunk.keySet()) {
+                Long reader = snapshots.ceilingKey(previous);
+                if (reader == null || reader >= supersededAt) {
+                    unused.add(supersededAt);
+                }
+                previous = supersededAt;
             }
-            if (chunkDescription.count <= skip) {
-                skip -= chunkDescription.count;
-                continue;
+            versionsOfChunk.keySet().removeAll(unused);
+            if (versionsOfChunk.isEmpty()) {
+                iterator.remove();
             }
+        }
+    }
+
+    /**
+     * @return The number of superseded chunks kept for the open snapshots.
+     */
+    @VisibleForTesting
+    public int supersededChunkCount() {
+        synchronized (versions) {
+            return superseded.values().stream().mapToInt(TreeMap::size).sum();
+        }
+    }
+
+    /**
+     * The queries over some chunk descriptions, those of the index by default.
+     */
+    private class View {
+        ChunkDescriptionList<T> descriptions() {
+            return chunkDescriptions;
+        }
+
+        Chunk<T> loadChunk(ChunkDescription<T> chunkDescription) throws IOException {
             Chunk<T> chunk = directory.get(chunkDescription.reference(), reader -> Chunk.deserialize(reader, deserializationConstructor));
             if (chunk == null) {
                 throw new IOException("Chunk not found in query");
             }
-            for (T element : chunk.items) {
-                if (compare(element, max) >= 0) {
+            return chunk;
+        }
+
+        /**
+         * Called as streams proceed, fails if what they stream is gone.
+         * @param streamed The version of the index when the stream was created.
+         */
+        void checkStreamable(long streamed) {
+            if (version != streamed) {
+                throw new ConcurrentModificationException("The index is modified while being streamed");
+            }
+        }
+
+        long streamedVersion() {
+            return version;
+        }
+
+        int lookForChunk(Object item) throws IOException {
+            return descriptions().lookFor(max -> compare(max, item) < 0);
+        }
+
+        /**
+         * Counts the elements strictly less than the given bound.
+         * At most one chunk is loaded, the chunks before it are counted with the prefix counts.
+         */
+        private int rankOf(Object bound) throws IOException {
+            ChunkDescriptionList<T> chunkDescriptions = descriptions();
+            if (chunkDescriptions.isEmpty() || bound == Sentinel.NEGATIVE_INFINITY) {
+                return 0;
+            }
+            if (bound == Sentinel.POSITIVE_INFINITY) {
+                return chunkDescriptions.total();
+            }
+            int chunkIndex = lookForChunk(bound);
+            ChunkDescription<T> chunkDescription = chunkDescriptions.get(chunkIndex);
+            if (compare(chunkDescription.max, bound) < 0) {
+                return chunkDescriptions.prefix(chunkIndex + 1);
+            }
+            Chunk<T> chunk = loadChunk(chunkDescription);
+            int left = 0;
+            int right = chunk.items.size();
+            while (left < right) {
+                int mid = (left + right) / 2;
+                if (compare(chunk.items.get(mid), bound) < 0) {
+                    left = mid + 1;
+                } else {
+                    right = mid;
+                }
+            }
+            return chunkDescriptions.prefix(chunkIndex) + left;
+        }
+
+        int count(@Nullable T min1, @Nullable T max1) throws IOException {
+            Object min = min1 == null ? Sentinel.NEGATIVE_INFINITY : min1;
+            Object max = max1 == null ? Sentinel.POSITIVE_INFINITY : max1;
+            return Math.max(0, rankOf(max) - rankOf(min));
+        }
+
+        ArrayList<T> querySamples(@Nullable T min1, @Nullable T max1, int skip, int limit) throws IOException {
+            Object min = min1 == null ? Sentinel.NEGATIVE_INFINITY : min1;
+            Object max = max1 == null ? Sentinel.POSITIVE_INFINITY : max1;
+            ChunkDescriptionList<T> chunkDescriptions = descriptions();
+            ArrayList<T> result = new ArrayList<>();
+            if (chunkDescriptions.isEmpty() || limit <= 0) {
+                return result;
+            }
+            int rank = rankOf(min);
+            if (skip >= chunkDescriptions.total() - rank) {
+                return result;
+            }
+            rank += skip;
+            int chunkIndex = chunkDescriptions.findByRank(rank);
+            int offset = rank - chunkDescriptions.prefix(chunkIndex);
+            for (int i = chunkIndex; i < chunkDescriptions.size(); i++, offset = 0) {
+                ChunkDescription<T> chunkDescription = chunkDescriptions.get(i);
+                if (compare(chunkDescription.min, max) >= 0) {
                     return result;
                 }
-                if (skip > 0) {
-                    skip--;
-                } else {
+                Chunk<T> chunk = loadChunk(chunkDescription);
+                for (int j = offset; j < chunk.items.size(); j++) {
+                    T element = chunk.items.get(j);
+                    if (compare(element, max) >= 0) {
+                        return result;
+                    }
                     result.add(element);
                     if (result.size() >= limit) {
                         return result;
                     }
                 }
             }
+            return result;
+        }
+
+        Stream<T> stream(@Nullable T min1, @Nullable T max1, boolean reversed) {
+            Object min = min1 == null ? Sentinel.NEGATIVE_INFINITY : min1;
+            Object max = max1 == null ? Sentinel.POSITIVE_INFINITY : max1;
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new Cursor(min, max, reversed),
+                    Spliterator.ORDERED | Spliterator.NONNULL), false);
+        }
+
+        /**
+         * Walks the chunks from the one that may hold the first element of a range, see {@link #stream}.
+         */
+        private final class Cursor implements Iterator<T> {
+            private final Object min;
+            private final Object max;
+            private final boolean reversed;
+            private final ChunkDescriptionList<T> chunkDescriptions = descriptions();
+            private final long streamed = streamedVersion();
+            private int chunkIndex;
+            private boolean started = false;
+            private List<T> items = List.of();
+            private int position = 0;
+            private @Nullable T next;
+            private boolean done;
+
+            private Cursor(Object min, Object max, boolean reversed) {
+                this.min = min;
+                this.max = max;
+                this.reversed = reversed;
+                this.done = chunkDescriptions.isEmpty();
+            }
+
+            private boolean loadNextChunk() throws IOException {
+                if (chunkIndex < 0 || chunkIndex >= chunkDescriptions.size()) {
+                    return false;
+                }
+                ChunkDescription<T> chunkDescription = chunkDescriptions.get(chunkIndex);
+                if (reversed ? compare(chunkDescription.max, min) < 0 : compare(chunkDescription.min, max) >= 0) {
+                    return false;
+                }
+                Chunk<T> chunk = loadChunk(chunkDescription);
+                items = chunk.items;
+                position = reversed ? items.size() - 1 : 0;
+                chunkIndex += reversed ? -1 : 1;
+                return true;
+            }
+
+            @Override
+            public boolean hasNext() {
+                checkStreamable(streamed);
+                try {
+                    if (!started && !done) {
+                        // Looked for on the first element, so that no page is loaded before the stream is consumed
+                        chunkIndex = lookForChunk(reversed ? max : min);
+                        started = true;
+                    }
+                    while (next == null && !done) {
+                        if (position < 0 || position >= items.size()) {
+                            done = !loadNextChunk();
+                            continue;
+                        }
+                        T element = items.get(position);
+                        position += reversed ? -1 : 1;
+                        if (reversed ? compare(element, min) < 0 : compare(element, max) >= 0) {
+                            done = true;
+                        } else if (reversed ? compare(element, max) < 0 : compare(element, min) >= 0) {
+                            next = element;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T element = next;
+                next = null;
+                return element;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <A extends Item> A aggregate(@Nullable T min1, @Nullable T max1, Aggregator<T, A> aggregator) throws IOException {
+            if (aggregator != ChunkedIndex.this.aggregator) {
+                throw new IllegalArgumentException("The index is not aggregated by the given aggregator");
+            }
+            Object min = min1 == null ? Sentinel.NEGATIVE_INFINITY : min1;
+            Object max = max1 == null ? Sentinel.POSITIVE_INFINITY : max1;
+            ChunkDescriptionList<T> chunkDescriptions = descriptions();
+            A result = aggregator.empty();
+            if (chunkDescriptions.isEmpty()) {
+                return result;
+            }
+            for (int i = lookForChunk(min); i < chunkDescriptions.size(); i++) {
+                ChunkDescription<T> chunkDescription = chunkDescriptions.get(i);
+                if (compare(chunkDescription.min, max) >= 0) {
+                    break;
+                }
+                boolean covered = compare(chunkDescription.min, min) >= 0 && compare(chunkDescription.max, max) < 0;
+                if (covered && chunkDescription.aggregate != null) {
+                    result = aggregator.combine(result, (A) chunkDescription.aggregate);
+                    continue;
+                }
+                if (covered) {
+                    ChunkDescription<T> described = this == current ? computedAggregates.get(chunkDescription.reference) : null;
+                    if (described == null) {
+                        described = describe(loadChunk(chunkDescription).items, chunkDescription.reference);
+                        if (this == current) {
+                            computedAggregates.putIfAbsent(chunkDescription.reference, described);
+                        }
+                    }
+                    result = aggregator.combine(result, (A) described.aggregate);
+                    continue;
+                }
+                Chunk<T> chunk = loadChunk(chunkDescription);
+                for (T element : chunk.items) {
+                    if (compare(element, min) >= 0 && compare(element, max) < 0) {
+                        result = aggregator.combine(result, aggregator.of(element));
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The index as it was when the snapshot was taken, see {@link #snapshot()}. The queries are the same as those of the index.
+     * A snapshot can be closed more than once, and fails with an {@link IllegalStateException} once closed.
+     */
+    public final class Snapshot extends View implements AutoCloseable {
+        private final long version;
+        private final ChunkDescriptionList<T> descriptions;
+        private volatile boolean closed = false;
+
+        private Snapshot(long version, ChunkDescriptionList<T> descriptions) {
+            this.version = version;
+            this.descriptions = descriptions;
+        }
+
+        @Override
+        ChunkDescriptionList<T> descriptions() {
+            if (closed) {
+                throw new IllegalStateException("The snapshot is closed");
+            }
+            return descriptions;
+        }
+
+        @Override
+        Chunk<T> loadChunk(ChunkDescription<T> chunkDescription) throws IOException {
+            // Read before looking for a superseded version, which is kept before the chunk is replaced in the directory
+            Chunk<T> chunk = directory.get(chunkDescription.reference(), reader -> Chunk.deserialize(reader, deserializationConstructor));
+            synchronized (versions) {
+                if (closed) {
+                    throw new IllegalStateException("The snapshot is closed");
+                }
+                TreeMap<Long, Chunk<T>> versionsOfChunk = superseded.get(chunkDescription.reference());
+                Map.Entry<Long, Chunk<T>> supersededAfter = versionsOfChunk == null ? null : versionsOfChunk.higherEntry(version);
+                if (supersededAfter != null) {
+                    return supersededAfter.getValue();
+                }
+            }
+            if (chunk == null) {
+                throw new IOException("Chunk not found in query");
+            }
+            return chunk;
+        }
+
+        @Override
+        void checkStreamable(long streamed) {
+            if (closed) {
+                throw new IllegalStateException("The snapshot is closed");
+            }
+        }
+
+        @Override
+        public int count(@Nullable T min1, @Nullable T max1) throws IOException {
+            return super.count(min1, max1);
+        }
+
+        @Override
+        public ArrayList<T> querySamples(@Nullable T min1, @Nullable T max1, int skip, int limit) throws IOException {
+            return super.querySamples(min1, max1, skip, limit);
+        }
+
+        @Override
+        public Stream<T> stream(@Nullable T min1, @Nullable T max1, boolean reversed) {
+            return super.stream(min1, max1, reversed);
+        }
+
+        @Override
+        public <A extends Item> A aggregate(@Nullable T min1, @Nullable T max1, Aggregator<T, A> aggregator) throws IOException {
+            return super.aggregate(min1, max1, aggregator);
+        }
+
+        @Override
+        public void close() {
+            synchronized (versions) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                snapshots.computeIfPresent(version, (key, count) -> count == 1 ? null : count - 1);
+                reclaim();
+            }
         }
-        return result;
+    }
+
+    /**
+     * Removes all elements and deletes every chunk from the directory, together with the index document.
+     *
+     * @throws IOException If the underlying directory cannot be modified.
+     */
+    public void clear() throws IOException {
+        modify();
+        for (int i = 0; i < chunkDescriptions.size(); i++) {
+            putChunk(chunkDescriptions.get(i).reference, null);
+        }
+        chunkDescriptions.setAll(List.of());
+        chunkDescriptions.store(directory);
+        directory.put("index", null);
+    }
+
+    /**
+     * The modified pages and the root are put after every modification, so that they are committed together with
+     * the chunks when the directory is backed by a write-ahead log.
+     */
+    private void putIndex() throws IOException {
+        storeComputedAggregates();
+        chunkDescriptions.store(directory);
     }
 
     public void flush() throws IOException {
-        directory.put("index", new ChunkIndexWrapper<>(chunkDescriptions));
+        putIndex();
         directory.flush();
     }
 
@@ -245,50 +946,538 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
         directory.close();
     }
 
-    private record ChunkDescription<T extends Item>(int count, T min, T max, Reference<Chunk<T>> reference) {
-    }
+    /**
+     * @param aggregate The aggregate of the elements, or null if the index is not aggregated or the chunk is not aggregated yet.
+     */
+    private record ChunkDescription<T extends Item>(int count, T min, T max, @Nullable Item aggregate, Reference<Chunk<T>> reference) {
+        /**
+         * The aggregate is written after the reference if there is one.
+         */
+        void serialize(KeyCodec<T> keyCodec, Document.Writer writer) throws IOException {
+            writer.writeInteger("count", count);
+            keyCodec.serialize(min, writer.writeCompound("min"));
+            keyCodec.serialize(max, writer.writeCompound("max"));
+            writer.writeReference("reference", reference);
+            if (aggregate != null) {
+                aggregate.serialize(writer.writeCompound("aggregate"));
+            }
+            writer.writeEnd();
+        }
 
-    private record ChunkIndexWrapper<T extends Item>(ArrayList<ChunkDescription<T>> chunkDescriptions) implements Item {
+        @SuppressWarnings("unchecked")
+        static <T extends Item> ChunkDescription<T> deserialize(Document.Reader reader, Deserialize<T> bound, @Nullable Aggregator<T, ?> aggregator) throws IOException {
+            int count = (int) reader.readInteger("count");
+            T min = bound.deserialize(reader.readCompound("min"));
+            T max = bound.deserialize(reader.readCompound("max"));
+            Reference<Chunk<T>> reference = (Reference<Chunk<T>>) reader.readReference("reference");
+            Item aggregate = null;
+            if (!reader.isEnd()) {
+                if (aggregator == null) {
+                    throw new IOException("The index is aggregated, but no aggregator is given");
+                }
+                aggregate = aggregator.deserialize(reader.readCompound("aggregate"));
+            }
+            reader.readEnd();
+            return new ChunkDescription<>(count, min, max, aggregate, reference);
+        }
+    }
 
+    /**
+     * Consecutive chunk descriptions, stored as a document of their own.
+     * A page is never modified once created, as the descriptions of a snapshot may share it.
+     */
+    private record Page<T extends Item>(List<ChunkDescription<T>> descriptions, KeyCodec<T> keyCodec) implements Item {
         @Override
         public void serialize(Document.Writer writer) throws IOException {
-            writer.writeInteger("schema", 1);
             Document.Writer chunkDescriptionsWriter = writer.writeCompound("chunkDescriptions");
-            for (int i = 0; i < chunkDescriptions.size(); i++) {
-                ChunkDescription<T> chunkDescription = chunkDescriptions.get(i);
-                Document.Writer chunkWriter = chunkDescriptionsWriter.writeCompound(i);
-                chunkWriter.writeInteger("count", chunkDescription.count);
-                chunkDescription.min.serialize(chunkWriter.writeCompound("min"));
-                chunkDescription.max.serialize(chunkWriter.writeCompound("max"));
-                chunkWriter.writeReference("reference", chunkDescription.reference);
-                chunkWriter.writeEnd();
+            for (int i = 0; i < descriptions.size(); i++) {
+                descriptions.get(i).serialize(keyCodec, chunkDescriptionsWriter.writeCompound(i));
             }
             chunkDescriptionsWriter.writeEnd();
             writer.writeEnd();
         }
 
+        public static <T extends Item> Page<T> deserialize(Document.Reader reader, KeyCodec<T> keyCodec, @Nullable Aggregator<T, ?> aggregator) throws IOException {
+            Deserialize<ChunkDescription<T>> chunkDeserialize = chunkReader -> ChunkDescription.deserialize(chunkReader, keyCodec::deserialize, aggregator);
+            ArrayList<ChunkDescription<T>> descriptions = chunkDeserialize
+                    .asList(ArrayList::new)
+                    .deserialize(reader.readCompound("chunkDescriptions"));
+            reader.readEnd();
+            return new Page<>(Collections.unmodifiableList(descriptions), keyCodec);
+        }
+    }
+
+    /**
+     * What the root document knows about a page, and the page once loaded.
+     * Entries are shared by the descriptions of snapshots, and a page is always loaded into its entry before it is
+     * replaced or removed, so a snapshot never finds a later version in the directory.
+     */
+    private static final class PageEntry<T extends Item> {
+        private final Reference<Page<T>> reference;
+        private final int chunks;
+        private final int count;
+        private final T max;
+        private volatile @Nullable Page<T> page;
+
+        private PageEntry(Reference<Page<T>> reference, int chunks, int count, T max, @Nullable Page<T> page) {
+            this.reference = reference;
+            this.chunks = chunks;
+            this.count = count;
+            this.max = max;
+            this.page = page;
+        }
+    }
+
+    @FunctionalInterface
+    private interface PageLoader<T extends Item> {
+        @Nullable Page<T> load(Reference<Page<T>> reference) throws IOException;
+    }
+
+    /**
+     * The list of chunk descriptions, cut into pages of at most a fixed number of descriptions. The root keeps
+     * the number of chunks and elements and the last key of every page, so positions and ranks are found in the root,
+     * and only the page holding the description looked for is loaded. The numbers of chunks and elements before
+     * a page are kept in Fenwick trees over the pages, updated in time logarithmic in the number of pages when a page
+     * is rewritten in place, and rebuilt in linear time when pages are added, removed, split or merged.
+     *
+     * <p>Pages are written when modified, and are split when they exceed the page size, and merged with a neighbour
+     * when they fall below a quarter of it.</p>
+     */
+    private static final class ChunkDescriptionList<T extends Item> {
+        private final PageLoader<T> loader;
+        private final KeyCodec<T> keyCodec;
+        private int pageSize;
+        private final ArrayList<PageEntry<T>> pages;
+        private final HashSet<Reference<Page<T>>> dirty;
+        private final HashSet<Reference<Page<T>>> removed;
+        private boolean modified;
+        /**
+         * The Fenwick trees of the numbers of chunks and elements of the pages, indexed from 1.
+         * Only modified along with the pages, never by queries.
+         */
+        private int[] chunkTree;
+        private int[] countTree;
+
+        private ChunkDescriptionList(PageLoader<T> loader, KeyCodec<T> keyCodec, int pageSize, List<PageEntry<T>> pages) {
+            this(loader, keyCodec, pageSize, new ArrayList<>(pages), new HashSet<>(), new HashSet<>(), false);
+        }
+
+        private ChunkDescriptionList(PageLoader<T> loader, KeyCodec<T> keyCodec, int pageSize, ArrayList<PageEntry<T>> pages,
+                                     HashSet<Reference<Page<T>>> dirty, HashSet<Reference<Page<T>>> removed, boolean modified) {
+            this.loader = loader;
+            this.keyCodec = keyCodec;
+            this.pageSize = pageSize;
+            this.pages = pages;
+            this.dirty = dirty;
+            this.removed = removed;
+            this.modified = modified;
+            rebuild();
+        }
+
+        public int size() {
+            return before(chunkTree, pages.size());
+        }
+
+        public boolean isEmpty() {
+            return pages.isEmpty();
+        }
+
+        public ChunkDescription<T> get(int index) throws IOException {
+            int page = locate(index);
+            return page(page).descriptions.get(index - before(chunkTree, page));
+        }
+
+        /**
+         * @return A list of the same descriptions, whose modifications do not affect this one. The pages are shared.
+         */
+        public synchronized ChunkDescriptionList<T> copy() {
+            return new ChunkDescriptionList<>(loader, keyCodec, pageSize, new ArrayList<>(pages),
+                    new HashSet<>(dirty), new HashSet<>(removed), modified);
+        }
+
+        private Page<T> page(int index) throws IOException {
+            PageEntry<T> entry = pages.get(index);
+            Page<T> page = entry.page;
+            if (page != null) {
+                return page;
+            }
+            Page<T> loaded = loader.load(entry.reference);
+            if (loaded == null) {
+                throw new IOException("Index page not found");
+            }
+            synchronized (entry) {
+                // The page may have been loaded and replaced meanwhile, when the loaded one is newer than the entry
+                if (entry.page == null) {
+                    entry.page = loaded;
+                }
+                return entry.page;
+            }
+        }
+
+        private PageEntry<T> entry(Reference<Page<T>> reference, List<ChunkDescription<T>> descriptions) {
+            List<ChunkDescription<T>> copied = List.copyOf(descriptions);
+            int count = 0;
+            for (ChunkDescription<T> description : copied) {
+                count += description.count;
+            }
+            return new PageEntry<>(reference, copied.size(), count, copied.getLast().max, new Page<>(copied, keyCodec));
+        }
+
+        /**
+         * @return The index of the last page starting at or before the chunk.
+         */
+        private int locate(int index) {
+            return Math.min(descend(chunkTree, index), pages.size() - 1);
+        }
+
+        /**
+         * @return The number of pages whose sum in the tree is at most the value, which is the index of the page
+         * holding the value-th chunk or element if there is one.
+         */
+        private int descend(int[] tree, int value) {
+            int position = 0;
+            for (int step = Integer.highestOneBit(pages.size()); step > 0; step >>= 1) {
+                if (position + step <= pages.size() && tree[position + step] <= value) {
+                    position += step;
+                    value -= tree[position];
+                }
+            }
+            return position;
+        }
+
+        /**
+         * @return The sum in the tree over the pages before the given one.
+         */
+        private static int before(int[] tree, int page) {
+            int sum = 0;
+            for (int i = page; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+
+        private void rebuild() {
+            chunkTree = new int[pages.size() + 1];
+            countTree = new int[pages.size() + 1];
+            for (int i = 1; i <= pages.size(); i++) {
+                chunkTree[i] += pages.get(i - 1).chunks;
+                countTree[i] += pages.get(i - 1).count;
+                int parent = i + (i & -i);
+                if (parent <= pages.size()) {
+                    chunkTree[parent] += chunkTree[i];
+                    countTree[parent] += countTree[i];
+                }
+            }
+        }
+
+        /**
+         * Puts a new entry in place of the page, without changing the pages around it.
+         */
+        private void rewrite(int page, PageEntry<T> entry) {
+            PageEntry<T> old = pages.set(page, entry);
+            for (int i = page + 1; i <= pages.size(); i += i & -i) {
+                chunkTree[i] += entry.chunks - old.chunks;
+                countTree[i] += entry.count - old.count;
+            }
+            dirty.add(entry.reference);
+        }
+
+        /**
+         * @param before Whether the given maximum of a chunk is before the element looked for.
+         * @return The index of the first chunk not before the element, or of the last chunk if all are.
+         */
+        public int lookFor(Predicate<T> before) throws IOException {
+            int left = 0;
+            int right = pages.size() - 1;
+            while (left < right) {
+                int mid = (left + right) / 2;
+                if (before.test(pages.get(mid).max)) {
+                    left = mid + 1;
+                } else {
+                    right = mid;
+                }
+            }
+            int page = left;
+            List<ChunkDescription<T>> descriptions = page(page).descriptions;
+            left = 0;
+            right = descriptions.size() - 1;
+            while (left < right) {
+                int mid = (left + right) / 2;
+                if (before.test(descriptions.get(mid).max)) {
+                    left = mid + 1;
+                } else {
+                    right = mid;
+                }
+            }
+            return before(chunkTree, page) + left;
+        }
+
+        public void add(ChunkDescription<T> description) throws IOException {
+            add(size(), description);
+        }
+
+        public void add(int index, ChunkDescription<T> description) throws IOException {
+            if (pages.isEmpty()) {
+                Reference<Page<T>> reference = new Reference<>();
+                pages.add(entry(reference, List.of(description)));
+                dirty.add(reference);
+                rebuild();
+                modified = true;
+                return;
+            }
+            int page = locate(index);
+            ArrayList<ChunkDescription<T>> descriptions = new ArrayList<>(page(page).descriptions);
+            descriptions.add(index - before(chunkTree, page), description);
+            replacePage(page, descriptions);
+        }
+
+        public void remove(int index) throws IOException {
+            int page = locate(index);
+            ArrayList<ChunkDescription<T>> descriptions = new ArrayList<>(page(page).descriptions);
+            descriptions.remove(index - before(chunkTree, page));
+            replacePage(page, descriptions);
+        }
+
+        public void set(int index, ChunkDescription<T> description) throws IOException {
+            int page = locate(index);
+            ArrayList<ChunkDescription<T>> descriptions = new ArrayList<>(page(page).descriptions);
+            descriptions.set(index - before(chunkTree, page), description);
+            // Never split or merged, as the number of descriptions does not change
+            rewrite(page, entry(pages.get(page).reference, descriptions));
+            modified = true;
+        }
+
+        /**
+         * Replaces all descriptions. The pages at both ends holding the same descriptions are kept, and the pages
+         * in between are written again, reusing their references.
+         */
+        public void setAll(List<ChunkDescription<T>> all) throws IOException {
+            int head = 0;
+            int headChunks = 0;
+            while (head < pages.size() && holds(head, all, headChunks)) {
+                headChunks += pages.get(head++).chunks;
+            }
+            int tail = pages.size();
+            int tailChunks = 0;
+            while (tail > head && all.size() - tailChunks - pages.get(tail - 1).chunks >= headChunks
+                    && holds(tail - 1, all, all.size() - tailChunks - pages.get(tail - 1).chunks)) {
+                tailChunks += pages.get(--tail).chunks;
+            }
+            ArrayDeque<Reference<Page<T>>> references = new ArrayDeque<>();
+            for (int i = head; i < tail; i++) {
+                page(i);
+                references.add(pages.get(i).reference);
+            }
+            ArrayList<PageEntry<T>> middle = new ArrayList<>();
+            for (List<ChunkDescription<T>> part : paginate(all.subList(headChunks, all.size() - tailChunks))) {
+                Reference<Page<T>> reference = references.isEmpty() ? new Reference<>() : references.poll();
+                middle.add(entry(reference, part));
+                dirty.add(reference);
+            }
+            for (Reference<Page<T>> reference : references) {
+                drop(reference);
+            }
+            pages.subList(head, tail).clear();
+            pages.addAll(head, middle);
+            rebuild();
+            modified = true;
+        }
+
+        /**
+         * @return Whether the page holds the very descriptions at the given position of the list.
+         */
+        private boolean holds(int page, List<ChunkDescription<T>> all, int offset) throws IOException {
+            List<ChunkDescription<T>> descriptions = page(page).descriptions;
+            if (offset + descriptions.size() > all.size()) {
+                return false;
+            }
+            for (int i = 0; i < descriptions.size(); i++) {
+                if (descriptions.get(i) != all.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Cuts the descriptions into pages no larger than the page size, as few as possible and of even sizes.
+         */
+        private List<List<ChunkDescription<T>>> paginate(List<ChunkDescription<T>> descriptions) {
+            int count = (descriptions.size() + pageSize - 1) / pageSize;
+            ArrayList<List<ChunkDescription<T>>> result = new ArrayList<>(count);
+            for (int k = 0; k < count; k++) {
+                result.add(descriptions.subList(descriptions.size() * k / count, descriptions.size() * (k + 1) / count));
+            }
+            return result;
+        }
+
+        /**
+         * Puts the descriptions in place of the page, which is split or merged with a neighbour as needed.
+         * The page and the neighbour are loaded already.
+         */
+        private void replacePage(int page, List<ChunkDescription<T>> descriptions) throws IOException {
+            PageEntry<T> entry = pages.get(page);
+            modified = true;
+            if (descriptions.isEmpty()) {
+                pages.remove(page);
+                drop(entry.reference);
+            } else if (descriptions.size() > pageSize) {
+                List<List<ChunkDescription<T>>> parts = paginate(descriptions);
+                pages.set(page, entry(entry.reference, parts.getFirst()));
+                dirty.add(entry.reference);
+                for (int k = 1; k < parts.size(); k++) {
+                    Reference<Page<T>> reference = new Reference<>();
+                    pages.add(page + k, entry(reference, parts.get(k)));
+                    dirty.add(reference);
+                }
+            } else if (descriptions.size() < pageSize / 4 && page + 1 < pages.size()
+                    && descriptions.size() + pages.get(page + 1).chunks <= pageSize) {
+                PageEntry<T> next = pages.get(page + 1);
+                ArrayList<ChunkDescription<T>> merged = new ArrayList<>(descriptions);
+                merged.addAll(page(page + 1).descriptions);
+                pages.set(page, entry(entry.reference, merged));
+                dirty.add(entry.reference);
+                pages.remove(page + 1);
+                drop(next.reference);
+            } else if (descriptions.size() < pageSize / 4 && page > 0
+                    && pages.get(page - 1).chunks + descriptions.size() <= pageSize) {
+                PageEntry<T> previous = pages.get(page - 1);
+                ArrayList<ChunkDescription<T>> merged = new ArrayList<>(page(page - 1).descriptions);
+                merged.addAll(descriptions);
+                pages.set(page - 1, entry(previous.reference, merged));
+                dirty.add(previous.reference);
+                pages.remove(page);
+                drop(entry.reference);
+            } else {
+                rewrite(page, entry(entry.reference, descriptions));
+                return;
+            }
+            // Pages split into halves and merge below a quarter of the page size, so a page is split or merged
+            // at most twice every quarter of the page size modifications of it
+            rebuild();
+        }
+
+        private void drop(Reference<Page<T>> reference) {
+            dirty.remove(reference);
+            removed.add(reference);
+        }
+
+        /**
+         * @return The number of elements in the chunks before the given index.
+         */
+        public int prefix(int index) throws IOException {
+            if (index >= size()) {
+                return total();
+            }
+            int page = locate(index);
+            int sum = before(countTree, page);
+            List<ChunkDescription<T>> descriptions = page(page).descriptions;
+            for (int i = 0; i < index - before(chunkTree, page); i++) {
+                sum += descriptions.get(i).count;
+            }
+            return sum;
+        }
+
+        public int total() {
+            return before(countTree, pages.size());
+        }
+
+        /**
+         * @param rank The 0-based position of an element, must be less than {@link #total()}.
+         * @return The index of the chunk that contains the element.
+         */
+        public int findByRank(int rank) throws IOException {
+            int page = Math.min(descend(countTree, rank), pages.size() - 1);
+            rank -= before(countTree, page);
+            List<ChunkDescription<T>> descriptions = page(page).descriptions;
+            int index = 0;
+            while (index < descriptions.size() - 1 && descriptions.get(index).count <= rank) {
+                rank -= descriptions.get(index++).count;
+            }
+            return before(chunkTree, page) + index;
+        }
+
+        /**
+         * Puts the pages modified since the last call and the root, if anything is modified.
+         */
+        public void store(Directory directory) throws IOException {
+            if (!modified) {
+                return;
+            }
+            for (PageEntry<T> entry : pages) {
+                if (dirty.contains(entry.reference)) {
+                    directory.put(entry.reference, entry.page);
+                }
+            }
+            for (Reference<Page<T>> reference : removed) {
+                directory.put(reference, null);
+            }
+            dirty.clear();
+            removed.clear();
+            modified = false;
+            directory.put("index", new ChunkIndexWrapper<>(List.copyOf(pages), null, keyCodec));
+        }
+    }
+
+    /**
+     * The root document of the index. Schema 1 stores the full elements as the bounds of the chunks, schema 2 only
+     * stores their keys, and both store every chunk description in the root. Schema 3 stores the descriptions
+     * in pages, and the root only stores the number of chunks and elements and the last key of every page.
+     * An index read with an earlier schema is paginated and written with schema 3 on the next modification or flush.
+     *
+     * @param legacyDescriptions The chunk descriptions if read with an earlier schema, in which case there are no pages.
+     */
+    private record ChunkIndexWrapper<T extends Item>(List<PageEntry<T>> pages, @Nullable List<ChunkDescription<T>> legacyDescriptions, KeyCodec<T> keyCodec) implements Item {
+
+        @Override
+        public void serialize(Document.Writer writer) throws IOException {
+            writer.writeInteger("schema", 3);
+            Document.Writer pagesWriter = writer.writeCompound("pages");
+            for (int i = 0; i < pages.size(); i++) {
+                PageEntry<T> entry = pages.get(i);
+                Document.Writer pageWriter = pagesWriter.writeCompound(i);
+                pageWriter.writeInteger("chunks", entry.chunks);
+                pageWriter.writeInteger("count", entry.count);
+                keyCodec.serialize(entry.max, pageWriter.writeCompound("max"));
+                pageWriter.writeReference("reference", entry.reference);
+                pageWriter.writeEnd();
+            }
+            pagesWriter.writeEnd();
+            writer.writeEnd();
+        }
+
         @SuppressWarnings("unchecked")
-        public static <T extends Item> ChunkIndexWrapper<T> deserialize(Document.Reader reader, Deserialize<T> constructor) throws IOException {
+        public static <T extends Item> ChunkIndexWrapper<T> deserialize(Document.Reader reader, Deserialize<T> constructor, KeyCodec<T> keyCodec, @Nullable Aggregator<T, ?> aggregator) throws IOException {
             long schema = reader.readInteger("schema");
-            if (schema != 1) {
+            if (schema == 3) {
+                Deserialize<PageEntry<T>> pageDeserialize = pageReader -> {
+                    int chunks = (int) pageReader.readInteger("chunks");
+                    int count = (int) pageReader.readInteger("count");
+                    T max = keyCodec.deserialize(pageReader.readCompound("max"));
+                    Reference<Page<T>> reference = (Reference<Page<T>>) pageReader.readReference("reference");
+                    pageReader.readEnd();
+                    return new PageEntry<>(reference, chunks, count, max, null);
+                };
+                ArrayList<PageEntry<T>> pages = pageDeserialize.asList(ArrayList::new).deserialize(reader.readCompound("pages"));
+                reader.readEnd();
+                return new ChunkIndexWrapper<>(pages, null, keyCodec);
+            }
+            if (schema != 1 && schema != 2) {
                 throw new IOException("Unsupported schema version: " + schema);
             }
-            Deserialize<ChunkDescription<T>> chunkDeserialize = chunkReader -> {
-                int count = (int) chunkReader.readInteger("count");
-                T min = constructor.deserialize(chunkReader.readCompound("min"));
-                T max = constructor.deserialize(chunkReader.readCompound("max"));
-                Reference<Chunk<T>> reference = (Reference<Chunk<T>>) chunkReader.readReference("reference");
-                chunkReader.readEnd();
-                return new ChunkDescription<>(count, min, max, reference);
-            };
+            Deserialize<T> bound = schema == 1 ? constructor : keyCodec::deserialize;
+            Deserialize<ChunkDescription<T>> chunkDeserialize = chunkReader -> ChunkDescription.deserialize(chunkReader, bound, aggregator);
             ArrayList<ChunkDescription<T>> chunkDescriptions = chunkDeserialize
                     .asList(ArrayList::new)
                     .deserialize(reader.readCompound("chunkDescriptions"));
             reader.readEnd();
-            return new ChunkIndexWrapper<>(chunkDescriptions);
+            return new ChunkIndexWrapper<>(List.of(), chunkDescriptions, keyCodec);
         }
     }
 
+    /**
+     * A chunk is never modified once put into the directory, as a snapshot may be reading it.
+     */
     private record Chunk<T extends Item>(ArrayList<T> items) implements Item {
         @Override
         public void serialize(Document.Writer writer) throws IOException {
@@ -302,16 +1491,29 @@ public final class ChunkedIndex<T extends Item> implements AutoCloseable {
             return new Chunk<>(constructor.asList(ArrayList::new).deserialize(reader));
         }
 
-        public void add(T item, Comparator<T> comparator) {
+        public Chunk<T> with(T item, Comparator<T> comparator) {
             int index = 0;
             while (index < items.size() && comparator.compare(items.get(index), item) < 0) {
                 index++;
             }
-            items.add(index, item);
+            ArrayList<T> result = new ArrayList<>(items.size() + 1);
+            result.addAll(items.subList(0, index));
+            result.add(item);
+            result.addAll(items.subList(index, items.size()));
+            return new Chunk<>(result);
+        }
+
+        public Chunk<T> without(T item) {
+            ArrayList<T> result = new ArrayList<>(items);
+            result.remove(item);
+            return new Chunk<>(result);
         }
 
-        public void remove(T item) {
-            items.remove(item);
+        public Chunk<T> followedBy(Chunk<T> next) {
+            ArrayList<T> result = new ArrayList<>(items.size() + next.items.size());
+            result.addAll(items);
+            result.addAll(next.items);
+            return new Chunk<>(result);
         }
     }
 }
@@ -0,0 +1,96 @@
+package io.github.software.coursework.data.json;
+
+import io.github.software.coursework.data.Directory;
+import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens the directories {@link JsonStorage} keeps its tables in, so the storage can be built over any {@link Directory}.
+ *
+ * <p>The application uses {@link #encrypted}. {@link #memory()} and {@link #plain} leave out the disk or the
+ * encryption, so the cost of the indices and the algorithms can be measured apart from them.</p>
+ */
+@FunctionalInterface
+public interface DirectoryBackend {
+    /**
+     * Open the root directory of a table. The storage closes it when the storage is closed.
+     * @param table the name of the table, one of "entity", "transaction" and "model"
+     * @param format the format the documents of the table are best written in, ignored by the backends that do not
+     *               serialize them
+     * @return the directory
+     * @throws IOException if an I/O error occurs
+     */
+    Directory open(String table, EncryptedDirectory.Format format) throws IOException;
+
+    /**
+     * Open the log of the operations on the storage. The default implementation keeps no log.
+     * @return the log, or null to not keep one
+     * @throws IOException if an I/O error occurs
+     */
+    default @Nullable EncryptedLogger openLogger() throws IOException {
+        return null;
+    }
+
+    /**
+     * The documents of an account, each in its own encrypted file with a write-ahead log per table,
+     * see {@link EncryptedDirectory}, and the operations in an encrypted log.
+     * @param path the directory of the account
+     * @param key the key of the account
+     */
+    static DirectoryBackend encrypted(File path, byte[] key) {
+        byte[] copy = key.clone();
+        return new DirectoryBackend() {
+            @Override
+            public Directory open(String table, EncryptedDirectory.Format format) throws IOException {
+                return new EncryptedDirectory(path, copy, table, format, true);
+            }
+
+            @Override
+            public EncryptedLogger openLogger() throws IOException {
+                return new EncryptedLogger(path, copy);
+            }
+        };
+    }
+
+    /**
+     * The documents of an account in encrypted pack files, one pack per table, see {@link PackDirectory},
+     * and the operations in an encrypted log.
+     * @param path the directory of the account
+     * @param key the key of the account
+     */
+    static DirectoryBackend pack(File path, byte[] key) {
+        byte[] copy = key.clone();
+        return new DirectoryBackend() {
+            @Override
+            public Directory open(String table, EncryptedDirectory.Format format) throws IOException {
+                return new PackDirectory(path, copy, table, format);
+            }
+
+            @Override
+            public EncryptedLogger openLogger() throws IOException {
+                return new EncryptedLogger(path, copy);
+            }
+        };
+    }
+
+    /**
+     * The documents in memory, as they are put, see {@link MemoryDirectory}. The tables opened again through the same
+     * backend see the documents written before, until the backend is dropped.
+     */
+    static DirectoryBackend memory() {
+        ConcurrentHashMap<String, Item> documents = new ConcurrentHashMap<>();
+        return (table, format) -> new MemoryDirectory(documents, table);
+    }
+
+    /**
+     * The documents in plain files, see {@link PlainDirectory}. Never meant for the data of an account.
+     * @param path the directory to write the files to
+     */
+    static DirectoryBackend plain(File path) {
+        return (table, format) -> new PlainDirectory(path, table, format);
+    }
+}
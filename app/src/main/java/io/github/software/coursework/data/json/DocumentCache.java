@@ -0,0 +1,170 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * The process-wide cache of deserialized documents, shared by every {@link EncryptedDirectory} and its subdirectories.
+ *
+ * <p>Entries are weighed by an estimate of the heap they retain, derived from the size of their serialized form,
+ * so the total stays within a fixed budget no matter how large the documents or how many namespaces there are.
+ * The budget defaults to an eighth of the maximum heap (at most 256 MiB), and can be set in bytes with the
+ * {@code coursework.cache.budget} system property or {@link #setBudget(long)}.</p>
+ *
+ * <p>The cached values are shared by every directory on the same files, without copying, so they must never be
+ * modified once put or got. The documents are records of strings, numbers and immutable collections, while the few
+ * mutable ones, such as the counts of categories, are copied by their owners before they are modified.</p>
+ */
+@VisibleForTesting
+public final class DocumentCache {
+    private DocumentCache() {}
+
+    private static final Logger logger = Logger.getLogger("DocumentCache");
+    private static final long ENTRY_OVERHEAD = 64;
+    private static final long BYTES_PER_SERIALIZED_BYTE = 2;
+    private static final int STAMP_STRIPES = 4096;
+
+    /**
+     * @param directory the directory holding the document file
+     * @param name the full name of the document, including its namespace
+     */
+    record Key(File directory, String name) {
+    }
+
+    private record Entry(Object value, int weight) {
+    }
+
+    private static volatile Cache<Key, Entry> cache = build(defaultBudget());
+    /**
+     * Counts the documents written, by the hash of their keys. Keys sharing a stripe only cost each other a miss,
+     * and unlike a count per key, the stamps take no memory for the documents written once and never read again.
+     */
+    private static final AtomicLongArray writes = new AtomicLongArray(STAMP_STRIPES);
+
+    private static long defaultBudget() {
+        Long configured = Long.getLong("coursework.cache.budget");
+        if (configured != null && configured > 0) {
+            return configured;
+        }
+        return Math.min(Runtime.getRuntime().maxMemory() / 8, 256L << 20);
+    }
+
+    private static Cache<Key, Entry> build(long budget) {
+        logger.fine("Document cache budget is " + budget + " bytes");
+        return CacheBuilder.newBuilder()
+                .maximumWeight(budget)
+                .weigher((Key key, Entry entry) -> entry.weight)
+                .expireAfterAccess(Duration.ofMinutes(5))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Replace the cache with an empty one of the given budget.
+     * @param budget the estimated number of bytes the cached documents may retain
+     */
+    public static void setBudget(long budget) {
+        cache = build(budget);
+    }
+
+    /**
+     * Replace the cache with an empty one of the default budget, the same as when the process started.
+     */
+    @VisibleForTesting
+    public static void resetBudget() {
+        setBudget(defaultBudget());
+    }
+
+    /**
+     * Drop every cached document, as if the process was restarted.
+     */
+    @VisibleForTesting
+    public static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the hit, miss and eviction statistics since the cache was created
+     */
+    public static CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return the number of cached documents
+     */
+    public static long size() {
+        return cache.size();
+    }
+
+    /**
+     * @param directory the directory holding the document file
+     * @param name the full name of the document, including its namespace
+     * @return the weight the document is cached with, or -1 if it is not cached
+     */
+    @VisibleForTesting
+    public static long weight(File directory, String name) {
+        Entry entry = cache.getIfPresent(new Key(directory, name));
+        return entry == null ? -1 : entry.weight;
+    }
+
+    static @Nullable Object get(Key key) {
+        Entry entry = cache.getIfPresent(key);
+        return entry == null ? null : entry.value;
+    }
+
+    private static int stripe(Key key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STAMP_STRIPES;
+    }
+
+    private static Entry entry(Object value, long serializedSize) {
+        long weight = ENTRY_OVERHEAD + BYTES_PER_SERIALIZED_BYTE * serializedSize;
+        return new Entry(value, (int) Math.min(weight, Integer.MAX_VALUE));
+    }
+
+    static void invalidate(Key key) {
+        // Computing holds the lock of the key in the cache, so the stamp and the entry change together
+        cache.asMap().compute(key, (ignored, entry) -> {
+            writes.incrementAndGet(stripe(key));
+            return null;
+        });
+    }
+
+    /**
+     * Cache a document that is written.
+     * @param serializedSize the size of the serialized document, from which the retained heap is estimated
+     */
+    static void put(Key key, Object value, long serializedSize) {
+        Entry written = entry(value, serializedSize);
+        cache.asMap().compute(key, (ignored, entry) -> {
+            writes.incrementAndGet(stripe(key));
+            return written;
+        });
+    }
+
+    /**
+     * @return a stamp to take before reading a document from its file, see {@link #putIfUnchanged}
+     */
+    static long stamp(Key key) {
+        return writes.get(stripe(key));
+    }
+
+    /**
+     * Cache a document read from its file, unless it is written since the stamp was taken,
+     * as the file may have been replaced while it was read, and the newer version must not be shadowed.
+     * @param serializedSize the size of the serialized document, from which the retained heap is estimated
+     * @param stamp the stamp of the key taken before the file was read
+     */
+    static void putIfUnchanged(Key key, Object value, long serializedSize, long stamp) {
+        Entry read = entry(value, serializedSize);
+        cache.asMap().compute(key, (ignored, entry) -> writes.get(stripe(key)) == stamp ? read : entry);
+    }
+}
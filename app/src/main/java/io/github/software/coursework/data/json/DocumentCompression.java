@@ -0,0 +1,343 @@
+package io.github.software.coursework.data.json;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed form of a serialized document, written between serialization and encryption.
+ *
+ * <p>A compressed document starts with {@link #MAGIC}, followed by the length and the UTF-8 bytes of the name of the
+ * document, the length of the serialized document, the number of bytes of the serialized document in each block,
+ * the number of blocks and the length of each compressed block, and then the blocks. Each block is compressed on its
+ * own in the zlib format, so a range of the serialized document is read by decompressing only the blocks it covers,
+ * see {@link #readRange}. The name is kept outside of the compressed part, so it can be told without the dictionary.
+ * A block compressed with a preset dictionary has the Adler-32 checksum of the dictionary in its zlib header, which
+ * is how the dictionary is found. Documents written in a single block by the first version are still read.</p>
+ */
+@ParametersAreNonnullByDefault
+final class DocumentCompression {
+    private DocumentCompression() {}
+
+    // Cannot be the start of a JSON or binary document, the last byte is the version
+    static final byte[] MAGIC = {(byte) 0xb7, 'C', 'Z', 2};
+    private static final byte SINGLE_BLOCK_VERSION = 1;
+    // Deflate cannot look back further than this
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    // The same as a segment of the encrypted file, so a range within a block decrypts about one segment
+    private static final int BLOCK_SIZE = SegmentedEncryptingOutputStream.SEGMENT_SIZE;
+    // The k-mers scored by the trainer, and the pieces of the samples the dictionary is made of
+    private static final int KMER_LENGTH = 8;
+    private static final int SEGMENT_LENGTH = 64;
+
+    /**
+     * Finds the dictionary a document is compressed with.
+     */
+    @FunctionalInterface
+    interface DictionaryLoader {
+        /**
+         * @param id the Adler-32 checksum of the dictionary
+         * @return the dictionary, or null if there is none with the checksum
+         */
+        byte @Nullable [] load(int id) throws IOException;
+    }
+
+    /**
+     * Reads the bytes of a document as stored, compressed or not.
+     */
+    @FunctionalInterface
+    interface StoredReader {
+        /**
+         * @return the bytes from the offset, as much of the length as the document holds
+         */
+        byte[] read(long offset, int length) throws IOException;
+    }
+
+    static boolean isCompressed(byte[] bytes) {
+        return bytes.length >= MAGIC.length && Arrays.equals(bytes, 0, MAGIC.length - 1, MAGIC, 0, MAGIC.length - 1)
+                && (bytes[MAGIC.length - 1] == MAGIC[MAGIC.length - 1] || bytes[MAGIC.length - 1] == SINGLE_BLOCK_VERSION);
+    }
+
+    static int dictionaryId(byte[] dictionary) {
+        Adler32 adler32 = new Adler32();
+        adler32.update(dictionary);
+        return (int) adler32.getValue();
+    }
+
+    /**
+     * @return the compressed document, or the document itself if compression does not make it smaller
+     */
+    static byte[] compress(String name, byte[] document, byte @Nullable [] dictionary) {
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        int count = (document.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream(document.length / 2 + 16);
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 2 + encodedName.length + 12 + 4 * count);
+        header.put(MAGIC).putShort((short) encodedName.length).put(encodedName);
+        header.putInt(document.length).putInt(BLOCK_SIZE).putInt(count);
+        Deflater deflater = new Deflater();
+        try {
+            byte[] buffer = new byte[8192];
+            for (int offset = 0; offset < document.length; offset += BLOCK_SIZE) {
+                deflater.reset();
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(document, offset, Math.min(BLOCK_SIZE, document.length - offset));
+                deflater.finish();
+                int before = blocks.size();
+                while (!deflater.finished()) {
+                    blocks.write(buffer, 0, deflater.deflate(buffer));
+                    if (header.capacity() + blocks.size() >= document.length) {
+                        return document;
+                    }
+                }
+                header.putInt(blocks.size() - before);
+            }
+        } finally {
+            deflater.end();
+        }
+        if (header.capacity() + blocks.size() >= document.length) {
+            return document;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(header.capacity() + blocks.size());
+        output.writeBytes(header.array());
+        output.writeBytes(blocks.toByteArray());
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the name of a compressed document
+     */
+    static String name(byte[] compressed) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(compressed, MAGIC.length, compressed.length - MAGIC.length);
+        if (buffer.remaining() < 2) {
+            throw new IOException("Truncated compressed document");
+        }
+        int length = Short.toUnsignedInt(buffer.getShort());
+        if (buffer.remaining() < length) {
+            throw new IOException("Truncated compressed document");
+        }
+        return new String(compressed, buffer.position(), length, StandardCharsets.UTF_8);
+    }
+
+    static byte[] decompress(byte[] compressed, DictionaryLoader dictionaries) throws IOException {
+        try {
+            Blocks blocks = Blocks.read((offset, length) -> Arrays.copyOfRange(compressed,
+                    (int) Math.min(offset, compressed.length), (int) Math.min(offset + length, compressed.length)));
+            byte[] document = new byte[blocks.length];
+            for (int i = 0; i < blocks.count(); i++) {
+                inflate(compressed, (int) blocks.offsets[i], (int) (blocks.offsets[i + 1] - blocks.offsets[i]),
+                        document, i * blocks.blockSize, blocks.blockLength(i), dictionaries);
+            }
+            return document;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Truncated compressed document", e);
+        }
+    }
+
+    /**
+     * Read a range of a serialized document, decompressing only the blocks the range covers if it is compressed.
+     * @param stored the reader of the document as stored
+     * @param offset the offset in the serialized document
+     * @param length the largest number of bytes to read
+     * @return the bytes read, fewer than the length if the document ends earlier
+     */
+    static byte[] readRange(StoredReader stored, long offset, int length, DictionaryLoader dictionaries) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (!isCompressed(stored.read(0, MAGIC.length))) {
+            return stored.read(offset, length);
+        }
+        try {
+            Blocks blocks = Blocks.read(stored);
+            int end = (int) Math.min(offset + length, blocks.length);
+            if (offset >= end) {
+                return new byte[0];
+            }
+            int first = (int) (offset / blocks.blockSize);
+            int last = (end - 1) / blocks.blockSize;
+            byte[] compressed = stored.read(blocks.offsets[first], (int) (blocks.offsets[last + 1] - blocks.offsets[first]));
+            byte[] result = new byte[end - (int) offset];
+            byte[] block = new byte[blocks.blockSize];
+            for (int i = first; i <= last; i++) {
+                int blockLength = blocks.blockLength(i);
+                inflate(compressed, (int) (blocks.offsets[i] - blocks.offsets[first]), (int) (blocks.offsets[i + 1] - blocks.offsets[i]),
+                        block, 0, blockLength, dictionaries);
+                long blockStart = (long) i * blocks.blockSize;
+                int from = (int) Math.max(offset - blockStart, 0);
+                int to = (int) Math.min(end - blockStart, blockLength);
+                System.arraycopy(block, from, result, (int) (blockStart + from - offset), to - from);
+            }
+            return result;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Truncated compressed document", e);
+        }
+    }
+
+    /**
+     * Where the blocks of a compressed document are.
+     * @param length the length of the serialized document
+     * @param blockSize the number of bytes of the serialized document in each block but the last
+     * @param offsets the offset of each block in the compressed document, followed by the end of the last block
+     */
+    private record Blocks(int length, int blockSize, long[] offsets) {
+        int count() {
+            return offsets.length - 1;
+        }
+
+        int blockLength(int block) {
+            return Math.min(blockSize, length - block * blockSize);
+        }
+
+        static Blocks read(StoredReader stored) throws IOException {
+            ByteBuffer head = ByteBuffer.wrap(stored.read(0, MAGIC.length + 2));
+            byte version = head.get(MAGIC.length - 1);
+            long position = MAGIC.length + 2 + Short.toUnsignedInt(head.getShort(MAGIC.length));
+            ByteBuffer sizes = ByteBuffer.wrap(stored.read(position, version == SINGLE_BLOCK_VERSION ? 4 : 12));
+            position += sizes.capacity();
+            int length = sizes.getInt();
+            if (version == SINGLE_BLOCK_VERSION) {
+                // The rest of the document is the only block
+                byte[] rest = stored.read(position, Integer.MAX_VALUE);
+                return new Blocks(length, Math.max(length, 1), new long[] {position, position + rest.length});
+            }
+            int blockSize = sizes.getInt();
+            int count = sizes.getInt();
+            if (blockSize <= 0 || count != (length + (long) blockSize - 1) / blockSize) {
+                throw new IOException("Malformed compressed document");
+            }
+            ByteBuffer table = ByteBuffer.wrap(stored.read(position, 4 * count));
+            long[] offsets = new long[count + 1];
+            offsets[0] = position + 4L * count;
+            for (int i = 0; i < count; i++) {
+                offsets[i + 1] = offsets[i] + table.getInt();
+            }
+            return new Blocks(length, blockSize, offsets);
+        }
+    }
+
+    private static void inflate(byte[] compressed, int offset, int length, byte[] output, int outputOffset, int outputLength,
+                                DictionaryLoader dictionaries) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, length);
+            int done = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(output, outputOffset + done, outputLength - done);
+                done += n;
+                if (n != 0) {
+                    continue;
+                }
+                if (inflater.needsDictionary()) {
+                    byte[] dictionary = dictionaries.load(inflater.getAdler());
+                    if (dictionary == null) {
+                        throw new IOException("Cannot find the dictionary " + Integer.toHexString(inflater.getAdler()));
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.needsInput() || done == outputLength) {
+                    throw new IOException("Malformed compressed document");
+                }
+            }
+            if (done != outputLength) {
+                throw new IOException("Malformed compressed document");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed document", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private record Candidate(int sample, int offset, long score) {
+    }
+
+    /**
+     * Build a dictionary out of the pieces of the samples that share the most content with other samples.
+     * A piece is scored by the number of samples each of its k-mers appears in, counting a k-mer once in the whole
+     * dictionary, and the pieces are picked greedily. The best pieces come last, where Deflate reaches them with the
+     * shortest distances.
+     *
+     * @return the dictionary, or null if the samples have too little in common
+     */
+    static byte @Nullable [] train(List<byte[]> samples, int capacity) {
+        HashMap<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : samples) {
+            HashSet<Long> seen = new HashSet<>();
+            for (int i = 0; i + KMER_LENGTH <= sample.length; i++) {
+                long kmer = kmer(sample, i);
+                if (seen.add(kmer)) {
+                    frequencies.merge(kmer, 1, Integer::sum);
+                }
+            }
+        }
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.comparingLong(Candidate::score).reversed());
+        for (int i = 0; i < samples.size(); i++) {
+            for (int offset = 0; offset + KMER_LENGTH <= samples.get(i).length; offset += SEGMENT_LENGTH) {
+                candidates.add(new Candidate(i, offset, score(samples.get(i), offset, frequencies)));
+            }
+        }
+        ArrayList<byte[]> picked = new ArrayList<>();
+        int size = 0;
+        while (size < capacity && !candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            // Lazily rescored, as the scores only drop when other pieces are picked
+            byte[] sample = samples.get(candidate.sample);
+            long score = score(sample, candidate.offset, frequencies);
+            if (score != candidate.score) {
+                candidates.add(new Candidate(candidate.sample, candidate.offset, score));
+                continue;
+            }
+            int end = Math.min(candidate.offset + SEGMENT_LENGTH + KMER_LENGTH - 1, sample.length);
+            // Content appearing in a single sample does not help other documents
+            if (score <= end - candidate.offset - KMER_LENGTH + 1) {
+                break;
+            }
+            for (int i = candidate.offset; i + KMER_LENGTH <= end; i++) {
+                frequencies.remove(kmer(sample, i));
+            }
+            picked.add(Arrays.copyOfRange(sample, candidate.offset, end));
+            size += end - candidate.offset;
+        }
+        if (picked.isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (byte[] piece : picked.reversed()) {
+            dictionary.writeBytes(piece);
+        }
+        byte[] bytes = dictionary.toByteArray();
+        return bytes.length <= capacity ? bytes : Arrays.copyOfRange(bytes, bytes.length - capacity, bytes.length);
+    }
+
+    private static long score(byte[] sample, int offset, Map<Long, Integer> frequencies) {
+        long score = 0;
+        int end = Math.min(offset + SEGMENT_LENGTH + KMER_LENGTH - 1, sample.length);
+        HashSet<Long> seen = new HashSet<>();
+        for (int i = offset; i + KMER_LENGTH <= end; i++) {
+            long kmer = kmer(sample, i);
+            if (seen.add(kmer)) {
+                score += frequencies.getOrDefault(kmer, 0);
+            }
+        }
+        return score;
+    }
+
+    private static long kmer(byte[] bytes, int offset) {
+        long kmer = 0;
+        for (int i = 0; i < KMER_LENGTH; i++) {
+            kmer = (kmer << 8) | (bytes[offset + i] & 0xff);
+        }
+        return kmer;
+    }
+}
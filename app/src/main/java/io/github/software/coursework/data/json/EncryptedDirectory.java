@@ -2,8 +2,6 @@ package io.github.software.coursework.data.json;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import io.github.software.coursework.data.Deserialize;
 import io.github.software.coursework.data.Directory;
 import io.github.software.coursework.data.Document;
@@ -11,34 +9,129 @@ import io.github.software.coursework.data.Item;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @VisibleForTesting
 public final class EncryptedDirectory implements Directory {
+    /**
+     * The encoding of the documents written by a directory.
+     * Reading always accepts both, so the format of a namespace can be changed at any time.
+     */
+    public enum Format {
+        /**
+         * Human-readable JSON, see {@link JsonWriter}.
+         */
+        JSON,
+
+        /**
+         * Compact binary encoding, see {@link BinaryWriter}.
+         */
+        BINARY,
+    }
+
+    /**
+     * Whether the serialized documents are compressed before they are encrypted, see {@link DocumentCompression}.
+     * Reading always accepts both, so compression can be turned on or off at any time.
+     */
+    public enum Compression {
+        NONE,
+
+        /**
+         * Deflate, with a dictionary shared by the documents of the namespace once enough of them are written
+         * to train it.
+         */
+        DEFLATE,
+    }
+
+    /**
+     * When the modifications committed to the write-ahead log are folded into the document files in the background.
+     * A checkpoint is taken once any of the conditions is met, so the files are kept close to the log and closing
+     * only has to write what was committed since the last one.
+     * @param logBytes The size of the log, beyond which the log is rolled over. Bounds the recovery time after a crash.
+     * @param dirtyBytes The size of the latest versions of the documents not in their files yet. Bounds the work of a checkpoint.
+     * @param idleDelay How long the log stays idle with documents not in their files before they are written, or null to never.
+     */
+    public record CheckpointPolicy(long logBytes, long dirtyBytes, @Nullable Duration idleDelay) {
+        public static final CheckpointPolicy DEFAULT = new CheckpointPolicy(4L << 20, 1L << 20, Duration.ofSeconds(2));
+    }
+
     private static final Logger logger = Logger.getLogger("EncryptedDirectory");
-    private final Object none = new Object();
+    private static final ExecutorService flushExecutor;
+
+    static {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "Directory-Flush-Worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        flushExecutor = executor;
+    }
+
+    private static final Object none = new Object();
+    private static final String DICTIONARY = "_dictionary";
+    private static final String DICTIONARY_PREFIX = "_dictionary-";
     private final File directory;
     private final byte[] key;
     private final String namespace;
-    private final HashMap<String, Item> buffer = new HashMap<>();
-    private final Cache<String, Object> cache = CacheBuilder.newBuilder()
-            .maximumSize(1024)
-            .expireAfterAccess(Duration.ofMinutes(5))
-            .build();
+    private final Format format;
+    private final ConcurrentHashMap<String, Object> buffer = new ConcurrentHashMap<>();
+    private final @Nullable WriteAheadLog log;
+    private final boolean ownsLog;
     private final JsonFactory jsonFactory = new JsonFactory();
+    private volatile Compression compression = Compression.NONE;
+    // The dictionary new documents are compressed with, and the samples it is trained from until there is one
+    private final Object dictionaryLock = new Object();
+    private boolean dictionaryLoaded = false;
+    private byte @Nullable [] dictionary = null;
+    private final ArrayList<byte[]> samples = new ArrayList<>();
+    private long sampledBytes = 0;
+    private long dictionarySampleBytes = 256 * 1024;
 
-    public EncryptedDirectory(File directory, byte[] key, String namespace) {
+    private EncryptedDirectory(File directory, byte[] key, String namespace, Format format, @Nullable WriteAheadLog log, boolean ownsLog) {
         this.directory = directory;
         this.key = key.clone();
         this.namespace = namespace;
+        this.format = format;
+        this.log = log;
+        this.ownsLog = ownsLog;
+    }
+
+    /**
+     * Open a directory whose modifications are made durable by a write-ahead log shared with its subdirectories,
+     * see {@link WriteAheadLog}. Modifications left in the log by a previous session are recovered here.
+     * @param directory the directory to store the files
+     * @param key the key to encrypt the files
+     * @param namespace the namespace of the directory
+     * @param format the format of the documents written by the directory
+     * @param writeAheadLog whether to use a write-ahead log
+     * @throws IOException if the log cannot be recovered or created
+     */
+    public EncryptedDirectory(File directory, byte[] key, String namespace, Format format, boolean writeAheadLog) throws IOException {
+        this(directory, key, namespace, format, writeAheadLog ? new WriteAheadLog(directory, key, namespace) : null, writeAheadLog);
+    }
+
+    public EncryptedDirectory(File directory, byte[] key, String namespace, Format format) {
+        this(directory, key, namespace, format, null, false);
+    }
+
+    public EncryptedDirectory(File directory, byte[] key, String namespace) {
+        this(directory, key, namespace, Format.JSON);
     }
 
     public EncryptedDirectory(File directory, byte[] key) {
@@ -82,10 +175,9 @@ public final class EncryptedDirectory implements Directory {
         }
         for (File file : list) {
             String actualName;
-            try (JsonReader reader = JsonReader.createReader(new JsonFactory().createParser(
-                    new DecryptingInputStream(new BufferedInputStream(new FileInputStream(file)), oldKey)))) {
-                reader.suppressWarning();
-                actualName = reader.readString("_filename");
+            // Only the name is needed, which is in the first segment
+            try {
+                actualName = readName(readDecrypted(file, oldKey, 0, SegmentedEncryptingOutputStream.SEGMENT_SIZE));
                 if (!obfuscateFileName(actualName, oldKey).equals(file.getName())) {
                     throw new IOException("Malformed file name: " + file.getName());
                 }
@@ -93,8 +185,8 @@ public final class EncryptedDirectory implements Directory {
                 logger.log(Level.WARNING, "Ignore non-recognized file: " + file, e);
                 continue;
             }
-            try (DecryptingInputStream decryptingInputStream = new DecryptingInputStream(new FileInputStream(file), oldKey);
-                 EncryptingOutputStream encryptingOutputStream = new EncryptingOutputStream(new FileOutputStream(new File(path, obfuscateFileName(actualName, newKey))), newKey)) {
+            try (InputStream decryptingInputStream = Encryption.decryptingStream(new FileInputStream(file), oldKey);
+                 SegmentedEncryptingOutputStream encryptingOutputStream = new SegmentedEncryptingOutputStream(new FileOutputStream(new File(path, obfuscateFileName(actualName, newKey))), newKey)) {
                 decryptingInputStream.transferTo(encryptingOutputStream);
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Failed to change key for file: " + file, e);
@@ -104,67 +196,450 @@ public final class EncryptedDirectory implements Directory {
                 logger.log(Level.SEVERE, "Failed to delete old file: " + file);
             }
         }
+        try {
+            WriteAheadLog.changeKey(oldKey, newKey, path);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to change key for write-ahead logs in: " + path, e);
+        }
+        try {
+            PackStore.changeKey(oldKey, newKey, path);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to change key for pack files in: " + path, e);
+        }
+    }
+
+    private static byte[] readDecrypted(File file, byte[] key) throws IOException {
+        try (InputStream inputStream = Encryption.decryptingStream(new BufferedInputStream(new FileInputStream(file)), key)) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    /**
+     * Read a byte range of a file, decrypting only the segments it covers, or the whole file if it is written by an
+     * earlier version.
+     */
+    private static byte[] readDecrypted(File file, byte[] key, long offset, int length) throws IOException {
+        try (SegmentedFile segmented = SegmentedFile.tryOpen(file, key)) {
+            if (segmented != null) {
+                return segmented.read(offset, length);
+            }
+        }
+        byte[] bytes = readDecrypted(file, key);
+        int from = (int) Math.min(offset, bytes.length);
+        return Arrays.copyOfRange(bytes, from, (int) Math.min((long) from + length, bytes.length));
+    }
+
+    private static String readName(byte[] head) throws IOException {
+        if (DocumentCompression.isCompressed(head)) {
+            return DocumentCompression.name(head);
+        }
+        try (Document.Reader reader = createReader(new JsonFactory(), head, true)) {
+            return reader.readString("_filename");
+        }
+    }
+
+    static Document.Reader createReader(JsonFactory jsonFactory, byte[] bytes, boolean suppressWarning) throws IOException {
+        if (BinaryReader.isBinary(bytes)) {
+            BinaryReader reader = BinaryReader.createReader(bytes);
+            if (suppressWarning) {
+                reader.suppressWarning();
+            }
+            return reader;
+        }
+        JsonReader reader = JsonReader.createReader(jsonFactory.createParser(bytes));
+        if (suppressWarning) {
+            reader.suppressWarning();
+        }
+        return reader;
+    }
+
+    static Document.Writer createWriter(JsonFactory jsonFactory, Format format, OutputStream outputStream) throws IOException {
+        return switch (format) {
+            case JSON -> JsonWriter.createWriter(jsonFactory.createGenerator(outputStream));
+            case BINARY -> BinaryWriter.createWriter(outputStream);
+        };
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public <T extends Item> @Nullable T get(String name, Deserialize<T> constructor) throws IOException {
-        if (buffer.containsKey(name)) {
-            return (T) buffer.get(name);
+        Object buffered = buffer.get(name);
+        if (buffered != null) {
+            return buffered == none ? null : (T) buffered;
         }
-        Object cached = cache.getIfPresent(name);
+        DocumentCache.Key cacheKey = cacheKey(name);
+        Object cached = DocumentCache.get(cacheKey);
         if (cached == none) {
             return null;
         }
         if (cached != null) {
             return (T) cached;
         }
+        // The file may be replaced while it is read, by a flush running concurrently with readers of a snapshot
+        long stamp = DocumentCache.stamp(cacheKey);
         File file = new File(directory, obfuscateFileName(name));
         if (!file.exists()) {
-            cache.put(name, none);
+            DocumentCache.putIfUnchanged(cacheKey, none, 0, stamp);
             return null;
         }
         T output;
-        try (Document.Reader reader = JsonReader.createReader(jsonFactory.createParser(
-                        new DecryptingInputStream(new BufferedInputStream(new FileInputStream(file)), key)))) {
+        byte[] bytes = readDecrypted(file, key);
+        if (DocumentCompression.isCompressed(bytes)) {
+            bytes = DocumentCompression.decompress(bytes, this::loadDictionary);
+        }
+        try (Document.Reader reader = createReader(jsonFactory, bytes, false)) {
             String actualName = reader.readString("_filename");
             if (!actualName.equals(namespace + "/" + name)) {
                 throw new IOException("Found " + actualName + " in location where " + namespace + "/" + name + " was expected");
             }
             output = constructor.deserialize(reader);
         }
-        cache.put(name, output);
+        DocumentCache.putIfUnchanged(cacheKey, output, bytes.length, stamp);
         return output;
     }
 
+    /**
+     * Read part of a serialized document as of the last flush, decrypting only the segments and decompressing only
+     * the blocks the part is in. The modifications not flushed yet are not seen.
+     * @param name the name of the document
+     * @param offset the offset in the serialized document, before it is compressed, see {@link Compression}
+     * @param length the largest number of bytes to read
+     * @return the bytes read, fewer than the length if the document ends earlier, or null if there is no such document
+     * @throws IOException if an I/O error occurs
+     */
+    public byte @Nullable [] readRange(String name, long offset, int length) throws IOException {
+        File file = new File(directory, obfuscateFileName(name));
+        if (!file.exists()) {
+            return null;
+        }
+        try (SegmentedFile segmented = SegmentedFile.tryOpen(file, key)) {
+            if (segmented != null) {
+                return DocumentCompression.readRange(segmented::read, offset, length, this::loadDictionary);
+            }
+        }
+        // Written by an earlier version, which can only be decrypted from the start
+        byte[] bytes = readDecrypted(file, key);
+        return DocumentCompression.readRange((from, count) -> Arrays.copyOfRange(bytes,
+                (int) Math.min(from, bytes.length), (int) Math.min(from + count, bytes.length)), offset, length, this::loadDictionary);
+    }
+
+    private DocumentCache.Key cacheKey(String name) {
+        return new DocumentCache.Key(directory, namespace + "/" + name);
+    }
+
     @Override
     public <T extends Item> void put(String name, @Nullable T item) {
-        buffer.put(name, item);
+        buffer.put(name, item == null ? none : item);
+        if (log != null) {
+            log.put(this, namespace + "/" + name, name, item);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        if (log != null) {
+            log.commit();
+        }
     }
 
     @Override
     public void flush() throws IOException {
-        for (Map.Entry<String, Item> entry : buffer.entrySet()) {
-            File file = new File(directory, obfuscateFileName(entry.getKey()));
-            if (entry.getValue() == null) {
-                if (file.exists() && !file.delete()) {
-                    throw new IOException("Failed to delete file: " + file);
-                }
-                cache.put(entry.getKey(), none);
-            } else {
-                try (Document.Writer writer = JsonWriter.createWriter(jsonFactory.createGenerator(
-                        new EncryptingOutputStream(new FileOutputStream(file), key)))) {
-                    writer.writeString("_filename", namespace + "/" + entry.getKey());
-                    entry.getValue().serialize(writer);
-                }
-                cache.put(entry.getKey(), entry.getValue());
-            }
+        if (log != null) {
+            log.flush();
+            return;
+        }
+        LinkedHashMap<String, DocumentSource> documents = new LinkedHashMap<>();
+        ConcurrentHashMap<String, Integer> sizes = new ConcurrentHashMap<>();
+        for (Map.Entry<String, Object> entry : buffer.entrySet()) {
+            String name = entry.getKey();
+            Object value = entry.getValue();
+            documents.put(namespace + "/" + name, value == none ? () -> null : () -> {
+                Serialized document = serialize(name, (Item) value);
+                sizes.put(name, document.size());
+                return document.stored();
+            });
+        }
+        writeDocuments(directory, key, documents);
+        for (Map.Entry<String, Object> entry : buffer.entrySet()) {
+            DocumentCache.put(cacheKey(entry.getKey()), entry.getValue(), sizes.getOrDefault(entry.getKey(), 0));
         }
         buffer.clear();
     }
 
     @Override
     public Directory withNamespace(String namespace) {
-        return new EncryptedDirectory(directory, key, this.namespace + "-" + namespace);
+        return withNamespace(namespace, format);
+    }
+
+    /**
+     * Open a subdirectory with the given name, writing its documents in the given format.
+     * @param namespace the name of the subdirectory
+     * @param format the format of the documents written by the subdirectory
+     * @return the subdirectory
+     */
+    public Directory withNamespace(String namespace, Format format) {
+        EncryptedDirectory subdirectory = new EncryptedDirectory(directory, key, this.namespace + "-" + namespace, format, log, false);
+        subdirectory.compression = compression;
+        return subdirectory;
+    }
+
+    /**
+     * Set whether the documents written afterward are compressed. The subdirectories opened afterward inherit it.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Set how many bytes of documents are sampled to train the dictionary of the namespace.
+     */
+    @VisibleForTesting
+    public void setDictionarySampleBytes(long dictionarySampleBytes) {
+        synchronized (dictionaryLock) {
+            this.dictionarySampleBytes = dictionarySampleBytes;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (ownsLog) {
+            assert log != null;
+            log.close();
+        }
+    }
+
+    /**
+     * Set when the checkpoints of the write-ahead log are taken. The log is shared with the subdirectories.
+     */
+    public void setCheckpointPolicy(CheckpointPolicy policy) {
+        if (log != null) {
+            log.setCheckpointPolicy(policy);
+        }
+    }
+
+    @VisibleForTesting
+    public void setCheckpointThreshold(long checkpointThreshold) {
+        setCheckpointPolicy(new CheckpointPolicy(checkpointThreshold, CheckpointPolicy.DEFAULT.dirtyBytes(), CheckpointPolicy.DEFAULT.idleDelay()));
+    }
+
+    /**
+     * Wait for the background checkpoints started so far.
+     */
+    @VisibleForTesting
+    public void awaitCheckpoint() throws IOException {
+        if (log != null) {
+            log.awaitCheckpoint();
+        }
+    }
+
+    /**
+     * A serialized document.
+     * @param stored the bytes written to the file before encryption, compressed if the directory compresses its documents
+     * @param size the length of the document before compression, which the heap it retains is estimated from,
+     *             the same as when it is read back, see {@link DocumentCache}
+     */
+    record Serialized(byte[] stored, int size) {
+    }
+
+    /**
+     * Serialize a document in the format of this directory, the same as it is written to its file before encryption.
+     */
+    Serialized serialize(String name, Item item) throws IOException {
+        byte[] document = serializeUncompressed(name, item);
+        if (compression == Compression.NONE) {
+            return new Serialized(document, document.length);
+        }
+        return new Serialized(DocumentCompression.compress(namespace + "/" + name, document, dictionaryFor(document)), document.length);
+    }
+
+    private byte[] serializeUncompressed(String name, Item item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Document.Writer writer = createWriter(jsonFactory, format, bytes)) {
+            writer.writeString("_filename", namespace + "/" + name);
+            item.serialize(writer);
+        }
+        return bytes.toByteArray();
+    }
+
+    private record Dictionary(byte[] bytes) implements Item {
+        @Override
+        public void serialize(Document.Writer writer) throws IOException {
+            writer.writeString("bytes", Base64.getEncoder().encodeToString(bytes));
+            writer.writeEnd();
+        }
+
+        public static Dictionary deserialize(Document.Reader reader) throws IOException {
+            byte[] bytes;
+            try {
+                bytes = Base64.getDecoder().decode(reader.readString("bytes"));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed dictionary", e);
+            }
+            reader.readEnd();
+            return new Dictionary(bytes);
+        }
+    }
+
+    private record DictionaryId(int id) implements Item {
+        @Override
+        public void serialize(Document.Writer writer) throws IOException {
+            writer.writeInteger("id", id);
+            writer.writeEnd();
+        }
+
+        public static DictionaryId deserialize(Document.Reader reader) throws IOException {
+            int id = (int) reader.readInteger("id");
+            reader.readEnd();
+            return new DictionaryId(id);
+        }
+    }
+
+    private byte @Nullable [] loadDictionary(int id) throws IOException {
+        Dictionary loaded = get(DICTIONARY_PREFIX + Integer.toHexString(id), Dictionary::deserialize);
+        return loaded == null ? null : loaded.bytes;
+    }
+
+    /**
+     * @return the dictionary to compress a document with, or null until there are enough samples to train one,
+     * in which case the document is kept as a sample
+     */
+    private byte @Nullable [] dictionaryFor(byte[] document) throws IOException {
+        synchronized (dictionaryLock) {
+            if (!dictionaryLoaded) {
+                DictionaryId current = get(DICTIONARY, DictionaryId::deserialize);
+                dictionary = current == null ? null : loadDictionary(current.id);
+                dictionaryLoaded = true;
+            }
+            if (dictionary != null || sampledBytes >= dictionarySampleBytes) {
+                return dictionary;
+            }
+            samples.add(document);
+            sampledBytes += document.length;
+            if (sampledBytes < dictionarySampleBytes) {
+                return null;
+            }
+            byte[] trained = DocumentCompression.train(samples, DocumentCompression.MAX_DICTIONARY_SIZE);
+            samples.clear();
+            if (trained != null) {
+                installDictionary(trained);
+            }
+            return dictionary;
+        }
+    }
+
+    /**
+     * Write a dictionary to its file right away, so it is durable before any document compressed with it.
+     */
+    private void installDictionary(byte[] trained) throws IOException {
+        int id = DocumentCompression.dictionaryId(trained);
+        String name = DICTIONARY_PREFIX + Integer.toHexString(id);
+        byte[] existing = loadDictionary(id);
+        if (existing != null && !Arrays.equals(existing, trained)) {
+            // Another dictionary with the same checksum is in use, documents keep being compressed without one
+            logger.info("Discard a dictionary colliding with " + namespace + "/" + name);
+            return;
+        }
+        if (existing == null) {
+            writeDocument(directory, key, namespace + "/" + name, serializeUncompressed(name, new Dictionary(trained)));
+        }
+        writeDocument(directory, key, namespace + "/" + DICTIONARY, serializeUncompressed(DICTIONARY, new DictionaryId(id)));
+        dictionary = trained;
+        logger.info("Trained a dictionary of " + trained.length + " bytes for " + namespace);
+    }
+
+    /**
+     * Produces the serialized form of a document, or null if the document is removed.
+     */
+    @FunctionalInterface
+    interface DocumentSource {
+        byte @Nullable [] serialize() throws IOException;
+    }
+
+    /**
+     * Write documents to their files. Serialization, encryption and writing are spread over a bounded pool.
+     * Every file is written to a temporary file, synced and then atomically renamed over the old one, so a crash
+     * never leaves a torn document behind, and the directory is synced once at the end of the batch.
+     * @param documents the documents to write, keyed by their names including the namespaces
+     * @throws IOException if any of the documents cannot be written
+     */
+    static void writeDocuments(File directory, byte[] key, Map<String, DocumentSource> documents) throws IOException {
+        if (documents.isEmpty()) {
+            return;
+        }
+        if (documents.size() == 1) {
+            Map.Entry<String, DocumentSource> entry = documents.entrySet().iterator().next();
+            writeDocument(directory, key, entry.getKey(), entry.getValue().serialize());
+        } else {
+            ArrayList<Future<?>> futures = new ArrayList<>(documents.size());
+            for (Map.Entry<String, DocumentSource> entry : documents.entrySet()) {
+                futures.add(flushExecutor.submit(() -> {
+                    writeDocument(directory, key, entry.getKey(), entry.getValue().serialize());
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    IOException exception = e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+                    if (failure == null) {
+                        failure = exception;
+                    } else {
+                        failure.addSuppressed(exception);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened or synced on some platforms (e.g. Windows), where renaming is durable anyway
+            logger.log(Level.FINE, "Cannot sync directory " + directory, e);
+        }
+    }
+
+    private static void writeDocument(File directory, byte[] key, String fullName, byte @Nullable [] document) throws IOException {
+        Path file = new File(directory, obfuscateFileName(fullName, key)).toPath();
+        if (document == null) {
+            Files.deleteIfExists(file);
+            DocumentCache.invalidate(new DocumentCache.Key(directory, fullName));
+            return;
+        }
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(document.length + 256);
+        try (SegmentedEncryptingOutputStream encryptingOutputStream = new SegmentedEncryptingOutputStream(encrypted, key)) {
+            encryptingOutputStream.write(document);
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(encrypted.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // The cache is shared with other directories on the same files, which must not keep the old version
+        DocumentCache.invalidate(new DocumentCache.Key(directory, fullName));
+    }
+
+    /**
+     * Called by the write-ahead log once a document is written to its file, so it can leave the buffer.
+     */
+    void checkpointed(String name, @Nullable Item value, int size) {
+        Object buffered = value == null ? none : value;
+        DocumentCache.put(cacheKey(name), buffered, size);
+        buffer.remove(name, buffered);
     }
 }
@@ -0,0 +1,371 @@
+package io.github.software.coursework.data.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a log written by {@link EncryptedLogger} a window at a time, decrypting only the frames the window covers.
+ *
+ * <p>The frames are located with the sidecar index next to the log, named after the log with {@value #INDEX_EXTENSION}
+ * appended. Each record of the index is the offset and length of a frame in the log and the number of entries in it.
+ * The index holds nothing that cannot be told from the encrypted log itself. Frames the index does not cover,
+ * such as those of logs written by earlier versions or those after a crash, are found by scanning the log, which only
+ * decrypts the first block of each frame to count its entries.</p>
+ *
+ * <p>The entries are in the order they were logged, which is also the order of their time, so a filter by time only
+ * decrypts a few frames to find where the range starts.</p>
+ */
+public final class EncryptedLogReader implements Closeable {
+    private static final Logger logger = Logger.getLogger("EncryptedLogReader");
+    static final String INDEX_EXTENSION = ".idx";
+    // The offset of the frame, its length and the number of entries in it
+    static final int INDEX_RECORD_SIZE = 16;
+    private static final DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * An entry of the log.
+     *
+     * @param index the position of the entry in the log
+     * @param time the time of the entry, formatted as {@code yyyy-MM-dd HH:mm:ss}
+     * @param event the type of the event
+     * @param json the whole entry
+     */
+    public record Entry(int index, String time, String event, String json) {
+    }
+
+    /**
+     * @param events the event types to keep, or null to keep all
+     * @param from the earliest time to keep, inclusive, or null for no limit
+     * @param to the latest time to keep, exclusive, or null for no limit
+     */
+    public record Filter(@Nullable Set<String> events, @Nullable LocalDateTime from, @Nullable LocalDateTime to) {
+        public static final Filter ALL = new Filter(null, null, null);
+    }
+
+    /**
+     * A record of the index.
+     */
+    record Frame(long offset, int length, int count) {
+        /**
+         * @return the offset of the line after the frame
+         */
+        long end() {
+            return offset + length + 1;
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putLong(offset).putInt(length).putInt(count);
+        }
+    }
+
+    /**
+     * @param entries the entries found
+     * @param next the index to continue the query from, or -1 if no entry is left
+     */
+    public record Page(List<Entry> entries, int next) {
+    }
+
+    private final File file;
+    private final RandomAccessFile input;
+    private final SecretKeySpec keySpec;
+    private final JsonFactory factory = JsonFactory.builder().build();
+    private final long[] offsets;
+    private final int[] lengths;
+    // The index of the first entry of each frame, followed by the number of entries
+    private final int[] firstEntries;
+    private final Cache<Integer, List<Entry>> frames = CacheBuilder.newBuilder().maximumSize(32).build();
+
+    private EncryptedLogReader(File file, byte[] key, List<Frame> index) throws IOException {
+        this.file = file;
+        this.input = new RandomAccessFile(file, "r");
+        this.keySpec = new SecretKeySpec(key, "AES");
+        offsets = new long[index.size()];
+        lengths = new int[index.size()];
+        firstEntries = new int[index.size() + 1];
+        for (int i = 0; i < index.size(); i++) {
+            Frame frame = index.get(i);
+            offsets[i] = frame.offset();
+            lengths[i] = frame.length();
+            firstEntries[i + 1] = firstEntries[i] + frame.count();
+        }
+    }
+
+    /**
+     * Open a log, reading its index and bringing the index up to date if the log is complete.
+     */
+    public static EncryptedLogReader open(File file, byte[] key) throws IOException {
+        File indexFile = new File(file.getPath() + INDEX_EXTENSION);
+        long length = file.length();
+        List<Frame> index = readIndex(indexFile, length);
+        int indexed = index.size();
+        long start = index.isEmpty() ? 0 : index.getLast().end();
+        boolean complete = scan(file, key, start, index);
+        if (complete && index.size() > indexed) {
+            try {
+                writeIndex(indexFile, index);
+            } catch (IOException e) {
+                logger.log(Level.INFO, "Failed to write the index of " + file, e);
+            }
+        }
+        return new EncryptedLogReader(file, key, index);
+    }
+
+    /**
+     * @return the records of the index, or an empty list if the index is missing or does not match the log
+     */
+    private static List<Frame> readIndex(File indexFile, long logLength) throws IOException {
+        ArrayList<Frame> index = new ArrayList<>();
+        if (!indexFile.exists()) {
+            return index;
+        }
+        byte[] data;
+        try (FileInputStream stream = new FileInputStream(indexFile)) {
+            data = stream.readAllBytes();
+        }
+        // A record cut off by a crash is ignored
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, data.length - data.length % INDEX_RECORD_SIZE);
+        long end = 0;
+        while (buffer.hasRemaining()) {
+            Frame frame = new Frame(buffer.getLong(), buffer.getInt(), buffer.getInt());
+            if (frame.offset() < end || frame.length() <= 0 || frame.count() < 0 || frame.end() > logLength) {
+                logger.info("The index " + indexFile + " does not match the log, rebuilding");
+                return new ArrayList<>();
+            }
+            index.add(frame);
+            end = frame.end();
+        }
+        return index;
+    }
+
+    private static void writeIndex(File indexFile, List<Frame> index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(index.size() * INDEX_RECORD_SIZE);
+        for (Frame frame : index) {
+            frame.write(buffer);
+        }
+        try (FileOutputStream stream = new FileOutputStream(indexFile)) {
+            stream.write(buffer.array());
+        }
+    }
+
+    /**
+     * Find the frames from the offset onward and add them to the index.
+     *
+     * @return whether the end line of the log is found
+     */
+    private static boolean scan(File file, byte[] key, long start, List<Frame> index) throws IOException {
+        Cipher cipher = createCipher();
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        try (BufferedInputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            String first = readLine(stream);
+            if (first == null || !first.startsWith(Encryption.LOG_START.trim())) {
+                throw new IOException("Cannot find log start line. This file does not look like a log file.");
+            }
+            long position = first.length() + 1;
+            if (start > position) {
+                stream.skipNBytes(start - position);
+                position = start;
+            }
+            String line;
+            while ((line = readLine(stream)) != null) {
+                long offset = position;
+                position += line.length() + 1;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith(Encryption.LOG_END.trim())) {
+                    return true;
+                }
+                if (line.startsWith(Encryption.LOG_START.trim())) {
+                    throw new IOException("Multiple log start lines");
+                }
+                index.add(new Frame(offset, line.length(), EncryptedLogger.countEntries(line, cipher, keySpec)));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the next line terminated by a line feed, or null if there is none. A line without its line feed is
+     * still being written and is not returned.
+     */
+    private static @Nullable String readLine(InputStream stream) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = stream.read()) != -1) {
+            if (c == '\n') {
+                return builder.toString();
+            }
+            builder.append((char) c);
+        }
+        return null;
+    }
+
+    static Cipher createCipher() {
+        try {
+            return Cipher.getInstance("AES/CBC/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of entries in the log
+     */
+    public int size() {
+        return firstEntries[firstEntries.length - 1];
+    }
+
+    /**
+     * @return the number of frames in the log
+     */
+    public int frameCount() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the entries from the start index, at most the limit of them
+     */
+    public List<Entry> read(int start, int limit) throws IOException {
+        ArrayList<Entry> result = new ArrayList<>();
+        int end = (int) Math.min(size(), (long) Math.max(start, 0) + limit);
+        for (int i = Math.max(start, 0); i < end; ) {
+            int frame = frameOf(i);
+            List<Entry> entries = frame(frame);
+            int offset = i - firstEntries[frame];
+            int count = Math.min(entries.size() - offset, end - i);
+            result.addAll(entries.subList(offset, offset + count));
+            i += count;
+        }
+        return result;
+    }
+
+    /**
+     * Find the entries accepted by the filter, starting from an index.
+     *
+     * @param start the index to start from, 0 or the {@link Page#next()} of the previous page
+     * @param limit the largest number of entries to return
+     */
+    public Page query(Filter filter, int start, int limit) throws IOException {
+        String from = format(filter.from());
+        String to = format(filter.to());
+        int frame = start >= size() ? frameCount() : frameOf(Math.max(start, 0));
+        if (from != null) {
+            frame = Math.max(frame, firstFrameFrom(from));
+        }
+        ArrayList<Entry> result = new ArrayList<>();
+        for (; frame < frameCount(); frame++) {
+            for (Entry entry : frame(frame)) {
+                if (entry.index() < start || (from != null && entry.time().compareTo(from) < 0)) {
+                    continue;
+                }
+                if (to != null && entry.time().compareTo(to) >= 0) {
+                    return new Page(result, -1);
+                }
+                if (result.size() >= limit) {
+                    return new Page(result, entry.index());
+                }
+                if (filter.events() == null || filter.events().contains(entry.event())) {
+                    result.add(entry);
+                }
+            }
+        }
+        return new Page(result, -1);
+    }
+
+    private static @Nullable String format(@Nullable LocalDateTime time) {
+        return time == null ? null : time.format(timeFormat);
+    }
+
+    private int frameOf(int entry) {
+        int found = Arrays.binarySearch(firstEntries, entry);
+        return found < 0 ? -found - 2 : found;
+    }
+
+    /**
+     * @return the first frame that may contain an entry not earlier than the time
+     */
+    private int firstFrameFrom(String from) throws IOException {
+        int low = 0;
+        int high = frameCount();
+        // The last frame starting earlier than the time may still end later than it
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            List<Entry> entries = frame(middle);
+            if (entries.isEmpty() || entries.getFirst().time().compareTo(from) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    private List<Entry> frame(int frame) throws IOException {
+        List<Entry> cached = frames.getIfPresent(frame);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] line = new byte[lengths[frame]];
+        synchronized (input) {
+            input.seek(offsets[frame]);
+            input.readFully(line);
+        }
+        List<String> decoded = EncryptedLogger.decodeFrame(new String(line, StandardCharsets.US_ASCII), createCipher(), keySpec);
+        ArrayList<Entry> entries = new ArrayList<>(decoded.size());
+        for (String json : decoded) {
+            entries.add(parse(firstEntries[frame] + entries.size(), json));
+        }
+        List<Entry> result = List.copyOf(entries);
+        frames.put(frame, result);
+        return result;
+    }
+
+    private Entry parse(int index, String json) throws IOException {
+        String time = "";
+        String event = "";
+        try (JsonParser parser = factory.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid entry");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                switch (name) {
+                    case "time" -> time = parser.getValueAsString("");
+                    case "event" -> event = parser.getValueAsString("");
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return new Entry(index, time, event, json);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.JsonFactory;
 import io.github.software.coursework.data.AsyncStorage;
 import io.github.software.coursework.data.Document;
 import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -13,101 +14,231 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
+import java.util.List;
 import java.util.SequencedCollection;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * An append-only log of the operations on the storage, encrypted with the key of the account.
+ *
+ * <p>The entries are queued by {@link #log} and written by a background thread every flush interval, or as soon as
+ * enough of them are queued. Each round packs the queued entries into as few frames as possible, and each frame is
+ * padded to a multiple of {@value #paddingChunkSize} bytes and encrypted as a whole, so the size of the log follows
+ * its content rather than the number of entries.</p>
+ *
+ * <p>A frame is a base64 line, the IV followed by the encrypted content. The content starts with a 4-byte big-endian
+ * length. Logs written by earlier versions hold one entry per frame, and the length is the length of that entry.
+ * A batched frame has {@value #BATCH_MARKER} in place of the length, followed by the number of entries and each entry
+ * prefixed with its length.</p>
+ *
+ * <p>The frames written are recorded in a sidecar index, which {@link EncryptedLogReader} reads the log with.</p>
+ */
 public final class EncryptedLogger implements Closeable {
+    private static final Logger logger = Logger.getLogger("EncryptedLogger");
     private record Entry(Date time, AsyncStorage.Sensitivity sensitivity, String event, Item[] items) {}
     // Size padded to prevent inference of the length of the data
     private static final int paddingChunkSize = 512;
+    private static final int BATCH_MARKER = -1;
+    // The content of a frame is closed once it reaches this size, the last entry may exceed it
+    private static final int maxFrameSize = 64 * 1024;
+    // Queued entries that wake the writer before the flush interval elapses
+    private static final int eagerFlushEntries = 256;
+    private static final Duration defaultFlushInterval = Duration.ofSeconds(1);
 
-    private final byte[] key;
+    private static final ScheduledExecutorService writerExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Log-Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SecretKeySpec keySpec;
     private final BufferedWriter writer;
+    private final OutputStream indexWriter;
+    private final ArrayList<EncryptedLogReader.Frame> unindexed = new ArrayList<>();
+    // The number of bytes written to the log, every character written is ASCII
+    private long position;
     private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean eagerFlushScheduled = new AtomicBoolean();
     private final JsonFactory factory = JsonFactory.builder().build();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledFuture<?> periodicFlush;
+    private @Nullable IOException failure = null;
+    private boolean closed = false;
 
     public EncryptedLogger(File directory, byte[] key) throws IOException {
+        this(directory, key, defaultFlushInterval);
+    }
+
+    /**
+     * @param flushInterval the longest time an entry waits in the queue before it is written
+     */
+    public EncryptedLogger(File directory, byte[] key, Duration flushInterval) throws IOException {
         String date = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
         int i = 1;
         while (new File(directory, date + "_" + i + ".log").exists()) {
             i++;
         }
-        this.key = key;
-        writer = new BufferedWriter(new FileWriter(new File(directory, date + "_" + i + ".log"), StandardCharsets.UTF_8));
+        this.keySpec = new SecretKeySpec(key, "AES");
+        File file = new File(directory, date + "_" + i + ".log");
+        writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8));
         writer.write(Encryption.LOG_START);
+        writer.flush();
+        position = Encryption.LOG_START.length();
+        indexWriter = new FileOutputStream(file.getPath() + EncryptedLogReader.INDEX_EXTENSION);
+        long interval = flushInterval.toNanos();
+        periodicFlush = writerExecutor.scheduleWithFixedDelay(this::backgroundFlush, interval, interval, TimeUnit.NANOSECONDS);
     }
 
-    public void flush() throws IOException {
+    /**
+     * Write every entry queued so far to the file.
+     */
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (failure != null) {
+            throw new IOException("An earlier write to the log failed", failure);
+        }
         Cipher cipher;
-        SecureRandom random = new SecureRandom();
-        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
         try {
             cipher = Cipher.getInstance("AES/CBC/NoPadding");
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
             throw new RuntimeException(e);
         }
-        for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try (Document.Writer jsonWriter = JsonWriter.createWriter(factory.createGenerator(baos, JsonEncoding.UTF8))) {
-                jsonWriter.writeString("time", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(entry.time));
-                jsonWriter.writeString("event", entry.event);
-                jsonWriter.writeString("sensitivity", entry.sensitivity.toString());
-                Document.Writer itemsWriter = jsonWriter.writeCompound("items");
-                int i = 0;
-                for (Item item : entry.items) {
-                    item.serialize(itemsWriter.writeCompound(i++));
+        ArrayList<byte[]> frame = new ArrayList<>();
+        int frameSize = 0;
+        try {
+            for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) {
+                queued.decrementAndGet();
+                byte[] data = serialize(entry);
+                frame.add(data);
+                frameSize += data.length + 4;
+                if (frameSize >= maxFrameSize) {
+                    writeFrame(cipher, frame, frameSize);
+                    frame.clear();
+                    frameSize = 0;
                 }
-                itemsWriter.writeEnd();
-                jsonWriter.writeEnd();
             }
-            byte[] data = baos.toByteArray();
-            int contentLength = data.length + 4; // 4 bytes for the length prefix
-            // So the encrypted data is padded to a multiple of paddingChunkSize. Iv is considered as part of the data.
-            int paddedLength = ((contentLength + paddingChunkSize - 1 + cipher.getBlockSize()) / paddingChunkSize) * paddingChunkSize;
-            byte[] paddedData = new byte[paddedLength];
-            paddedData[0] = (byte) (0xff & (data.length >> 24));
-            paddedData[1] = (byte) (0xff & (data.length >> 16));
-            paddedData[2] = (byte) (0xff & (data.length >> 8));
-            paddedData[3] = (byte) (0xff & data.length);
-            System.arraycopy(data, 0, paddedData, 4, data.length);
-            byte[] iv = new byte[cipher.getBlockSize()];
-            byte[] encrypted;
-            random.nextBytes(iv);
-            try {
-                cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
-                encrypted = cipher.doFinal(paddedData);
-            } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException |
-                     BadPaddingException e) {
-                throw new RuntimeException(e);
+            if (!frame.isEmpty()) {
+                writeFrame(cipher, frame, frameSize);
             }
-            byte[] encryptedWithIv = new byte[iv.length + encrypted.length];
-            System.arraycopy(iv, 0, encryptedWithIv, 0, iv.length);
-            System.arraycopy(encrypted, 0, encryptedWithIv, iv.length, encrypted.length);
-            String base64 = Base64.getEncoder().encodeToString(encryptedWithIv);
-            writer.write(base64 + "\n");
+            writer.flush();
+            // Only after the frames, so the index never points past the end of the log
+            ByteBuffer index = ByteBuffer.allocate(unindexed.size() * EncryptedLogReader.INDEX_RECORD_SIZE);
+            for (EncryptedLogReader.Frame indexed : unindexed) {
+                indexed.write(index);
+            }
+            unindexed.clear();
+            indexWriter.write(index.array());
+            indexWriter.flush();
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    private byte[] serialize(Entry entry) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (Document.Writer jsonWriter = JsonWriter.createWriter(factory.createGenerator(baos, JsonEncoding.UTF8))) {
+            jsonWriter.writeString("time", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(entry.time));
+            jsonWriter.writeString("event", entry.event);
+            jsonWriter.writeString("sensitivity", entry.sensitivity.toString());
+            Document.Writer itemsWriter = jsonWriter.writeCompound("items");
+            int i = 0;
+            for (Item item : entry.items) {
+                item.serialize(itemsWriter.writeCompound(i++));
+            }
+            itemsWriter.writeEnd();
+            jsonWriter.writeEnd();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @param size the total length of the entries including their length prefixes
+     */
+    private void writeFrame(Cipher cipher, List<byte[]> entries, int size) throws IOException {
+        int contentLength = size + 8; // 4 bytes for the marker and 4 bytes for the number of entries
+        // So the encrypted data is padded to a multiple of paddingChunkSize. Iv is considered as part of the data.
+        int paddedLength = ((contentLength + paddingChunkSize - 1 + cipher.getBlockSize()) / paddingChunkSize) * paddingChunkSize;
+        ByteBuffer paddedData = ByteBuffer.allocate(paddedLength);
+        paddedData.putInt(BATCH_MARKER);
+        paddedData.putInt(entries.size());
+        for (byte[] data : entries) {
+            paddedData.putInt(data.length);
+            paddedData.put(data);
+        }
+        byte[] iv = new byte[cipher.getBlockSize()];
+        byte[] encrypted;
+        random.nextBytes(iv);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            encrypted = cipher.doFinal(paddedData.array());
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException |
+                 BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] encryptedWithIv = new byte[iv.length + encrypted.length];
+        System.arraycopy(iv, 0, encryptedWithIv, 0, iv.length);
+        System.arraycopy(encrypted, 0, encryptedWithIv, iv.length, encrypted.length);
+        String base64 = Base64.getEncoder().encodeToString(encryptedWithIv);
+        writer.write(base64 + "\n");
+        unindexed.add(new EncryptedLogReader.Frame(position, base64.length(), entries.size()));
+        position += base64.length() + 1;
+    }
+
+    private void backgroundFlush() {
+        eagerFlushScheduled.set(false);
+        try {
+            flush();
+        } catch (IOException e) {
+            // Reported again on close, the entries keep being queued meanwhile
+            logger.log(Level.SEVERE, "Failed to write the log", e);
         }
     }
 
     public void log(String event, AsyncStorage.Sensitivity sensitivity, Item... items) {
         queue.add(new Entry(new Date(), sensitivity, event, items));
+        if (queued.incrementAndGet() >= eagerFlushEntries && !eagerFlushScheduled.getAndSet(true)) {
+            writerExecutor.execute(this::backgroundFlush);
+        }
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        periodicFlush.cancel(false);
         try {
             flush();
             writer.write(Encryption.LOG_END);
         } finally {
-            writer.close();
+            closed = true;
+            try (indexWriter) {
+                writer.close();
+            }
         }
     }
 
@@ -122,56 +253,44 @@ public final class EncryptedLogger implements Closeable {
         }
         boolean firstLineRead = false;
         boolean finalLineRead = false;
-        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.isEmpty()) {
-                    continue;
-                }
-                if (line.startsWith(Encryption.LOG_START.trim())) {
-                    if (!firstLineRead) {
-                        firstLineRead = true;
-                        continue;
-                    } else {
-                        throw new IOException("Multiple log start lines");
-                    }
-                }
+        // Read at once and split afterward, as a reader stopping at the end of a frame that is still being written
+        // would go on with the rest of the frame as another line
+        List<String> fileLines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).lines().toList();
+        for (int index = 0; index < fileLines.size(); index++) {
+            String line = fileLines.get(index);
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith(Encryption.LOG_START.trim())) {
                 if (!firstLineRead) {
+                    firstLineRead = true;
                     continue;
+                } else {
+                    throw new IOException("Multiple log start lines");
                 }
-                if (line.startsWith(Encryption.LOG_END.trim())) {
-                    if (!finalLineRead) {
-                        finalLineRead = true;
-                        continue;
-                    } else {
-                        throw new IOException("Multiple log end lines");
-                    }
-                }
-                if (finalLineRead) {
+            }
+            if (!firstLineRead) {
+                continue;
+            }
+            if (line.startsWith(Encryption.LOG_END.trim())) {
+                if (!finalLineRead) {
+                    finalLineRead = true;
                     continue;
+                } else {
+                    throw new IOException("Multiple log end lines");
                 }
-                byte[] encrypted;
-                try {
-                    encrypted = Base64.getDecoder().decode(line);
-                } catch (IllegalArgumentException e) {
-                    throw new IOException("Invalid base64", e);
-                }
-                byte[] iv = new byte[16];
-                System.arraycopy(encrypted, 0, iv, 0, iv.length);
-                byte[] data = new byte[encrypted.length - iv.length];
-                System.arraycopy(encrypted, iv.length, data, 0, data.length);
-                byte[] decoded;
-                try {
-                    cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(iv));
-                    decoded = cipher.doFinal(data);
-                } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-                    throw new IOException("Invalid key", e);
-                }
-                if (decoded.length < 4) {
-                    throw new IOException("Invalid data");
+            }
+            if (finalLineRead) {
+                continue;
+            }
+            try {
+                lines.addAll(decodeFrame(line, cipher, keySpec));
+            } catch (IOException e) {
+                if (index == fileLines.size() - 1) {
+                    // The last frame of a log that is still being written, or was cut off by a crash
+                    break;
                 }
-                int size = ((decoded[0] & 0xff) << 24) | ((decoded[1] & 0xff) << 16) | ((decoded[2] & 0xff) << 8) | (decoded[3] & 0xff);
-                lines.add(new String(decoded, 4, size, StandardCharsets.UTF_8));
+                throw e;
             }
         }
         if (!firstLineRead) {
@@ -179,4 +298,82 @@ public final class EncryptedLogger implements Closeable {
         }
         return lines;
     }
+
+    /**
+     * Count the entries of a frame, decrypting only its first block.
+     */
+    static int countEntries(String line, Cipher cipher, SecretKeySpec keySpec) throws IOException {
+        byte[] head;
+        try {
+            // 44 characters of base64 hold the IV and the first block
+            head = Base64.getDecoder().decode(line.substring(0, Math.min(line.length(), 44)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid base64", e);
+        }
+        if (head.length < 32) {
+            throw new IOException("Invalid data");
+        }
+        byte[] block;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(head, 0, 16));
+            block = cipher.doFinal(head, 16, 16);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new IOException("Invalid key", e);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        return buffer.getInt() == BATCH_MARKER ? buffer.getInt() : 1;
+    }
+
+    static List<String> decodeFrame(String line, Cipher cipher, SecretKeySpec keySpec) throws IOException {
+        byte[] encrypted;
+        try {
+            encrypted = Base64.getDecoder().decode(line);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid base64", e);
+        }
+        if (encrypted.length < 16) {
+            throw new IOException("Invalid data");
+        }
+        byte[] iv = new byte[16];
+        System.arraycopy(encrypted, 0, iv, 0, iv.length);
+        byte[] data = new byte[encrypted.length - iv.length];
+        System.arraycopy(encrypted, iv.length, data, 0, data.length);
+        byte[] decoded;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            decoded = cipher.doFinal(data);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new IOException("Invalid key", e);
+        }
+        if (decoded.length < 4) {
+            throw new IOException("Invalid data");
+        }
+        ByteBuffer frame = ByteBuffer.wrap(decoded);
+        int size = frame.getInt();
+        if (size != BATCH_MARKER) {
+            // A frame written by an earlier version, holding a single entry
+            return List.of(readEntry(frame, size));
+        }
+        if (frame.remaining() < 4) {
+            throw new IOException("Invalid data");
+        }
+        int count = frame.getInt();
+        ArrayList<String> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (frame.remaining() < 4) {
+                throw new IOException("Invalid data");
+            }
+            entries.add(readEntry(frame, frame.getInt()));
+        }
+        return entries;
+    }
+
+    private static String readEntry(ByteBuffer frame, int size) throws IOException {
+        if (size < 0 || size > frame.remaining()) {
+            throw new IOException("Invalid data");
+        }
+        String entry = new String(frame.array(), frame.position(), size, StandardCharsets.UTF_8);
+        frame.position(frame.position() + size);
+        return entry;
+    }
 }
@@ -9,6 +9,8 @@ import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.InvalidAlgorithmParameterException;
@@ -17,6 +19,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Random;
 
@@ -81,6 +84,24 @@ public final class Encryption {
         }
     }
 
+    /**
+     * Opens a stream that decrypts data written by {@link SegmentedEncryptingOutputStream}, or by
+     * {@link EncryptingOutputStream} in earlier versions. The two are told apart by how the data starts.
+     * @param backing The encrypted data.
+     * @param key The key the data is encrypted with.
+     * @return The decrypted data.
+     */
+    public static InputStream decryptingStream(InputStream backing, byte[] key) throws IOException {
+        byte[] magic = SegmentedEncryptingOutputStream.MAGIC;
+        PushbackInputStream pushback = new PushbackInputStream(backing, magic.length);
+        byte[] start = pushback.readNBytes(magic.length);
+        pushback.unread(start);
+        if (Arrays.equals(start, magic)) {
+            return new SegmentedDecryptingInputStream(pushback, key);
+        }
+        return new DecryptingInputStream(pushback, key);
+    }
+
     /**
      * Writes a key file with the given password and key. If the key is null, a new random key will be generated.
      * @param password The password to encrypt the key with.
@@ -1,16 +1,20 @@
 package io.github.software.coursework.data.json;
 
-import com.google.common.collect.ImmutableList;
 import io.github.software.coursework.data.*;
 import io.github.software.coursework.data.schema.Entity;
 import io.github.software.coursework.data.schema.Goal;
 import io.github.software.coursework.data.schema.Transaction;
+import io.github.software.coursework.data.schema.TransactionAggregate;
+import io.github.software.coursework.data.schema.TransactionSummary;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMultiset;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -19,11 +23,15 @@ import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * A JSON-based storage implementation.
  * You should only create instance of this class in the Main class. In other occasions,
  * use {@link AsyncStorage} to access the storage.
+ *
+ * <p>When too many tasks of a priority are waiting for a table, the callback methods such as {@link #entity} wait
+ * until one has started, while the futures of the methods such as {@link #submitEntity} fail instead.</p>
  */
 public final class JsonStorage implements AsyncStorage {
     private static final List<String> defaultCategories = List.of(
@@ -95,140 +103,336 @@ public final class JsonStorage implements AsyncStorage {
 
     private static final Logger logger = Logger.getLogger(JsonStorage.class.getName());
 
+    /**
+     * The optional indices of transactions, each ordered by time within a key.
+     * An index is built when it is enabled for the first time, and deleted when it is disabled,
+     * without an index the corresponding queries fall back to filtering all transactions.
+     */
+    public enum SecondaryIndex {
+        /**
+         * Index transactions by category.
+         */
+        CATEGORY("by-category"),
+
+        /**
+         * Index transactions by the party involved.
+         */
+        ENTITY("by-entity"),
+
+        /**
+         * Index transactions by each of their tags.
+         */
+        TAG("by-tag"),
+
+        /**
+         * Index the n-grams of the titles and descriptions of transactions, see {@link TransactionTable#search}.
+         */
+        TEXT("text");
+
+        private final String namespace;
+
+        SecondaryIndex(String namespace) {
+            this.namespace = namespace;
+        }
+    }
+
     private JsonEntityTable entityTable;
     private JsonTransactionTable transactionTable;
     private JsonModelDirectory modelDirectory;
-    private final ExecutorService entityExecutor = Executors.newSingleThreadExecutor();
-    private final ExecutorService transactionExecutor = Executors.newSingleThreadExecutor();
-    private final ExecutorService modelExecutor = Executors.newSingleThreadExecutor();
-    private final EncryptedLogger opLogger;
+    private Directory entityDirectory;
+    private Directory transactionDirectory;
+    private Directory modelBackingDirectory;
+    private final TableWorker entityWorker = new TableWorker("Entity-IO-Worker", JsonStorage::crash);
+    private final TableWorker transactionWorker = new TableWorker("Transaction-IO-Worker", JsonStorage::crash);
+    private final TableWorker modelWorker = new TableWorker("Model-IO-Worker", JsonStorage::crash);
+    private final @Nullable EncryptedLogger opLogger;
 
-    private void crash(Throwable throwable) {
+    private static void crash(Throwable throwable) {
         logger.log(Level.SEVERE, "A fatal error has occurred in worker thread " + Thread.currentThread(), throwable);
         logger.log(Level.SEVERE, "Application will exit immediately");
         System.exit(1);
     }
 
     /**
-     * Creates a new JsonStorage instance.
+     * The statistics of the tasks of a priority on a table, see {@link #queueStats()}.
+     * @param depth The number of tasks waiting.
+     * @param capacity The number of tasks that may wait, more wait to be queued or are rejected.
+     * @param admitted The number of tasks accepted so far.
+     * @param rejected The number of tasks rejected so far, as too many were waiting.
+     * @param totalWaitNanos The total time the started tasks waited, in nanoseconds.
+     * @param maxWaitNanos The longest time a task waited, in nanoseconds.
+     */
+    public record QueueStats(int depth, int capacity, long admitted, long rejected, long totalWaitNanos, long maxWaitNanos) {
+        /**
+         * @return The average time the started tasks waited, in nanoseconds.
+         */
+        public long averageWaitNanos() {
+            long started = admitted - depth;
+            return started == 0 ? 0 : totalWaitNanos / started;
+        }
+    }
+
+    /**
+     * Creates a new JsonStorage instance, with all secondary indices enabled.
      * @param account the account to use
      * @param password the password to use
      * @throws IOException if an I/O error occurs
      */
     public JsonStorage(AccountManager.Account account, String password) throws IOException {
-        byte[] key = Encryption.readKeyFile(password, Files.readString(Path.of(account.key())));
-        if (key == null) {
-            throw new IOException("Bad key file");
-        }
-        if (!Files.exists(Path.of(account.path()))) {
-            throw new FileNotFoundException("Account path does not exist");
-        }
-        this.opLogger = new EncryptedLogger(new File(account.path()), key);
-        entityExecutor.submit(() -> {
-            Thread.currentThread().setName("Entity-IO-Worker");
+        this(account, password, EnumSet.allOf(SecondaryIndex.class));
+    }
+
+    /**
+     * Creates a new JsonStorage instance.
+     * @param account the account to use
+     * @param password the password to use
+     * @param secondaryIndices the secondary indices of transactions to maintain
+     * @throws IOException if an I/O error occurs
+     */
+    public JsonStorage(AccountManager.Account account, String password, Set<SecondaryIndex> secondaryIndices) throws IOException {
+        this(openAccount(account, password), secondaryIndices);
+    }
+
+    /**
+     * Creates a new JsonStorage instance over the directories opened by a backend, see {@link DirectoryBackend}.
+     * @param backend the backend to open the directories of the tables with
+     * @param secondaryIndices the secondary indices of transactions to maintain
+     * @throws IOException if an I/O error occurs
+     */
+    public JsonStorage(DirectoryBackend backend, Set<SecondaryIndex> secondaryIndices) throws IOException {
+        EnumSet<SecondaryIndex> enabledIndices = EnumSet.noneOf(SecondaryIndex.class);
+        enabledIndices.addAll(secondaryIndices);
+        this.opLogger = backend.openLogger();
+        entityWorker.write(Priority.INTERACTIVE, () -> {
             try {
-                entityTable = new JsonEntityTable(new EncryptedDirectory(new File(account.path()), key, "entity"));
+                entityDirectory = backend.open("entity", EncryptedDirectory.Format.BINARY);
+                entityTable = new JsonEntityTable(entityDirectory);
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Failed to load entity table", e);
-                entityExecutor.shutdownNow();
-            } catch (Throwable ex) {
-                crash(ex);
+                entityWorker.abort();
             }
         });
-        transactionExecutor.submit(() -> {
-            Thread.currentThread().setName("Transaction-IO-Worker");
+        transactionWorker.write(Priority.INTERACTIVE, () -> {
             try {
-                transactionTable = new JsonTransactionTable(new EncryptedDirectory(new File(account.path()), key, "transaction"));
+                transactionDirectory = backend.open("transaction", EncryptedDirectory.Format.BINARY);
+                if (transactionDirectory instanceof EncryptedDirectory encrypted) {
+                    // The chunks of the indices repeat the same keys, categories and tags
+                    encrypted.setCompression(EncryptedDirectory.Compression.DEFLATE);
+                }
+                transactionTable = new JsonTransactionTable(transactionDirectory, enabledIndices);
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Failed to load transaction table", e);
-                transactionExecutor.shutdownNow();
-            } catch (Throwable ex) {
-                crash(ex);
+                transactionWorker.abort();
             }
         });
-        modelExecutor.submit(() -> {
-            Thread.currentThread().setName("Model-IO-Worker");
+        modelWorker.write(Priority.INTERACTIVE, () -> {
             try {
-                modelDirectory = new JsonModelDirectory(new EncryptedDirectory(new File(account.path()), key, "model"));
-            } catch (Throwable ex) {
-                crash(ex);
+                modelBackingDirectory = backend.open("model", EncryptedDirectory.Format.JSON);
+                modelDirectory = new JsonModelDirectory(modelBackingDirectory);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to load model directory", e);
+                modelWorker.abort();
             }
         });
     }
 
+    private static DirectoryBackend openAccount(AccountManager.Account account, String password) throws IOException {
+        byte[] key = Encryption.readKeyFile(password, Files.readString(Path.of(account.key())));
+        if (key == null) {
+            throw new IOException("Bad key file");
+        }
+        if (!Files.exists(Path.of(account.path()))) {
+            throw new FileNotFoundException("Account path does not exist");
+        }
+        return DirectoryBackend.encrypted(new File(account.path()), key);
+    }
+
     @Override
     public void entity(Consumer<EntityTable> callback) {
-        entityExecutor.submit(() -> {
-            try {
-                callback.accept(entityTable);
-            } catch (Throwable ex) {
-                crash(ex);
-            }
-        });
+        entity(Priority.INTERACTIVE, callback);
+    }
+
+    @Override
+    public void entity(Priority priority, Consumer<EntityTable> callback) {
+        entityWorker.write(priority, entityTask(callback));
+    }
+
+    private Runnable entityTask(Consumer<EntityTable> callback) {
+        return () -> {
+            callback.accept(entityTable);
+            commit(entityDirectory);
+        };
+    }
+
+    @Override
+    public void readEntity(Consumer<EntityTable> callback) {
+        readEntity(Priority.INTERACTIVE, callback);
+    }
+
+    @Override
+    public void readEntity(Priority priority, Consumer<EntityTable> callback) {
+        entityWorker.read(priority, () -> callback.accept(entityTable));
     }
 
     @Override
     public void transaction(Consumer<TransactionTable> callback) {
-        transactionExecutor.submit(() -> {
-            try {
-                callback.accept(transactionTable);
-            } catch (Throwable ex) {
-                crash(ex);
-            }
-        });
+        transaction(Priority.INTERACTIVE, callback);
+    }
+
+    @Override
+    public void transaction(Priority priority, Consumer<TransactionTable> callback) {
+        transactionWorker.write(priority, transactionTask(callback));
+    }
+
+    private Runnable transactionTask(Consumer<TransactionTable> callback) {
+        return () -> {
+            callback.accept(transactionTable);
+            commit(transactionDirectory);
+        };
+    }
+
+    @Override
+    public void readTransaction(Consumer<TransactionTable> callback) {
+        readTransaction(Priority.INTERACTIVE, callback);
+    }
+
+    @Override
+    public void readTransaction(Priority priority, Consumer<TransactionTable> callback) {
+        transactionWorker.read(priority, () -> callback.accept(transactionTable));
     }
 
     @Override
     public void model(Consumer<ModelDirectory> callback) {
-        modelExecutor.submit(() -> {
-            try {
-                callback.accept(modelDirectory);
-            } catch (Throwable ex) {
-                crash(ex);
-            }
-        });
+        model(Priority.INTERACTIVE, callback);
+    }
+
+    @Override
+    public void model(Priority priority, Consumer<ModelDirectory> callback) {
+        modelWorker.write(priority, modelTask(callback));
+    }
+
+    private Runnable modelTask(Consumer<ModelDirectory> callback) {
+        return () -> {
+            callback.accept(modelDirectory);
+            commit(modelBackingDirectory);
+        };
+    }
+
+    @Override
+    public <R> CompletableFuture<R> submitEntity(Priority priority, Task<? super EntityTable, ? extends R> task) {
+        return JsonStorage.<EntityTable, R>offer(callback -> entityWorker.tryWrite(priority, entityTask(callback)), task);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> queryEntity(Priority priority, Task<? super EntityTable, ? extends R> task) {
+        return JsonStorage.<EntityTable, R>offer(callback -> entityWorker.tryRead(priority, () -> callback.accept(entityTable)), task);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> submitTransaction(Priority priority, Task<? super TransactionTable, ? extends R> task) {
+        return JsonStorage.<TransactionTable, R>offer(callback -> transactionWorker.tryWrite(priority, transactionTask(callback)), task);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> queryTransaction(Priority priority, Task<? super TransactionTable, ? extends R> task) {
+        return JsonStorage.<TransactionTable, R>offer(callback -> transactionWorker.tryRead(priority, () -> callback.accept(transactionTable)), task);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> submitModel(Priority priority, Task<? super ModelDirectory, ? extends R> task) {
+        return JsonStorage.<ModelDirectory, R>offer(callback -> modelWorker.tryWrite(priority, modelTask(callback)), task);
+    }
+
+    /**
+     * Submit a task without waiting for the queue, a full queue fails the future.
+     */
+    private static <T, R> CompletableFuture<R> offer(Consumer<Consumer<T>> submitter, Task<? super T, ? extends R> task) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            submitter.accept(table -> {
+                try {
+                    future.complete(task.run(table));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return The statistics of the tasks of each priority on the "entity", "transaction" and "model" tables.
+     */
+    public Map<String, Map<Priority, QueueStats>> queueStats() {
+        LinkedHashMap<String, Map<Priority, QueueStats>> result = new LinkedHashMap<>();
+        result.put("entity", entityWorker.stats());
+        result.put("transaction", transactionWorker.stats());
+        result.put("model", modelWorker.stats());
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Set how many tasks of the priority may wait for each table, see {@link QueueStats#capacity()}.
+     */
+    @VisibleForTesting
+    public void setQueueCapacity(Priority priority, int capacity) {
+        entityWorker.setCapacity(priority, capacity);
+        transactionWorker.setCapacity(priority, capacity);
+        modelWorker.setCapacity(priority, capacity);
+    }
+
+    /**
+     * Set when the modifications of each table are written to their files in the background, instead of on close.
+     * Applies to the modifications after the tasks submitted so far, on the tables in {@link EncryptedDirectory}.
+     */
+    public void setCheckpointPolicy(EncryptedDirectory.CheckpointPolicy policy) {
+        entityWorker.write(Priority.INTERACTIVE, () -> setCheckpointPolicy(entityDirectory, policy));
+        transactionWorker.write(Priority.INTERACTIVE, () -> setCheckpointPolicy(transactionDirectory, policy));
+        modelWorker.write(Priority.INTERACTIVE, () -> setCheckpointPolicy(modelBackingDirectory, policy));
+    }
+
+    private static void setCheckpointPolicy(Directory directory, EncryptedDirectory.CheckpointPolicy policy) {
+        if (directory instanceof EncryptedDirectory encrypted) {
+            encrypted.setCheckpointPolicy(policy);
+        }
     }
 
     @Override
     public CompletableFuture<Void> close() {
         CountDownLatch latch = new CountDownLatch(3);
         CompletableFuture<Void> future = new CompletableFuture<>();
-        modelExecutor.submit(() -> {
+        modelWorker.shutdown(() -> {
             try {
                 modelDirectory.flush();
+                modelBackingDirectory.close();
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Failed to flush model directory", e);
-            } catch (Throwable ex) {
-                crash(ex);
             } finally {
                 latch.countDown();
             }
         });
-        modelExecutor.shutdown();
-        entityExecutor.submit(() -> {
+        entityWorker.shutdown(() -> {
             try {
                 entityTable.flush();
+                entityDirectory.close();
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Failed to flush entity table", e);
-            } catch (Throwable ex) {
-                crash(ex);
             } finally {
                 latch.countDown();
             }
         });
-        entityExecutor.shutdown();
-        transactionExecutor.submit(() -> {
+        transactionWorker.shutdown(() -> {
             try {
                 transactionTable.flush();
+                transactionDirectory.close();
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Failed to flush transaction table", e);
-            } catch (Throwable ex) {
-                crash(ex);
             } finally {
                 latch.countDown();
             }
         });
-        transactionExecutor.shutdown();
         Thread.ofVirtual().start(() -> {
             try {
                 latch.await();
@@ -238,16 +442,38 @@ public final class JsonStorage implements AsyncStorage {
                 future.completeExceptionally(e);
             }
             try {
-                opLogger.close();
+                if (opLogger != null) {
+                    opLogger.close();
+                }
             } catch (IOException e) {
                 logger.log(Level.SEVERE, "Failed to close logger", e);
                 future.completeExceptionally(e);
             }
+            logger.info("Document cache: " + DocumentCache.stats());
+            logger.info("Storage queues: " + queueStats());
             future.complete(null);
         });
         return future;
     }
 
+    /**
+     * Make the modifications of a finished task durable. Commits from different workers arriving
+     * together share one disk sync.
+     */
+    private static void commit(Directory directory) {
+        try {
+            directory.commit();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to commit modifications to the write-ahead log", e);
+        }
+    }
+
+    private void logOperation(String event, Sensitivity sensitivity, Item... items) {
+        if (opLogger != null) {
+            opLogger.log(event, sensitivity, items);
+        }
+    }
+
     private static <T extends Item> ReferenceItemPair<T> first(ArrayList<ReferenceItemPair<T>> list) {
         if (list.isEmpty()) {
             return null;
@@ -255,11 +481,153 @@ public final class JsonStorage implements AsyncStorage {
         return list.getFirst();
     }
 
+    /**
+     * Stream a range of a snapshot of the index, so that the stream can be used while the table is modified.
+     * The snapshot is closed with the stream.
+     */
+    private static <T extends Item> Stream<T> streamSnapshot(ChunkedIndex<T> index, @Nullable T min, @Nullable T max) {
+        ChunkedIndex<T>.Snapshot snapshot = index.snapshot();
+        return snapshot.stream(min, max, false).onClose(snapshot::close);
+    }
+
+    /**
+     * The key of the indices ordered by reference, the item is not needed to compare.
+     */
+    private static <T extends Item> ChunkedIndex.KeyCodec<ReferenceItemPair<T>> keyByReference() {
+        return ChunkedIndex.KeyCodec.ofLong(a -> a.reference().id(), id -> new ReferenceItemPair<>(new Reference<>(id), null));
+    }
+
+    /**
+     * Newest first, the reference breaks ties so that every summary has a definite position.
+     */
+    private static final Comparator<TransactionSummary> summaryOrder = Comparator.comparingLong(TransactionSummary::time).reversed()
+            .thenComparingLong(a -> a.reference().id());
+
+    private static final ChunkedIndex.KeyCodec<TransactionSummary> summaryKey = new ChunkedIndex.KeyCodec<>() {
+        @Override
+        public void serialize(TransactionSummary item, Document.Writer writer) throws IOException {
+            writer.writeInteger("time", item.time());
+            writer.writeReference("reference", item.reference());
+            writer.writeEnd();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public TransactionSummary deserialize(Document.Reader reader) throws IOException {
+            long time = reader.readInteger("time");
+            Reference<Transaction> reference = (Reference<Transaction>) reader.readReference("reference");
+            reader.readEnd();
+            return new TransactionSummary(time, reference, 0, "");
+        }
+    };
+
+    private static final ChunkedIndex.Aggregator<TransactionSummary, TransactionAggregate> summaryAggregator = new ChunkedIndex.Aggregator<>() {
+        @Override
+        public TransactionAggregate empty() {
+            return TransactionAggregate.EMPTY;
+        }
+
+        @Override
+        public TransactionAggregate of(TransactionSummary item) {
+            return TransactionAggregate.of(item);
+        }
+
+        @Override
+        public TransactionAggregate combine(TransactionAggregate left, TransactionAggregate right) {
+            return left.plus(right);
+        }
+
+        @Override
+        public TransactionAggregate ofAll(List<? extends TransactionSummary> items) {
+            return TransactionAggregate.of(items);
+        }
+
+        @Override
+        public TransactionAggregate deserialize(Document.Reader reader) throws IOException {
+            return TransactionAggregate.deserialize(reader);
+        }
+    };
+
+    /**
+     * A summary that only serves as a bound when querying the index ordered by time.
+     * It comes before every summary of the same time.
+     */
+    private static TransactionSummary transactionAt(long time) {
+        return new TransactionSummary(time, new Reference<>(Long.MIN_VALUE), 0, "");
+    }
+
+    /**
+     * An entry of a secondary index, ordered by key and then the same as the index by time.
+     * @param key the category, the tag, or the id of the entity
+     * @param summary the summary of the transaction
+     */
+    private record KeyedSummary(String key, TransactionSummary summary) implements Item {
+        private static final Comparator<KeyedSummary> order = Comparator.comparing(KeyedSummary::key)
+                .thenComparing(KeyedSummary::summary, summaryOrder);
+
+        private static final ChunkedIndex.KeyCodec<KeyedSummary> codec = new ChunkedIndex.KeyCodec<>() {
+            @Override
+            public void serialize(KeyedSummary item, Document.Writer writer) throws IOException {
+                writer.writeString("key", item.key);
+                summaryKey.serialize(item.summary, writer.writeCompound("summary"));
+                writer.writeEnd();
+            }
+
+            @Override
+            public KeyedSummary deserialize(Document.Reader reader) throws IOException {
+                String key = reader.readString("key");
+                TransactionSummary summary = summaryKey.deserialize(reader.readCompound("summary"));
+                reader.readEnd();
+                return new KeyedSummary(key, summary);
+            }
+        };
+
+        @Override
+        public void serialize(Document.Writer writer) throws IOException {
+            writer.writeString("key", key);
+            summary.serialize(writer.writeCompound("summary"));
+            writer.writeEnd();
+        }
+
+        public static KeyedSummary deserialize(Document.Reader reader) throws IOException {
+            String key = reader.readString("key");
+            TransactionSummary summary = TransactionSummary.deserialize(reader.readCompound("summary"));
+            reader.readEnd();
+            return new KeyedSummary(key, summary);
+        }
+
+        public static List<KeyedSummary> of(SecondaryIndex index, Reference<Transaction> reference, Transaction transaction) {
+            TransactionSummary summary = TransactionSummary.of(reference, transaction);
+            return switch (index) {
+                case CATEGORY -> List.of(new KeyedSummary(transaction.category(), summary));
+                case ENTITY -> transaction.entity() == null ? List.of() : List.of(new KeyedSummary(Long.toString(transaction.entity().id()), summary));
+                case TAG -> transaction.tags().stream().distinct().map(tag -> new KeyedSummary(tag, summary)).toList();
+                case TEXT -> throw new IllegalArgumentException("Not a keyed index: " + index);
+            };
+        }
+    }
+
     public final class JsonEntityTable implements EntityTable {
         private final ChunkedIndex<ReferenceItemPair<Entity>> entityChunkedIndex;
+        private final TextIndex textIndex;
 
         private JsonEntityTable(Directory directory) throws IOException {
-            this.entityChunkedIndex = new ChunkedIndex<>(directory, Comparator.comparingLong(a -> a.reference().id()), reader -> ReferenceItemPair.deserialize(reader, Entity::deserialize));
+            this.entityChunkedIndex = new ChunkedIndex<>(directory, Comparator.comparingLong(a -> a.reference().id()), reader -> ReferenceItemPair.deserialize(reader, Entity::deserialize), keyByReference());
+            this.textIndex = new TextIndex(directory.withNamespace("text"));
+            // There are few entities, so an empty index is simply rebuilt
+            if (textIndex.isEmpty() && entityChunkedIndex.count(null, null) > 0) {
+                ArrayList<TextIndex.Text> texts = new ArrayList<>();
+                try (Stream<ReferenceItemPair<Entity>> entities = stream()) {
+                    entities.forEach(pair -> texts.add(textOf(pair.reference(), pair.item())));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                textIndex.addAll(texts);
+            }
+        }
+
+        private static TextIndex.Text textOf(Reference<Entity> reference, Entity entity) {
+            return new TextIndex.Text(reference.id(), 0, entity.name());
         }
 
         @Override
@@ -267,9 +635,33 @@ public final class JsonStorage implements AsyncStorage {
             return entityChunkedIndex.querySamples(null, null, offset, limit);
         }
 
+        @Override
+        public Stream<ReferenceItemPair<Entity>> stream() {
+            return streamSnapshot(entityChunkedIndex, null, null);
+        }
+
+        @Override
+        public SequencedCollection<ReferenceItemPair<Entity>> search(String query) throws IOException {
+            String normalized = TransactionTable.normalizeQuery(query);
+            Map<Long, Long> candidates = normalized.isEmpty() ? null : textIndex.candidates(normalized);
+            if (candidates == null) {
+                return EntityTable.super.search(query);
+            }
+            ArrayList<ReferenceItemPair<Entity>> result = new ArrayList<>();
+            for (long id : candidates.keySet()) {
+                Reference<Entity> reference = new Reference<>(id);
+                Entity entity = get(reference);
+                if (entity != null && TransactionTable.normalizeQuery(entity.name()).contains(normalized)) {
+                    result.add(new ReferenceItemPair<>(reference, entity));
+                }
+            }
+            return result;
+        }
+
         @Override
         public void flush() throws IOException {
             this.entityChunkedIndex.flush();
+            this.textIndex.flush();
         }
 
         @Override
@@ -277,17 +669,39 @@ public final class JsonStorage implements AsyncStorage {
             ReferenceItemPair<Entity> queried = first(this.entityChunkedIndex.querySamples(new ReferenceItemPair<>(key, null), null, 0, 1));
             Entity item = null;
             if (queried != null && queried.reference().equals(key)) { // Lower bound searching may return a different key
-                opLogger.log("REMOVE_ENTITY", sensitivity, queried);
+                logOperation("REMOVE_ENTITY", sensitivity, queried);
                 this.entityChunkedIndex.removeSample(queried);
+                this.textIndex.remove(textOf(key, queried.item()));
                 item = queried.item();
             }
             if (value != null) {
-                opLogger.log("ADD_ENTITY", sensitivity, new ReferenceItemPair<>(key, value));
+                logOperation("ADD_ENTITY", sensitivity, new ReferenceItemPair<>(key, value));
                 this.entityChunkedIndex.addSample(new ReferenceItemPair<>(key, value));
+                this.textIndex.add(textOf(key, value));
             }
             return item;
         }
 
+        @Override
+        public void putAll(Map<Reference<Entity>, Entity> values, Sensitivity sensitivity) throws IOException {
+            ArrayList<ReferenceItemPair<Entity>> added = new ArrayList<>(values.size());
+            for (Map.Entry<Reference<Entity>, Entity> entry : values.entrySet()) {
+                if (entry.getValue() == null || get(entry.getKey()) != null) {
+                    put(entry.getKey(), sensitivity, entry.getValue());
+                    continue;
+                }
+                ReferenceItemPair<Entity> pair = new ReferenceItemPair<>(entry.getKey(), entry.getValue());
+                logOperation("ADD_ENTITY", sensitivity, pair);
+                added.add(pair);
+            }
+            this.entityChunkedIndex.addSamples(added);
+            ArrayList<TextIndex.Text> texts = new ArrayList<>(added.size());
+            for (ReferenceItemPair<Entity> pair : added) {
+                texts.add(textOf(pair.reference(), pair.item()));
+            }
+            textIndex.addAll(texts);
+        }
+
         @Override
         public Entity get(Reference<Entity> key) throws IOException {
             ReferenceItemPair<Entity> queried = first(this.entityChunkedIndex.querySamples(new ReferenceItemPair<>(key, null), null, 0, 1));
@@ -299,9 +713,17 @@ public final class JsonStorage implements AsyncStorage {
         }
     }
 
+    /**
+     * The counts are modified in place, so the tables keep their own copies of those shared through the directory,
+     * see {@link DocumentCache}.
+     */
     private static final class Counting extends HashMap<String, Long> implements Item {
         public Counting() {}
 
+        private Counting(Map<String, Long> counts) {
+            super(counts);
+        }
+
         public Counting(Collection<String> keys) {
             for (String key : keys) {
                 put(key, 0L);
@@ -332,6 +754,10 @@ public final class JsonStorage implements AsyncStorage {
             decrement(key, 1);
         }
 
+        public Counting copy() {
+            return new Counting(this);
+        }
+
         @Override
         public void serialize(Document.Writer writer) throws IOException {
             int i = 0;
@@ -360,39 +786,315 @@ public final class JsonStorage implements AsyncStorage {
 
     public final class JsonTransactionTable implements TransactionTable {
         private final ChunkedIndex<ReferenceItemPair<Transaction>> transactionIndex;
-        private final ChunkedIndex<ReferenceItemPair<Transaction>> transactionIndexByTime;
+        private final ChunkedIndex<TransactionSummary> transactionIndexByTime;
+        private final EnumMap<SecondaryIndex, ChunkedIndex<KeyedSummary>> secondaryIndices = new EnumMap<>(SecondaryIndex.class);
+        /**
+         * The n-grams of the titles and of the descriptions, apart since they are ranked differently, or null if not enabled.
+         */
+        private @Nullable TextIndex titleIndex;
+        private @Nullable TextIndex descriptionIndex;
         private final Counting categoryCount;
         private final Counting tagCount;
         private final Directory directory;
 
-        private JsonTransactionTable(Directory directory) throws IOException {
+        private JsonTransactionTable(Directory directory, Set<SecondaryIndex> enabledIndices) throws IOException {
             this.transactionIndex = new ChunkedIndex<>(
                     directory, Comparator.comparingLong(a -> a.reference().id()),
-                    reader -> ReferenceItemPair.deserialize(reader, Transaction::deserialize));
+                    reader -> ReferenceItemPair.deserialize(reader, Transaction::deserialize),
+                    keyByReference());
             this.transactionIndexByTime = new ChunkedIndex<>(
-                    directory.withNamespace("by-time"), Comparator.comparingLong((ReferenceItemPair<Transaction> a) -> a.item().time()).reversed(),
-                    reader -> ReferenceItemPair.deserialize(reader, Transaction::deserialize));
+                    directory.withNamespace("summary-by-time"), summaryOrder, TransactionSummary::deserialize, summaryKey, summaryAggregator);
+            if (transactionIndexByTime.count(null, null) == 0 && transactionIndex.count(null, null) > 0) {
+                rebuildIndexByTime(directory);
+            }
             Counting categoryCount = directory.get("category", Counting::deserialize);
             if (categoryCount == null) {
                 categoryCount = new Counting(defaultCategories);
                 directory.put("category", categoryCount);
             }
-            this.categoryCount = categoryCount;
+            this.categoryCount = categoryCount.copy();
             Counting tagCount = directory.get("tag", Counting::deserialize);
             if (tagCount == null) {
                 tagCount = new Counting(defaultTags);
                 directory.put("tag", tagCount);
             }
-            this.tagCount = tagCount;
+            this.tagCount = tagCount.copy();
             this.directory = directory;
+            openSecondaryIndices(enabledIndices);
+        }
+
+        /**
+         * The set of built indices is kept in a document, so that an index that is empty
+         * is not mistaken for one that has never been built.
+         */
+        private void openSecondaryIndices(Set<SecondaryIndex> enabledIndices) throws IOException {
+            Counting stored = directory.get("secondary-index", Counting::deserialize);
+            Counting built = stored == null ? new Counting() : stored.copy();
+            SequencedCollection<ReferenceItemPair<Transaction>> all = null;
+            for (SecondaryIndex index : SecondaryIndex.values()) {
+                Directory indexDirectory = directory.withNamespace(index.namespace);
+                boolean enabled = enabledIndices.contains(index);
+                boolean fresh = enabled && !built.containsKey(index.name());
+                if (!enabled && built.remove(index.name()) == null) {
+                    continue;
+                }
+                if (fresh && all == null) {
+                    all = transactionIndex.querySamples(null, null, 0, Integer.MAX_VALUE);
+                }
+                if (index == SecondaryIndex.TEXT) {
+                    TextIndex title = new TextIndex(indexDirectory.withNamespace("title"));
+                    TextIndex description = new TextIndex(indexDirectory.withNamespace("description"));
+                    if (!enabled || fresh) {
+                        // Would be stale when enabled again
+                        title.clear();
+                        description.clear();
+                    }
+                    titleIndex = enabled ? title : null;
+                    descriptionIndex = enabled ? description : null;
+                    if (fresh) {
+                        addTexts(all);
+                    }
+                } else {
+                    ChunkedIndex<KeyedSummary> chunkedIndex = new ChunkedIndex<>(
+                            indexDirectory, KeyedSummary.order, KeyedSummary::deserialize, KeyedSummary.codec);
+                    if (!enabled || fresh) {
+                        chunkedIndex.clear();
+                    }
+                    if (fresh) {
+                        ArrayList<KeyedSummary> entries = new ArrayList<>();
+                        for (ReferenceItemPair<Transaction> pair : all) {
+                            entries.addAll(KeyedSummary.of(index, pair.reference(), pair.item()));
+                        }
+                        chunkedIndex.addSamples(entries);
+                    }
+                    if (enabled) {
+                        secondaryIndices.put(index, chunkedIndex);
+                    }
+                }
+                if (fresh) {
+                    built.put(index.name(), 1L);
+                    logger.info("Built the index " + index + " of " + all.size() + " transactions");
+                }
+            }
+            directory.put("secondary-index", built);
+        }
+
+        /**
+         * The index ordered by time used to hold full transactions in the "by-time" namespace.
+         * Build the summaries from the primary index, then delete the old copy.
+         */
+        private void rebuildIndexByTime(Directory directory) throws IOException {
+            ArrayList<TransactionSummary> summaries = new ArrayList<>();
+            for (ReferenceItemPair<Transaction> pair : transactionIndex.querySamples(null, null, 0, Integer.MAX_VALUE)) {
+                summaries.add(TransactionSummary.of(pair.reference(), pair.item()));
+            }
+            transactionIndexByTime.addSamples(summaries);
+            ChunkedIndex<ReferenceItemPair<Transaction>> legacy = new ChunkedIndex<>(
+                    directory.withNamespace("by-time"), Comparator.comparingLong((ReferenceItemPair<Transaction> a) -> a.item().time()).reversed(),
+                    reader -> ReferenceItemPair.deserialize(reader, Transaction::deserialize));
+            legacy.clear();
+            logger.info("Rebuilt the index by time of " + summaries.size() + " transactions");
         }
 
         @Override
         public SequencedCollection<ReferenceItemPair<Transaction>> list(long start, long end, int offset, int limit) throws IOException {
-            return transactionIndexByTime.querySamples(
-                    new ReferenceItemPair<>(null, new Transaction("", "", end, 0, "", null, ImmutableList.of())),
-                    new ReferenceItemPair<>(null, new Transaction("", "", start, 0, "", null, ImmutableList.of())),
-                    offset, limit);
+            return resolve(listSummaries(start, end, offset, limit));
+        }
+
+        private SequencedCollection<ReferenceItemPair<Transaction>> resolve(SequencedCollection<TransactionSummary> summaries) throws IOException {
+            ArrayList<ReferenceItemPair<Transaction>> result = new ArrayList<>(summaries.size());
+            for (TransactionSummary summary : summaries) {
+                result.add(resolve(summary));
+            }
+            return result;
+        }
+
+        private ReferenceItemPair<Transaction> resolve(TransactionSummary summary) throws IOException {
+            Transaction transaction = get(summary.reference());
+            if (transaction == null) {
+                throw new IOException("Transaction " + summary.reference() + " is indexed by time but not found");
+            }
+            return new ReferenceItemPair<>(summary.reference(), transaction);
+        }
+
+        @Override
+        public Stream<ReferenceItemPair<Transaction>> stream(long start, long end) {
+            ChunkedIndex<ReferenceItemPair<Transaction>>.Snapshot transactions = transactionIndex.snapshot();
+            return streamSummaries(start, end).map(summary -> {
+                try {
+                    ReferenceItemPair<Transaction> queried = first(transactions.querySamples(new ReferenceItemPair<>(summary.reference(), null), null, 0, 1));
+                    if (queried == null || !queried.reference().equals(summary.reference())) {
+                        throw new IOException("Transaction " + summary.reference() + " is indexed by time but not found");
+                    }
+                    return queried;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).onClose(transactions::close);
+        }
+
+        @Override
+        public SequencedCollection<TransactionSummary> listSummaries(long start, long end, int offset, int limit) throws IOException {
+            return transactionIndexByTime.querySamples(transactionAt(end), transactionAt(start), offset, limit);
+        }
+
+        @Override
+        public Stream<TransactionSummary> streamSummaries(long start, long end) {
+            return streamSnapshot(transactionIndexByTime, transactionAt(end), transactionAt(start));
+        }
+
+        @Override
+        public int count(long start, long end) throws IOException {
+            return transactionIndexByTime.count(transactionAt(end), transactionAt(start));
+        }
+
+        @Override
+        public List<TransactionAggregate> aggregate(long start, long end, long groupBy) throws IOException {
+            int buckets = TransactionTable.bucketCount(start, end, groupBy);
+            ArrayList<TransactionAggregate> result = new ArrayList<>(buckets);
+            for (int i = 0; i < buckets; i++) {
+                long bucketStart = start + i * groupBy;
+                long bucketEnd = i == buckets - 1 ? end : bucketStart + groupBy;
+                result.add(transactionIndexByTime.aggregate(transactionAt(bucketEnd), transactionAt(bucketStart), summaryAggregator));
+            }
+            return result;
+        }
+
+        private SequencedCollection<TransactionSummary> listByKey(ChunkedIndex<KeyedSummary> index, String key, long start, long end, int offset, int limit) throws IOException {
+            ArrayList<TransactionSummary> result = new ArrayList<>();
+            for (KeyedSummary entry : index.querySamples(new KeyedSummary(key, transactionAt(end)), new KeyedSummary(key, transactionAt(start)), offset, limit)) {
+                result.add(entry.summary());
+            }
+            return result;
+        }
+
+        @Override
+        public SequencedCollection<TransactionSummary> listByCategory(String category, long start, long end, int offset, int limit) throws IOException {
+            ChunkedIndex<KeyedSummary> index = secondaryIndices.get(SecondaryIndex.CATEGORY);
+            if (index == null) {
+                return TransactionTable.super.listByCategory(category, start, end, offset, limit);
+            }
+            return listByKey(index, category, start, end, offset, limit);
+        }
+
+        @Override
+        public Stream<TransactionSummary> streamByCategory(String category, long start, long end) throws IOException {
+            ChunkedIndex<KeyedSummary> index = secondaryIndices.get(SecondaryIndex.CATEGORY);
+            if (index == null) {
+                return TransactionTable.super.streamByCategory(category, start, end);
+            }
+            return streamSnapshot(index, new KeyedSummary(category, transactionAt(end)), new KeyedSummary(category, transactionAt(start)))
+                    .map(KeyedSummary::summary);
+        }
+
+        @Override
+        public SequencedCollection<TransactionSummary> listByEntity(Reference<Entity> entity, long start, long end, int offset, int limit) throws IOException {
+            ChunkedIndex<KeyedSummary> index = secondaryIndices.get(SecondaryIndex.ENTITY);
+            if (index == null) {
+                return TransactionTable.super.listByEntity(entity, start, end, offset, limit);
+            }
+            return listByKey(index, Long.toString(entity.id()), start, end, offset, limit);
+        }
+
+        @Override
+        public SequencedCollection<TransactionSummary> listByTag(String tag, long start, long end, int offset, int limit) throws IOException {
+            ChunkedIndex<KeyedSummary> index = secondaryIndices.get(SecondaryIndex.TAG);
+            if (index == null) {
+                return TransactionTable.super.listByTag(tag, start, end, offset, limit);
+            }
+            return listByKey(index, tag, start, end, offset, limit);
+        }
+
+        private void addTexts(Collection<ReferenceItemPair<Transaction>> transactions) throws IOException {
+            if (titleIndex == null || descriptionIndex == null) {
+                return;
+            }
+            ArrayList<TextIndex.Text> titles = new ArrayList<>(transactions.size());
+            ArrayList<TextIndex.Text> descriptions = new ArrayList<>(transactions.size());
+            for (ReferenceItemPair<Transaction> pair : transactions) {
+                titles.add(new TextIndex.Text(pair.reference().id(), pair.item().time(), pair.item().title()));
+                descriptions.add(new TextIndex.Text(pair.reference().id(), pair.item().time(), pair.item().description()));
+            }
+            titleIndex.addAll(titles);
+            descriptionIndex.addAll(descriptions);
+        }
+
+        private void removeText(Reference<Transaction> reference, Transaction transaction) throws IOException {
+            if (titleIndex == null || descriptionIndex == null) {
+                return;
+            }
+            titleIndex.remove(new TextIndex.Text(reference.id(), transaction.time(), transaction.title()));
+            descriptionIndex.remove(new TextIndex.Text(reference.id(), transaction.time(), transaction.description()));
+        }
+
+        /**
+         * A transaction that may match a search, with the best score it may have, see {@link TransactionTable#searchScore}.
+         * @param exact whether the score is known to be the actual score rather than a bound
+         */
+        private record SearchCandidate(int score, long time, long id, boolean exact) {
+            static final Comparator<SearchCandidate> ranking = Comparator.comparingInt(SearchCandidate::score).reversed()
+                    .thenComparing(SearchCandidate::time, Comparator.reverseOrder())
+                    .thenComparingLong(SearchCandidate::id);
+        }
+
+        /**
+         * Only the candidates from the text indices and the transactions of the given entities are ranked.
+         * A candidate first takes the best score of the index it comes from, and is only loaded to be checked against the query
+         * when it comes first, so no more than the requested page and the candidates ranked before it are loaded.
+         * The candidates left unchecked are counted as matches, so the total may be a little over the actual number.
+         */
+        @Override
+        public ImmutablePair<Integer, SequencedCollection<ReferenceItemPair<Transaction>>> search(String query, Set<Reference<Entity>> entities, int offset, int limit) throws IOException {
+            String normalized = TransactionTable.normalizeQuery(query);
+            if (normalized.isEmpty()) {
+                // Everything matches with the same score, so the order by time is already the ranking
+                return ImmutablePair.of(count(Long.MIN_VALUE, Long.MAX_VALUE), list(Long.MIN_VALUE, Long.MAX_VALUE, offset, limit));
+            }
+            Map<Long, Long> titles = titleIndex == null ? null : titleIndex.candidates(normalized);
+            Map<Long, Long> descriptions = descriptionIndex == null ? null : descriptionIndex.candidates(normalized);
+            if (titles == null || descriptions == null) {
+                return TransactionTable.super.search(query, entities, offset, limit);
+            }
+            HashMap<Long, SearchCandidate> candidates = new HashMap<>();
+            for (Map.Entry<Long, Long> entry : descriptions.entrySet()) {
+                candidates.put(entry.getKey(), new SearchCandidate(1, entry.getValue(), entry.getKey(), false));
+            }
+            for (Reference<Entity> entity : entities) {
+                for (TransactionSummary summary : listByEntity(entity, Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE)) {
+                    // Unless the title may match, the party decides the score
+                    long id = summary.reference().id();
+                    candidates.put(id, new SearchCandidate(2, summary.time(), id, !titles.containsKey(id)));
+                }
+            }
+            for (Map.Entry<Long, Long> entry : titles.entrySet()) {
+                candidates.put(entry.getKey(), new SearchCandidate(3, entry.getValue(), entry.getKey(), false));
+            }
+            PriorityQueue<SearchCandidate> queue = new PriorityQueue<>(SearchCandidate.ranking);
+            queue.addAll(candidates.values());
+            HashMap<Long, Transaction> loaded = new HashMap<>();
+            ArrayList<ReferenceItemPair<Transaction>> page = new ArrayList<>();
+            int ranked = 0;
+            while (page.size() < limit && !queue.isEmpty()) {
+                SearchCandidate candidate = queue.poll();
+                Reference<Transaction> reference = new Reference<>(candidate.id());
+                Transaction transaction = loaded.containsKey(candidate.id()) ? loaded.get(candidate.id()) : get(reference);
+                if (transaction == null) {
+                    continue;
+                }
+                if (!candidate.exact()) {
+                    // The actual score is never above the bound, so the candidate is put back in its place
+                    int score = TransactionTable.searchScore(normalized, transaction, transaction.entity() != null && entities.contains(transaction.entity()));
+                    if (score > 0) {
+                        loaded.put(candidate.id(), transaction);
+                        queue.add(new SearchCandidate(score, transaction.time(), candidate.id(), true));
+                    }
+                    continue;
+                }
+                if (ranked++ >= offset) {
+                    page.add(new ReferenceItemPair<>(reference, transaction));
+                }
+            }
+            return ImmutablePair.of(ranked + queue.size(), page);
         }
 
         @Override
@@ -409,11 +1111,11 @@ public final class JsonStorage implements AsyncStorage {
                 throw new SyntaxException("Category already exists");
             } else {
                 categoryCount.put(category, 0L);
-                opLogger.log("ADD_CATEGORY", sensitivity, writer -> {
+                logOperation("ADD_CATEGORY", sensitivity, writer -> {
                     writer.writeString("category", category);
                     writer.writeEnd();
                 });
-                directory.put("category", categoryCount);
+                directory.put("category", categoryCount.copy());
             }
         }
 
@@ -425,10 +1127,11 @@ public final class JsonStorage implements AsyncStorage {
                 throw new SyntaxException("Category is currently in use");
             } else {
                 categoryCount.remove(category);
-                opLogger.log("REMOVE_CATEGORY", sensitivity, writer -> {
+                logOperation("REMOVE_CATEGORY", sensitivity, writer -> {
                     writer.writeString("category", category);
                     writer.writeEnd();
                 });
+                directory.put("category", categoryCount.copy());
             }
         }
 
@@ -446,11 +1149,11 @@ public final class JsonStorage implements AsyncStorage {
                 throw new SyntaxException("Tag already exists");
             } else {
                 tagCount.put(tag, 0L);
-                opLogger.log("ADD_TAG", sensitivity, writer -> {
+                logOperation("ADD_TAG", sensitivity, writer -> {
                     writer.writeString("tag", tag);
                     writer.writeEnd();
                 });
-                directory.put("tag", tagCount);
+                directory.put("tag", tagCount.copy());
             }
         }
 
@@ -462,10 +1165,11 @@ public final class JsonStorage implements AsyncStorage {
                 throw new SyntaxException("Tag is currently in use");
             } else {
                 tagCount.remove(tag);
-                opLogger.log("REMOVE_TAG", sensitivity, writer -> {
+                logOperation("REMOVE_TAG", sensitivity, writer -> {
                     writer.writeString("tag", tag);
                     writer.writeEnd();
                 });
+                directory.put("tag", tagCount.copy());
             }
         }
 
@@ -483,12 +1187,12 @@ public final class JsonStorage implements AsyncStorage {
         public void setGoal(@Nullable Goal goal, Sensitivity sensitivity) throws IOException {
             Goal oldGoal = getGoal();
             if (oldGoal != null) {
-                opLogger.log("RESET_GOAL", sensitivity, oldGoal);
+                logOperation("RESET_GOAL", sensitivity, oldGoal);
             }
             if (goal == null) {
                 directory.put("goal", new Goal.Optional());
             } else {
-                opLogger.log("SET_GOAL", sensitivity, goal);
+                logOperation("SET_GOAL", sensitivity, goal);
                 directory.put("goal", new Goal.Optional(goal));
             }
         }
@@ -497,8 +1201,17 @@ public final class JsonStorage implements AsyncStorage {
         public void flush() throws IOException {
             transactionIndexByTime.flush();
             transactionIndex.flush();
-            directory.put("category", categoryCount);
-            directory.put("tag", tagCount);
+            for (ChunkedIndex<KeyedSummary> index : secondaryIndices.values()) {
+                index.flush();
+            }
+            if (titleIndex != null) {
+                titleIndex.flush();
+            }
+            if (descriptionIndex != null) {
+                descriptionIndex.flush();
+            }
+            directory.put("category", categoryCount.copy());
+            directory.put("tag", tagCount.copy());
         }
 
         @Override
@@ -506,30 +1219,84 @@ public final class JsonStorage implements AsyncStorage {
             ReferenceItemPair<Transaction> queried = first(this.transactionIndex.querySamples(new ReferenceItemPair<>(key, null), null, 0, 1));
             Transaction item = null;
             if (queried != null && queried.reference().equals(key)) { // Lower bound searching may return a different key
-                opLogger.log("REMOVE_TRANSACTION", sensitivity, queried);
+                logOperation("REMOVE_TRANSACTION", sensitivity, queried);
                 categoryCount.decrement(queried.item().category());
                 for (String tag : queried.item().tags()) {
                     tagCount.decrement(tag);
                 }
                 this.transactionIndex.removeSample(queried);
-                this.transactionIndexByTime.removeSample(queried);
+                this.transactionIndexByTime.removeSample(TransactionSummary.of(key, queried.item()));
+                for (Map.Entry<SecondaryIndex, ChunkedIndex<KeyedSummary>> index : secondaryIndices.entrySet()) {
+                    for (KeyedSummary entry : KeyedSummary.of(index.getKey(), key, queried.item())) {
+                        index.getValue().removeSample(entry);
+                    }
+                }
+                removeText(key, queried.item());
                 item = queried.item();
             }
             if (value != null) {
-                opLogger.log("ADD_TRANSACTION", sensitivity, new ReferenceItemPair<>(key, value));
+                logOperation("ADD_TRANSACTION", sensitivity, new ReferenceItemPair<>(key, value));
                 categoryCount.increment(value.category());
                 for (String tag : value.tags()) {
                     tagCount.increment(tag);
                 }
                 this.transactionIndex.addSample(new ReferenceItemPair<>(key, value));
-                this.transactionIndexByTime.addSample(new ReferenceItemPair<>(key, value));
+                this.transactionIndexByTime.addSample(TransactionSummary.of(key, value));
+                for (Map.Entry<SecondaryIndex, ChunkedIndex<KeyedSummary>> index : secondaryIndices.entrySet()) {
+                    for (KeyedSummary entry : KeyedSummary.of(index.getKey(), key, value)) {
+                        index.getValue().addSample(entry);
+                    }
+                }
+                addTexts(List.of(new ReferenceItemPair<>(key, value)));
             }
-            // Statistics is updated in every put() call
-            directory.put("category", categoryCount);
-            directory.put("tag", tagCount);
+            putStatistics(item, value);
             return item;
         }
 
+        /**
+         * Put the statistics changed by replacing a transaction. They are serialized into the write-ahead log
+         * on every commit they are put, so they are not put when an edit leaves the category and tags unchanged.
+         */
+        private void putStatistics(@Nullable Transaction removed, @Nullable Transaction added) throws IOException {
+            if (!Objects.equals(removed == null ? null : removed.category(), added == null ? null : added.category())) {
+                directory.put("category", categoryCount.copy());
+            }
+            if (!ImmutableMultiset.copyOf(removed == null ? List.of() : removed.tags())
+                    .equals(ImmutableMultiset.copyOf(added == null ? List.of() : added.tags()))) {
+                directory.put("tag", tagCount.copy());
+            }
+        }
+
+        @Override
+        public void putAll(Map<Reference<Transaction>, Transaction> values, Sensitivity sensitivity) throws IOException {
+            ArrayList<ReferenceItemPair<Transaction>> added = new ArrayList<>(values.size());
+            for (Map.Entry<Reference<Transaction>, Transaction> entry : values.entrySet()) {
+                if (entry.getValue() == null || get(entry.getKey()) != null) {
+                    put(entry.getKey(), sensitivity, entry.getValue());
+                    continue;
+                }
+                ReferenceItemPair<Transaction> pair = new ReferenceItemPair<>(entry.getKey(), entry.getValue());
+                logOperation("ADD_TRANSACTION", sensitivity, pair);
+                categoryCount.increment(pair.item().category());
+                for (String tag : pair.item().tags()) {
+                    tagCount.increment(tag);
+                }
+                added.add(pair);
+            }
+            this.transactionIndex.addSamples(added);
+            this.transactionIndexByTime.addSamples(added.stream().map(pair -> TransactionSummary.of(pair.reference(), pair.item())).toList());
+            for (Map.Entry<SecondaryIndex, ChunkedIndex<KeyedSummary>> index : secondaryIndices.entrySet()) {
+                ArrayList<KeyedSummary> entries = new ArrayList<>();
+                for (ReferenceItemPair<Transaction> pair : added) {
+                    entries.addAll(KeyedSummary.of(index.getKey(), pair.reference(), pair.item()));
+                }
+                index.getValue().addSamples(entries);
+            }
+            addTexts(added);
+            directory.put("category", categoryCount.copy());
+            directory.put("tag", tagCount.copy());
+        }
+
         @Override
         public Transaction get(Reference<Transaction> key) throws IOException {
             ReferenceItemPair<Transaction> queried = first(this.transactionIndex.querySamples(new ReferenceItemPair<>(key, null), null, 0, 1));
@@ -564,7 +1331,7 @@ public final class JsonStorage implements AsyncStorage {
 
         @Override
         public void log(String event, Sensitivity sensitivity, Item... args) {
-            opLogger.log(event, sensitivity, args);
+            logOperation(event, sensitivity, args);
         }
     }
 }
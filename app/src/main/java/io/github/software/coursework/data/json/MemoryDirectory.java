@@ -0,0 +1,58 @@
+package io.github.software.coursework.data.json;
+
+import io.github.software.coursework.data.Deserialize;
+import io.github.software.coursework.data.Directory;
+import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory keeping its documents in memory as they are put, without serializing or copying them,
+ * so {@link #get} returns the same instance as was put. The documents are shared with the subdirectories.
+ * Nothing is written anywhere, and flushing does nothing.
+ */
+public final class MemoryDirectory implements Directory {
+    private final ConcurrentHashMap<String, Item> documents;
+    private final String namespace;
+
+    /**
+     * @param documents the documents, keyed by their names including the namespaces
+     */
+    MemoryDirectory(ConcurrentHashMap<String, Item> documents, String namespace) {
+        this.documents = documents;
+        this.namespace = namespace;
+    }
+
+    public MemoryDirectory() {
+        this(new ConcurrentHashMap<>(), "");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Item> @Nullable T get(String name, Deserialize<T> constructor) {
+        return (T) documents.get(namespace + "/" + name);
+    }
+
+    @Override
+    public <T extends Item> void put(String name, @Nullable T item) {
+        if (item == null) {
+            documents.remove(namespace + "/" + name);
+        } else {
+            documents.put(namespace + "/" + name, item);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public Directory withNamespace(String namespace) {
+        return new MemoryDirectory(documents, this.namespace + "-" + namespace);
+    }
+
+    @Override
+    public void close() {
+    }
+}
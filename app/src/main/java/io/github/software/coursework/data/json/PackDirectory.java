@@ -0,0 +1,185 @@
+package io.github.software.coursework.data.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.google.common.annotations.VisibleForTesting;
+import io.github.software.coursework.data.Deserialize;
+import io.github.software.coursework.data.Directory;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory whose documents are records in a few large append-only pack files shared with its subdirectories,
+ * instead of a file each as in {@link EncryptedDirectory}, see {@link PackStore}.
+ *
+ * <p>Modifications are kept in memory until the next {@link #commit()} of the directory or any directory sharing
+ * its pack, which appends them to the pack and waits for them to reach the disk. Opening the directory only reads
+ * the offset table of the pack and the records appended after it was written, and listing or backing up the
+ * directory only touches a few files no matter how many documents there are.</p>
+ */
+@VisibleForTesting
+public final class PackDirectory implements Directory {
+    private static final Object none = new Object();
+    private final PackStore store;
+    private final boolean ownsStore;
+    private final String namespace;
+    private final EncryptedDirectory.Format format;
+    private final ConcurrentHashMap<String, Object> buffer = new ConcurrentHashMap<>();
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private PackDirectory(PackStore store, boolean ownsStore, String namespace, EncryptedDirectory.Format format) {
+        this.store = store;
+        this.ownsStore = ownsStore;
+        this.namespace = namespace;
+        this.format = format;
+    }
+
+    /**
+     * Open the pack of a namespace, recovering the modifications committed by a previous session.
+     * @param directory the directory to store the pack files
+     * @param key the key to encrypt the pack files
+     * @param namespace the namespace of the directory
+     * @param format the format of the documents written by the directory
+     * @throws IOException if the pack cannot be opened
+     */
+    public PackDirectory(File directory, byte[] key, String namespace, EncryptedDirectory.Format format) throws IOException {
+        this(new PackStore(directory, key, namespace), true, namespace, format);
+    }
+
+    public PackDirectory(File directory, byte[] key, String namespace) throws IOException {
+        this(directory, key, namespace, EncryptedDirectory.Format.JSON);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Item> @Nullable T get(String name, Deserialize<T> constructor) throws IOException {
+        Object buffered = buffer.get(name);
+        if (buffered != null) {
+            return buffered == none ? null : (T) buffered;
+        }
+        DocumentCache.Key cacheKey = cacheKey(name);
+        Object cached = DocumentCache.get(cacheKey);
+        if (cached == none) {
+            return null;
+        }
+        if (cached != null) {
+            return (T) cached;
+        }
+        long stamp = DocumentCache.stamp(cacheKey);
+        byte[] bytes = store.read(namespace + "/" + name);
+        if (bytes == null) {
+            DocumentCache.putIfUnchanged(cacheKey, none, 0, stamp);
+            return null;
+        }
+        T output;
+        try (Document.Reader reader = EncryptedDirectory.createReader(jsonFactory, bytes, false)) {
+            String actualName = reader.readString("_filename");
+            if (!actualName.equals(namespace + "/" + name)) {
+                throw new IOException("Found " + actualName + " in location where " + namespace + "/" + name + " was expected");
+            }
+            output = constructor.deserialize(reader);
+        }
+        DocumentCache.putIfUnchanged(cacheKey, output, bytes.length, stamp);
+        return output;
+    }
+
+    private DocumentCache.Key cacheKey(String name) {
+        return new DocumentCache.Key(store.cacheDirectory(), namespace + "/" + name);
+    }
+
+    @Override
+    public <T extends Item> void put(String name, @Nullable T item) {
+        buffer.put(name, item == null ? none : item);
+        store.put(this, namespace + "/" + name, name, item);
+    }
+
+    /**
+     * Append the modifications of this directory and every directory sharing its pack, and sync the pack.
+     */
+    @Override
+    public void commit() throws IOException {
+        store.commit();
+    }
+
+    /**
+     * Commit, and write the offset table of the pack if enough has been appended since it was last written.
+     */
+    @Override
+    public void flush() throws IOException {
+        store.flush();
+    }
+
+    @Override
+    public Directory withNamespace(String namespace) {
+        return withNamespace(namespace, format);
+    }
+
+    /**
+     * Open a subdirectory with the given name, writing its documents in the given format.
+     * @param namespace the name of the subdirectory
+     * @param format the format of the documents written by the subdirectory
+     * @return the subdirectory
+     */
+    public Directory withNamespace(String namespace, EncryptedDirectory.Format format) {
+        return new PackDirectory(store, false, this.namespace + "-" + namespace, format);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsStore) {
+            store.close();
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Set the size at which a new pack file is started. Shared with the subdirectories.
+     */
+    @VisibleForTesting
+    public void setSegmentSize(long segmentSize) {
+        store.setSegmentSize(segmentSize);
+    }
+
+    /**
+     * @return the number of pack files
+     */
+    @VisibleForTesting
+    public int segmentCount() {
+        return store.segmentCount();
+    }
+
+    /**
+     * Wait for the background compaction started so far.
+     */
+    @VisibleForTesting
+    public void awaitCompaction() throws IOException {
+        store.awaitCompaction();
+    }
+
+    /**
+     * Serialize a document in the format of this directory, the same as it is appended to the pack.
+     */
+    byte[] serialize(String name, Item item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Document.Writer writer = EncryptedDirectory.createWriter(jsonFactory, format, bytes)) {
+            writer.writeString("_filename", namespace + "/" + name);
+            item.serialize(writer);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Called by the pack once a document is appended, so it can leave the buffer.
+     */
+    void committed(String name, @Nullable Item value, int size) {
+        Object buffered = value == null ? none : value;
+        DocumentCache.put(cacheKey(name), buffered, size);
+        buffer.remove(name, buffered);
+    }
+}
@@ -0,0 +1,773 @@
+package io.github.software.coursework.data.json;
+
+import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The append-only storage shared by a {@link PackDirectory} and all of its subdirectories.
+ *
+ * <p>Every document is a record appended to one of a few large segment files. A record is sealed with AES/GCM on
+ * its own and holds the full name of the document, so a segment can be read back without anything else, and a record
+ * can be moved to another segment without being decrypted. A removed document is appended as a tombstone.
+ * Once a segment reaches the segment size, a new one is started and the old one is never appended to again.</p>
+ *
+ * <p>The latest record of every document is located through the offset table, which is encrypted and written next
+ * to the segments from time to time and on close, along with how much of each segment it covers. The records
+ * appended after the table was written are found by scanning the tail of the segments when the store is opened,
+ * which stops at the first record that is truncated or fails to authenticate, where the previous session crashed.
+ * Without a table, all segments are scanned.</p>
+ *
+ * <p>Once less than half of a full segment is live, its live records are copied verbatim to the active segment
+ * in the background, and the segment is deleted after the table pointing at the copies is written.</p>
+ */
+@ParametersAreNonnullByDefault
+final class PackStore implements Closeable {
+    private static final Logger logger = Logger.getLogger("PackStore");
+    // Cannot be the start of any other file in the directory
+    static final byte[] MAGIC = {(byte) 0x89, 'C', 'W', 'P', 'K', '\r', '\n', 0x1a};
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final byte OP_HEADER = 0;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int TABLE_VERSION = 1;
+    private static final String EXTENSION = ".pack";
+    private static final String TABLE_EXTENSION = ".ptab";
+    static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    // The bytes appended since the table was written, beyond which a flush writes it, bounding the scan on open
+    private static final long TABLE_INTERVAL = 1L << 20;
+
+    private static final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Pack-Compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Where the latest record of a document is.
+     * @param length the length of the record, including its length prefix
+     * @param removed whether the record is a tombstone
+     */
+    private record Location(int segment, long offset, int length, boolean removed) {
+    }
+
+    private record Record(byte op, String name, byte[] document) {
+    }
+
+    private record Pending(PackDirectory directory, String name, @Nullable Item value) {
+    }
+
+    /**
+     * The offset table as read from its file.
+     * @param active the segment that was appended to when the table was written
+     * @param covered the length of each segment covered by the table
+     */
+    private record Table(int active, Map<Integer, Long> covered, Map<String, Location> locations) {
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        // The bytes of the records in the table
+        private long live = 0;
+
+        private Segment(int number, File file, FileChannel channel, long size) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+    private final byte[] key;
+    private final String namespace;
+    private final String baseName;
+    private final SecureRandom random = new SecureRandom();
+    // Guards the table and the segments. Reads of records only need the read lock.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, Location> table = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long unindexedBytes = 0;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private @Nullable Future<?> compaction;
+    private boolean closed = false;
+    // Guarded by this
+    private LinkedHashMap<String, Pending> dirty = new LinkedHashMap<>();
+
+    /**
+     * Open the pack of a namespace, recovering the records appended after its table was written.
+     * @param directory the directory holding the pack
+     * @param key the key of the directory
+     * @param namespace the namespace of the root directory owning the pack
+     * @throws IOException if an I/O error occurs
+     */
+    PackStore(File directory, byte[] key, String namespace) throws IOException {
+        this.directory = directory;
+        this.key = key.clone();
+        this.namespace = namespace;
+        this.baseName = baseName(namespace, key);
+        Table saved = readTable();
+        List<File> files = listSegments(directory, baseName);
+        if (saved == null && !files.isEmpty()) {
+            logger.info("Cannot read the offset table of pack " + baseName + ", scanning all segments");
+        }
+        if (saved != null) {
+            table.putAll(saved.locations);
+        }
+        try {
+            for (File file : files) {
+                int number = segmentNumber(file);
+                Long covered = saved == null ? null : saved.covered.get(number);
+                if (saved != null && number < saved.active && covered == null) {
+                    // Compacted before the crash, its live records are in later segments already
+                    Files.deleteIfExists(file.toPath());
+                    continue;
+                }
+                Segment segment = openSegment(file, number);
+                segments.put(number, segment);
+                if (covered != null && covered > segment.channel.size()) {
+                    throw new IOException("Truncated pack segment: " + file);
+                }
+                if (saved != null && number < saved.active) {
+                    segment.size = covered;
+                } else {
+                    long start = covered == null ? MAGIC.length : covered;
+                    scan(segment, start);
+                    unindexedBytes += segment.size - start;
+                }
+            }
+            if (saved != null) {
+                for (Integer number : saved.covered.keySet()) {
+                    if (!segments.containsKey(number)) {
+                        throw new IOException("Missing pack segment: " + segmentFile(number));
+                    }
+                }
+            }
+            for (Location location : table.values()) {
+                segments.get(location.segment).live += location.length;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+            throw e;
+        }
+        active = segments.isEmpty() ? createSegment(0) : segments.lastEntry().getValue();
+    }
+
+    private static String baseName(String namespace, byte[] key) {
+        String obfuscated = EncryptedDirectory.obfuscateFileName(namespace + "/.pack", key);
+        return obfuscated.substring(0, obfuscated.lastIndexOf('.'));
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, baseName + "-" + number + EXTENSION);
+    }
+
+    private File tableFile() {
+        return new File(directory, baseName + TABLE_EXTENSION);
+    }
+
+    private static int segmentNumber(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1, name.length() - EXTENSION.length()));
+    }
+
+    private static List<File> listSegments(File directory, String baseName) {
+        File[] files = directory.listFiles(f -> f.getName().startsWith(baseName + "-") && f.getName().endsWith(EXTENSION));
+        if (files == null) {
+            return List.of();
+        }
+        return Arrays.stream(files).sorted(Comparator.comparingInt(PackStore::segmentNumber)).toList();
+    }
+
+    /**
+     * A file distinct to the pack, under which its documents are cached, see {@link DocumentCache.Key}.
+     */
+    File cacheDirectory() {
+        return new File(directory, baseName);
+    }
+
+    private static Cipher cipher(int mode, byte[] key, byte[] nonce) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH, nonce));
+            return cipher;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the nonce followed by the sealed bytes
+     */
+    private byte[] seal(byte[] plain) throws IOException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        try {
+            byte[] sealed = cipher(Cipher.ENCRYPT_MODE, key, nonce).doFinal(plain);
+            return ByteBuffer.allocate(NONCE_LENGTH + sealed.length).put(nonce).put(sealed).array();
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the unsealed bytes, or null if they are corrupted or sealed with another key
+     */
+    private static byte @Nullable [] unseal(byte[] key, byte[] bytes, int offset, int length) throws IOException {
+        if (length <= NONCE_LENGTH) {
+            return null;
+        }
+        byte[] nonce = Arrays.copyOfRange(bytes, offset, offset + NONCE_LENGTH);
+        try {
+            return cipher(Cipher.DECRYPT_MODE, key, nonce).doFinal(bytes, offset + NONCE_LENGTH, length - NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            return null;
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the record with its length prefix, as it is appended to a segment
+     */
+    private byte[] record(byte op, String name, byte @Nullable [] document) throws IOException {
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        int documentLength = document == null ? 0 : document.length;
+        ByteBuffer plain = ByteBuffer.allocate(1 + Integer.BYTES + encodedName.length + documentLength);
+        plain.put(op).putInt(encodedName.length).put(encodedName);
+        if (document != null) {
+            plain.put(document);
+        }
+        byte[] sealed = seal(plain.array());
+        return ByteBuffer.allocate(Integer.BYTES + sealed.length).putInt(sealed.length).put(sealed).array();
+    }
+
+    /**
+     * @return the record, or null if it is corrupted or sealed with another key
+     */
+    private static @Nullable Record parseRecord(byte[] key, byte[] record) throws IOException {
+        byte[] unsealed = unseal(key, record, Integer.BYTES, record.length - Integer.BYTES);
+        if (unsealed == null) {
+            return null;
+        }
+        ByteBuffer plain = ByteBuffer.wrap(unsealed);
+        try {
+            byte op = plain.get();
+            byte[] name = new byte[plain.getInt()];
+            plain.get(name);
+            byte[] document = new byte[plain.remaining()];
+            plain.get(document);
+            return new Record(op, new String(name, StandardCharsets.UTF_8), document);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Malformed pack record", e);
+        }
+    }
+
+    private Segment openSegment(File file, int number) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            channel.read(magic, 0);
+            if (magic.hasRemaining() || !Arrays.equals(magic.array(), MAGIC)) {
+                throw new IOException("Invalid pack segment: " + file);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new Segment(number, file, channel, channel.size());
+    }
+
+    /**
+     * Start a segment with the header naming the namespace of the pack, which is how the pack is told apart when
+     * the key is changed.
+     */
+    private Segment createSegment(int number) throws IOException {
+        File file = segmentFile(number);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Segment segment = new Segment(number, file, channel, 0);
+        write(segment, MAGIC);
+        write(segment, record(OP_HEADER, namespace, null));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private static void write(Segment segment, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            segment.size += segment.channel.write(buffer, segment.size);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private byte[] readRecord(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        if (!readFully(segments.get(location.segment).channel, buffer, location.offset)) {
+            throw new EOFException("Unexpected end of pack segment " + location.segment);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Read the records of a segment from the offset into the table, and cut off whatever follows the last
+     * complete and authentic record.
+     */
+    private void scan(Segment segment, long start) throws IOException {
+        long position = start;
+        long length = segment.channel.size();
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES);
+        while (position < length) {
+            prefix.clear();
+            int size;
+            if (!readFully(segment.channel, prefix, position) || (size = prefix.getInt(0)) <= NONCE_LENGTH || size > length - position - Integer.BYTES) {
+                logger.log(Level.WARNING, "Truncated record in pack segment " + segment.file + ", ignoring the rest");
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + size);
+            readFully(segment.channel, record, position);
+            Record parsed = parseRecord(key, record.array());
+            if (parsed == null) {
+                logger.log(Level.WARNING, "Corrupted record in pack segment " + segment.file + ", ignoring the rest");
+                break;
+            }
+            switch (parsed.op) {
+                case OP_HEADER -> {
+                }
+                case OP_PUT -> table.put(parsed.name, new Location(segment.number, position, record.capacity(), false));
+                case OP_DELETE -> table.put(parsed.name, new Location(segment.number, position, record.capacity(), true));
+                default -> throw new IOException("Unknown operation " + parsed.op + " in pack segment " + segment.file);
+            }
+            position += record.capacity();
+        }
+        if (position < length) {
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private @Nullable Table readTable() throws IOException {
+        File file = tableFile();
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] sealed = Files.readAllBytes(file.toPath());
+        byte[] plain = unseal(key, sealed, 0, sealed.length);
+        if (plain == null) {
+            logger.warning("Corrupted offset table " + file);
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(plain))) {
+            if (input.readInt() != TABLE_VERSION) {
+                return null;
+            }
+            int active = input.readInt();
+            HashMap<Integer, Long> covered = new HashMap<>();
+            for (int i = input.readInt(); i > 0; i--) {
+                covered.put(input.readInt(), input.readLong());
+            }
+            HashMap<String, Location> locations = new HashMap<>();
+            for (int i = input.readInt(); i > 0; i--) {
+                String name = input.readUTF();
+                Location location = new Location(input.readInt(), input.readLong(), input.readInt(), input.readBoolean());
+                if (!covered.containsKey(location.segment)) {
+                    throw new IOException("Location in a segment not covered");
+                }
+                locations.put(name, location);
+            }
+            return new Table(active, covered, locations);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Malformed offset table " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the table to a temporary file and rename it over the old one. Only called with the write lock held,
+     * after the segments are synced.
+     */
+    private void writeTable() throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(plain);
+        output.writeInt(TABLE_VERSION);
+        output.writeInt(active.number);
+        output.writeInt(segments.size());
+        for (Segment segment : segments.values()) {
+            output.writeInt(segment.number);
+            output.writeLong(segment.size);
+        }
+        output.writeInt(table.size());
+        for (Map.Entry<String, Location> entry : table.entrySet()) {
+            Location location = entry.getValue();
+            output.writeUTF(entry.getKey());
+            output.writeInt(location.segment);
+            output.writeLong(location.offset);
+            output.writeInt(location.length);
+            output.writeBoolean(location.removed);
+        }
+        Path file = tableFile().toPath();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(seal(plain.toByteArray()));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        unindexedBytes = 0;
+    }
+
+    /**
+     * Append a record to the active segment, starting a new segment once it is full.
+     * Only called with the write lock held.
+     */
+    private void append(String name, byte[] record, boolean removed) throws IOException {
+        if (active.size >= segmentSize) {
+            active.channel.force(false);
+            active = createSegment(active.number + 1);
+        }
+        Location location = new Location(active.number, active.size, record.length, removed);
+        write(active, record);
+        active.live += record.length;
+        unindexedBytes += record.length;
+        Location previous = table.put(name, location);
+        if (previous != null) {
+            segments.get(previous.segment).live -= previous.length;
+        }
+    }
+
+    void setSegmentSize(long segmentSize) {
+        lock.writeLock().lock();
+        try {
+            this.segmentSize = segmentSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Record a modification, which is appended on the next commit.
+     * @param value the new value, or null if the document is removed
+     */
+    synchronized void put(PackDirectory owner, String fullName, String name, @Nullable Item value) {
+        dirty.put(fullName, new Pending(owner, name, value));
+    }
+
+    /**
+     * @return the latest version of a document appended, or null if there is none or it is removed
+     */
+    byte @Nullable [] read(String fullName) throws IOException {
+        byte[] record;
+        lock.readLock().lock();
+        try {
+            Location location = table.get(fullName);
+            if (location == null || location.removed) {
+                return null;
+            }
+            record = readRecord(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+        Record parsed = parseRecord(key, record);
+        if (parsed == null) {
+            throw new IOException("The pack is corrupted or encrypted with another key");
+        }
+        if (parsed.op != OP_PUT || !parsed.name.equals(fullName)) {
+            throw new IOException("Found " + parsed.name + " in location where " + fullName + " was expected");
+        }
+        return parsed.document;
+    }
+
+    /**
+     * Append the modifications recorded since the last commit, and wait for them to reach the disk.
+     * @throws IOException if an I/O error occurs
+     */
+    void commit() throws IOException {
+        lock.writeLock().lock();
+        try {
+            LinkedHashMap<String, Pending> snapshot;
+            synchronized (this) {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                snapshot = dirty;
+                dirty = new LinkedHashMap<>();
+            }
+            int[] sizes = new int[snapshot.size()];
+            int i = 0;
+            for (Map.Entry<String, Pending> entry : snapshot.entrySet()) {
+                Pending pending = entry.getValue();
+                byte[] document = pending.value == null ? null : pending.directory.serialize(pending.name, pending.value);
+                append(entry.getKey(), record(document == null ? OP_DELETE : OP_PUT, entry.getKey(), document), document == null);
+                sizes[i++] = document == null ? 0 : document.length;
+            }
+            active.channel.force(false);
+            i = 0;
+            for (Pending pending : snapshot.values()) {
+                pending.directory.committed(pending.name, pending.value, sizes[i++]);
+            }
+            scheduleCompaction();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Commit, and write the table if enough has been appended since it was last written.
+     * @throws IOException if an I/O error occurs
+     */
+    void flush() throws IOException {
+        commit();
+        lock.writeLock().lock();
+        try {
+            if (!closed && unindexedBytes >= TABLE_INTERVAL) {
+                writeTable();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isGarbage(Segment segment) {
+        return segment != active && segment.live * 2 < segment.size;
+    }
+
+    /**
+     * Start a compaction if a full segment is mostly garbage. Only called with the write lock held.
+     */
+    private void scheduleCompaction() {
+        if (closed || (compaction != null && !compaction.isDone())) {
+            return;
+        }
+        if (segments.values().stream().anyMatch(this::isGarbage)) {
+            compaction = compactionExecutor.submit(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to compact pack " + baseName, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Copy the live records of the segments that are mostly garbage to the active segment, and delete the segments.
+     * A tombstone is kept as long as an older segment may hold a version of the document it removes.
+     */
+    private void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            List<Segment> garbage = segments.values().stream().filter(this::isGarbage).toList();
+            if (garbage.isEmpty()) {
+                return;
+            }
+            for (Segment segment : garbage) {
+                boolean oldest = segment == segments.firstEntry().getValue();
+                ArrayList<String> moved = new ArrayList<>();
+                for (Iterator<Map.Entry<String, Location>> iterator = table.entrySet().iterator(); iterator.hasNext(); ) {
+                    Map.Entry<String, Location> entry = iterator.next();
+                    if (entry.getValue().segment != segment.number) {
+                        continue;
+                    }
+                    if (entry.getValue().removed && oldest) {
+                        iterator.remove();
+                    } else {
+                        moved.add(entry.getKey());
+                    }
+                }
+                for (String name : moved) {
+                    Location location = table.get(name);
+                    append(name, readRecord(location), location.removed);
+                }
+            }
+            active.channel.force(false);
+            // Left out of the table, so they are deleted on open if the process crashes before they are deleted here
+            for (Segment segment : garbage) {
+                segments.remove(segment.number);
+            }
+            writeTable();
+            for (Segment segment : garbage) {
+                segment.channel.close();
+                Files.deleteIfExists(segment.file.toPath());
+            }
+            logger.fine("Compacted " + garbage.size() + " segments of pack " + baseName);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait for the compaction started so far.
+     */
+    void awaitCompaction() throws IOException {
+        Future<?> future = compactionExecutor.submit(() -> {});
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Commit, write the table and close the segments.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        commit();
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (unindexedBytes > 0 || !tableFile().exists()) {
+                writeTable();
+            }
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the live documents of the packs in a directory encrypted with the old key into packs encrypted with
+     * the new key, and delete the old packs. Used when the key of a directory is changed.
+     */
+    static void changeKey(byte[] oldKey, byte[] newKey, File directory) throws IOException {
+        File[] files = directory.listFiles(f -> f.getName().endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+        HashMap<String, File> packs = new HashMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            packs.putIfAbsent(name.substring(0, name.lastIndexOf('-')), file);
+        }
+        for (Map.Entry<String, File> pack : packs.entrySet()) {
+            String namespace;
+            try {
+                namespace = readNamespace(pack.getValue(), oldKey);
+                if (!baseName(namespace, oldKey).equals(pack.getKey())) {
+                    throw new IOException("Malformed pack name: " + pack.getValue().getName());
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Ignore non-recognized pack: " + pack.getValue(), e);
+                continue;
+            }
+            try (PackStore source = new PackStore(directory, oldKey, namespace);
+                 PackStore target = new PackStore(directory, newKey, namespace)) {
+                source.copyTo(target);
+            }
+            for (File file : listSegments(directory, pack.getKey())) {
+                Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(new File(directory, pack.getKey() + TABLE_EXTENSION).toPath());
+        }
+    }
+
+    /**
+     * @return the namespace in the header of a segment
+     */
+    private static String readNamespace(File segment, byte[] key) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            byte[] magic = input.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Invalid pack segment: " + segment);
+            }
+            int length = input.readInt();
+            if (length <= NONCE_LENGTH || length > segment.length()) {
+                throw new IOException("Truncated pack segment: " + segment);
+            }
+            byte[] record = ByteBuffer.allocate(Integer.BYTES + length).putInt(length).put(input.readNBytes(length)).array();
+            Record header = parseRecord(key, record);
+            if (header == null || header.op != OP_HEADER) {
+                throw new IOException("Missing pack header: " + segment);
+            }
+            return header.name;
+        }
+    }
+
+    private void copyTo(PackStore target) throws IOException {
+        lock.readLock().lock();
+        target.lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, Location> entry : table.entrySet()) {
+                if (!entry.getValue().removed) {
+                    byte[] document = read(entry.getKey());
+                    target.append(entry.getKey(), target.record(OP_PUT, entry.getKey(), document), false);
+                }
+            }
+            target.active.channel.force(false);
+        } finally {
+            target.lock.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package io.github.software.coursework.data.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import io.github.software.coursework.data.Deserialize;
+import io.github.software.coursework.data.Directory;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory writing each of its documents to a plain file, the same as {@link EncryptedDirectory} without
+ * a write-ahead log but without the encryption. Meant for profiling and for looking at what the storage writes,
+ * never for the data of an account.
+ *
+ * <p>The documents of a namespace are in a folder named after the namespace, and each file is named after its
+ * document, with the extension of the format. Modifications are buffered until the next {@link #flush()}.</p>
+ */
+public final class PlainDirectory implements Directory {
+    private static final Object none = new Object();
+    private final File root;
+    private final File directory;
+    private final String namespace;
+    private final EncryptedDirectory.Format format;
+    private final ConcurrentHashMap<String, Object> buffer = new ConcurrentHashMap<>();
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * @param root the directory to create the folders of the namespaces in
+     * @param namespace the namespace of the directory
+     * @param format the format of the documents written by the directory
+     */
+    public PlainDirectory(File root, String namespace, EncryptedDirectory.Format format) {
+        this.root = root;
+        this.directory = new File(root, URLEncoder.encode(namespace, StandardCharsets.UTF_8));
+        this.namespace = namespace;
+        this.format = format;
+    }
+
+    private File file(String name) {
+        String extension = switch (format) {
+            case JSON -> ".json";
+            case BINARY -> ".bin";
+        };
+        return new File(directory, URLEncoder.encode(name, StandardCharsets.UTF_8) + extension);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Item> @Nullable T get(String name, Deserialize<T> constructor) throws IOException {
+        Object buffered = buffer.get(name);
+        if (buffered != null) {
+            return buffered == none ? null : (T) buffered;
+        }
+        DocumentCache.Key cacheKey = cacheKey(name);
+        Object cached = DocumentCache.get(cacheKey);
+        if (cached == none) {
+            return null;
+        }
+        if (cached != null) {
+            return (T) cached;
+        }
+        long stamp = DocumentCache.stamp(cacheKey);
+        File file = file(name);
+        if (!file.exists()) {
+            DocumentCache.putIfUnchanged(cacheKey, none, 0, stamp);
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        T output;
+        try (Document.Reader reader = EncryptedDirectory.createReader(jsonFactory, bytes, false)) {
+            String actualName = reader.readString("_filename");
+            if (!actualName.equals(namespace + "/" + name)) {
+                throw new IOException("Found " + actualName + " in location where " + namespace + "/" + name + " was expected");
+            }
+            output = constructor.deserialize(reader);
+        }
+        DocumentCache.putIfUnchanged(cacheKey, output, bytes.length, stamp);
+        return output;
+    }
+
+    private DocumentCache.Key cacheKey(String name) {
+        return new DocumentCache.Key(directory, namespace + "/" + name);
+    }
+
+    @Override
+    public <T extends Item> void put(String name, @Nullable T item) {
+        buffer.put(name, item == null ? none : item);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(directory.toPath());
+        for (Map.Entry<String, Object> entry : buffer.entrySet()) {
+            Path file = file(entry.getKey()).toPath();
+            int size = 0;
+            if (entry.getValue() == none) {
+                Files.deleteIfExists(file);
+            } else {
+                byte[] document = serialize(entry.getKey(), (Item) entry.getValue());
+                Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(temporary, document);
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                size = document.length;
+            }
+            DocumentCache.put(cacheKey(entry.getKey()), entry.getValue(), size);
+        }
+        buffer.clear();
+    }
+
+    private byte[] serialize(String name, Item item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Document.Writer writer = EncryptedDirectory.createWriter(jsonFactory, format, bytes)) {
+            writer.writeString("_filename", namespace + "/" + name);
+            item.serialize(writer);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Directory withNamespace(String namespace) {
+        return new PlainDirectory(root, this.namespace + "-" + namespace, format);
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static io.github.software.coursework.data.json.SegmentedEncryptingOutputStream.*;
+
+/**
+ * Decrypts a stream written by {@link SegmentedEncryptingOutputStream}, one segment at a time.
+ * No byte of a segment is returned before the whole segment is authenticated.
+ */
+@VisibleForTesting
+public final class SegmentedDecryptingInputStream extends InputStream {
+    private final InputStream backing;
+    private final Cipher cipher;
+    private final SecretKeySpec segmentKey;
+    private final byte[] noncePrefix;
+    // One byte more than a segment, to tell whether another segment follows
+    private final byte[] ciphertext = new byte[SEGMENT_SIZE + TAG_LENGTH + 1];
+    private final byte[] plaintext = new byte[SEGMENT_SIZE];
+    private int ciphertextLength = 0;
+    private int position = 0;
+    private int limit = 0;
+    private int segment = 0;
+    private boolean ended = false;
+
+    public SegmentedDecryptingInputStream(InputStream backing, byte[] key) throws IOException {
+        this.backing = backing;
+        byte[] header = backing.readNBytes(HEADER_LENGTH);
+        if (header.length < HEADER_LENGTH || !Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Invalid data start");
+        }
+        noncePrefix = Arrays.copyOfRange(header, MAGIC.length + SALT_LENGTH, HEADER_LENGTH);
+        try {
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            this.segmentKey = deriveKey(key, Arrays.copyOfRange(header, MAGIC.length, MAGIC.length + SALT_LENGTH));
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return false if the last segment has been read
+     */
+    private boolean nextSegment() throws IOException {
+        if (ended) {
+            return false;
+        }
+        while (ciphertextLength < ciphertext.length) {
+            int read = backing.read(ciphertext, ciphertextLength, ciphertext.length - ciphertextLength);
+            if (read == -1) {
+                break;
+            }
+            ciphertextLength += read;
+        }
+        boolean last = ciphertextLength < ciphertext.length;
+        int length = last ? ciphertextLength : ciphertext.length - 1;
+        if (length < TAG_LENGTH) {
+            throw new IOException("Invalid data end");
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, segmentKey, nonce(noncePrefix, segment, last));
+            limit = cipher.doFinal(ciphertext, 0, length, plaintext, 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("The data is corrupted, truncated or encrypted with another key", e);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new IOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        position = 0;
+        segment++;
+        if (last) {
+            ended = true;
+            ciphertextLength = 0;
+        } else {
+            ciphertext[0] = ciphertext[length];
+            ciphertextLength = 1;
+        }
+        return true;
+    }
+
+    @Override
+    public int read(byte @NonNull [] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == limit) {
+            if (!nextSegment()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(plaintext, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == limit) {
+            if (!nextSegment()) {
+                return -1;
+            }
+        }
+        return plaintext[position++] & 0xFF;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(plaintext, (byte) 0);
+        backing.close();
+    }
+}
@@ -0,0 +1,150 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Encrypts a stream into the segmented container, which is binary and authenticated.
+ *
+ * <p>The container starts with {@link #MAGIC}, a random salt and a random nonce prefix, followed by the segments.
+ * Each segment is {@value #SEGMENT_SIZE} bytes of plaintext, except the last which may be shorter or empty,
+ * encrypted with AES/GCM and followed by its tag. The segments are encrypted with a key derived from the key and the
+ * salt, so every file has its own key. The nonce of a segment is the prefix, the index of the segment and whether
+ * the segment is the last, so segments cannot be reordered, dropped or truncated unnoticed.</p>
+ *
+ * <p>Unlike {@link EncryptingOutputStream}, the ciphertext is not encoded in base64, and the buffers are allocated
+ * once per stream.</p>
+ */
+@VisibleForTesting
+@ParametersAreNonnullByDefault
+public final class SegmentedEncryptingOutputStream extends OutputStream {
+    // Cannot be the start of the base64 container, which is text
+    static final byte[] MAGIC = {(byte) 0x89, 'C', 'W', '9', '5', '\r', '\n', 0x1a};
+    static final int SALT_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int HEADER_LENGTH = MAGIC.length + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    static final int SEGMENT_SIZE = 64 * 1024;
+    static final int TAG_LENGTH = 16;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final OutputStream backing;
+    private final Cipher cipher;
+    private final SecretKeySpec segmentKey;
+    private final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+    private final byte[] plaintext = new byte[SEGMENT_SIZE];
+    private final byte[] ciphertext = new byte[SEGMENT_SIZE + TAG_LENGTH];
+    private int buffered = 0;
+    private int segment = 0;
+    private boolean closed = false;
+
+    public SegmentedEncryptingOutputStream(OutputStream backing, byte[] key) throws IOException {
+        this.backing = backing;
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        random.nextBytes(noncePrefix);
+        try {
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            this.segmentKey = deriveKey(key, salt);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new IOException(e);
+        }
+        backing.write(MAGIC);
+        backing.write(salt);
+        backing.write(noncePrefix);
+    }
+
+    static SecretKeySpec deriveKey(byte[] key, byte[] salt) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        byte[] derived = mac.doFinal(salt);
+        return new SecretKeySpec(Arrays.copyOf(derived, Math.min(key.length, derived.length)), "AES");
+    }
+
+    static GCMParameterSpec nonce(byte[] prefix, int segment, boolean last) {
+        byte[] nonce = new byte[NONCE_PREFIX_LENGTH + 5];
+        System.arraycopy(prefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (segment >> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (segment >> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (segment >> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) segment;
+        nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    private void seal(boolean last) throws IOException {
+        if (segment == Integer.MAX_VALUE) {
+            throw new IOException("Too many segments");
+        }
+        int length;
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, segmentKey, nonce(noncePrefix, segment, last));
+            length = cipher.doFinal(plaintext, 0, buffered, ciphertext, 0);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new IOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        backing.write(ciphertext, 0, length);
+        segment++;
+        buffered = 0;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            // A full segment is only sealed once more data comes, as the last segment is sealed differently
+            if (buffered == SEGMENT_SIZE) {
+                seal(false);
+            }
+            int count = Math.min(len, SEGMENT_SIZE - buffered);
+            System.arraycopy(b, off, plaintext, buffered, count);
+            buffered += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffered == SEGMENT_SIZE) {
+            seal(false);
+        }
+        plaintext[buffered++] = (byte) b;
+    }
+
+    /**
+     * Flush the backing stream. The data of the current segment is only written once the segment is sealed.
+     */
+    @Override
+    public void flush() throws IOException {
+        backing.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            seal(true);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+            backing.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static io.github.software.coursework.data.json.SegmentedEncryptingOutputStream.*;
+
+/**
+ * Reads a byte range of a file written by {@link SegmentedEncryptingOutputStream}, decrypting only the segments
+ * the range covers.
+ *
+ * <p>All segments but the last are of the same size, so the position of a segment is computed from its index and
+ * the length of the last segment from the length of the file. Each segment is authenticated on its own, and the
+ * flag in the nonce of the last segment makes a truncated file fail to authenticate when its end is read.</p>
+ */
+@VisibleForTesting
+@ParametersAreNonnullByDefault
+public final class SegmentedFile implements Closeable {
+    private static final int SEALED_SIZE = SEGMENT_SIZE + TAG_LENGTH;
+
+    private final FileChannel channel;
+    private final Cipher cipher;
+    private final SecretKeySpec segmentKey;
+    private final byte[] noncePrefix;
+    private final int segments;
+    private final long size;
+    private final ByteBuffer ciphertext = ByteBuffer.allocateDirect(SEALED_SIZE);
+    private final ByteBuffer plaintext = ByteBuffer.allocate(SEGMENT_SIZE);
+    // The segment in the plaintext buffer, so reads within a segment decrypt it once
+    private int decrypted = -1;
+
+    private SegmentedFile(FileChannel channel, byte[] key) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(header, 0);
+        noncePrefix = Arrays.copyOfRange(header.array(), MAGIC.length + SALT_LENGTH, HEADER_LENGTH);
+        try {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            segmentKey = deriveKey(key, Arrays.copyOfRange(header.array(), MAGIC.length, MAGIC.length + SALT_LENGTH));
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new IOException(e);
+        }
+        long sealed = channel.size() - HEADER_LENGTH;
+        long rest = sealed % SEALED_SIZE;
+        if (sealed <= 0 || (rest != 0 && rest < TAG_LENGTH)) {
+            throw new IOException("Invalid data end");
+        }
+        // The last segment is full if nothing is left after the full segments
+        long count = rest == 0 ? sealed / SEALED_SIZE : sealed / SEALED_SIZE + 1;
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many segments");
+        }
+        segments = (int) count;
+        size = sealed - count * TAG_LENGTH;
+    }
+
+    /**
+     * @throws IOException if the file is not written by {@link SegmentedEncryptingOutputStream}
+     */
+    public static SegmentedFile open(File file, byte[] key) throws IOException {
+        SegmentedFile opened = tryOpen(file, key);
+        if (opened == null) {
+            throw new IOException("Invalid data start");
+        }
+        return opened;
+    }
+
+    /**
+     * @return the opened file, or null if the file is not written by {@link SegmentedEncryptingOutputStream}
+     */
+    public static @Nullable SegmentedFile tryOpen(File file, byte[] key) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            channel.read(magic, 0);
+            if (magic.hasRemaining() || !Arrays.equals(magic.array(), MAGIC)) {
+                channel.close();
+                return null;
+            }
+            return new SegmentedFile(channel, key);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the length of the plaintext
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the plaintext from the offset, as much of the length as the file holds
+     */
+    public byte[] read(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        int count = (int) Math.max(0, Math.min(length, size - offset));
+        byte[] result = new byte[count];
+        for (int done = 0; done < count; ) {
+            long position = offset + done;
+            int segment = (int) (position / SEGMENT_SIZE);
+            decrypt(segment);
+            int within = (int) (position % SEGMENT_SIZE);
+            int n = Math.min(count - done, plaintext.limit() - within);
+            plaintext.get(within, result, done, n);
+            done += n;
+        }
+        return result;
+    }
+
+    private void decrypt(int segment) throws IOException {
+        if (segment == decrypted) {
+            return;
+        }
+        decrypted = -1;
+        boolean last = segment == segments - 1;
+        ciphertext.clear();
+        if (last) {
+            ciphertext.limit((int) (channel.size() - HEADER_LENGTH - (long) segment * SEALED_SIZE));
+        }
+        readFully(ciphertext, HEADER_LENGTH + (long) segment * SEALED_SIZE);
+        ciphertext.flip();
+        plaintext.clear();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, segmentKey, nonce(noncePrefix, segment, last));
+            cipher.doFinal(ciphertext, plaintext);
+        } catch (AEADBadTagException e) {
+            throw new IOException("The data is corrupted, truncated or encrypted with another key", e);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new IOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        plaintext.flip();
+        decrypted = segment;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(plaintext.array(), (byte) 0);
+        channel.close();
+    }
+}
@@ -0,0 +1,297 @@
+package io.github.software.coursework.data.json;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.github.software.coursework.data.AsyncStorage.Priority;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Runs the tasks on a table. Modifications run one at a time on a dedicated thread, while reads run
+ * concurrently on virtual threads, so a long scan never holds up other reads.
+ * No modification runs together with a read, which is enforced by a fair read-write lock.
+ *
+ * <p>The tasks wait in a bounded queue per {@link Priority}. The modifications run in the order they are submitted
+ * whatever their priorities, so a modification waiting behind less urgent ones makes them run first. The dedicated
+ * thread takes the reads in the order of their priorities, and a read sees every modification of the same or a more
+ * urgent priority submitted before it.</p>
+ *
+ * <p>When the queue is full, {@link #write} and {@link #read} wait for a free slot, while {@link #tryWrite} and
+ * {@link #tryRead} reject the task with a {@link RejectedExecutionException}. Tasks submitted from a task of a table
+ * never wait, as the table they wait for may be waiting for them, and are admitted beyond the capacity instead.</p>
+ */
+final class TableWorker {
+    private static final EnumMap<Priority, Integer> defaultCapacities = new EnumMap<>(Map.of(
+            Priority.INTERACTIVE, 4096,
+            Priority.BACKGROUND, 1024,
+            Priority.BULK, 64
+    ));
+
+    private final String name;
+    private final Consumer<Throwable> onFailure;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final Phaser pendingReads = new Phaser(1);
+    private final EnumMap<Priority, Queue> queues = new EnumMap<>(Priority.class);
+    private long submitted = 0;
+    private boolean closed = false;
+    private @Nullable Runnable lastTask = null;
+
+    /**
+     * Whether the current thread runs a task of any table.
+     */
+    private static final ThreadLocal<Boolean> inTask = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * @param sequence the order of submission, unique within the worker
+     */
+    private record Work(Runnable task, Priority priority, boolean read, long sequence, long submittedAt) {
+    }
+
+    /**
+     * The tasks of a priority waiting for the table, and the statistics of the tasks submitted so far.
+     */
+    private static final class Queue {
+        private final ArrayDeque<Work> reads = new ArrayDeque<>();
+        private final ArrayDeque<Work> writes = new ArrayDeque<>();
+        private int capacity;
+        private long admitted = 0;
+        private long rejected = 0;
+        private long totalWaitNanos = 0;
+        private long maxWaitNanos = 0;
+
+        private Queue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private int depth() {
+            return reads.size() + writes.size();
+        }
+    }
+
+    /**
+     * @param name the name of the dedicated thread
+     * @param onFailure called on the thread of a task when it throws, the table is unusable afterward
+     */
+    TableWorker(String name, Consumer<Throwable> onFailure) {
+        this.name = name;
+        this.onFailure = onFailure;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new Queue(defaultCapacities.get(priority)));
+        }
+        Thread.ofPlatform().name(name).start(this::run);
+    }
+
+    /**
+     * Submit a modification, waiting while the queue of the priority is full.
+     * @throws RejectedExecutionException if the worker is shut down
+     */
+    void write(Priority priority, Runnable task) {
+        submit(priority, task, false, true);
+    }
+
+    /**
+     * Submit a read, waiting while the queue of the priority is full.
+     * @throws RejectedExecutionException if the worker is shut down
+     */
+    void read(Priority priority, Runnable task) {
+        submit(priority, task, true, true);
+    }
+
+    /**
+     * Submit a modification.
+     * @throws RejectedExecutionException if the worker is shut down or the queue of the priority is full
+     */
+    void tryWrite(Priority priority, Runnable task) {
+        submit(priority, task, false, false);
+    }
+
+    /**
+     * Submit a read.
+     * @throws RejectedExecutionException if the worker is shut down or the queue of the priority is full
+     */
+    void tryRead(Priority priority, Runnable task) {
+        submit(priority, task, true, false);
+    }
+
+    private synchronized void submit(Priority priority, Runnable task, boolean read, boolean wait) {
+        Queue queue = queues.get(priority);
+        boolean interrupted = false;
+        while (!closed && queue.depth() >= queue.capacity && !inTask.get()) {
+            if (!wait) {
+                queue.rejected++;
+                throw new RejectedExecutionException("Too many " + priority + " tasks are waiting for " + name);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (closed) {
+            throw new RejectedExecutionException("The storage is closed");
+        }
+        Work work = new Work(task, priority, read, submitted++, System.nanoTime());
+        queue.admitted++;
+        (read ? queue.reads : queue.writes).add(work);
+        notifyAll();
+    }
+
+    /**
+     * Run the last task after every task submitted so far, including the reads, and reject the tasks submitted later.
+     */
+    synchronized void shutdown(Runnable task) {
+        if (closed) {
+            throw new RejectedExecutionException("The storage is closed");
+        }
+        closed = true;
+        lastTask = task;
+        notifyAll();
+    }
+
+    /**
+     * Drop the tasks waiting for the table and reject the tasks submitted later, including the last task.
+     * Called by a task that finds the table unusable.
+     */
+    synchronized void abort() {
+        closed = true;
+        lastTask = null;
+        for (Queue queue : queues.values()) {
+            queue.reads.clear();
+            queue.writes.clear();
+        }
+        notifyAll();
+    }
+
+    synchronized void setCapacity(Priority priority, int capacity) {
+        queues.get(priority).capacity = capacity;
+        notifyAll();
+    }
+
+    /**
+     * @return the statistics of each queue, see {@link JsonStorage.QueueStats}
+     */
+    synchronized Map<Priority, JsonStorage.QueueStats> stats() {
+        EnumMap<Priority, JsonStorage.QueueStats> result = new EnumMap<>(Priority.class);
+        queues.forEach((priority, queue) -> result.put(priority, new JsonStorage.QueueStats(
+                queue.depth(), queue.capacity, queue.admitted, queue.rejected,
+                queue.totalWaitNanos, queue.maxWaitNanos)));
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return the next task, or null if the worker is shut down and every task has been taken
+     */
+    private synchronized @Nullable Work take() {
+        while (true) {
+            Work work = next();
+            if (work != null) {
+                Queue queue = queues.get(work.priority);
+                (work.read ? queue.reads : queue.writes).remove();
+                long wait = System.nanoTime() - work.submittedAt;
+                queue.totalWaitNanos += wait;
+                queue.maxWaitNanos = Math.max(queue.maxWaitNanos, wait);
+                // A slot is free for the submissions waiting
+                notifyAll();
+                return work;
+            }
+            if (closed) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // The worker only stops once shut down
+            }
+        }
+    }
+
+    /**
+     * The first read of the most urgent priority, unless it has to wait for a modification submitted before it,
+     * in which case the first modification, as the modifications run in order.
+     */
+    private @Nullable Work next() {
+        @Nullable Work firstWrite = null;
+        for (Queue queue : queues.values()) {
+            Work write = queue.writes.peek();
+            if (write != null && (firstWrite == null || write.sequence < firstWrite.sequence)) {
+                firstWrite = write;
+            }
+        }
+        // The first modification of the priorities seen so far, which the reads of the current priority must see
+        @Nullable Work blocking = null;
+        for (Queue queue : queues.values()) {
+            Work write = queue.writes.peek();
+            if (write != null && (blocking == null || write.sequence < blocking.sequence)) {
+                blocking = write;
+            }
+            Work read = queue.reads.peek();
+            if (read != null && (blocking == null || read.sequence < blocking.sequence)) {
+                return read;
+            }
+            if (read != null || write != null) {
+                return firstWrite;
+            }
+        }
+        return null;
+    }
+
+    private void run() {
+        inTask.set(true);
+        Work work;
+        while ((work = take()) != null) {
+            if (work.read) {
+                Runnable task = work.task;
+                CountDownLatch locked = new CountDownLatch(1);
+                pendingReads.register();
+                Thread.ofVirtual().start(() -> {
+                    lock.readLock().lock();
+                    locked.countDown();
+                    inTask.set(true);
+                    try {
+                        task.run();
+                    } catch (Throwable ex) {
+                        onFailure.accept(ex);
+                    } finally {
+                        inTask.set(false);
+                        lock.readLock().unlock();
+                        pendingReads.arriveAndDeregister();
+                    }
+                });
+                // So that the read sees no modification submitted after it
+                Uninterruptibles.awaitUninterruptibly(locked);
+            } else {
+                runExclusively(work.task);
+            }
+        }
+        pendingReads.arriveAndAwaitAdvance();
+        Runnable task;
+        synchronized (this) {
+            task = lastTask;
+        }
+        if (task != null) {
+            runExclusively(task);
+        }
+    }
+
+    private void runExclusively(Runnable task) {
+        lock.writeLock().lock();
+        try {
+            task.run();
+        } catch (Throwable ex) {
+            onFailure.accept(ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
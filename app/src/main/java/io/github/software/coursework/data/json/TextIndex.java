@@ -0,0 +1,185 @@
+package io.github.software.coursework.data.json;
+
+import io.github.software.coursework.data.AsyncStorage;
+import io.github.software.coursework.data.Directory;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * An inverted index from the n-grams of some texts to the ids of the items they belong to, stored in a {@link ChunkedIndex}
+ * ordered by gram and then id, so the postings of a gram are a contiguous range that can be counted without being loaded.
+ * Each posting also keeps the time of its item, so the candidates can be ordered without loading the items.
+ *
+ * <p>The texts are split into trigrams, except that every CJK character is a gram on its own, since a single
+ * character is already a meaningful word there. A text containing a query contains all grams of the query,
+ * so the ids in the postings of every gram of the query are candidates, which must be checked against the actual texts.</p>
+ */
+final class TextIndex {
+    private static final int TRIGRAM = 3;
+    /**
+     * Postings much longer than the candidates are not worth loading to narrow them down further.
+     */
+    private static final int INTERSECTION_RATIO = 16;
+
+    private final ChunkedIndex<Posting> postings;
+
+    TextIndex(Directory directory) throws IOException {
+        this.postings = new ChunkedIndex<>(directory,
+                Comparator.comparing(Posting::gram).thenComparingLong(Posting::id), Posting::deserialize);
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /**
+     * @param texts the texts, already normalized with {@link AsyncStorage.TransactionTable#normalizeQuery(String)}
+     * @return the distinct grams of the texts, grams never span two texts
+     */
+    static Set<String> grams(String... texts) {
+        LinkedHashSet<String> grams = new LinkedHashSet<>();
+        for (String text : texts) {
+            int[] codePoints = text.codePoints().toArray();
+            int runStart = 0;
+            for (int i = 0; i <= codePoints.length; i++) {
+                if (i < codePoints.length && !isCjk(codePoints[i])) {
+                    continue;
+                }
+                for (int j = runStart; j + TRIGRAM <= i; j++) {
+                    grams.add(new String(codePoints, j, TRIGRAM));
+                }
+                if (i < codePoints.length) {
+                    grams.add(new String(codePoints, i, 1));
+                }
+                runStart = i + 1;
+            }
+        }
+        return grams;
+    }
+
+    private static List<Posting> postingsOf(long id, long time, String... texts) {
+        ArrayList<Posting> result = new ArrayList<>();
+        for (String gram : grams(normalize(texts))) {
+            result.add(new Posting(gram, id, time));
+        }
+        return result;
+    }
+
+    private static String[] normalize(String... texts) {
+        String[] normalized = new String[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            normalized[i] = AsyncStorage.TransactionTable.normalizeQuery(texts[i]);
+        }
+        return normalized;
+    }
+
+    /**
+     * The texts of an item.
+     * @param id the id of the item
+     * @param time the time of the item, or 0 if the items have no time
+     * @param texts the texts
+     */
+    record Text(long id, long time, String... texts) {
+    }
+
+    void add(Text text) throws IOException {
+        for (Posting posting : postingsOf(text.id, text.time, text.texts)) {
+            postings.addSample(posting);
+        }
+    }
+
+    void remove(Text text) throws IOException {
+        for (Posting posting : postingsOf(text.id, text.time, text.texts)) {
+            postings.removeSample(posting);
+        }
+    }
+
+    /**
+     * Index many items at once, see {@link ChunkedIndex#addSamples}.
+     */
+    void addAll(Collection<Text> texts) throws IOException {
+        ArrayList<Posting> added = new ArrayList<>();
+        for (Text text : texts) {
+            added.addAll(postingsOf(text.id, text.time, text.texts));
+        }
+        postings.addSamples(added);
+    }
+
+    boolean isEmpty() throws IOException {
+        return postings.count(null, null) == 0;
+    }
+
+    private static Posting first(String gram) {
+        return new Posting(gram, Long.MIN_VALUE, 0);
+    }
+
+    private static Posting after(String gram) {
+        return new Posting(gram + '\0', Long.MIN_VALUE, 0);
+    }
+
+    /**
+     * Find the items that may contain the query. Starting from the rarest gram, the postings are intersected
+     * until the next one is much longer than the candidates left.
+     * @param query the query, normalized
+     * @return the times of the candidates by id, or null if the query is too short to have any gram
+     */
+    @Nullable Map<Long, Long> candidates(String query) throws IOException {
+        Set<String> grams = grams(query);
+        if (grams.isEmpty()) {
+            return null;
+        }
+        ArrayList<Map.Entry<String, Integer>> counts = new ArrayList<>(grams.size());
+        for (String gram : grams) {
+            counts.add(Map.entry(gram, postings.count(first(gram), after(gram))));
+        }
+        counts.sort(Map.Entry.comparingByValue());
+        HashMap<Long, Long> candidates = null;
+        for (Map.Entry<String, Integer> count : counts) {
+            if (candidates != null && (candidates.isEmpty() || count.getValue() > INTERSECTION_RATIO * candidates.size())) {
+                break;
+            }
+            HashMap<Long, Long> ids = new HashMap<>();
+            for (Posting posting : postings.querySamples(first(count.getKey()), after(count.getKey()), 0, Integer.MAX_VALUE)) {
+                ids.put(posting.id, posting.time);
+            }
+            if (candidates == null) {
+                candidates = ids;
+            } else {
+                candidates.keySet().retainAll(ids.keySet());
+            }
+        }
+        return candidates;
+    }
+
+    void clear() throws IOException {
+        postings.clear();
+    }
+
+    void flush() throws IOException {
+        postings.flush();
+    }
+
+    private record Posting(String gram, long id, long time) implements Item {
+        @Override
+        public void serialize(Document.Writer writer) throws IOException {
+            writer.writeString("gram", gram);
+            writer.writeInteger("id", id);
+            writer.writeInteger("time", time);
+            writer.writeEnd();
+        }
+
+        public static Posting deserialize(Document.Reader reader) throws IOException {
+            String gram = reader.readString("gram");
+            long id = reader.readInteger("id");
+            long time = reader.readInteger("time");
+            reader.readEnd();
+            return new Posting(gram, id, time);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package io.github.software.coursework.data.json;
+
+import io.github.software.coursework.data.Item;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An encrypted append-only log shared by an {@link EncryptedDirectory} and all of its subdirectories.
+ *
+ * <p>Every {@link #commit()} serializes the documents put since the previous commit, appends them as one
+ * AES-GCM sealed frame and waits for the frame to reach the disk. A frame is either replayed as a whole or not
+ * at all, so a torn write at the tail only loses the last unfinished commit. The disk syncs are done by a
+ * single thread shared by all logs, which syncs every log with pending frames once per round, so commits
+ * from different executors arriving together share the cost.</p>
+ *
+ * <p>A checkpoint is taken in the background when the log or the documents not in their files yet grow beyond
+ * a threshold, or when the log has been idle for a while, see {@link EncryptedDirectory.CheckpointPolicy}:
+ * the log is rolled over to a new segment, the latest version of every committed document is written to its file,
+ * and the old segments are deleted. Segments left behind by a crash are replayed into the files when the log is
+ * opened again.</p>
+ */
+@ParametersAreNonnullByDefault
+final class WriteAheadLog implements Closeable {
+    private static final Logger logger = Logger.getLogger("WriteAheadLog");
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final String EXTENSION = ".wal";
+
+    private static final GroupCommit groupCommit = new GroupCommit();
+    private static final ScheduledExecutorService checkpointExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WAL-Checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private record Pending(EncryptedDirectory directory, String name, @Nullable Item value) {
+    }
+
+    /**
+     * @param document the bytes to write to the file, or null if the document is removed
+     * @param size the length of the document before compression, see {@link EncryptedDirectory.Serialized}
+     */
+    private record Committed(EncryptedDirectory directory, String name, @Nullable Item value, byte @Nullable [] document, int size) {
+    }
+
+    /**
+     * Syncs log segments to the disk on behalf of all logs, one round at a time.
+     */
+    private static final class GroupCommit implements Runnable {
+        private record Request(FileChannel channel, CompletableFuture<Void> future) {
+        }
+
+        private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+        private GroupCommit() {
+            Thread thread = new Thread(this, "WAL-Group-Commit");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public CompletableFuture<Void> sync(FileChannel channel) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            queue.add(new Request(channel, future));
+            return future;
+        }
+
+        @Override
+        public void run() {
+            ArrayList<Request> round = new ArrayList<>();
+            while (true) {
+                try {
+                    round.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(round);
+                IdentityHashMap<FileChannel, IOException> synced = new IdentityHashMap<>();
+                for (Request request : round) {
+                    if (!synced.containsKey(request.channel)) {
+                        IOException failure = null;
+                        try {
+                            request.channel.force(false);
+                        } catch (ClosedChannelException e) {
+                            // Segments are always synced before they are closed
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                        synced.put(request.channel, failure);
+                    }
+                    IOException failure = synced.get(request.channel);
+                    if (failure == null) {
+                        request.future.complete(null);
+                    } else {
+                        request.future.completeExceptionally(failure);
+                    }
+                }
+                round.clear();
+            }
+        }
+    }
+
+    private final File directory;
+    private final byte[] key;
+    private final String baseName;
+    private final SecureRandom random = new SecureRandom();
+    private LinkedHashMap<String, Pending> dirty = new LinkedHashMap<>();
+    private LinkedHashMap<String, Committed> committed = new LinkedHashMap<>();
+    private final ArrayList<File> retiredSegments = new ArrayList<>();
+    private File segment;
+    private int segmentNumber = 0;
+    private FileChannel channel;
+    private long size = 0;
+    private long dirtyBytes = 0;
+    private long lastCommit = 0;
+    private EncryptedDirectory.CheckpointPolicy policy = EncryptedDirectory.CheckpointPolicy.DEFAULT;
+    private @Nullable Future<?> checkpoint;
+    private @Nullable ScheduledFuture<?> idleCheck;
+    private boolean closed = false;
+
+    /**
+     * Open the log of a namespace, replaying the segments left behind by a previous session.
+     * @param directory the directory holding the documents
+     * @param key the key of the directory
+     * @param namespace the namespace of the root directory owning the log
+     * @throws IOException if an I/O error occurs
+     */
+    public WriteAheadLog(File directory, byte[] key, String namespace) throws IOException {
+        this.directory = directory;
+        this.key = key.clone();
+        String obfuscated = EncryptedDirectory.obfuscateFileName(namespace + "/.wal", key);
+        this.baseName = obfuscated.substring(0, obfuscated.lastIndexOf('.'));
+        for (File file : listSegments(directory, baseName)) {
+            replay(file, key, key, directory);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Failed to delete log segment: " + file);
+            }
+        }
+        this.segment = segmentFile(segmentNumber);
+        this.channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, baseName + "-" + number + EXTENSION);
+    }
+
+    private static int segmentNumber(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(name.lastIndexOf('-') + 1, name.length() - EXTENSION.length()));
+    }
+
+    private static List<File> listSegments(File directory, String baseName) {
+        File[] files = directory.listFiles(f -> f.getName().startsWith(baseName + "-") && f.getName().endsWith(EXTENSION));
+        if (files == null) {
+            return List.of();
+        }
+        return Arrays.stream(files).sorted(Comparator.comparingInt(WriteAheadLog::segmentNumber)).toList();
+    }
+
+    /**
+     * Check if the file is a segment of some log.
+     */
+    static boolean isSegment(File file) {
+        return file.getName().endsWith(EXTENSION);
+    }
+
+    /**
+     * Replay the logs in a directory encrypted with the old key into documents encrypted with the new key,
+     * and delete them. Used when the key of a directory is changed.
+     */
+    static void changeKey(byte[] oldKey, byte[] newKey, File directory) throws IOException {
+        File[] files = directory.listFiles(WriteAheadLog::isSegment);
+        if (files == null) {
+            return;
+        }
+        HashMap<String, ArrayList<File>> logs = new HashMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            logs.computeIfAbsent(name.substring(0, name.lastIndexOf('-')), k -> new ArrayList<>()).add(file);
+        }
+        for (ArrayList<File> segments : logs.values()) {
+            segments.sort(Comparator.comparingInt(WriteAheadLog::segmentNumber));
+            for (File file : segments) {
+                replay(file, oldKey, newKey, directory);
+                if (!file.delete()) {
+                    throw new IOException("Failed to delete log segment: " + file);
+                }
+            }
+        }
+    }
+
+    private static Cipher cipher(int mode, byte[] key, byte[] nonce) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH, nonce));
+            return cipher;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeyException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Replay a segment into the document files. Reading stops at the first frame that is truncated
+     * or fails the authentication, which is where the previous session crashed.
+     */
+    private static void replay(File file, byte[] readKey, byte[] writeKey, File directory) throws IOException {
+        LinkedHashMap<String, byte @Nullable []> documents = new LinkedHashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long remaining = file.length();
+            while (remaining >= Integer.BYTES) {
+                int length = input.readInt();
+                remaining -= Integer.BYTES;
+                if (length <= NONCE_LENGTH || length > remaining) {
+                    logger.log(Level.WARNING, "Truncated frame in log segment " + file + ", ignoring the rest");
+                    break;
+                }
+                byte[] nonce = new byte[NONCE_LENGTH];
+                byte[] sealed = new byte[length - NONCE_LENGTH];
+                input.readFully(nonce);
+                input.readFully(sealed);
+                remaining -= length;
+                byte[] plain;
+                try {
+                    plain = cipher(Cipher.DECRYPT_MODE, readKey, nonce).doFinal(sealed);
+                } catch (AEADBadTagException e) {
+                    logger.log(Level.WARNING, "Corrupted frame in log segment " + file + ", ignoring the rest", e);
+                    break;
+                } catch (IllegalBlockSizeException | BadPaddingException e) {
+                    throw new IOException(e);
+                }
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(plain));
+                int count = frame.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte op = frame.readByte();
+                    String name = new String(readBytes(frame), StandardCharsets.UTF_8);
+                    switch (op) {
+                        case OP_PUT -> documents.put(name, readBytes(frame));
+                        case OP_DELETE -> documents.put(name, null);
+                        default -> throw new IOException("Unknown operation " + op + " in log segment " + file);
+                    }
+                }
+            }
+        }
+        LinkedHashMap<String, EncryptedDirectory.DocumentSource> sources = new LinkedHashMap<>();
+        for (Map.Entry<String, byte @Nullable []> entry : documents.entrySet()) {
+            byte[] document = entry.getValue();
+            sources.put(entry.getKey(), () -> document);
+        }
+        EncryptedDirectory.writeDocuments(directory, writeKey, sources);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    synchronized void setCheckpointPolicy(EncryptedDirectory.CheckpointPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Record a modification, which becomes durable on the next commit.
+     * @param value the new value, or null if the document is removed
+     */
+    synchronized void put(EncryptedDirectory owner, String fullName, String name, @Nullable Item value) {
+        dirty.put(fullName, new Pending(owner, name, value));
+    }
+
+    /**
+     * Append the modifications recorded since the last commit, and wait for them to reach the disk.
+     * @throws IOException if an I/O error occurs
+     */
+    public void commit() throws IOException {
+        CompletableFuture<Void> synced;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(plain);
+            output.writeInt(dirty.size());
+            for (Map.Entry<String, Pending> entry : dirty.entrySet()) {
+                Pending pending = entry.getValue();
+                EncryptedDirectory.Serialized serialized = pending.value == null ? null : pending.directory.serialize(pending.name, pending.value);
+                byte[] document = serialized == null ? null : serialized.stored();
+                output.writeByte(document == null ? OP_DELETE : OP_PUT);
+                writeBytes(output, entry.getKey().getBytes(StandardCharsets.UTF_8));
+                if (document != null) {
+                    writeBytes(output, document);
+                }
+                Committed previous = committed.put(entry.getKey(), new Committed(pending.directory, pending.name, pending.value, document, serialized == null ? 0 : serialized.size()));
+                dirtyBytes += sizeOf(document) - (previous == null ? 0 : sizeOf(previous.document));
+            }
+            dirty.clear();
+            byte[] nonce = new byte[NONCE_LENGTH];
+            random.nextBytes(nonce);
+            byte[] sealed;
+            try {
+                sealed = cipher(Cipher.ENCRYPT_MODE, key, nonce).doFinal(plain.toByteArray());
+            } catch (IllegalBlockSizeException | BadPaddingException e) {
+                throw new IOException(e);
+            }
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + NONCE_LENGTH + sealed.length);
+            frame.putInt(NONCE_LENGTH + sealed.length).put(nonce).put(sealed).flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            size += frame.capacity();
+            lastCommit = System.nanoTime();
+            synced = groupCommit.sync(channel);
+            if (size >= policy.logBytes() || dirtyBytes >= policy.dirtyBytes()) {
+                if (checkpoint == null || checkpoint.isDone()) {
+                    checkpoint = checkpointExecutor.submit(this::backgroundCheckpoint);
+                }
+            } else if (idleCheck == null && policy.idleDelay() != null) {
+                idleCheck = checkpointExecutor.schedule(this::checkIdle, policy.idleDelay().toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        try {
+            synced.join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to sync log " + baseName, e.getCause());
+        }
+    }
+
+    private static int sizeOf(byte @Nullable [] document) {
+        return document == null ? 0 : document.length;
+    }
+
+    private void backgroundCheckpoint() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to checkpoint log " + baseName, e);
+        }
+    }
+
+    /**
+     * Checkpoint if nothing has been committed for the idle delay, otherwise check again once it may have passed.
+     * Only one check is scheduled at a time, so commits arriving in a burst do not reschedule it.
+     */
+    private void checkIdle() {
+        synchronized (this) {
+            idleCheck = null;
+            if (closed || committed.isEmpty() || policy.idleDelay() == null) {
+                return;
+            }
+            long remaining = policy.idleDelay().toNanos() - (System.nanoTime() - lastCommit);
+            if (remaining > 0) {
+                idleCheck = checkpointExecutor.schedule(this::checkIdle, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+        backgroundCheckpoint();
+    }
+
+    /**
+     * Fold the committed modifications into the document files and delete the segments holding them.
+     * Only runs on the checkpoint executor, so at most one checkpoint is in progress.
+     * If the files cannot be written, the modifications are kept for the next checkpoint,
+     * and so are the segments, which are the only durable copy of them until then.
+     */
+    private void checkpoint() throws IOException {
+        LinkedHashMap<String, Committed> snapshot;
+        List<File> retired;
+        synchronized (this) {
+            if (committed.isEmpty()) {
+                return;
+            }
+            snapshot = committed;
+            committed = new LinkedHashMap<>();
+            channel.force(false);
+            channel.close();
+            retiredSegments.add(segment);
+            retired = List.copyOf(retiredSegments);
+            segment = segmentFile(++segmentNumber);
+            channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            size = 0;
+            dirtyBytes = 0;
+        }
+        LinkedHashMap<String, EncryptedDirectory.DocumentSource> sources = new LinkedHashMap<>();
+        for (Map.Entry<String, Committed> entry : snapshot.entrySet()) {
+            byte[] document = entry.getValue().document;
+            sources.put(entry.getKey(), () -> document);
+        }
+        try {
+            EncryptedDirectory.writeDocuments(directory, key, sources);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                // The versions committed since the snapshot are newer
+                LinkedHashMap<String, Committed> merged = new LinkedHashMap<>(snapshot);
+                merged.putAll(committed);
+                for (Map.Entry<String, Committed> entry : snapshot.entrySet()) {
+                    if (!committed.containsKey(entry.getKey())) {
+                        dirtyBytes += sizeOf(entry.getValue().document);
+                    }
+                }
+                committed = merged;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Committed> entry : snapshot.entrySet()) {
+                // A newer version is not in the files yet, so it must stay in the buffer
+                if (!dirty.containsKey(entry.getKey()) && !committed.containsKey(entry.getKey())) {
+                    Committed value = entry.getValue();
+                    value.directory.checkpointed(value.name, value.value, value.size);
+                }
+            }
+        }
+        for (File file : retired) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Failed to delete log segment: " + file);
+            }
+            synchronized (this) {
+                retiredSegments.remove(file);
+            }
+        }
+    }
+
+    /**
+     * Wait for the background checkpoints started so far, which run one at a time on the checkpoint executor.
+     */
+    void awaitCheckpoint() throws IOException {
+        Future<?> future = checkpointExecutor.submit(() -> {});
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Commit, and then fold everything into the document files before returning.
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException {
+        commit();
+        Future<?> future = checkpointExecutor.submit(() -> {
+            checkpoint();
+            return null;
+        });
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        synchronized (this) {
+            closed = true;
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+            }
+            channel.close();
+            if (!segment.delete()) {
+                throw new IOException("Failed to delete log segment: " + segment);
+            }
+        }
+    }
+}
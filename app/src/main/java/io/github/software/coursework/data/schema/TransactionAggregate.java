@@ -0,0 +1,140 @@
+package io.github.software.coursework.data.schema;
+
+import com.google.common.collect.ImmutableSortedMap;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Item;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The totals of some transactions, which can be combined with the totals of other transactions.
+ * @param count The number of transactions.
+ * @param incomeByCategory The sum of the positive amounts of each category, in cents. Categories without income are absent.
+ * @param spendingByCategory The sum of the negated negative amounts of each category, in cents. Categories without spending are absent.
+ */
+public record TransactionAggregate(
+        long count,
+        ImmutableSortedMap<String, Long> incomeByCategory,
+        ImmutableSortedMap<String, Long> spendingByCategory
+) implements Item {
+    public static final TransactionAggregate EMPTY = new TransactionAggregate(0, ImmutableSortedMap.of(), ImmutableSortedMap.of());
+
+    public static TransactionAggregate of(TransactionSummary summary) {
+        if (summary.amount() > 0) {
+            return new TransactionAggregate(1, ImmutableSortedMap.of(summary.category(), summary.amount()), ImmutableSortedMap.of());
+        } else if (summary.amount() < 0) {
+            return new TransactionAggregate(1, ImmutableSortedMap.of(), ImmutableSortedMap.of(summary.category(), -summary.amount()));
+        } else {
+            return new TransactionAggregate(1, ImmutableSortedMap.of(), ImmutableSortedMap.of());
+        }
+    }
+
+    public static TransactionAggregate of(Collection<? extends TransactionSummary> summaries) {
+        TreeMap<String, Long> income = new TreeMap<>();
+        TreeMap<String, Long> spending = new TreeMap<>();
+        for (TransactionSummary summary : summaries) {
+            if (summary.amount() > 0) {
+                income.merge(summary.category(), summary.amount(), Long::sum);
+            } else if (summary.amount() < 0) {
+                spending.merge(summary.category(), -summary.amount(), Long::sum);
+            }
+        }
+        return new TransactionAggregate(summaries.size(), ImmutableSortedMap.copyOfSorted(income), ImmutableSortedMap.copyOfSorted(spending));
+    }
+
+    private static ImmutableSortedMap<String, Long> sum(ImmutableSortedMap<String, Long> a, ImmutableSortedMap<String, Long> b) {
+        if (a.isEmpty()) {
+            return b;
+        } else if (b.isEmpty()) {
+            return a;
+        }
+        TreeMap<String, Long> result = new TreeMap<>(a);
+        b.forEach((category, amount) -> result.merge(category, amount, Long::sum));
+        return ImmutableSortedMap.copyOfSorted(result);
+    }
+
+    public TransactionAggregate plus(TransactionAggregate other) {
+        return new TransactionAggregate(
+                count + other.count,
+                sum(incomeByCategory, other.incomeByCategory),
+                sum(spendingByCategory, other.spendingByCategory)
+        );
+    }
+
+    /**
+     * @return The sum of the positive amounts, in cents.
+     */
+    public long income() {
+        return incomeByCategory.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return The sum of the negated negative amounts, in cents.
+     */
+    public long spending() {
+        return spendingByCategory.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return The sum of the amounts, in cents.
+     */
+    public long amount() {
+        return income() - spending();
+    }
+
+    /**
+     * @return The sum of the amounts of the category, in cents.
+     */
+    public long amount(String category) {
+        return incomeByCategory.getOrDefault(category, 0L) - spendingByCategory.getOrDefault(category, 0L);
+    }
+
+    @Override
+    public void serialize(Document.Writer writer) throws IOException {
+        writer.writeInteger("schema", 1);
+        writer.writeInteger("count", count);
+        TreeSet<String> categories = new TreeSet<>(incomeByCategory.keySet());
+        categories.addAll(spendingByCategory.keySet());
+        Document.Writer byCategoryWriter = writer.writeCompound("byCategory");
+        int i = 0;
+        for (String category : categories) {
+            Document.Writer categoryWriter = byCategoryWriter.writeCompound(i++);
+            categoryWriter.writeString("category", category);
+            categoryWriter.writeInteger("income", incomeByCategory.getOrDefault(category, 0L));
+            categoryWriter.writeInteger("spending", spendingByCategory.getOrDefault(category, 0L));
+            categoryWriter.writeEnd();
+        }
+        byCategoryWriter.writeEnd();
+        writer.writeEnd();
+    }
+
+    public static TransactionAggregate deserialize(Document.Reader reader) throws IOException {
+        long schema = reader.readInteger("schema");
+        if (schema != 1) {
+            throw new IOException("Unsupported schema version: " + schema);
+        }
+        long count = reader.readInteger("count");
+        ImmutableSortedMap.Builder<String, Long> incomeBuilder = ImmutableSortedMap.naturalOrder();
+        ImmutableSortedMap.Builder<String, Long> spendingBuilder = ImmutableSortedMap.naturalOrder();
+        Document.Reader byCategoryReader = reader.readCompound("byCategory");
+        for (int i = 0; !byCategoryReader.isEnd(); i++) {
+            Document.Reader categoryReader = byCategoryReader.readCompound(i);
+            String category = categoryReader.readString("category");
+            long income = categoryReader.readInteger("income");
+            long spending = categoryReader.readInteger("spending");
+            if (income != 0) {
+                incomeBuilder.put(category, income);
+            }
+            if (spending != 0) {
+                spendingBuilder.put(category, spending);
+            }
+            categoryReader.readEnd();
+        }
+        byCategoryReader.readEnd();
+        reader.readEnd();
+        return new TransactionAggregate(count, incomeBuilder.build(), spendingBuilder.build());
+    }
+}
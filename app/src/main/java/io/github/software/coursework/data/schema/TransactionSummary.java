@@ -0,0 +1,51 @@
+package io.github.software.coursework.data.schema;
+
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Item;
+import io.github.software.coursework.data.Reference;
+
+import java.io.IOException;
+
+/**
+ * The fields of a transaction that are needed to order and aggregate it, without its texts.
+ * @param time The time of the transaction, in milliseconds since epoch.
+ * @param reference The reference to the full transaction.
+ * @param amount The amount of the transaction, in cents.
+ * @param category The category of the transaction.
+ */
+public record TransactionSummary(
+        long time,
+        Reference<Transaction> reference,
+        long amount,
+        String category
+) implements Item {
+    public static TransactionSummary of(Reference<Transaction> reference, Transaction transaction) {
+        return new TransactionSummary(transaction.time(), reference, transaction.amount(), transaction.category());
+    }
+
+    @Override
+    public void serialize(Document.Writer writer) throws IOException {
+        writer.writeInteger("schema", 1);
+        writer.writeInteger("time", time);
+        writer.writeReference("reference", reference);
+        writer.writeInteger("amount", amount);
+        writer.writeString("category", category);
+        writer.writeEnd();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static TransactionSummary deserialize(Document.Reader reader) throws IOException {
+        long schema = reader.readInteger("schema");
+        if (schema != 1) {
+            throw new IOException("Unsupported schema version: " + schema);
+        }
+        TransactionSummary rval = new TransactionSummary(
+                reader.readInteger("time"),
+                (Reference<Transaction>) reader.readReference("reference"),
+                reader.readInteger("amount"),
+                reader.readString("category")
+        );
+        reader.readEnd();
+        return rval;
+    }
+}
@@ -220,7 +220,7 @@ public final class EncryptionSettingModel {
         }
 
         for (File child : Objects.requireNonNull(new File(account.path()).listFiles())) {
-            if (child.isDirectory() || (!child.getName().endsWith(".txt") && !(child.getName().endsWith(".bak") && moveBackup))) {
+            if (child.isDirectory() || (!child.getName().endsWith(".txt") && !child.getName().endsWith(".wal") && !(child.getName().endsWith(".bak") && moveBackup))) {
                 continue;
             }
             Files.move(child.toPath(), newDirectory.resolve(child.getName()), StandardCopyOption.REPLACE_EXISTING);
@@ -210,6 +210,7 @@ public final class MainPageController {
         model.setOnBudgetAmountUpdated(text -> budgetAmount.setText(text));
         model.setOnSavedAmountUpdated(text -> savedAmount.setText(text));
         model.setOnUpdatePagination(this::updatePagination);
+        model.setOnTransactionCountLoaded(this::updatePageCount);
 
         // 错误处理回调
         model.setOnCategoryAddError(message -> {
@@ -445,9 +446,13 @@ public final class MainPageController {
     }
 
     private void updatePagination(int totalItems) {
+        updatePageCount(totalItems);
+        pagination.setCurrentPageIndex(0);
+    }
+
+    private void updatePageCount(int totalItems) {
         int pageCount = (int) Math.ceil((double) totalItems / 20);
         pagination.setPageCount(Math.max(pageCount, 1));
-        pagination.setCurrentPageIndex(0);
     }
 
     /**
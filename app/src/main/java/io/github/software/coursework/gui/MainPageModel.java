@@ -1,6 +1,7 @@
 package io.github.software.coursework.gui;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.ImmutableDoubleArray;
 import com.google.common.primitives.ImmutableLongArray;
 import io.github.software.coursework.algo.Model;
@@ -11,6 +12,7 @@ import io.github.software.coursework.data.SyntaxException;
 import io.github.software.coursework.data.schema.Entity;
 import io.github.software.coursework.data.schema.Goal;
 import io.github.software.coursework.data.schema.Transaction;
+import io.github.software.coursework.data.schema.TransactionAggregate;
 import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
@@ -22,7 +24,6 @@ import org.apache.commons.lang3.tuple.Triple;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -32,9 +33,12 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import java.text.NumberFormat;
 
 import static io.github.software.coursework.data.schema.Entity.Type.UNKNOWN;
@@ -68,6 +72,7 @@ public final class MainPageModel {
     private Consumer<String> onBudgetAmountUpdated;
     private Consumer<String> onSavedAmountUpdated;
     private Consumer<Integer> onUpdatePagination;
+    private Consumer<Integer> onTransactionCountLoaded;
 
     // 错误处理回调
     private Consumer<String> onCategoryAddError;
@@ -158,6 +163,10 @@ public final class MainPageModel {
         this.onUpdatePagination = callback;
     }
 
+    public void setOnTransactionCountLoaded(Consumer<Integer> callback) {
+        this.onTransactionCountLoaded = callback;
+    }
+
     public void setOnCategoryAddError(Consumer<String> callback) {
         this.onCategoryAddError = callback;
     }
@@ -191,7 +200,7 @@ public final class MainPageModel {
     }
 
     public void loadEntities() {
-        asyncStorage.entity(table -> {
+        asyncStorage.readEntity(table -> {
             try {
                 SequencedCollection<ReferenceItemPair<Entity>> entities = table.list(0, Integer.MAX_VALUE);
                 if (onEntitiesLoaded != null) {
@@ -204,7 +213,7 @@ public final class MainPageModel {
     }
 
     public void loadCategories() {
-        asyncStorage.transaction(table -> {
+        asyncStorage.readTransaction(table -> {
             try {
                 ImmutablePair<Set<String>, Set<String>> categories = table.getCategories();
                 if (onCategoriesLoaded != null) {
@@ -220,7 +229,7 @@ public final class MainPageModel {
     }
 
     public void loadTags() {
-        asyncStorage.transaction(table -> {
+        asyncStorage.readTransaction(table -> {
             try {
                 ImmutablePair<Set<String>, Set<String>> tags = table.getTags();
                 if (onTagsLoaded != null) {
@@ -236,113 +245,82 @@ public final class MainPageModel {
     }
 
     public void loadTransactions(int page) {
-        asyncStorage.transaction(table -> {
-            try {
-                SequencedCollection<ReferenceItemPair<Transaction>> transactions =
-                        table.list(Long.MIN_VALUE, Long.MAX_VALUE, pageSize * page, pageSize);
-                asyncStorage.entity(table1 -> {
-                    try {
-                        HashMap<Reference<Entity>, Entity> entityNames = new HashMap<>();
-                        ArrayList<ImmutablePair<ReferenceItemPair<Transaction>, Entity>> items = new ArrayList<>();
-                        for (ReferenceItemPair<Transaction> transaction : transactions) {
-                            if (!entityNames.containsKey(transaction.item().entity())) {
-                                entityNames.put(transaction.item().entity(), table1.get(transaction.item().entity()));
-                            }
-                            items.add(ImmutablePair.of(transaction, entityNames.get(transaction.item().entity())));
-                        }
-                        if (onTransactionsLoaded != null) {
-                            Platform.runLater(() -> onTransactionsLoaded.accept(items));
-                        }
-                    } catch (IOException e) {
-                        logger.log(Level.SEVERE, "Cannot get the names for transactions", e);
-                    }
-                });
-            } catch (IOException e) {
+        asyncStorage.queryTransaction(table -> ImmutablePair.of(
+                table.list(Long.MIN_VALUE, Long.MAX_VALUE, pageSize * page, pageSize),
+                table.count(Long.MIN_VALUE, Long.MAX_VALUE)
+        )).thenCompose(found -> {
+            int count = found.getRight();
+            if (onTransactionCountLoaded != null) {
+                Platform.runLater(() -> onTransactionCountLoaded.accept(count));
+            }
+            return withEntities(found.getLeft());
+        }).whenComplete((items, e) -> {
+            if (e != null) {
                 logger.log(Level.SEVERE, "Failed to list transactions", e);
+            } else if (onTransactionsLoaded != null) {
+                Platform.runLater(() -> onTransactionsLoaded.accept(items));
             }
         });
         loadGoal();
     }
 
-    public void loadFilteredTransactions(int page) {
-        asyncStorage.transaction(transactionTable -> {
-            asyncStorage.entity(entityTable -> {
-                try {
-                    SequencedCollection<ReferenceItemPair<Transaction>> transactions =
-                            transactionTable.list(Long.MIN_VALUE, Long.MAX_VALUE, page * pageSize, pageSize);
-
-                    HashMap<Reference<Entity>, Entity> entityMap = new HashMap<>();
-                    ArrayList<ImmutablePair<ReferenceItemPair<Transaction>, Entity>> result = new ArrayList<>();
-
-                    for (ReferenceItemPair<Transaction> transaction : transactions) {
-                        Reference<Entity> ref = transaction.item().entity();
-                        if (!entityMap.containsKey(ref)) {
-                            entityMap.put(ref, entityTable.get(ref));
-                        }
-                        Entity entity = entityMap.get(ref);
-
-                        boolean matches = currentSearchQuery.isEmpty() ||
-                                transaction.item().title().contains(currentSearchQuery) ||
-                                (entity != null && entity.name().contains(currentSearchQuery));
-
-                        if (matches) {
-                            result.add(ImmutablePair.of(transaction, entity));
-                        }
-                    }
-
-                    if (onTransactionsLoaded != null) {
-                        Platform.runLater(() -> onTransactionsLoaded.accept(result));
-                    }
-
-                } catch (IOException e) {
-                    logger.log(Level.SEVERE, "Failed to filter transactions", e);
+    /**
+     * Look up the parties of the transactions.
+     */
+    private CompletableFuture<ArrayList<ImmutablePair<ReferenceItemPair<Transaction>, Entity>>>
+                    withEntities(SequencedCollection<ReferenceItemPair<Transaction>> transactions) {
+        return asyncStorage.queryEntity(table -> {
+            HashMap<Reference<Entity>, Entity> entities = new HashMap<>();
+            ArrayList<ImmutablePair<ReferenceItemPair<Transaction>, Entity>> items = new ArrayList<>();
+            for (ReferenceItemPair<Transaction> transaction : transactions) {
+                Reference<Entity> reference = transaction.item().entity();
+                if (!entities.containsKey(reference)) {
+                    entities.put(reference, table.get(reference));
                 }
-            });
+                items.add(ImmutablePair.of(transaction, entities.get(reference)));
+            }
+            return items;
         });
     }
 
+    public void loadFilteredTransactions(int page) {
+        loadSearchResults(page, false);
+    }
+
     public void searchTransactions(String searchQuery) {
         this.currentSearchQuery = searchQuery;
+        loadSearchResults(0, true);
+    }
 
-        asyncStorage.transaction(transactionTable -> {
-            asyncStorage.entity(entityTable -> {
-                try {
-                    SequencedCollection<ReferenceItemPair<Transaction>> transactions =
-                            transactionTable.list(Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE);
-
-                    HashMap<Reference<Entity>, Entity> entityMap = new HashMap<>();
-                    ArrayList<ImmutablePair<ReferenceItemPair<Transaction>, Entity>> result = new ArrayList<>();
-
-                    for (ReferenceItemPair<Transaction> transaction : transactions) {
-                        Reference<Entity> ref = transaction.item().entity();
-                        if (!entityMap.containsKey(ref)) {
-                            entityMap.put(ref, entityTable.get(ref));
-                        }
-                        Entity entity = entityMap.get(ref);
-
-                        if (searchQuery.isEmpty() || transaction.item().title().contains(searchQuery)
-                                || (entity != null && entity.name().contains(searchQuery))) {
-                            result.add(ImmutablePair.of(transaction, entity));
-                        }
-                    }
-
-                    if (onTransactionsLoaded != null) {
-                        Platform.runLater(() -> onTransactionsLoaded.accept(result));
-                    }
-
-                    if (onUpdatePagination != null) {
-                        Platform.runLater(() -> onUpdatePagination.accept(result.size()));
-                    }
-
-                } catch (IOException e) {
-                    logger.log(Level.SEVERE, "Failed to filter transactions", e);
+    private void loadSearchResults(int page, boolean updatePagination) {
+        String searchQuery = currentSearchQuery;
+        asyncStorage.queryEntity(table -> {
+            HashSet<Reference<Entity>> entities = new HashSet<>();
+            if (!searchQuery.isEmpty()) {
+                for (ReferenceItemPair<Entity> entity : table.search(searchQuery)) {
+                    entities.add(entity.reference());
                 }
-            });
+            }
+            return entities;
+        }).thenCompose(entities -> asyncStorage.queryTransaction(
+                table -> table.search(searchQuery, entities, page * pageSize, pageSize)
+        )).thenCompose(found -> {
+            if (updatePagination && onUpdatePagination != null) {
+                int total = found.getLeft();
+                Platform.runLater(() -> onUpdatePagination.accept(total));
+            }
+            return withEntities(found.getRight());
+        }).whenComplete((items, e) -> {
+            if (e != null) {
+                logger.log(Level.SEVERE, "Failed to search transactions", e);
+            } else if (onTransactionsLoaded != null) {
+                Platform.runLater(() -> onTransactionsLoaded.accept(items));
+            }
         });
     }
 
     public void loadGoal() {
-        asyncStorage.transaction(table -> {
+        asyncStorage.readTransaction(table -> {
             try {
                 Goal goal = table.getGoal();
                 if (onGoalLoaded != null) {
@@ -365,23 +343,22 @@ public final class MainPageModel {
                 TreeMap<String, Long> categoricalSave = new TreeMap<>();
 
                 if (today >= start) {
-                    SequencedCollection<ReferenceItemPair<Transaction>> transactions = table.list(start, today, 0, Integer.MAX_VALUE);
-                    budgetTrain = new double[(int) ((today - start) / DAY + 1)];
-                    savedTrain = new double[(int) ((today - start) / DAY + 1)];
-                    for (ReferenceItemPair<Transaction> transaction : transactions) {
-                        long time = transaction.item().time();
-                        int binIndex = (int) Math.floorDiv(time - start, DAY);
-                        savedTrain[binIndex] += transaction.item().amount();
-                        totalSaved += transaction.item().amount();
-                        categoricalSave.put(transaction.item().category(),
-                                categoricalSave.getOrDefault(transaction.item().category(), 0L) + transaction.item().amount());
-                        if (transaction.item().amount() > 0) { // Not a budget use
-                            continue;
-                        }
-                        budgetTrain[binIndex] -= transaction.item().amount();
-                        totalUsed -= transaction.item().amount();
-                        categoricalUse.put(transaction.item().category(),
-                                categoricalUse.getOrDefault(transaction.item().category(), 0L) - transaction.item().amount());
+                    // The buckets are (start - 1 + i * DAY, start - 1 + (i + 1) * DAY], i.e. the days [start + i * DAY, start + (i + 1) * DAY),
+                    // so a transaction at midnight is counted in the day it starts, and the last bucket is today
+                    List<TransactionAggregate> days = table.aggregate(start - 1, today, DAY);
+                    budgetTrain = new double[days.size()];
+                    savedTrain = new double[days.size()];
+                    TransactionAggregate total = TransactionAggregate.EMPTY;
+                    for (int i = 0; i < days.size(); i++) {
+                        savedTrain[i] = days.get(i).amount();
+                        budgetTrain[i] = days.get(i).spending();
+                        total = total.plus(days.get(i));
+                    }
+                    totalSaved = total.amount();
+                    totalUsed = total.spending();
+                    categoricalUse.putAll(total.spendingByCategory());
+                    for (String category : Sets.union(total.incomeByCategory().keySet(), total.spendingByCategory().keySet())) {
+                        categoricalSave.put(category, total.amount(category));
                     }
                     for (int i = 1; i < budgetTrain.length; i++) {
                         budgetTrain[i] = budgetTrain[i] + budgetTrain[i - 1];
@@ -658,103 +635,100 @@ public final class MainPageModel {
                 return;
             }
 
-            asyncStorage.entity(entityTable -> {
-                asyncStorage.transaction(transactionTable -> {
+            // The new entities are put before the transactions referring to them
+            asyncStorage.submitEntity(AsyncStorage.Priority.BULK, entityTable -> {
+                // 预加载现有实体到内存
+                Map<String, ReferenceItemPair<Entity>> entityMap = new HashMap<>();
+                try (Stream<ReferenceItemPair<Entity>> entities = entityTable.stream()) {
+                    entities.forEach(pair -> entityMap.put(pair.item().name(), pair));
+                }
+
+                LinkedHashMap<Reference<Entity>, Entity> newEntities = new LinkedHashMap<>();
+                LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+
+                for (int i = 3; i < lines.size(); i++) {
+                    String line = lines.get(i);
+                    String[] fields = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)", -1);
+                    if (fields.length < 9) continue;
+
                     try {
-                        // 预加载现有实体到内存
-                        Map<String, ReferenceItemPair<Entity>> entityMap = new HashMap<>();
-                        for (ReferenceItemPair<Entity> pair : entityTable.list(0, Integer.MAX_VALUE)) {
-                            entityMap.put(pair.item().name(), pair);
-                        }
-
-                        List<ImmutablePair<Transaction, Reference<Entity>>> batch = new ArrayList<>();
-
-                        for (int i = 3; i < lines.size(); i++) {
-                            String line = lines.get(i);
-                            String[] fields = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)", -1);
-                            if (fields.length < 9) continue;
-
-                            try {
-                                // 解析交易信息
-                                String summary = fields[1].trim().replaceAll("^\"|\"$", "");
-                                String dateStr = fields[4].trim();
-                                String amountStr = fields[5].trim().replaceAll("[^\\d.-]", "");
-                                String entityField = fields[8].trim();
-
-                                if (amountStr.isEmpty() || dateStr.isEmpty()) continue;
-
-                                // 解析金额
-                                long amountInCents = new BigDecimal(amountStr)
-                                        .multiply(BigDecimal.valueOf(100))
-                                        .longValueExact();
-
-                                // 解析日期
-                                LocalDate date = LocalDate.parse(dateStr, DateTimeFormatter.BASIC_ISO_DATE);
-                                long timestamp = date.atStartOfDay(ZoneId.systemDefault())
-                                        .toInstant()
-                                        .toEpochMilli();
-
-                                // 解析实体名称
-                                String entityName = entityField.contains("/")
-                                        ? entityField.split("/")[1].trim()
-                                        : entityField.trim();
-
-                                // 查找或创建实体
-                                ReferenceItemPair<Entity> entityPair = entityMap.computeIfAbsent(
-                                        entityName,
-                                        k -> {
-                                            Entity newEntity = new Entity(
-                                                    entityName,
-                                                    "", "", "", "",
-                                                    UNKNOWN
-                                            );
-                                            Reference<Entity> ref = new Reference<>();
-                                            try {
-                                                entityTable.put(ref, AsyncStorage.Sensitivity.NORMAL, newEntity);
-                                            } catch (IOException e) {
-                                                throw new UncheckedIOException(e);
-                                            }
-                                            return new ReferenceItemPair<>(ref, newEntity);
-                                        }
-                                );
-
-                                // 创建交易对象
-                                Transaction transaction = new Transaction(
-                                        summary,
-                                        "",
-                                        timestamp,
-                                        amountInCents,
-                                        "",
-                                        entityPair.reference(),
-                                        ImmutableList.of()
-                                );
-
-                                batch.add(ImmutablePair.of(transaction, entityPair.reference()));
-
-                            } catch (Exception e) {
-                                logger.log(Level.WARNING, "Skipping malformed line: " + line, e);
-                            }
-                        }
-
-                        // 批量添加交易
-                        for (ImmutablePair<Transaction, Reference<Entity>> pair : batch) {
-                            transactionTable.put(new Reference<>(), AsyncStorage.Sensitivity.NORMAL, pair.left);
-                        }
-
-                        if (onSuccess != null) {
-                            Platform.runLater(() -> onSuccess.accept(String.format("Imported %d transactions", batch.size())));
-                        }
-
-                        // 刷新界面
-                        Platform.runLater(this::loadEverything);
+                        // 解析交易信息
+                        String summary = fields[1].trim().replaceAll("^\"|\"$", "");
+                        String dateStr = fields[4].trim();
+                        String amountStr = fields[5].trim().replaceAll("[^\\d.-]", "");
+                        String entityField = fields[8].trim();
+
+                        if (amountStr.isEmpty() || dateStr.isEmpty()) continue;
+
+                        // 解析金额
+                        long amountInCents = new BigDecimal(amountStr)
+                                .multiply(BigDecimal.valueOf(100))
+                                .longValueExact();
+
+                        // 解析日期
+                        LocalDate date = LocalDate.parse(dateStr, DateTimeFormatter.BASIC_ISO_DATE);
+                        long timestamp = date.atStartOfDay(ZoneId.systemDefault())
+                                .toInstant()
+                                .toEpochMilli();
+
+                        // 解析实体名称
+                        String entityName = entityField.contains("/")
+                                ? entityField.split("/")[1].trim()
+                                : entityField.trim();
+
+                        // 查找或创建实体
+                        ReferenceItemPair<Entity> entityPair = entityMap.computeIfAbsent(
+                                entityName,
+                                k -> {
+                                    Entity newEntity = new Entity(
+                                            entityName,
+                                            "", "", "", "",
+                                            UNKNOWN
+                                    );
+                                    Reference<Entity> ref = new Reference<>();
+                                    newEntities.put(ref, newEntity);
+                                    return new ReferenceItemPair<>(ref, newEntity);
+                                }
+                        );
+
+                        // 创建交易对象
+                        Transaction transaction = new Transaction(
+                                summary,
+                                "",
+                                timestamp,
+                                amountInCents,
+                                "",
+                                entityPair.reference(),
+                                ImmutableList.of()
+                        );
+
+                        batch.put(new Reference<>(), transaction);
 
                     } catch (Exception e) {
-                        if (onError != null) {
-                            Platform.runLater(() -> onError.accept("Error processing CSV: " + e.getMessage()));
-                        }
-                        logger.log(Level.SEVERE, "CSV import failed", e);
+                        logger.log(Level.WARNING, "Skipping malformed line: " + line, e);
                     }
-                });
+                }
+
+                entityTable.putAll(newEntities, AsyncStorage.Sensitivity.NORMAL);
+                return batch;
+            }).thenCompose(batch -> asyncStorage.submitTransaction(AsyncStorage.Priority.BULK, transactionTable -> {
+                transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+                return batch.size();
+            })).whenComplete((imported, e) -> {
+                if (e != null) {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (onError != null) {
+                        Platform.runLater(() -> onError.accept("Error processing CSV: " + cause.getMessage()));
+                    }
+                    logger.log(Level.SEVERE, "CSV import failed", cause);
+                    return;
+                }
+                if (onSuccess != null) {
+                    Platform.runLater(() -> onSuccess.accept(String.format("Imported %d transactions", imported)));
+                }
+
+                // 刷新界面
+                Platform.runLater(this::loadEverything);
             });
         } catch (IOException e) {
             if (onError != null) {
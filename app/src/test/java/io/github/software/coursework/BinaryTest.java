@@ -0,0 +1,217 @@
+package io.github.software.coursework;
+
+import com.google.common.collect.ImmutableList;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Reference;
+import io.github.software.coursework.data.SyntaxException;
+import io.github.software.coursework.data.json.BinaryDocument;
+import io.github.software.coursework.data.json.JsonDocument;
+import io.github.software.coursework.data.schema.Entity;
+import io.github.software.coursework.data.schema.Transaction;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+public class BinaryTest {
+    @Test
+    public void testIntegers() throws IOException {
+        BinaryDocument document = new BinaryDocument();
+        try (Document.Writer writer = document.writer()) {
+            writer.writeInteger("a", 1);
+            writer.writeInteger("b", -1);
+            writer.writeInteger("0", 1000000000000000000L);
+            writer.writeInteger("c", Long.MIN_VALUE);
+            writer.writeEnd();
+        }
+        try (Document.Reader reader = document.reader()) {
+            assertEquals(1, reader.readInteger("a"));
+            assertEquals(-1, reader.readInteger("b"));
+            assertEquals(1000000000000000000L, reader.readInteger("0"));
+            assertEquals(Long.MIN_VALUE, reader.readInteger("c"));
+            reader.readEnd();
+        }
+
+        // Read in incorrect order is an error
+        assertThrows(SyntaxException.class, () -> {
+            try (Document.Reader reader = document.reader()) {
+                reader.readInteger("b");
+                reader.readInteger("a");
+                reader.readInteger("0");
+            }
+        });
+
+        // Read missing key is an error
+        assertThrows(SyntaxException.class, () -> {
+            try (Document.Reader reader = document.reader()) {
+                reader.readInteger("d");
+            }
+        });
+
+        // Read end but not at the end is an error
+        assertThrows(SyntaxException.class, () -> {
+            try (Document.Reader reader = document.reader()) {
+                reader.readEnd();
+            }
+        });
+
+        // Read a field twice is an error
+        assertThrows(SyntaxException.class, () -> {
+            try (Document.Reader reader = document.reader()) {
+                reader.readInteger("a");
+                reader.readInteger("a");
+            }
+        });
+
+        // Read with wrong type is an error
+        assertThrows(SyntaxException.class, () -> {
+            try (Document.Reader reader = document.reader()) {
+                reader.readString("a");
+            }
+        });
+    }
+
+    @Test
+    public void testDoubles() throws IOException {
+        BinaryDocument document = new BinaryDocument();
+        try (Document.Writer writer = document.writer()) {
+            writer.writeFloat("a", 1.0); // Normal number
+            writer.writeInteger("b", -1); // Write as integer, read as double
+            writer.writeFloat("0", 1.0e100); // Large number
+            writer.writeFloat("c", Double.NaN);
+            writer.writeEnd();
+        }
+        try (Document.Reader reader = document.reader()) {
+            assertEquals(1.0, reader.readFloat("a"));
+            assertEquals(-1.0, reader.readFloat("b"));
+            assertEquals(1.0e100, reader.readFloat("0"));
+            assertTrue(Double.isNaN(reader.readFloat("c")));
+            reader.readEnd();
+        }
+    }
+
+    @Test
+    public void testReferences() throws IOException {
+        BinaryDocument document = new BinaryDocument();
+        Reference<Entity> ref1 = new Reference<>();
+        Reference<Entity> ref2 = new Reference<>();
+        try (Document.Writer writer = document.writer()) {
+            writer.writeReference("a", ref1);
+            writer.writeReference("b", ref2);
+            writer.writeReference("c", null);
+            writer.writeEnd();
+        }
+        try (Document.Reader reader = document.reader()) {
+            assertEquals(ref1, reader.readReference("a"));
+            assertEquals(ref2, reader.readReference("b"));
+            assertFalse(reader.isEnd());
+            assertNull(reader.readReference("c"));
+            assertTrue(reader.isEnd());
+            reader.readEnd();
+        }
+    }
+
+    @Test
+    public void testStrings() throws IOException {
+        BinaryDocument document = new BinaryDocument();
+        try (Document.Writer writer = document.writer()) {
+            writer.writeString("a", "Hello, world!");
+            writer.writeString("b", "");
+            writer.writeString("c", "\n");
+            writer.writeString("d", "你好，世界");
+            writer.writeEnd();
+        }
+        try (Document.Reader reader = document.reader()) {
+            assertEquals("Hello, world!", reader.readString("a"));
+            assertEquals("", reader.readString("b"));
+            assertFalse(reader.isEnd());
+            assertEquals("\n", reader.readString("c"));
+            assertEquals("你好，世界", reader.readString("d"));
+            assertTrue(reader.isEnd());
+            reader.readEnd();
+        }
+    }
+
+    @Test
+    public void testCompound() throws IOException {
+        BinaryDocument document = new BinaryDocument();
+        try (Document.Reader reader = document.reader()) {
+            assertTrue(reader.isEnd());
+            reader.readEnd();
+        }
+
+        // Nested compounds, with repeated keys inside
+        try (Document.Writer writer = document.writer()) {
+            try (Document.Writer nestedArray = writer.writeCompound("array")) {
+                for (int i = 0; i < 5; i++) {
+                    try (Document.Writer element = nestedArray.writeCompound(i)) {
+                        element.writeInteger("a", i);
+                        element.writeString("b", Integer.toString(i));
+                        element.writeEnd();
+                    }
+                }
+                nestedArray.writeEnd();
+            }
+            try (Document.Writer nestedObject = writer.writeCompound("object")) {
+                nestedObject.writeInteger("a", 1);
+                nestedObject.writeInteger("b", 2);
+                nestedObject.writeEnd();
+            }
+            writer.writeEnd();
+        }
+        try (Document.Reader reader = document.reader()) {
+            try (Document.Reader nestedArray = reader.readCompound("array")) {
+                for (int i = 0; i < 5; i++) {
+                    try (Document.Reader element = nestedArray.readCompound(i)) {
+                        assertEquals(i, element.readInteger("a"));
+                        assertEquals(Integer.toString(i), element.readString("b"));
+                        element.readEnd();
+                    }
+                }
+                assertTrue(nestedArray.isEnd());
+                nestedArray.readEnd();
+            }
+            try (Document.Reader nestedObject = reader.readCompound("object")) {
+                assertEquals(1, nestedObject.readInteger("a"));
+                assertEquals(2, nestedObject.readInteger("b"));
+                assertTrue(nestedObject.isEnd());
+                nestedObject.readEnd();
+            }
+            assertTrue(reader.isEnd());
+            reader.readEnd();
+        }
+    }
+
+    @Test
+    public void testCompactness() throws IOException {
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            transactions.add(new Transaction("Title " + i, "Description " + i, 1700000000000L + i, i * 100L,
+                    "Category", new Reference<>(), ImmutableList.of("tag")));
+        }
+        JsonDocument json = new JsonDocument();
+        BinaryDocument binary = new BinaryDocument();
+        for (Document document : new Document[]{json, binary}) {
+            try (Document.Writer writer = document.writer()) {
+                for (int i = 0; i < transactions.size(); i++) {
+                    try (Document.Writer element = writer.writeCompound(i)) {
+                        transactions.get(i).serialize(element);
+                    }
+                }
+                writer.writeEnd();
+            }
+        }
+        try (Document.Reader reader = binary.reader()) {
+            for (int i = 0; i < transactions.size(); i++) {
+                try (Document.Reader element = reader.readCompound(i)) {
+                    assertEquals(transactions.get(i), Transaction.deserialize(element));
+                }
+            }
+            reader.readEnd();
+        }
+        // Field names are interned, so the binary document should be much smaller than the JSON one
+        assertTrue(binary.toByteArray().length * 2 < json.toString().getBytes(StandardCharsets.UTF_8).length);
+    }
+}
@@ -3,16 +3,30 @@ package io.github.software.coursework;
 import com.fasterxml.jackson.core.JsonFactory;
 import io.github.software.coursework.data.AsyncStorage;
 import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.json.EncryptedLogReader;
 import io.github.software.coursework.data.json.EncryptedLogger;
 import io.github.software.coursework.data.json.JsonReader;
 import io.github.software.coursework.util.IntegerItem;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Objects;
 import java.util.SequencedCollection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -27,7 +41,7 @@ public class EncryptedLoggerTest {
             encryptedLogger.log("EVENT_1", AsyncStorage.Sensitivity.NORMAL);
             encryptedLogger.log("EVENT_2", AsyncStorage.Sensitivity.AUTOMATIC, new IntegerItem(5), new IntegerItem(10));
         }
-        SequencedCollection<String> events = EncryptedLogger.decodeLog(Objects.requireNonNull(tempDir.listFiles())[0], key);
+        SequencedCollection<String> events = EncryptedLogger.decodeLog(Objects.requireNonNull(tempDir.listFiles((dir, name) -> name.endsWith(".log")))[0], key);
         assertEquals(2, events.size());
         try (Document.Reader reader = JsonReader.createReader(JsonFactory.builder().build().createParser(events.removeFirst()))) {
             assertTrue(reader.readString("time").matches("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}"));
@@ -48,4 +62,123 @@ public class EncryptedLoggerTest {
             reader.readEnd();
         }
     }
+
+    @Test
+    public void testBatchedFrames(@TempDir File tempDir) throws Exception {
+        byte[] key = new byte[16];
+        SecureRandom secureRandom = new SecureRandom();
+        secureRandom.nextBytes(key);
+        try (EncryptedLogger encryptedLogger = new EncryptedLogger(tempDir, key, Duration.ofMillis(50))) {
+            for (int i = 0; i < 1000; i++) {
+                encryptedLogger.log("EVENT", AsyncStorage.Sensitivity.NORMAL, new IntegerItem(i));
+            }
+            // Written in the background while the logger is still open
+            File file = Objects.requireNonNull(tempDir.listFiles((dir, name) -> name.endsWith(".log")))[0];
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (EncryptedLogger.decodeLog(file, key).size() < 1000) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            List<String> lines = Files.readAllLines(file.toPath());
+            // Several entries share a frame
+            assertTrue(lines.size() < 100);
+        }
+        SequencedCollection<String> events = EncryptedLogger.decodeLog(Objects.requireNonNull(tempDir.listFiles((dir, name) -> name.endsWith(".log")))[0], key);
+        assertEquals(1000, events.size());
+        int i = 0;
+        for (String event : events) {
+            try (Document.Reader reader = JsonReader.createReader(JsonFactory.builder().build().createParser(event))) {
+                reader.readString("time");
+                assertEquals("EVENT", reader.readString("event"));
+                reader.readString("sensitivity");
+                Document.Reader items = reader.readCompound("items");
+                assertEquals(i++, IntegerItem.deserialize(items.readCompound(0)).value());
+                items.readEnd();
+                reader.readEnd();
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyFrames(@TempDir File tempDir) throws Exception {
+        byte[] key = new byte[16];
+        SecureRandom secureRandom = new SecureRandom();
+        secureRandom.nextBytes(key);
+        // One entry per frame, prefixed with its length, as written by earlier versions
+        StringBuilder log = new StringBuilder("--- START OF BUPT-QMUL 2025 SPRING SOFTWARE ENGINEERING COURSEWORK 95 SUBMISSION LOGGING ---\n");
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        for (String entry : List.of("{\"event\":\"EVENT_1\"}", "{\"event\":\"EVENT_2\"}")) {
+            byte[] data = entry.getBytes(StandardCharsets.UTF_8);
+            byte[] padded = ByteBuffer.allocate(512 - 16).putInt(data.length).put(data).array();
+            byte[] iv = new byte[16];
+            secureRandom.nextBytes(iv);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(padded);
+            byte[] frame = ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array();
+            log.append(Base64.getEncoder().encodeToString(frame)).append("\n");
+        }
+        log.append("--- END OF BUPT-QMUL 2025 SPRING SOFTWARE ENGINEERING COURSEWORK 95 SUBMISSION LOGGING ---\n");
+        File file = new File(tempDir, "legacy.log");
+        Files.writeString(file.toPath(), log);
+        assertEquals(List.of("{\"event\":\"EVENT_1\"}", "{\"event\":\"EVENT_2\"}"),
+                List.copyOf(EncryptedLogger.decodeLog(file, key)));
+        try (EncryptedLogReader reader = EncryptedLogReader.open(file, key)) {
+            assertEquals(2, reader.size());
+            assertEquals("EVENT_2", reader.read(1, 1).getFirst().event());
+        }
+    }
+
+    @Test
+    public void testLogReader(@TempDir File tempDir) throws Exception {
+        byte[] key = new byte[16];
+        SecureRandom secureRandom = new SecureRandom();
+        secureRandom.nextBytes(key);
+        try (EncryptedLogger encryptedLogger = new EncryptedLogger(tempDir, key)) {
+            for (int i = 0; i < 3000; i++) {
+                encryptedLogger.log(i % 3 == 0 ? "ADD" : "REMOVE", AsyncStorage.Sensitivity.NORMAL, new IntegerItem(i));
+                if (i % 700 == 0) {
+                    encryptedLogger.flush();
+                }
+            }
+        }
+        File file = Objects.requireNonNull(tempDir.listFiles((dir, name) -> name.endsWith(".log")))[0];
+        File index = new File(file.getPath() + ".idx");
+        List<String> expected = List.copyOf(EncryptedLogger.decodeLog(file, key));
+        assertTrue(index.exists());
+        for (int round = 0; round < 2; round++) {
+            try (EncryptedLogReader reader = EncryptedLogReader.open(file, key)) {
+                assertEquals(3000, reader.size());
+                assertTrue(reader.frameCount() > 1);
+                List<EncryptedLogReader.Entry> window = reader.read(1495, 10);
+                assertEquals(expected.subList(1495, 1505), window.stream().map(EncryptedLogReader.Entry::json).toList());
+                assertEquals(1495, window.getFirst().index());
+                assertEquals(5, reader.read(2995, 10).size());
+                assertEquals(0, reader.read(3000, 10).size());
+
+                // Page through the entries of an event
+                EncryptedLogReader.Filter adds = new EncryptedLogReader.Filter(Set.of("ADD"), null, null);
+                ArrayList<EncryptedLogReader.Entry> found = new ArrayList<>();
+                int next = 0;
+                while (next != -1) {
+                    EncryptedLogReader.Page page = reader.query(adds, next, 64);
+                    assertTrue(page.entries().size() <= 64);
+                    found.addAll(page.entries());
+                    next = page.next();
+                }
+                assertEquals(1000, found.size());
+                assertTrue(found.stream().allMatch(entry -> entry.event().equals("ADD") && entry.index() % 3 == 0));
+
+                // Filter by time
+                LocalDateTime now = LocalDateTime.now();
+                assertEquals(0, reader.query(new EncryptedLogReader.Filter(null, now.plusDays(1), null), 0, 10).entries().size());
+                assertEquals(0, reader.query(new EncryptedLogReader.Filter(null, null, now.minusDays(1)), 0, 10).entries().size());
+                assertEquals(10, reader.query(new EncryptedLogReader.Filter(null, now.minusDays(1), now.plusDays(1)), 0, 10).entries().size());
+            }
+            if (round == 0) {
+                // Rebuilt from the log when the index is lost
+                assertTrue(index.delete());
+            }
+        }
+        assertTrue(index.exists());
+    }
 }
@@ -3,14 +3,18 @@ package io.github.software.coursework;
 import io.github.software.coursework.data.json.DecryptingInputStream;
 import io.github.software.coursework.data.json.EncryptingOutputStream;
 import io.github.software.coursework.data.json.Encryption;
+import io.github.software.coursework.data.json.SegmentedEncryptingOutputStream;
+import io.github.software.coursework.data.json.SegmentedFile;
 import io.github.software.coursework.util.RandomChunkingInputStream;
 import io.github.software.coursework.util.RandomString;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -50,4 +54,103 @@ public class EncryptionTest {
             }
         }
     }
+
+    @Test
+    public void testSegmentedStream() throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        // Empty, within a segment, exactly a segment, and across segments
+        for (int length : new int[] {0, 1, 1000, 65536, 65537, 200000}) {
+            byte[] stored = new byte[length];
+            random.nextBytes(stored);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            try (OutputStream encrypting = new SegmentedEncryptingOutputStream(outputStream, key)) {
+                for (int i = 0; i < length; ) {
+                    int count = Math.min(length - i, random.nextInt(10000));
+                    encrypting.write(stored, i, count);
+                    i += count;
+                }
+            }
+            byte[] encrypted = outputStream.toByteArray();
+            // No base64, only the header and a tag per segment
+            assertTrue(encrypted.length < length + 100 + (length / 65536 + 1) * 16);
+            try (InputStream decrypting = Encryption.decryptingStream(new RandomChunkingInputStream(new ByteArrayInputStream(encrypted)), key)) {
+                assertArrayEquals(stored, decrypting.readAllBytes());
+            }
+
+            // Tampered
+            byte[] tampered = encrypted.clone();
+            tampered[tampered.length - 1 - random.nextInt(Math.min(tampered.length - 31, 1000))] ^= 1;
+            assertThrows(IOException.class, () -> {
+                try (InputStream decrypting = Encryption.decryptingStream(new ByteArrayInputStream(tampered), key)) {
+                    decrypting.readAllBytes();
+                }
+            });
+            // Truncated at a segment boundary
+            if (length > 65536) {
+                byte[] truncated = Arrays.copyOf(encrypted, 31 + 65536 + 16);
+                assertThrows(IOException.class, () -> {
+                    try (InputStream decrypting = Encryption.decryptingStream(new ByteArrayInputStream(truncated), key)) {
+                        decrypting.readAllBytes();
+                    }
+                });
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyStream() throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        String stored = RandomString.generateGeometricLength(16, random);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (OutputStream encrypting = new EncryptingOutputStream(outputStream, key)) {
+            encrypting.write(stored.getBytes(StandardCharsets.UTF_8));
+        }
+        try (InputStream decrypting = Encryption.decryptingStream(new ByteArrayInputStream(outputStream.toByteArray()), key)) {
+            assertEquals(stored, new String(decrypting.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testSegmentedFile(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        for (int length : new int[] {0, 1000, 65536, 200000}) {
+            byte[] stored = new byte[length];
+            random.nextBytes(stored);
+            File file = new File(tempDir, "segmented" + length);
+            try (OutputStream encrypting = new SegmentedEncryptingOutputStream(new FileOutputStream(file), key)) {
+                encrypting.write(stored);
+            }
+            try (SegmentedFile segmented = SegmentedFile.open(file, key)) {
+                assertEquals(length, segmented.size());
+                for (int i = 0; i < 50; i++) {
+                    int offset = random.nextInt(length + 1);
+                    int count = random.nextInt(70000);
+                    assertArrayEquals(Arrays.copyOfRange(stored, offset, Math.min(offset + count, length)), segmented.read(offset, count));
+                }
+            }
+        }
+
+        // Only the segments read are authenticated, a truncated file fails once its end is read
+        File file = new File(tempDir, "segmented200000");
+        try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+            truncate.setLength(31 + 2 * (65536 + 16));
+        }
+        try (SegmentedFile segmented = SegmentedFile.open(file, key)) {
+            assertEquals(100, segmented.read(0, 100).length);
+            assertThrows(IOException.class, () -> segmented.read(65536 + 100, 100));
+        }
+
+        // Files written by earlier versions are not segmented
+        File legacy = new File(tempDir, "legacy");
+        try (OutputStream encrypting = new EncryptingOutputStream(new FileOutputStream(legacy), key)) {
+            encrypting.write(1);
+        }
+        assertNull(SegmentedFile.tryOpen(legacy, key));
+    }
 }
@@ -1,9 +1,14 @@
 package io.github.software.coursework;
 
+import com.google.common.cache.CacheStats;
 import io.github.software.coursework.data.Directory;
+import io.github.software.coursework.data.Document;
+import io.github.software.coursework.data.Item;
 import io.github.software.coursework.data.Reference;
 import io.github.software.coursework.data.json.ChunkedIndex;
+import io.github.software.coursework.data.json.DocumentCache;
 import io.github.software.coursework.data.json.EncryptedDirectory;
+import io.github.software.coursework.data.json.PackDirectory;
 import io.github.software.coursework.data.schema.Entity;
 import io.github.software.coursework.util.IntegerItem;
 import org.junit.jupiter.api.Disabled;
@@ -13,8 +18,15 @@ import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -98,6 +110,509 @@ public class JsonDirectoryTest {
         }
     }
 
+    @Test
+    public void testBinaryDirectory(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        try (Directory directory = new EncryptedDirectory(tempDir, key, "ns", EncryptedDirectory.Format.BINARY)) {
+            directory.put("hello", new Entity("111", "222", "333", "444", "555", Entity.Type.INDIVIDUAL));
+            directory.flush();
+        }
+
+        // Documents are read regardless of the format of the directory
+        try (Directory directory = new EncryptedDirectory(tempDir, key, "ns", EncryptedDirectory.Format.JSON)) {
+            Entity entity = directory.get("hello", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("111", entity.name());
+            assertEquals(Entity.Type.INDIVIDUAL, entity.type());
+            directory.put("world", new Entity("bbb", "ccc", "ddd", "eee", "fff", Entity.Type.NONPROFIT));
+            directory.flush();
+        }
+
+        // Key rotation works for both formats
+        byte[] newKey = new byte[256 / 8];
+        random.nextBytes(newKey);
+        EncryptedDirectory.changeKey(key, newKey, tempDir);
+        try (Directory directory = new EncryptedDirectory(tempDir, newKey, "ns", EncryptedDirectory.Format.BINARY)) {
+            Entity entity = directory.get("hello", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("555", entity.website());
+            entity = directory.get("world", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("bbb", entity.name());
+        }
+    }
+
+    @Test
+    public void testReadRange(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        for (EncryptedDirectory.Compression compression : EncryptedDirectory.Compression.values()) {
+            try (EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, compression.name(), EncryptedDirectory.Format.JSON)) {
+                directory.setCompression(compression);
+                // Spans several segments, and several blocks when compressed
+                StringBuilder name = new StringBuilder();
+                for (int i = 0; i < 40000; i++) {
+                    name.append(i % 10).append("xyz");
+                }
+                directory.put("big", new Entity(name.toString(), "222", "333", "444", "555", Entity.Type.INDIVIDUAL));
+                directory.flush();
+                byte[] whole = ("{\"_filename\":\"" + compression.name() + "/big\",\"schema\":1,\"name\":\"" + name).getBytes(StandardCharsets.UTF_8);
+                int start = whole.length - name.length();
+                assertArrayEquals(Arrays.copyOfRange(whole, 0, 13), directory.readRange("big", 0, 13));
+                // Across the end of the first block
+                assertArrayEquals(Arrays.copyOfRange(whole, 65500, 65600), directory.readRange("big", 65500, 100));
+                assertArrayEquals(Arrays.copyOfRange(whole, start, whole.length), directory.readRange("big", start, name.length()));
+                byte[] end = directory.readRange("big", 160000, 1000);
+                assertNotNull(end);
+                assertTrue(end.length < 1000);
+                assertEquals('}', end[end.length - 1]);
+                assertArrayEquals(new byte[0], directory.readRange("big", 1 << 20, 10));
+                assertNull(directory.readRange("missing", 0, 10));
+            }
+        }
+    }
+
+    @Test
+    public void testCompression(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        File plain = new File(tempDir, "plain");
+        File compressed = new File(tempDir, "compressed");
+        assertTrue(plain.mkdir() && compressed.mkdir());
+        ArrayList<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            entities.add(new Entity("Entity " + i, "+44 20 7946 0" + i, "Somewhere in London, United Kingdom",
+                    "https://example.com/" + i, "Ordinary supplier of goods", Entity.Type.values()[i % Entity.Type.values().length]));
+        }
+        try (EncryptedDirectory directory = new EncryptedDirectory(plain, key, "ns", EncryptedDirectory.Format.JSON)) {
+            for (int i = 0; i < entities.size(); i++) {
+                directory.put("e" + i, entities.get(i));
+            }
+        }
+        try (EncryptedDirectory directory = new EncryptedDirectory(compressed, key, "ns", EncryptedDirectory.Format.JSON)) {
+            directory.setCompression(EncryptedDirectory.Compression.DEFLATE);
+            directory.setDictionarySampleBytes(4096);
+            // The first documents are sampled to train the dictionary, the rest are compressed with it
+            for (int i = 0; i < entities.size(); i++) {
+                directory.put("e" + i, entities.get(i));
+                directory.flush();
+            }
+        }
+        long plainSize = Arrays.stream(Objects.requireNonNull(plain.listFiles())).mapToLong(File::length).sum();
+        long compressedSize = Arrays.stream(Objects.requireNonNull(compressed.listFiles())).mapToLong(File::length).sum();
+        assertTrue(compressedSize < plainSize * 3 / 4, compressedSize + " is not much smaller than " + plainSize);
+
+        DocumentCache.invalidateAll();
+        byte[] newKey = new byte[256 / 8];
+        random.nextBytes(newKey);
+        EncryptedDirectory.changeKey(key, newKey, compressed);
+        // Read back regardless of the setting, the dictionary is found by the documents compressed with it
+        try (EncryptedDirectory directory = new EncryptedDirectory(compressed, newKey, "ns", EncryptedDirectory.Format.JSON)) {
+            for (int i = 0; i < entities.size(); i++) {
+                assertEquals(entities.get(i), directory.get("e" + i, Entity::deserialize));
+            }
+        }
+    }
+
+    @Test
+    public void testCompressionCacheWeight(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        // Compresses to a small fraction of its size, which must not be what the cache is charged
+        Entity entity = new Entity("a".repeat(8192), "", "", "", "", Entity.Type.UNKNOWN);
+        for (boolean writeAheadLog : new boolean[] {false, true}) {
+            String namespace = writeAheadLog ? "wal" : "direct";
+            DocumentCache.invalidateAll();
+            long written;
+            try (EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, namespace, EncryptedDirectory.Format.JSON, writeAheadLog)) {
+                directory.setCompression(EncryptedDirectory.Compression.DEFLATE);
+                directory.put("hello", entity);
+                // Cached by the flush, or by the checkpoint of the log
+                directory.flush();
+                written = DocumentCache.weight(tempDir, namespace + "/hello");
+            }
+            assertTrue(new File(tempDir, EncryptedDirectory.obfuscateFileName("hello", namespace, key)).length() < 1024);
+            assertTrue(written > 8192, "Cached with weight " + written);
+
+            DocumentCache.invalidateAll();
+            try (EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, namespace, EncryptedDirectory.Format.JSON)) {
+                assertEquals(entity, directory.get("hello", Entity::deserialize));
+            }
+            assertEquals(written, DocumentCache.weight(tempDir, namespace + "/hello"));
+        }
+    }
+
+    @Test
+    public void testParallelFlush(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        try (Directory directory = new EncryptedDirectory(tempDir, key, "flush", EncryptedDirectory.Format.BINARY)) {
+            for (int i = 0; i < 200; i++) {
+                directory.put(Integer.toString(i), new Entity(Integer.toString(i), "", "", "", "", Entity.Type.UNKNOWN));
+            }
+            directory.flush();
+            for (int i = 0; i < 200; i += 2) {
+                directory.put(Integer.toString(i), null);
+            }
+            for (int i = 1; i < 200; i += 2) {
+                directory.put(Integer.toString(i), new Entity("updated " + i, "", "", "", "", Entity.Type.UNKNOWN));
+            }
+        }
+        assertEquals(100, Objects.requireNonNull(tempDir.listFiles(f -> f.getName().endsWith(".txt"))).length);
+        assertEquals(0, Objects.requireNonNull(tempDir.listFiles(f -> f.getName().endsWith(".tmp"))).length);
+        try (Directory directory = new EncryptedDirectory(tempDir, key, "flush")) {
+            for (int i = 0; i < 200; i++) {
+                Entity entity = directory.get(Integer.toString(i), Entity::deserialize);
+                if (i % 2 == 0) {
+                    assertNull(entity);
+                } else {
+                    assertNotNull(entity);
+                    assertEquals("updated " + i, entity.name());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSharedCache(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        try (Directory directory = new EncryptedDirectory(tempDir, key, "cache")) {
+            for (int i = 0; i < 100; i++) {
+                directory.put(Integer.toString(i), new Entity("x".repeat(1000), "", "", "", "", Entity.Type.UNKNOWN));
+            }
+        }
+        try {
+            // Room for a handful of the documents above, but not all of them
+            DocumentCache.setBudget(32 * 1024);
+            try (Directory first = new EncryptedDirectory(tempDir, key, "cache");
+                 Directory second = new EncryptedDirectory(tempDir, key, "cache")) {
+                CacheStats before = DocumentCache.stats();
+                assertNotNull(first.get("0", Entity::deserialize));
+                assertNotNull(second.get("0", Entity::deserialize)); // Shared between directory instances
+                CacheStats stats = DocumentCache.stats().minus(before);
+                assertEquals(1, stats.missCount());
+                assertEquals(1, stats.hitCount());
+
+                for (int i = 0; i < 100; i++) {
+                    assertNotNull(first.get(Integer.toString(i), Entity::deserialize));
+                }
+                stats = DocumentCache.stats().minus(before);
+                assertTrue(stats.evictionCount() > 0);
+                assertTrue(DocumentCache.size() < 100);
+                assertNull(first.withNamespace("other").get("0", Entity::deserialize));
+            }
+        } finally {
+            DocumentCache.resetBudget();
+        }
+    }
+
+    private static File[] listLogSegments(File tempDir) {
+        return Objects.requireNonNull(tempDir.listFiles(f -> f.getName().endsWith(".wal")));
+    }
+
+    @Test
+    public void testWriteAheadLog(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+
+        // Committed but never flushed, as if the application crashed
+        EncryptedDirectory crashed = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true);
+        crashed.put("hello", new Entity("111", "222", "333", "444", "555", Entity.Type.INDIVIDUAL));
+        crashed.withNamespace("sub").put("world", new Entity("bbb", "ccc", "ddd", "eee", "fff", Entity.Type.NONPROFIT));
+        crashed.commit();
+        crashed.put("uncommitted", new Entity("ggg", "hhh", "iii", "jjj", "kkk", Entity.Type.EDUCATION));
+        assertEquals(0, Objects.requireNonNull(tempDir.listFiles(f -> f.getName().endsWith(".txt"))).length);
+        assertEquals(1, listLogSegments(tempDir).length);
+
+        // Recovery on open
+        try (EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true)) {
+            Entity entity = directory.get("hello", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("111", entity.name());
+            entity = directory.withNamespace("sub").get("world", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("bbb", entity.name());
+            assertNull(directory.get("uncommitted", Entity::deserialize));
+
+            // Deletion is logged too
+            directory.put("hello", null);
+            directory.commit();
+        }
+        assertEquals(0, listLogSegments(tempDir).length);
+        try (Directory directory = new EncryptedDirectory(tempDir, key, "wal")) {
+            assertNull(directory.get("hello", Entity::deserialize));
+            assertNotNull(directory.withNamespace("sub").get("world", Entity::deserialize));
+        }
+
+        // A torn frame at the tail is ignored, the frames before it are kept
+        EncryptedDirectory torn = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true);
+        torn.put("first", new Entity("1", "", "", "", "", Entity.Type.UNKNOWN));
+        torn.commit();
+        torn.put("second", new Entity("2", "", "", "", "", Entity.Type.UNKNOWN));
+        torn.commit();
+        File segment = listLogSegments(tempDir)[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        try (EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true)) {
+            assertNotNull(directory.get("first", Entity::deserialize));
+            assertNull(directory.get("second", Entity::deserialize));
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogCheckpoint(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Random random1 = new Random();
+        ArrayList<IntegerItem> items = new ArrayList<>();
+        EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true);
+        directory.setCheckpointThreshold(1024);
+        ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(directory.withNamespace("index"), IntegerItem::compareTo, IntegerItem::deserialize);
+        chunkedIndex.setMergeThreshold(2);
+        chunkedIndex.setSplitThreshold(6);
+        for (int i = 0; i < 200; i++) {
+            IntegerItem item = new IntegerItem(random1.nextLong());
+            items.add(item);
+            chunkedIndex.addSample(item);
+            directory.commit();
+        }
+        items.sort(IntegerItem::compareTo);
+        assertEquals(items, chunkedIndex.querySamples(null, null, 0, Integer.MAX_VALUE));
+        directory.awaitCheckpoint();
+        assertTrue(Objects.requireNonNull(tempDir.listFiles(f -> f.getName().endsWith(".txt"))).length > 0);
+
+        // Crash without closing, background checkpoints and the log together hold everything
+        try (EncryptedDirectory recovered = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true);
+             ChunkedIndex<IntegerItem> recoveredIndex = new ChunkedIndex<>(recovered.withNamespace("index"), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            assertEquals(items, recoveredIndex.querySamples(null, null, 0, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogCheckpointPolicy(@TempDir File tempDir) throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Entity entity = new Entity("111", "222", "333", "444", "555", Entity.Type.INDIVIDUAL);
+        EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true);
+
+        // Written once the log is idle
+        directory.setCheckpointPolicy(new EncryptedDirectory.CheckpointPolicy(Long.MAX_VALUE, Long.MAX_VALUE, Duration.ofMillis(50)));
+        directory.put("idle", entity);
+        directory.commit();
+        File idle = new File(tempDir, EncryptedDirectory.obfuscateFileName("idle", "wal", key));
+        for (int i = 0; i < 100 && !idle.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(idle.exists());
+
+        // Written once enough documents are waiting, without waiting for the log to be idle
+        directory.setCheckpointPolicy(new EncryptedDirectory.CheckpointPolicy(Long.MAX_VALUE, 1, null));
+        directory.put("dirty", entity);
+        directory.commit();
+        directory.awaitCheckpoint();
+        assertTrue(new File(tempDir, EncryptedDirectory.obfuscateFileName("dirty", "wal", key)).exists());
+
+        // Left in the log otherwise
+        directory.setCheckpointPolicy(new EncryptedDirectory.CheckpointPolicy(Long.MAX_VALUE, Long.MAX_VALUE, null));
+        directory.put("kept", entity);
+        directory.commit();
+        Thread.sleep(100);
+        directory.awaitCheckpoint();
+        File kept = new File(tempDir, EncryptedDirectory.obfuscateFileName("kept", "wal", key));
+        assertFalse(kept.exists());
+        directory.close();
+        assertTrue(kept.exists());
+        assertEquals(0, listLogSegments(tempDir).length);
+    }
+
+    @Test
+    public void testWriteAheadLogCheckpointFailure(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Entity entity = new Entity("111", "222", "333", "444", "555", Entity.Type.INDIVIDUAL);
+        EncryptedDirectory directory = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true);
+        directory.setCheckpointPolicy(new EncryptedDirectory.CheckpointPolicy(Long.MAX_VALUE, Long.MAX_VALUE, null));
+        directory.put("hello", entity);
+        directory.commit();
+
+        // A directory in place of the file makes writing the document fail
+        File blocker = new File(tempDir, EncryptedDirectory.obfuscateFileName("hello", "wal", key));
+        assertTrue(new File(blocker, "blocker").mkdirs());
+        assertThrows(IOException.class, directory::flush);
+        assertEquals(2, listLogSegments(tempDir).length, "The segment holding the document must be kept");
+
+        // The next checkpoint writes the document along with the newer ones, and only then deletes the segment
+        assertTrue(new File(blocker, "blocker").delete() && blocker.delete());
+        directory.put("world", entity);
+        directory.flush();
+        assertEquals(1, listLogSegments(tempDir).length);
+        directory.close();
+        DocumentCache.invalidateAll();
+        try (Directory reopened = new EncryptedDirectory(tempDir, key, "wal")) {
+            assertNotNull(reopened.get("hello", Entity::deserialize));
+            assertNotNull(reopened.get("world", Entity::deserialize));
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogChangeKey(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        byte[] newKey = new byte[256 / 8];
+        random.nextBytes(newKey);
+        EncryptedDirectory crashed = new EncryptedDirectory(tempDir, key, "wal", EncryptedDirectory.Format.BINARY, true);
+        crashed.put("hello", new Entity("111", "222", "333", "444", "555", Entity.Type.INDIVIDUAL));
+        crashed.commit();
+        EncryptedDirectory.changeKey(key, newKey, tempDir);
+        assertEquals(0, listLogSegments(tempDir).length);
+        try (Directory directory = new EncryptedDirectory(tempDir, newKey, "wal")) {
+            Entity entity = directory.get("hello", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("111", entity.name());
+        }
+    }
+
+    private static File[] listPackFiles(File tempDir, String extension) {
+        return Objects.requireNonNull(tempDir.listFiles(f -> f.getName().endsWith(extension)));
+    }
+
+    @Test
+    public void testPackDirectory(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+
+        // Committed but never closed, as if the application crashed
+        PackDirectory crashed = new PackDirectory(tempDir, key, "pack", EncryptedDirectory.Format.BINARY);
+        crashed.put("hello", new Entity("111", "222", "333", "444", "555", Entity.Type.INDIVIDUAL));
+        crashed.withNamespace("sub").put("world", new Entity("bbb", "ccc", "ddd", "eee", "fff", Entity.Type.NONPROFIT));
+        crashed.commit();
+        crashed.put("uncommitted", new Entity("ggg", "hhh", "iii", "jjj", "kkk", Entity.Type.EDUCATION));
+        assertEquals(0, listPackFiles(tempDir, ".txt").length);
+        assertEquals(1, listPackFiles(tempDir, ".pack").length);
+        assertEquals(0, listPackFiles(tempDir, ".ptab").length);
+
+        // Recovered from the tail of the pack
+        DocumentCache.invalidateAll();
+        try (PackDirectory directory = new PackDirectory(tempDir, key, "pack", EncryptedDirectory.Format.BINARY)) {
+            Entity entity = directory.get("hello", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("111", entity.name());
+            entity = directory.withNamespace("sub").get("world", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("bbb", entity.name());
+            assertNull(directory.get("uncommitted", Entity::deserialize));
+            directory.put("hello", null);
+            directory.commit();
+        }
+        assertEquals(1, listPackFiles(tempDir, ".ptab").length);
+
+        // Located through the table, and through the tombstones when the table is lost
+        for (int round = 0; round < 2; round++) {
+            DocumentCache.invalidateAll();
+            try (Directory directory = new PackDirectory(tempDir, key, "pack")) {
+                assertNull(directory.get("hello", Entity::deserialize));
+                assertNotNull(directory.withNamespace("sub").get("world", Entity::deserialize));
+            }
+            if (round == 0) {
+                assertTrue(listPackFiles(tempDir, ".ptab")[0].delete());
+            }
+        }
+
+        // A torn record at the tail is ignored, the records before it are kept
+        PackDirectory torn = new PackDirectory(tempDir, key, "pack", EncryptedDirectory.Format.BINARY);
+        torn.put("first", new Entity("1", "", "", "", "", Entity.Type.UNKNOWN));
+        torn.commit();
+        torn.put("second", new Entity("2", "", "", "", "", Entity.Type.UNKNOWN));
+        torn.commit();
+        try (RandomAccessFile file = new RandomAccessFile(listPackFiles(tempDir, ".pack")[0], "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        DocumentCache.invalidateAll();
+        try (PackDirectory directory = new PackDirectory(tempDir, key, "pack", EncryptedDirectory.Format.BINARY)) {
+            assertNotNull(directory.get("first", Entity::deserialize));
+            assertNull(directory.get("second", Entity::deserialize));
+            assertNotNull(directory.withNamespace("sub").get("world", Entity::deserialize));
+        }
+    }
+
+    @Test
+    public void testPackCompaction(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        HashMap<String, IntegerItem> expected = new HashMap<>();
+        try (PackDirectory directory = new PackDirectory(tempDir, key, "pack", EncryptedDirectory.Format.BINARY)) {
+            directory.setSegmentSize(4096);
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 50; i++) {
+                    IntegerItem item = round == 19 && i % 5 == 0 ? null : new IntegerItem(round * 100L + i);
+                    directory.put("item" + i, item);
+                    expected.put("item" + i, item);
+                }
+                directory.commit();
+            }
+            directory.awaitCompaction();
+            // Far fewer segments than were written, as the overwritten ones are compacted away
+            assertTrue(directory.segmentCount() <= 4, "segments: " + directory.segmentCount());
+            for (Map.Entry<String, IntegerItem> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), directory.get(entry.getKey(), IntegerItem::deserialize));
+            }
+        }
+        assertEquals(listPackFiles(tempDir, ".pack").length, Objects.requireNonNull(tempDir.listFiles()).length - 1);
+        for (int round = 0; round < 2; round++) {
+            DocumentCache.invalidateAll();
+            try (PackDirectory directory = new PackDirectory(tempDir, key, "pack", EncryptedDirectory.Format.BINARY)) {
+                for (Map.Entry<String, IntegerItem> entry : expected.entrySet()) {
+                    assertEquals(entry.getValue(), directory.get(entry.getKey(), IntegerItem::deserialize));
+                }
+            }
+            if (round == 0) {
+                assertTrue(listPackFiles(tempDir, ".ptab")[0].delete());
+            }
+        }
+    }
+
+    @Test
+    public void testPackChangeKey(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        byte[] newKey = new byte[256 / 8];
+        random.nextBytes(newKey);
+        try (PackDirectory directory = new PackDirectory(tempDir, key, "pack")) {
+            directory.put("hello", new Entity("111", "222", "333", "444", "555", Entity.Type.INDIVIDUAL));
+            directory.withNamespace("sub").put("world", new Entity("bbb", "ccc", "ddd", "eee", "fff", Entity.Type.NONPROFIT));
+            directory.put("removed", new Entity("ggg", "hhh", "iii", "jjj", "kkk", Entity.Type.EDUCATION));
+            directory.commit();
+            directory.put("removed", null);
+        }
+        EncryptedDirectory.changeKey(key, newKey, tempDir);
+        assertEquals(1, listPackFiles(tempDir, ".pack").length);
+        DocumentCache.invalidateAll();
+        try (PackDirectory directory = new PackDirectory(tempDir, newKey, "pack")) {
+            Entity entity = directory.get("hello", Entity::deserialize);
+            assertNotNull(entity);
+            assertEquals("111", entity.name());
+            assertNotNull(directory.withNamespace("sub").get("world", Entity::deserialize));
+            assertNull(directory.get("removed", Entity::deserialize));
+        }
+    }
+
     @Test
     public void testChunkIndex(@TempDir File tempDir) throws IOException {
         SecureRandom random = new SecureRandom();
@@ -195,6 +710,442 @@ public class JsonDirectoryTest {
         }
     }
 
+    @Test
+    public void testChunkIndexOrderStatistics(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Random random1 = new Random();
+        ArrayList<IntegerItem> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            items.add(new IntegerItem(random1.nextInt(100)));
+        }
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            chunkedIndex.setMergeThreshold(2);
+            chunkedIndex.setSplitThreshold(6);
+            for (IntegerItem item : items) {
+                chunkedIndex.addSample(item);
+            }
+            for (int round = 0; round < 2; round++) {
+                ArrayList<IntegerItem> sorted = new ArrayList<>(items);
+                sorted.sort(IntegerItem::compareTo);
+                assertEquals(sorted.size(), chunkedIndex.count(null, null));
+
+                // Every offset lands on the right element
+                for (int i = 0; i < sorted.size(); i++) {
+                    ArrayList<IntegerItem> queryResult = chunkedIndex.querySamples(null, null, i, 1);
+                    assertEquals(1, queryResult.size());
+                    assertEquals(sorted.get(i), queryResult.getFirst());
+                }
+                assertEquals(0, chunkedIndex.querySamples(null, null, sorted.size(), 1).size());
+
+                // Counting matches the brute force, including duplicated elements at the bounds
+                for (int i = 0; i < 50; i++) {
+                    IntegerItem min = new IntegerItem(random1.nextInt(110) - 5);
+                    IntegerItem max = new IntegerItem(random1.nextInt(110) - 5);
+                    List<IntegerItem> expected = sorted.stream()
+                            .filter(x -> x.compareTo(min) >= 0 && x.compareTo(max) < 0).toList();
+                    assertEquals(expected.size(), chunkedIndex.count(min, max));
+                    assertEquals(expected.size(), chunkedIndex.querySamples(min, max, 0, Integer.MAX_VALUE).size());
+                    int skip = expected.isEmpty() ? 0 : random1.nextInt(expected.size());
+                    assertEquals(expected.subList(skip, expected.size()), chunkedIndex.querySamples(min, max, skip, Integer.MAX_VALUE));
+                }
+
+                // Remove some and check again
+                for (int i = 0; i < 60; i++) {
+                    chunkedIndex.removeSample(items.removeLast());
+                }
+            }
+
+            // Remove everything
+            for (IntegerItem item : items) {
+                chunkedIndex.removeSample(item);
+            }
+            assertEquals(0, chunkedIndex.count(null, null));
+            assertEquals(0, chunkedIndex.querySamples(null, null, 0, Integer.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void testChunkIndexStream(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Random random1 = new Random();
+        ArrayList<IntegerItem> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            items.add(new IntegerItem(random1.nextInt(100)));
+        }
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            assertEquals(0, chunkedIndex.stream(null, null, false).count());
+            chunkedIndex.setSplitThreshold(6);
+            chunkedIndex.addSamples(items);
+            items.sort(IntegerItem::compareTo);
+            assertEquals(items, chunkedIndex.stream(null, null, false).toList());
+            assertEquals(items.reversed(), chunkedIndex.stream(null, null, true).toList());
+
+            // Streaming matches the brute force in both directions, including duplicated elements at the bounds
+            for (int i = 0; i < 50; i++) {
+                IntegerItem min = new IntegerItem(random1.nextInt(110) - 5);
+                IntegerItem max = new IntegerItem(random1.nextInt(110) - 5);
+                List<IntegerItem> expected = items.stream()
+                        .filter(x -> x.compareTo(min) >= 0 && x.compareTo(max) < 0).toList();
+                assertEquals(expected, chunkedIndex.stream(min, max, false).toList());
+                assertEquals(expected.reversed(), chunkedIndex.stream(min, max, true).toList());
+            }
+            assertEquals(items.subList(0, 3), chunkedIndex.stream(null, null, false).limit(3).toList());
+
+            // Modifying the index invalidates the streams over it
+            Iterator<IntegerItem> iterator = chunkedIndex.stream(null, null, false).iterator();
+            iterator.next();
+            chunkedIndex.addSample(new IntegerItem(50));
+            assertThrows(ConcurrentModificationException.class, iterator::next);
+        }
+    }
+
+    @Test
+    public void testChunkIndexSnapshot(@TempDir File tempDir) throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Random random1 = new Random();
+        ArrayList<IntegerItem> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            items.add(new IntegerItem(random1.nextInt(100)));
+        }
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            chunkedIndex.setSplitThreshold(6);
+            chunkedIndex.setMergeThreshold(2);
+            chunkedIndex.addSamples(items);
+            items.sort(IntegerItem::compareTo);
+            List<IntegerItem> pinned = List.copyOf(items);
+
+            ChunkedIndex<IntegerItem>.Snapshot first = chunkedIndex.snapshot();
+            // The snapshot is streamed on another thread while the index is split, merged and cleared meanwhile
+            Iterator<IntegerItem> iterator = first.stream(null, null, false).iterator();
+            CompletableFuture<List<IntegerItem>> streamed = new CompletableFuture<>();
+            CountDownLatch modified = new CountDownLatch(1);
+            Thread reader = new Thread(() -> {
+                try {
+                    ArrayList<IntegerItem> result = new ArrayList<>();
+                    result.add(iterator.next());
+                    modified.await();
+                    iterator.forEachRemaining(result::add);
+                    streamed.complete(result);
+                } catch (Throwable e) {
+                    streamed.completeExceptionally(e);
+                }
+            });
+            reader.start();
+            for (int i = 0; i < 100; i++) {
+                IntegerItem item = new IntegerItem(random1.nextInt(100));
+                chunkedIndex.addSample(item);
+                items.add(item);
+                IntegerItem removed = items.remove(random1.nextInt(items.size()));
+                chunkedIndex.removeSample(removed);
+            }
+            items.sort(IntegerItem::compareTo);
+            modified.countDown();
+            assertEquals(pinned, streamed.get(5, TimeUnit.SECONDS));
+            assertEquals(items, chunkedIndex.stream(null, null, false).toList());
+            assertTrue(chunkedIndex.supersededChunkCount() > 0);
+
+            ChunkedIndex<IntegerItem>.Snapshot second = chunkedIndex.snapshot();
+            List<IntegerItem> pinned1 = List.copyOf(items);
+            chunkedIndex.clear();
+            assertEquals(0, chunkedIndex.count(null, null));
+            for (int i = 0; i < 20; i++) {
+                IntegerItem min = new IntegerItem(random1.nextInt(110) - 5);
+                IntegerItem max = new IntegerItem(random1.nextInt(110) - 5);
+                assertEquals(pinned.stream().filter(x -> x.compareTo(min) >= 0 && x.compareTo(max) < 0).count(), first.count(min, max));
+                assertEquals(pinned1.stream().filter(x -> x.compareTo(min) >= 0 && x.compareTo(max) < 0).toList(),
+                        second.querySamples(min, max, 0, Integer.MAX_VALUE));
+            }
+
+            // The superseded chunks are kept as long as a snapshot may read them
+            first.close();
+            assertTrue(chunkedIndex.supersededChunkCount() > 0);
+            assertEquals(pinned1, second.stream(null, null, true).toList().reversed());
+            second.close();
+            second.close();
+            assertEquals(0, chunkedIndex.supersededChunkCount());
+            assertThrows(IllegalStateException.class, () -> first.count(null, null));
+        }
+    }
+
+    private static final ChunkedIndex.Aggregator<IntegerItem, IntegerItem> sum = new ChunkedIndex.Aggregator<>() {
+        @Override
+        public IntegerItem empty() {
+            return new IntegerItem(0);
+        }
+
+        @Override
+        public IntegerItem of(IntegerItem item) {
+            return item;
+        }
+
+        @Override
+        public IntegerItem combine(IntegerItem left, IntegerItem right) {
+            return new IntegerItem(left.value() + right.value());
+        }
+
+        @Override
+        public IntegerItem deserialize(Document.Reader reader) throws IOException {
+            return IntegerItem.deserialize(reader);
+        }
+    };
+
+    @Test
+    public void testChunkIndexAggregate(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Random random1 = new Random();
+        ChunkedIndex.KeyCodec<IntegerItem> keyCodec = ChunkedIndex.KeyCodec.ofLong(IntegerItem::value, IntegerItem::new);
+        ArrayList<IntegerItem> items = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            items.add(new IntegerItem(random1.nextInt(100)));
+        }
+        // Written before the index was aggregated
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize, keyCodec)) {
+            chunkedIndex.setSplitThreshold(6);
+            chunkedIndex.addSamples(items.subList(0, 100));
+        }
+        for (int reopen = 0; reopen < 2; reopen++) {
+            DocumentCache.invalidateAll();
+            try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                    new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize, keyCodec, sum)) {
+                chunkedIndex.setMergeThreshold(2);
+                chunkedIndex.setSplitThreshold(6);
+                if (reopen == 0) {
+                    for (IntegerItem item : items.subList(100, 200)) {
+                        chunkedIndex.addSample(item);
+                    }
+                    for (int i = 0; i < 60; i++) {
+                        chunkedIndex.removeSample(items.removeLast());
+                    }
+                }
+                assertEquals(items.stream().mapToLong(IntegerItem::value).sum(), chunkedIndex.aggregate(null, null, sum).value());
+                for (int i = 0; i < 50; i++) {
+                    IntegerItem min = new IntegerItem(random1.nextInt(110) - 5);
+                    IntegerItem max = new IntegerItem(random1.nextInt(110) - 5);
+                    long expected = items.stream().filter(x -> x.compareTo(min) >= 0 && x.compareTo(max) < 0).mapToLong(IntegerItem::value).sum();
+                    assertEquals(expected, chunkedIndex.aggregate(min, max, sum).value());
+                }
+            }
+        }
+
+        // Queries aggregating the same chunks at the same time, and the next modification storing what they computed
+        File legacy = new File(tempDir, "legacy");
+        assertTrue(legacy.mkdir());
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(legacy, key), IntegerItem::compareTo, IntegerItem::deserialize, keyCodec)) {
+            chunkedIndex.setSplitThreshold(6);
+            chunkedIndex.addSamples(items);
+        }
+        DocumentCache.invalidateAll();
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(legacy, key), IntegerItem::compareTo, IntegerItem::deserialize, keyCodec, sum)) {
+            long total = items.stream().mapToLong(IntegerItem::value).sum();
+            ArrayList<CompletableFuture<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return chunkedIndex.aggregate(null, null, sum).value();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            for (CompletableFuture<Long> future : futures) {
+                assertEquals(total, (long) future.join());
+            }
+            IntegerItem added = new IntegerItem(1000);
+            chunkedIndex.addSample(added);
+            assertEquals(total + 1000, chunkedIndex.aggregate(null, null, sum).value());
+            assertEquals(total, chunkedIndex.aggregate(null, added, sum).value());
+        }
+    }
+
+    @Test
+    public void testChunkIndexKeyOnly(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        ChunkedIndex.KeyCodec<IntegerItem> keyCodec = ChunkedIndex.KeyCodec.ofLong(IntegerItem::value, IntegerItem::new);
+
+        // An index written with schema 1, where the full elements are stored as bounds
+        try (Directory directory = new EncryptedDirectory(tempDir, key)) {
+            Reference<Item> chunk = new Reference<>();
+            directory.put(chunk, Item.asList(List.of(new IntegerItem(1), new IntegerItem(2), new IntegerItem(3))));
+            directory.put("index", writer -> {
+                writer.writeInteger("schema", 1);
+                Document.Writer descriptions = writer.writeCompound("chunkDescriptions");
+                Document.Writer description = descriptions.writeCompound(0);
+                description.writeInteger("count", 3);
+                new IntegerItem(1).serialize(description.writeCompound("min"));
+                new IntegerItem(3).serialize(description.writeCompound("max"));
+                description.writeReference("reference", chunk);
+                description.writeEnd();
+                descriptions.writeEnd();
+                writer.writeEnd();
+            });
+        }
+        DocumentCache.invalidateAll(); // The documents above are cached as the anonymous items that were put
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize, keyCodec)) {
+            assertEquals(List.of(new IntegerItem(2), new IntegerItem(3)), chunkedIndex.querySamples(new IntegerItem(2), null, 0, Integer.MAX_VALUE));
+            chunkedIndex.addSample(new IntegerItem(4));
+        }
+
+        // Rewritten with schema 3, where only the keys are stored, in pages under the root
+        DocumentCache.invalidateAll();
+        try (Directory directory = new EncryptedDirectory(tempDir, key)) {
+            ArrayList<Reference<?>> pages = new ArrayList<>();
+            assertNotNull(directory.get("index", reader -> {
+                assertEquals(3, reader.readInteger("schema"));
+                Document.Reader entries = reader.readCompound("pages");
+                Document.Reader entry = entries.readCompound(0);
+                assertEquals(1, entry.readInteger("chunks"));
+                assertEquals(4, entry.readInteger("count"));
+                assertEquals(new IntegerItem(4), keyCodec.deserialize(entry.readCompound("max")));
+                pages.add(entry.readReference("reference"));
+                entry.readEnd();
+                entries.readEnd();
+                reader.readEnd();
+                return new IntegerItem(0);
+            }));
+            assertNotNull(directory.get(new Reference<IntegerItem>(pages.getFirst().id()), reader -> {
+                Document.Reader descriptions = reader.readCompound("chunkDescriptions");
+                Document.Reader description = descriptions.readCompound(0);
+                assertEquals(4, description.readInteger("count"));
+                assertEquals(new IntegerItem(1), keyCodec.deserialize(description.readCompound("min")));
+                assertEquals(new IntegerItem(4), keyCodec.deserialize(description.readCompound("max")));
+                description.readReference("reference");
+                description.readEnd();
+                descriptions.readEnd();
+                reader.readEnd();
+                return new IntegerItem(0);
+            }));
+        }
+        DocumentCache.invalidateAll();
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize, keyCodec)) {
+            assertEquals(4, chunkedIndex.count(null, null));
+            assertEquals(List.of(new IntegerItem(3), new IntegerItem(4)), chunkedIndex.querySamples(new IntegerItem(3), null, 0, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testChunkIndexBulkLoad(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Random random1 = new Random();
+        ArrayList<IntegerItem> items = new ArrayList<>();
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            chunkedIndex.setMergeThreshold(2);
+            chunkedIndex.setSplitThreshold(6);
+
+            // Bulk load into an empty index, then into a populated one, then mix with single insertions
+            for (int round = 0; round < 3; round++) {
+                ArrayList<IntegerItem> batch = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    batch.add(new IntegerItem(random1.nextInt(1000)));
+                }
+                chunkedIndex.addSamples(batch);
+                items.addAll(batch);
+                IntegerItem single = new IntegerItem(random1.nextInt(1000));
+                chunkedIndex.addSample(single);
+                items.add(single);
+            }
+            chunkedIndex.addSamples(List.of());
+            items.sort(IntegerItem::compareTo);
+            assertEquals(items, chunkedIndex.querySamples(null, null, 0, Integer.MAX_VALUE));
+            assertEquals(items.size(), chunkedIndex.count(null, null));
+            for (int i = 0; i < items.size(); i += 7) {
+                assertEquals(items.get(i), chunkedIndex.querySamples(null, null, i, 1).getFirst());
+            }
+
+            // Removal still works on bulk-loaded chunks
+            for (int i = 0; i < 50; i++) {
+                chunkedIndex.removeSample(items.remove(random1.nextInt(items.size())));
+            }
+            assertEquals(items, chunkedIndex.querySamples(null, null, 0, Integer.MAX_VALUE));
+        }
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            assertEquals(items, chunkedIndex.querySamples(null, null, 0, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testChunkIndexPages(@TempDir File tempDir) throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[256 / 8];
+        random.nextBytes(key);
+        Random random1 = new Random();
+        ArrayList<IntegerItem> items = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            items.add(new IntegerItem(random1.nextInt(1000)));
+        }
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            chunkedIndex.setMergeThreshold(2);
+            chunkedIndex.setSplitThreshold(6);
+            chunkedIndex.setPageSize(4);
+            for (IntegerItem item : items) {
+                chunkedIndex.addSample(item);
+            }
+            items.sort(IntegerItem::compareTo);
+            ChunkedIndex<IntegerItem>.Snapshot snapshot = chunkedIndex.snapshot();
+            List<IntegerItem> pinned = List.copyOf(items);
+
+            // Pages are split and merged as the chunks come and go
+            for (int i = 0; i < 300; i++) {
+                chunkedIndex.removeSample(items.remove(random1.nextInt(items.size())));
+            }
+            for (int i = 0; i < 100; i++) {
+                IntegerItem item = new IntegerItem(random1.nextInt(1000));
+                chunkedIndex.addSample(item);
+                items.add(item);
+            }
+            items.sort(IntegerItem::compareTo);
+            assertEquals(items, chunkedIndex.stream(null, null, false).toList());
+            assertEquals(pinned, snapshot.stream(null, null, false).toList());
+            // Counted and skipped through the numbers of elements of the pages
+            for (int skip = 0; skip < items.size(); skip += 37) {
+                assertEquals(items.subList(skip, Math.min(skip + 5, items.size())), chunkedIndex.querySamples(null, null, skip, 5));
+                assertEquals(items.indexOf(items.get(skip)), chunkedIndex.count(null, items.get(skip)));
+            }
+            snapshot.close();
+        }
+
+        // The pages are loaded on demand after reopening
+        DocumentCache.invalidateAll();
+        try (ChunkedIndex<IntegerItem> chunkedIndex = new ChunkedIndex<>(
+                new EncryptedDirectory(tempDir, key), IntegerItem::compareTo, IntegerItem::deserialize)) {
+            assertEquals(items.size(), chunkedIndex.count(null, null));
+            for (int i = 0; i < items.size(); i += 7) {
+                assertEquals(items.get(i), chunkedIndex.querySamples(null, null, i, 1).getFirst());
+            }
+            for (int i = 0; i < 50; i++) {
+                IntegerItem min = new IntegerItem(random1.nextInt(1100) - 50);
+                IntegerItem max = new IntegerItem(random1.nextInt(1100) - 50);
+                List<IntegerItem> expected = items.stream()
+                        .filter(x -> x.compareTo(min) >= 0 && x.compareTo(max) < 0).toList();
+                assertEquals(expected.size(), chunkedIndex.count(min, max));
+                assertEquals(expected, chunkedIndex.querySamples(min, max, 0, Integer.MAX_VALUE));
+            }
+            assertEquals(items.reversed(), chunkedIndex.stream(null, null, true).toList());
+        }
+    }
+
     // Expected to run in 3 minutes on Intel(R) Core(TM) i7-14700HX
     // However, loose time constraint is set to 5 minutes for older CPUs
     @Test
@@ -1,13 +1,17 @@
 package io.github.software.coursework;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 import io.github.software.coursework.data.*;
 import io.github.software.coursework.data.json.AccountManager;
+import io.github.software.coursework.data.json.DirectoryBackend;
 import io.github.software.coursework.data.json.Encryption;
 import io.github.software.coursework.data.json.JsonStorage;
 import io.github.software.coursework.data.schema.Entity;
 import io.github.software.coursework.data.schema.Goal;
 import io.github.software.coursework.data.schema.Transaction;
+import io.github.software.coursework.data.schema.TransactionAggregate;
+import io.github.software.coursework.data.schema.TransactionSummary;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -18,12 +22,22 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.SequencedCollection;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -188,9 +202,11 @@ class JsonStorageTest {
 
         // List transactions
         AtomicReference<SequencedCollection<ReferenceItemPair<Transaction>>> transactionsRef = new AtomicReference<>();
+        AtomicInteger countRef = new AtomicInteger();
         storage.transaction(transactionTable -> {
             try {
                 transactionsRef.set(transactionTable.list(0, Long.MAX_VALUE, 0, 10));
+                countRef.set(transactionTable.count(0, Long.MAX_VALUE));
                 listLatch.countDown();
             } catch (IOException e) {
                 fail("Failed to list transactions: " + e.getMessage());
@@ -200,6 +216,7 @@ class JsonStorageTest {
         assertTrue(listLatch.await(5, TimeUnit.SECONDS), "List operation timed out");
         assertNotNull(transactionsRef.get(), "Transaction list should not be null");
         assertEquals(1, transactionsRef.get().size(), "Transaction list should have one item");
+        assertEquals(1, countRef.get(), "Transaction count should match the list");
         assertEquals(transactionRef.id(), transactionsRef.get().getFirst().reference().id(), "Transaction ID should match");
 
         // Remove transaction
@@ -573,4 +590,501 @@ class JsonStorageTest {
         assertTrue(exceptionRef.get().getMessage().contains("in use"),
                 "Exception should mention tag is in use");
     }
-}
\ No newline at end of file
+
+    @Test
+    void testPutAllTransactions() throws Exception {
+        LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            batch.put(new Reference<>(), new Transaction(
+                    "Imported " + i, "", 1000L * i, i, "Diet", null, ImmutableList.of("Valentine's Day")));
+        }
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<SequencedCollection<ReferenceItemPair<Transaction>>> transactionsRef = new AtomicReference<>();
+        AtomicReference<Transaction> replacedRef = new AtomicReference<>();
+        AtomicReference<ImmutablePair<Set<String>, Set<String>>> tagsRef = new AtomicReference<>();
+        Reference<Transaction> firstRef = batch.firstEntry().getKey();
+        storage.transaction(transactionTable -> {
+            try {
+                transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+                // Putting an existing key replaces the value
+                transactionTable.putAll(Map.of(firstRef, batch.firstEntry().getValue().withTitle("Replaced")), AsyncStorage.Sensitivity.NORMAL);
+                transactionsRef.set(transactionTable.list(Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE));
+                replacedRef.set(transactionTable.get(firstRef));
+                tagsRef.set(transactionTable.getTags());
+                latch.countDown();
+            } catch (IOException e) {
+                fail("Failed to put transactions: " + e.getMessage());
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS), "Put all operation timed out");
+        assertEquals(1000, transactionsRef.get().size(), "All transactions should be listed exactly once");
+        long previous = Long.MAX_VALUE;
+        for (ReferenceItemPair<Transaction> pair : transactionsRef.get()) {
+            assertTrue(pair.item().time() <= previous, "Transactions should be listed in descending time");
+            previous = pair.item().time();
+        }
+        assertEquals("Replaced", replacedRef.get().title(), "Existing transaction should be replaced");
+        assertTrue(tagsRef.get().right.contains("Valentine's Day"), "Tags of imported transactions should be counted");
+    }
+
+    @Test
+    void testTransactionSummaries() throws Exception {
+        LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            // Many transactions at the same time, so that they span several chunks
+            batch.put(new Reference<>(), new Transaction("Same time " + i, "", 5000, -i, "Diet", null, ImmutableList.of()));
+        }
+        Reference<Transaction> removed = batch.firstEntry().getKey();
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<SequencedCollection<TransactionSummary>> summariesRef = new AtomicReference<>();
+        AtomicReference<SequencedCollection<ReferenceItemPair<Transaction>>> transactionsRef = new AtomicReference<>();
+        storage.transaction(transactionTable -> {
+            try {
+                transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+                transactionTable.put(new Reference<>(), AsyncStorage.Sensitivity.NORMAL,
+                        new Transaction("Earlier", "", 4000, 1, "Salary", null, ImmutableList.of()));
+                transactionTable.put(removed, AsyncStorage.Sensitivity.NORMAL, null);
+                summariesRef.set(transactionTable.listSummaries(4999, 5000, 0, Integer.MAX_VALUE));
+                transactionsRef.set(transactionTable.list(0, 5000, 0, Integer.MAX_VALUE));
+                latch.countDown();
+            } catch (IOException e) {
+                fail("Failed to list summaries: " + e.getMessage());
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS), "List summaries operation timed out");
+        assertEquals(99, summariesRef.get().size(), "The removed transaction should not be summarized");
+        for (TransactionSummary summary : summariesRef.get()) {
+            assertNotEquals(removed, summary.reference());
+            assertEquals(batch.get(summary.reference()).amount(), summary.amount());
+            assertEquals("Diet", summary.category());
+        }
+        assertEquals(100, transactionsRef.get().size());
+        assertEquals("Earlier", transactionsRef.get().getLast().item().title(), "Full transactions should be resolved in time order");
+    }
+
+    private interface Query<T> {
+        T apply(AsyncStorage.TransactionTable table) throws IOException;
+    }
+
+    private <T> T onTransactionTable(Query<T> query) throws Exception {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        storage.transaction(transactionTable -> {
+            try {
+                future.complete(query.apply(transactionTable));
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testSecondaryIndices() throws Exception {
+        Reference<Entity> shop = new Reference<>();
+        Reference<Transaction> moved = new Reference<>();
+        LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 30; i++) {
+            batch.put(i == 0 ? moved : new Reference<>(), new Transaction("Transaction " + i, "", 1000L * i, -i,
+                    i % 3 == 0 ? "Diet" : "Hobby", i % 2 == 0 ? shop : null, i % 5 == 0 ? ImmutableList.of("Double 11 (Singles’ Day)") : ImmutableList.of()));
+        }
+        onTransactionTable(transactionTable -> {
+            transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+            transactionTable.put(moved, AsyncStorage.Sensitivity.NORMAL, batch.get(moved).withCategory("Hobby"));
+            return null;
+        });
+
+        assertFilteredViews(shop);
+        // Filtered because the indices are disabled
+        storage.close().get(5, TimeUnit.SECONDS);
+        storage = new JsonStorage(testAccount, TEST_PASSWORD, EnumSet.noneOf(JsonStorage.SecondaryIndex.class));
+        assertFilteredViews(shop);
+        // Rebuilt when enabled again
+        storage.close().get(5, TimeUnit.SECONDS);
+        storage = new JsonStorage(testAccount, TEST_PASSWORD);
+        assertFilteredViews(shop);
+    }
+
+    @Test
+    void testBackends() throws Exception {
+        File plain = new File(tempDir.toFile(), "plain");
+        for (DirectoryBackend backend : List.of(DirectoryBackend.memory(), DirectoryBackend.plain(plain))) {
+            storage.close().get(5, TimeUnit.SECONDS);
+            storage = new JsonStorage(backend, EnumSet.allOf(JsonStorage.SecondaryIndex.class));
+            Reference<Entity> shop = new Reference<>();
+            Reference<Transaction> moved = new Reference<>();
+            LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+            for (int i = 0; i < 30; i++) {
+                batch.put(i == 0 ? moved : new Reference<>(), new Transaction("Transaction " + i, "", 1000L * i, -i,
+                        i % 3 == 0 ? "Diet" : "Hobby", i % 2 == 0 ? shop : null, i % 5 == 0 ? ImmutableList.of("Double 11 (Singles’ Day)") : ImmutableList.of()));
+            }
+            onTransactionTable(transactionTable -> {
+                transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+                transactionTable.put(moved, AsyncStorage.Sensitivity.NORMAL, batch.get(moved).withCategory("Hobby"));
+                return null;
+            });
+            assertFilteredViews(shop);
+            // Opened again through the same backend
+            storage.close().get(5, TimeUnit.SECONDS);
+            storage = new JsonStorage(backend, EnumSet.allOf(JsonStorage.SecondaryIndex.class));
+            assertFilteredViews(shop);
+        }
+        assertTrue(new File(plain, "transaction").isDirectory(), "Plain documents should be in a folder per namespace");
+    }
+
+    private void assertFilteredViews(Reference<Entity> shop) throws Exception {
+        SequencedCollection<TransactionSummary> diet = onTransactionTable(table -> table.listByCategory("Diet", Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE));
+        assertEquals(9, diet.size(), "The moved transaction should leave its old category");
+        assertTrue(diet.stream().allMatch(summary -> summary.category().equals("Diet")));
+        assertEquals(27000, diet.getFirst().time(), "Summaries should be listed in descending time");
+        assertEquals(4, onTransactionTable(table -> table.listByCategory("Diet", 0, 12000, 0, Integer.MAX_VALUE)).size());
+        assertEquals(21, onTransactionTable(table -> table.listByCategory("Hobby", Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE)).size());
+        assertEquals(List.of(24000L, 22000L), onTransactionTable(table -> table.listByEntity(shop, Long.MIN_VALUE, Long.MAX_VALUE, 2, 2))
+                .stream().map(TransactionSummary::time).toList());
+        assertEquals(6, onTransactionTable(table -> table.listByTag("Double 11 (Singles’ Day)", Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE)).size());
+    }
+
+    @Test
+    void testSearch() throws Exception {
+        Reference<Entity> market = new Reference<>();
+        CompletableFuture<SequencedCollection<ReferenceItemPair<Entity>>> entitiesFuture = new CompletableFuture<>();
+        storage.entity(entityTable -> {
+            try {
+                entityTable.put(market, AsyncStorage.Sensitivity.NORMAL, new Entity("Fresh Market", "", "", "", "", Entity.Type.COMMERCIAL));
+                entityTable.put(new Reference<>(), AsyncStorage.Sensitivity.NORMAL, new Entity("Bookstore", "", "", "", "", Entity.Type.COMMERCIAL));
+                entitiesFuture.complete(entityTable.search("market"));
+            } catch (IOException e) {
+                entitiesFuture.completeExceptionally(e);
+            }
+        });
+        SequencedCollection<ReferenceItemPair<Entity>> entities = entitiesFuture.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(market), entities.stream().map(ReferenceItemPair::reference).toList());
+
+        LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            batch.put(new Reference<>(), new Transaction("Transaction " + i, "Paid in cash", 1000L * i, -i, "Diet", null, ImmutableList.of()));
+        }
+        Reference<Transaction> title = new Reference<>();
+        Reference<Transaction> description = new Reference<>();
+        Reference<Transaction> entity = new Reference<>();
+        Reference<Transaction> cjk = new Reference<>();
+        batch.put(title, new Transaction("Weekly Groceries", "", 100, -1, "Diet", null, ImmutableList.of()));
+        batch.put(description, new Transaction("Dinner", "groceries for the party", 200, -1, "Diet", null, ImmutableList.of()));
+        batch.put(entity, new Transaction("Fruits", "", 300, -1, "Diet", market, ImmutableList.of()));
+        batch.put(cjk, new Transaction("超市购物", "", 400, -1, "Diet", null, ImmutableList.of()));
+        // Has every trigram of "groceries" without containing it
+        batch.put(new Reference<>(), new Transaction("Noise", "gro roc oce cer eri rie ies", 500, -1, "Diet", null, ImmutableList.of()));
+        onTransactionTable(transactionTable -> {
+            transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+            return null;
+        });
+
+        ImmutablePair<Integer, SequencedCollection<ReferenceItemPair<Transaction>>> groceries =
+                onTransactionTable(table -> table.search("GROCERIES", Set.of(), 0, 10));
+        assertEquals(2, (int) groceries.getLeft());
+        assertEquals(List.of(title, description), groceries.getRight().stream().map(ReferenceItemPair::reference).toList(),
+                "Title matches should rank before description matches");
+        // Each page is ranked the same as the whole, and the total is exact once every candidate is checked
+        assertTrue(onTransactionTable(table -> table.search("groceries", Set.of(), 0, 1)).getLeft() >= 2);
+        assertEquals(List.of(title), onTransactionTable(table -> table.search("groceries", Set.of(), 0, 1))
+                .getRight().stream().map(ReferenceItemPair::reference).toList());
+        assertEquals(List.of(description), onTransactionTable(table -> table.search("groceries", Set.of(), 1, 1))
+                .getRight().stream().map(ReferenceItemPair::reference).toList());
+        assertEquals(ImmutablePair.of(2, List.of()), onTransactionTable(table -> table.search("groceries", Set.of(), 2, 10)));
+        assertEquals(List.of(entity), onTransactionTable(table -> table.search("market", Set.of(market), 0, 10))
+                .getRight().stream().map(ReferenceItemPair::reference).toList());
+        assertEquals(List.of(cjk), onTransactionTable(table -> table.search("超市", Set.of(), 0, 10))
+                .getRight().stream().map(ReferenceItemPair::reference).toList());
+        // Too short for the text index, answered by a scan
+        assertEquals(14, (int) onTransactionTable(table -> table.search("4", Set.of(), 0, 10)).getLeft());
+
+        ImmutablePair<Integer, SequencedCollection<ReferenceItemPair<Transaction>>> page =
+                onTransactionTable(table -> table.search("transaction", Set.of(), 40, 20));
+        assertEquals(50, (int) page.getLeft());
+        assertEquals(10, page.getRight().size());
+        assertEquals(55, (int) onTransactionTable(table -> table.search("", Set.of(), 0, 0)).getLeft());
+
+        // Edited texts leave the index
+        onTransactionTable(transactionTable -> {
+            transactionTable.put(title, AsyncStorage.Sensitivity.NORMAL, batch.get(title).withTitle("Weekly Snacks"));
+            return null;
+        });
+        assertEquals(List.of(description), onTransactionTable(table -> table.search("groceries", Set.of(), 0, 10))
+                .getRight().stream().map(ReferenceItemPair::reference).toList());
+    }
+
+    @Test
+    void testAggregate() throws Exception {
+        LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 1200; i++) {
+            batch.put(new Reference<>(), new Transaction("Transaction " + i, "", 1000L * i, i % 4 == 0 ? 300 : -i,
+                    i % 3 == 0 ? "Diet" : "Hobby", null, ImmutableList.of()));
+        }
+        onTransactionTable(transactionTable -> {
+            transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+            return null;
+        });
+
+        List<TransactionAggregate> all = onTransactionTable(table -> table.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(1, all.size());
+        assertEquals(1200, all.getFirst().count());
+        assertEquals(300 * 300, all.getFirst().income());
+        assertEquals(batch.values().stream().mapToLong(Transaction::amount).sum(), all.getFirst().amount());
+
+        // Buckets are (start, end] like the listing
+        List<TransactionAggregate> days = onTransactionTable(table -> table.aggregate(-500, 1_000_000, 100_000));
+        assertEquals(11, days.size());
+        assertEquals(100, days.getFirst().count());
+        assertEquals(1, days.getLast().count(), "The end is included");
+        for (int i = 0; i < days.size(); i++) {
+            long start = -500 + i * 100_000L;
+            List<TransactionSummary> bucket = onTransactionTable(table -> List.copyOf(table.listSummaries(start, Math.min(start + 100_000, 1_000_000), 0, Integer.MAX_VALUE)));
+            assertEquals(TransactionAggregate.of(bucket), days.get(i));
+        }
+    }
+
+    @Test
+    void testAggregateDays() throws Exception {
+        // Daily buckets as the goal page asks for them, with transactions stamped exactly on midnight
+        long day = 1000L * 60 * 60 * 24;
+        long start = 20_000 * day;
+        long today = start + 4 * day;
+        LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+        for (int i = 0; i <= 4; i++) {
+            batch.put(new Reference<>(), new Transaction("Midnight " + i, "", start + i * day, -(i + 1),
+                    "Diet", null, ImmutableList.of()));
+            batch.put(new Reference<>(), new Transaction("Before midnight " + i, "", start + i * day - 1, -100,
+                    "Diet", null, ImmutableList.of()));
+        }
+        onTransactionTable(transactionTable -> {
+            transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+            return null;
+        });
+
+        List<TransactionAggregate> days = onTransactionTable(table -> table.aggregate(start - 1, today, day));
+        assertEquals((today - start) / day + 1, days.size());
+        // The transaction just before the start is left out, and the last day is cut at today
+        assertEquals(List.of(2L, 2L, 2L, 2L, 1L), days.stream().map(TransactionAggregate::count).toList());
+        for (int i = 0; i < days.size() - 1; i++) {
+            assertEquals(-(i + 1) - 100, days.get(i).amount(), "A transaction at midnight belongs to the day it starts");
+        }
+        assertEquals(-5, days.getLast().amount());
+    }
+
+    @Test
+    void testStreams() throws Exception {
+        LinkedHashMap<Reference<Transaction>, Transaction> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 1200; i++) {
+            batch.put(new Reference<>(), new Transaction("Transaction " + i, "", 1000L * i, -i,
+                    i % 3 == 0 ? "Diet" : "Hobby", null, ImmutableList.of()));
+        }
+        onTransactionTable(transactionTable -> {
+            transactionTable.putAll(batch, AsyncStorage.Sensitivity.NORMAL);
+            return null;
+        });
+
+        List<ReferenceItemPair<Transaction>> listed = onTransactionTable(table -> List.copyOf(table.list(5000, 900_000, 0, Integer.MAX_VALUE)));
+        try (Stream<ReferenceItemPair<Transaction>> streamed = onTransactionTable(table -> table.stream(5000, 900_000))) {
+            // Consumed outside the table thread, after the table is modified
+            onTransactionTable(table -> {
+                table.put(new Reference<>(), AsyncStorage.Sensitivity.NORMAL, new Transaction("Later", "", 6000, -1, "Diet", null, ImmutableList.of()));
+                table.put(listed.getFirst().reference(), AsyncStorage.Sensitivity.NORMAL, null);
+                return null;
+            });
+            assertEquals(listed, streamed.toList());
+        }
+        assertEquals(listed.size(), (int) onTransactionTable(table -> table.count(5000, 900_000)));
+        assertEquals(400, (int) onTransactionTable(table -> {
+            try (Stream<TransactionSummary> diet = table.streamByCategory("Diet", Long.MIN_VALUE, Long.MAX_VALUE)) {
+                return (int) diet.filter(summary -> summary.category().equals("Diet")).count();
+            }
+        }));
+        assertEquals(List.of(1_197_000L, 1_194_000L), onTransactionTable(table -> {
+            try (Stream<TransactionSummary> diet = table.streamByCategory("Diet", Long.MIN_VALUE, Long.MAX_VALUE)) {
+                return diet.limit(2).map(TransactionSummary::time).toList();
+            }
+        }));
+    }
+
+    @Test
+    void testConcurrentReads() throws Exception {
+        Reference<Transaction> reference = new Reference<>();
+        Transaction transaction = new Transaction("Read", "", 1000, -100, "Diet", null, ImmutableList.of());
+        storage.transaction(table -> {
+            try {
+                table.put(reference, AsyncStorage.Sensitivity.NORMAL, transaction);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        // A read submitted after a modification sees it
+        CompletableFuture<Transaction> seen = new CompletableFuture<>();
+        storage.readTransaction(table -> {
+            try {
+                seen.complete(table.get(reference));
+            } catch (IOException e) {
+                seen.completeExceptionally(e);
+            }
+        });
+        assertEquals(transaction, seen.get(5, TimeUnit.SECONDS));
+
+        // A blocked read does not hold back the reads after it
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger finished = new AtomicInteger();
+        storage.readTransaction(table -> {
+            try {
+                release.await();
+                finished.incrementAndGet();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        CompletableFuture<Integer> other = new CompletableFuture<>();
+        storage.readTransaction(table -> {
+            try {
+                other.complete(table.count(Long.MIN_VALUE, Long.MAX_VALUE));
+            } catch (IOException e) {
+                other.completeExceptionally(e);
+            }
+        });
+        assertEquals(1, (int) other.get(5, TimeUnit.SECONDS));
+        assertEquals(0, finished.get());
+
+        // Closing waits for the pending reads
+        CompletableFuture<Void> closed = storage.close();
+        Thread.sleep(100);
+        assertFalse(closed.isDone());
+        release.countDown();
+        closed.get(5, TimeUnit.SECONDS);
+        assertEquals(1, finished.get());
+        storage = new JsonStorage(testAccount, TEST_PASSWORD);
+    }
+
+    @Test
+    void testFutures() throws Exception {
+        Reference<Entity> entity = new Reference<>();
+        Reference<Transaction> transaction = new Reference<>();
+        storage.submitEntity(table -> table.put(entity, AsyncStorage.Sensitivity.NORMAL,
+                new Entity("Shop", "", "", "", "", Entity.Type.UNKNOWN))).get(5, TimeUnit.SECONDS);
+        assertNull(storage.submitTransaction(table -> table.put(transaction, AsyncStorage.Sensitivity.NORMAL,
+                new Transaction("Lunch", "", 1000, -100, "Diet", entity, ImmutableList.of()))).get(5, TimeUnit.SECONDS));
+
+        // Reads of both tables run in parallel, and are combined without nesting
+        CompletableFuture<String> combined = storage.queryTransaction(table -> table.get(transaction))
+                .thenCombine(storage.queryEntity(table -> table.get(entity)), (t, e) -> t.title() + "@" + e.name());
+        assertEquals("Lunch@Shop", combined.get(5, TimeUnit.SECONDS));
+
+        // Pipelined across tables, the second read depends on the first
+        String name = storage.queryTransaction(table -> table.get(transaction).entity())
+                .thenCompose(reference -> storage.queryEntity(table -> table.get(reference).name()))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals("Shop", name);
+
+        // Failures of the tasks fail the futures instead of the tables
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> storage.queryTransaction(table -> {
+            throw new IOException("Expected");
+        }).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, failed.getCause());
+        assertEquals(1, (int) storage.queryTransaction(table -> table.count(Long.MIN_VALUE, Long.MAX_VALUE)).get(5, TimeUnit.SECONDS));
+
+        storage.close().get(5, TimeUnit.SECONDS);
+        failed = assertThrows(ExecutionException.class, () -> storage.queryEntity(table -> table.get(entity)).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, failed.getCause());
+        storage = new JsonStorage(testAccount, TEST_PASSWORD);
+    }
+
+    @Test
+    void testPriorities() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> blocker = storage.submitTransaction(AsyncStorage.Priority.BULK, table -> {
+            started.countDown();
+            Uninterruptibles.awaitUninterruptibly(release, 5, TimeUnit.SECONDS);
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The bulk queue is full with two tasks waiting
+        storage.setQueueCapacity(AsyncStorage.Priority.BULK, 2);
+        List<CompletableFuture<Void>> bulk = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            bulk.add(storage.submitTransaction(AsyncStorage.Priority.BULK, table -> {
+                order.add("bulk");
+                return null;
+            }));
+        }
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> storage.submitTransaction(
+                AsyncStorage.Priority.BULK, table -> null).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, failed.getCause());
+
+        // The interactive read overtakes the bulk modifications submitted before it
+        CompletableFuture<Integer> read = storage.queryTransaction(table -> {
+            order.add("read");
+            return table.count(Long.MIN_VALUE, Long.MAX_VALUE);
+        });
+        Map<AsyncStorage.Priority, JsonStorage.QueueStats> stats = storage.queueStats().get("transaction");
+        assertEquals(2, stats.get(AsyncStorage.Priority.BULK).depth());
+        assertEquals(1, stats.get(AsyncStorage.Priority.BULK).rejected());
+        assertEquals(1, stats.get(AsyncStorage.Priority.INTERACTIVE).depth());
+
+        release.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        assertEquals(0, (int) read.get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<Void> future : bulk) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of("read", "bulk", "bulk"), order);
+
+        stats = storage.queueStats().get("transaction");
+        JsonStorage.QueueStats bulkStats = stats.get(AsyncStorage.Priority.BULK);
+        assertEquals(0, bulkStats.depth());
+        assertEquals(3, bulkStats.admitted());
+        assertTrue(bulkStats.maxWaitNanos() > 0);
+        assertTrue(bulkStats.averageWaitNanos() > 0);
+        assertTrue(bulkStats.maxWaitNanos() >= stats.get(AsyncStorage.Priority.INTERACTIVE).maxWaitNanos());
+    }
+
+    @Test
+    void testWriteOrder() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> blocker = storage.submitTransaction(AsyncStorage.Priority.BULK, table -> {
+            started.countDown();
+            Uninterruptibles.awaitUninterruptibly(release, 5, TimeUnit.SECONDS);
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The interactive modification runs after the bulk modification submitted before it
+        storage.setQueueCapacity(AsyncStorage.Priority.BULK, 1);
+        CompletableFuture<Void> bulk = storage.submitTransaction(AsyncStorage.Priority.BULK, table -> {
+            order.add("bulk");
+            return null;
+        });
+        CompletableFuture<Void> interactive = storage.submitTransaction(table -> {
+            order.add("interactive");
+            return null;
+        });
+
+        // With the bulk queue full, the callback waits instead of throwing
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> storage.transaction(
+                AsyncStorage.Priority.BULK, table -> order.add("waiting")));
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+
+        release.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        waiting.get(5, TimeUnit.SECONDS);
+        bulk.get(5, TimeUnit.SECONDS);
+        interactive.get(5, TimeUnit.SECONDS);
+        storage.submitTransaction(table -> null).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("bulk", "interactive", "waiting"), order);
+        assertEquals(0, storage.queueStats().get("transaction").get(AsyncStorage.Priority.BULK).rejected());
+    }
+}
@@ -49,7 +49,7 @@ public class PredictionModelTest {
         TestStorage testStorage = new TestStorage();
 
         PredictModel predictModel = new PredictModel(testStorage);
-        predictModel.loadTransactionsAndTrain();
+        predictModel.loadTransactionsAndTrain().join();
 
 //        CompletableFuture<ImmutablePair<ImmutableDoubleArray, Pair<ImmutableDoubleArray, ImmutableDoubleArray>>> future =
 //                predictModel.predictBudgetUsage(millis, time);